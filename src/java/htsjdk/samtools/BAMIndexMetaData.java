@@ -129,10 +129,18 @@ public class BAMIndexMetaData {
             throw new SAMException("BAM cannot be indexed without setting a fileSource for record " + rec);
         }
         final Chunk newChunk = ((BAMFileSpan) rec.getFileSource().getFilePointer()).getSingleChunk();
-        final long start = newChunk.getChunkStart();
-        final long end = newChunk.getChunkEnd();
+        recordMetaData(rec.getReadUnmappedFlag(), newChunk.getChunkStart(), newChunk.getChunkEnd());
+    }
 
-        if (rec.getReadUnmappedFlag()) {
+    /**
+     * Record the metaData of a record that has an alignment start
+     *
+     * @param readUnmapped true if the record is unmapped
+     * @param start virtual file offset of the start of the record
+     * @param end virtual file offset of the end of the record
+     */
+    void recordMetaData(final boolean readUnmapped, final long start, final long end) {
+        if (readUnmapped) {
             unAlignedRecords++;
         } else {
             alignedRecords++;
@@ -145,6 +153,24 @@ public class BAMIndexMetaData {
         }
     }
 
+    /**
+     * Add the metaData of records for the same reference that come after those recorded here
+     *
+     * @param later metaData built from records later in the file
+     */
+    void merge(final BAMIndexMetaData later) {
+        if (later.firstOffset != -1 &&
+                (firstOffset == -1 || BlockCompressedFilePointerUtil.compare(later.firstOffset, firstOffset) < 1)) {
+            firstOffset = later.firstOffset;
+        }
+        if (BlockCompressedFilePointerUtil.compare(lastOffset, later.lastOffset) < 1) {
+            lastOffset = later.lastOffset;
+        }
+        alignedRecords += later.alignedRecords;
+        unAlignedRecords += later.unAlignedRecords;
+        noCoordinateRecords += later.noCoordinateRecords;
+    }
+
     /**
      * Call whenever a reference with no coordinate information is encountered in the bam file
      */
@@ -23,9 +23,13 @@
  */
 package htsjdk.samtools;
 
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.RuntimeIOException;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.OutputStream;
 
 /**
@@ -92,6 +96,25 @@ public class BAMIndexer {
         }
     }
 
+    /**
+     * Record any index information for the current record of a BAMIndexingRecordReader.
+     * If this alignment starts a new reference, write out the old reference.
+     *
+     * @param rec positioned at the BAM record
+     */
+    void processAlignment(final BAMIndexingRecordReader rec) {
+        try {
+            final int reference = rec.getReferenceIndex();
+            if (reference != SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX && reference != currentReference) {
+                // process any completed references
+                advanceToReference(reference);
+            }
+            indexBuilder.processAlignment(rec);
+        } catch (final Exception e) {
+            throw new SAMException("Exception creating BAM index for record " + rec, e);
+        }
+    }
+
     /**
      * After all the alignment records have been processed, finish is called.
      * Writes any final information and closes the output file.
@@ -191,34 +214,29 @@ public class BAMIndexer {
                         " when constructing index for " + currentReference + " for record " + rec);
             }
 
-            binningIndexBuilder.processFeature(new BinningIndexBuilder.FeatureToBeIndexed() {
-                @Override
-                public int getStart() {
-                    return rec.getAlignmentStart();
-                }
-
-                @Override
-                public int getEnd() {
-                    return rec.getAlignmentEnd();
-                }
+            binningIndexBuilder.processFeature(makeFeatureToBeIndexed(rec));
+        }
 
-                @Override
-                public Integer getIndexingBin() {
-                    final Integer binNumber = rec.getIndexingBin();
-                    return (binNumber == null ? rec.computeIndexingBin() : binNumber);
+        /**
+         * Record any index information for the current record of a BAMIndexingRecordReader
+         *
+         * @param rec positioned at the BAM record
+         */
+        public void processAlignment(final BAMIndexingRecordReader rec) {
 
-                }
+            if (rec.getStart() == SAMRecord.NO_ALIGNMENT_START) {
+                indexStats.incrementNoCoordinateRecordCount();
+                return;
+            }
+            indexStats.recordMetaData(rec.getReadUnmappedFlag(), rec.getChunkStart(), rec.getChunkEnd());
 
-                @Override
-                public Chunk getChunk() {
-                    final SAMFileSource source = rec.getFileSource();
-                    if (source == null) {
-                        throw new SAMException("No source (virtual file offsets); needed for indexing on BAM Record " + rec);
-                    }
-                    return ((BAMFileSpan) source.getFilePointer()).getSingleChunk();
-                }
-            });
+            final int reference = rec.getReferenceIndex();
+            if (reference != currentReference) {
+                throw new SAMException("Unexpected reference " + reference +
+                        " when constructing index for " + currentReference + " for record " + rec);
+            }
 
+            binningIndexBuilder.processFeature(rec);
         }
 
         /**
@@ -259,6 +277,40 @@ public class BAMIndexer {
         }
     }
 
+    /**
+     * @param rec BAM record, which must have a file source.
+     * @return The information BinningIndexBuilder needs about rec.
+     */
+    static BinningIndexBuilder.FeatureToBeIndexed makeFeatureToBeIndexed(final SAMRecord rec) {
+        return new BinningIndexBuilder.FeatureToBeIndexed() {
+            @Override
+            public int getStart() {
+                return rec.getAlignmentStart();
+            }
+
+            @Override
+            public int getEnd() {
+                return rec.getAlignmentEnd();
+            }
+
+            @Override
+            public Integer getIndexingBin() {
+                final Integer binNumber = rec.getIndexingBin();
+                return (binNumber == null ? rec.computeIndexingBin() : binNumber);
+
+            }
+
+            @Override
+            public Chunk getChunk() {
+                final SAMFileSource source = rec.getFileSource();
+                if (source == null) {
+                    throw new SAMException("No source (virtual file offsets); needed for indexing on BAM Record " + rec);
+                }
+                return ((BAMFileSpan) source.getFilePointer()).getSingleChunk();
+            }
+        };
+    }
+
     /**
      * Generates a BAM index file from an input BAM file
      *
@@ -277,6 +329,13 @@ public class BAMIndexer {
      */
     public static void createIndex(SAMFileReader reader, File output, Log log) {
 
+        if (reader.isBinary() && reader.getSamFile() != null) {
+            // Only the fields needed for indexing are read, rather than decoding whole records
+            createIndex(reader.getSamFile(), reader.getFileHeader(),
+                    ((BAMFileSpan) reader.getFilePointerSpanningReads()).getFirstOffset(), output, log);
+            return;
+        }
+
         BAMIndexer indexer = new BAMIndexer(output, reader.getFileHeader());
 
         reader.enableFileSource(true);
@@ -291,4 +350,56 @@ public class BAMIndexer {
         }
         indexer.finish();
     }
+
+    /**
+     * Generates a BAM index file from a BAM file, reading only the fields of each record needed for indexing
+     *
+     * @param input BAM file
+     * @param header header of the BAM file
+     * @param firstRecordOffset virtual file offset of the first record
+     * @param output File for output index file
+     */
+    private static void createIndex(final File input, final SAMFileHeader header, final long firstRecordOffset,
+                                    final File output, final Log log) {
+        final BAMIndexer indexer = new BAMIndexer(output, header);
+        BlockCompressedInputStream in = null;
+        try {
+            in = new BlockCompressedInputStream(input);
+            in.seek(firstRecordOffset);
+            final BAMIndexingRecordReader rec = new BAMIndexingRecordReader(in, input.getPath());
+            int totalRecords = 0;
+            while (rec.next()) {
+                if (++totalRecords % 1000000 == 0) {
+                    if (null != log) log.info(totalRecords + " reads processed ...");
+                }
+                indexer.processAlignment(rec);
+            }
+        } catch (IOException e) {
+            throw new RuntimeIOException("Exception reading " + input, e);
+        } finally {
+            CloserUtil.close(in);
+        }
+        indexer.finish();
+    }
+
+    /**
+     * Generates a BAM index file from an input BAM file, using several threads if numThreads > 1.
+     * The index is identical to the one created by createIndex(SAMFileReader, File).
+     *
+     * @param input  coordinate-sorted BAM file
+     * @param output File for output index file
+     * @param numThreads number of threads to use
+     */
+    public static void createIndex(final File input, final File output, final int numThreads) {
+        if (numThreads > 1) {
+            new ParallelBAMIndexer(input, numThreads).createIndex(output);
+        } else {
+            final SAMFileReader reader = new SAMFileReader(input);
+            try {
+                createIndex(reader, output);
+            } finally {
+                reader.close();
+            }
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,164 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sub-license, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.RuntimeEOFException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads the records of a BAM file for indexing.  Only the fixed-length fields of each record, and its CIGAR to
+ * compute the alignment end, are parsed.  The read name is read but not decoded, and bases, qualities and
+ * tags are skipped.  The reader describes its current record to BinningIndexBuilder as a FeatureToBeIndexed,
+ * with the same values a fully decoded BAMRecord would give.
+ */
+class BAMIndexingRecordReader implements BinningIndexBuilder.FeatureToBeIndexed {
+    // Length of the fixed-length fields that follow block_size
+    private static final int FIXED_LENGTH = 32;
+    private static final int READ_UNMAPPED_FLAG = 0x4;
+
+    private final BlockCompressedInputStream in;
+    private final String source;
+    private final byte[] blockSizeBytes = new byte[4];
+    private byte[] buffer = new byte[1024];
+    private ByteBuffer byteBuffer = ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN);
+
+    // Fields of the current record
+    private int referenceIndex;
+    private int alignmentStart;
+    private int alignmentEnd;
+    private int indexingBin;
+    private boolean readUnmapped;
+    private long chunkStart;
+    private long chunkEnd;
+
+    /**
+     * @param in positioned at the start of a record
+     * @param source name of the input, for error messages
+     */
+    BAMIndexingRecordReader(final BlockCompressedInputStream in, final String source) {
+        this.in = in;
+        this.source = source;
+    }
+
+    /**
+     * Read the next record.
+     * @return false if there are no more records.
+     */
+    boolean next() throws IOException {
+        chunkStart = in.getFilePointer();
+        final int n = in.read(blockSizeBytes, 0, blockSizeBytes.length);
+        if (n <= 0) {
+            return false;
+        } else if (n < blockSizeBytes.length) {
+            throw new RuntimeEOFException("Premature EOF reading BAM record from " + source);
+        }
+        final int blockSize = ByteBuffer.wrap(blockSizeBytes).order(ByteOrder.LITTLE_ENDIAN).getInt();
+        if (blockSize < FIXED_LENGTH) {
+            throw new SAMFormatException("Invalid BAM record size " + blockSize + " at " + chunkStart + " in " + source);
+        }
+        readFully(0, FIXED_LENGTH);
+        final int binMqNl = byteBuffer.getInt(8);
+        final int flagNc = byteBuffer.getInt(12);
+        final int readNameLength = binMqNl & 0xff;
+        final int cigarLength = flagNc & 0xffff;
+        final int cigarEnd = FIXED_LENGTH + readNameLength + 4 * cigarLength;
+        if (cigarEnd > blockSize) {
+            throw new SAMFormatException("Invalid BAM record at " + chunkStart + " in " + source);
+        }
+        if (cigarEnd > buffer.length) {
+            buffer = new byte[cigarEnd];
+            byteBuffer = ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(0, FIXED_LENGTH);
+        }
+        readFully(FIXED_LENGTH, cigarEnd - FIXED_LENGTH);
+        if (in.skip(blockSize - cigarEnd) != blockSize - cigarEnd) {
+            throw new RuntimeEOFException("Premature EOF reading BAM record from " + source);
+        }
+        chunkEnd = in.getFilePointer();
+
+        referenceIndex = byteBuffer.getInt(0);
+        alignmentStart = byteBuffer.getInt(4) + 1;
+        indexingBin = binMqNl >>> 16;
+        readUnmapped = ((flagNc >>> 16) & READ_UNMAPPED_FLAG) != 0;
+        if (readUnmapped) {
+            alignmentEnd = SAMRecord.NO_ALIGNMENT_START;
+        } else {
+            byteBuffer.limit(cigarEnd).position(FIXED_LENGTH + readNameLength);
+            alignmentEnd = alignmentStart + BinaryCigarCodec.getReferenceLength(byteBuffer) - 1;
+            byteBuffer.clear();
+        }
+        return true;
+    }
+
+    private void readFully(final int offset, final int length) throws IOException {
+        if (in.read(buffer, offset, length) != length) {
+            throw new RuntimeEOFException("Premature EOF reading BAM record from " + source);
+        }
+    }
+
+    int getReferenceIndex() {
+        return referenceIndex;
+    }
+
+    boolean getReadUnmappedFlag() {
+        return readUnmapped;
+    }
+
+    long getChunkStart() {
+        return chunkStart;
+    }
+
+    long getChunkEnd() {
+        return chunkEnd;
+    }
+
+    @Override
+    public int getStart() {
+        return alignmentStart;
+    }
+
+    @Override
+    public int getEnd() {
+        return alignmentEnd;
+    }
+
+    @Override
+    public Integer getIndexingBin() {
+        return indexingBin;
+    }
+
+    @Override
+    public Chunk getChunk() {
+        return new Chunk(chunkStart, chunkEnd);
+    }
+
+    @Override
+    public String toString() {
+        return "at " + chunkStart + " in " + source;
+    }
+}
@@ -87,6 +87,22 @@ class BinaryCigarCodec {
         return ret;
     }
 
+    /**
+     * Compute the number of reference bases covered by a CIGAR in disk representation without decoding it,
+     * equivalent to decode(binaryCigar).getReferenceLength().
+     * @param binaryCigar ByteArray that is assumed to have byte order set appropriately for extracting ints.
+     */
+    static int getReferenceLength(final ByteBuffer binaryCigar) {
+        int length = 0;
+        while (binaryCigar.hasRemaining()) {
+            final int cigarette = binaryCigar.getInt();
+            if (CigarOperator.binaryToEnum(cigarette & 0xf).consumesReferenceBases()) {
+                length += cigarette >> 4;
+            }
+        }
+        return length;
+    }
+
     /**
      * @param cigarette CIGAR element (operator + length) encoded as an unsigned int.
      * @return Object representation of the CIGAR element.
@@ -139,6 +139,48 @@ public class BinningIndexBuilder {
         }
     }
 
+    /**
+     * Add the features processed by another builder for the same reference, as though they had been processed by
+     * this one.  All the features processed by later must come after those processed by this builder.
+     * later may not be used afterwards, since its bins become part of this builder.
+     */
+    void append(final BinningIndexBuilder later) {
+        if (later.referenceSequence != referenceSequence || later.bins.length != bins.length) {
+            throw new IllegalArgumentException("Cannot append index for reference " + later.referenceSequence +
+                    " to index for reference " + referenceSequence);
+        }
+        for (int binNum = 0; binNum < bins.length; binNum++) {
+            final Bin laterBin = later.bins[binNum];
+            if (laterBin == null) continue;
+            final Bin bin = bins[binNum];
+            if (bin == null) {
+                bins[binNum] = laterBin;
+                binsSeen++;
+                continue;
+            }
+            // Coalesce as processFeature would have
+            for (final Chunk newChunk : laterBin.getChunkList()) {
+                final Chunk lastChunk = bin.getLastChunk();
+                if (BlockCompressedFilePointerUtil.areInSameOrAdjacentBlocks(lastChunk.getChunkEnd(), newChunk.getChunkStart())) {
+                    lastChunk.setChunkEnd(newChunk.getChunkEnd());
+                } else {
+                    bin.getChunkList().add(newChunk);
+                    bin.setLastChunk(newChunk);
+                }
+            }
+        }
+
+        for (int win = 0; win <= later.largestIndexSeen; win++) {
+            final long chunkStart = later.index[win];
+            if (chunkStart != 0 && (index[win] == 0 || chunkStart < index[win])) {
+                index[win] = chunkStart;
+            }
+        }
+        if (later.largestIndexSeen > largestIndexSeen) {
+            largestIndexSeen = later.largestIndexSeen;
+        }
+    }
+
     /**
      * Creates the BAMIndexContent for this reference.
      * Requires all features of the reference have already been processed.
@@ -25,17 +25,22 @@ package htsjdk.samtools;
 
 import htsjdk.samtools.util.CloseableIterator;
 import htsjdk.samtools.util.CloserUtil;
-import htsjdk.samtools.util.FileAppendStreamLRUCache;
 import htsjdk.samtools.util.IOUtil;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
@@ -47,32 +52,59 @@ import java.util.Set;
  * a record for a given reference sequence index, all the records for that sequence are loaded from temp file into RAM, so there
  * must be sufficient RAM to hold all the records for one reference sequence.  If the records are not processed in
  * reference sequence order, loading and unloading of records will cause performance to be terrible.
+ *
+ * Records for reference sequences other than the one in RAM are encoded into a small per-sequence buffer, and when that
+ * fills up it is appended to the current segment file.  Records for all sequences share a few segment files, and
+ * the location of each sequence's records is kept in RAM, so the number of open files does not depend on the number
+ * of reference sequences.  When a sequence is loaded, its records are read back through memory-mapped views of the
+ * segment files, and a segment file is deleted once all the records in it have been loaded.
  * @param <KEY> KEY + reference sequence index are used to identify the record being stored or retrieved.
  * @param <REC> The type of record being retrieved.
  */
 public class CoordinateSortedPairInfoMap<KEY, REC> implements Iterable<Map.Entry<KEY, REC>> {
     // -1 is a valid sequence index in this case
     private final int INVALID_SEQUENCE_INDEX = -2;
+
+    /** When a sequence's buffer of encoded records reaches this size, it is appended to the current segment. */
+    private static final int MAX_PENDING_BYTES_PER_SEQUENCE = 64 * 1024;
+    /** When all the buffers of encoded records together reach this size, they are all appended to the current segment. */
+    private static final long MAX_PENDING_BYTES = 32 * 1024 * 1024;
+    /** A new segment file is started when the current one reaches this size. */
+    private static final long MAX_SEGMENT_BYTES = 256 * 1024 * 1024;
+
     /**
      * directory where files will go
      */
     private final File workDir = IOUtil.createTempDir("CSPI.", null);
     private int sequenceIndexOfMapInRam = INVALID_SEQUENCE_INDEX;
     private Map<KEY, REC> mapInRam = null;
-    private final FileAppendStreamLRUCache outputStreams;
     private final Codec<KEY, REC> elementCodec;
     // Key is reference index (which is in the range [-1 .. max sequence index].
-    // Value is the number of records on disk for this index.
-    private final Map<Integer, Integer> sizeOfMapOnDisk = new HashMap<Integer, Integer>();
+    // Value is the location of the records not in RAM for this index.
+    private final Map<Integer, SpilledSequence> spilledSequences = new HashMap<Integer, SpilledSequence>();
+
+    // Segment files, indexed by segment number.  Entries are set to null when a segment file is deleted.
+    private final List<Segment> segments = new ArrayList<Segment>();
+    // The segment currently being appended to, or null if there is none.
+    private Segment currentSegment = null;
+    // Total size of the encoded records that have not yet been appended to a segment.
+    private long pendingBytes = 0;
 
     // No other methods may be called when iteration is in progress, because iteration depends on and changes
     // internal state.
     private boolean iterationInProgress = false;
 
-    public CoordinateSortedPairInfoMap(final int maxOpenFiles, final Codec<KEY, REC> elementCodec) {
+    public CoordinateSortedPairInfoMap(final Codec<KEY, REC> elementCodec) {
         this.elementCodec = elementCodec;
         workDir.deleteOnExit();
-        outputStreams = new FileAppendStreamLRUCache(maxOpenFiles);
+    }
+
+    /**
+     * @param maxOpenFiles Ignored.  At most one file is held open for writing, regardless of the number of
+     *                     reference sequences.
+     */
+    public CoordinateSortedPairInfoMap(final int maxOpenFiles, final Codec<KEY, REC> elementCodec) {
+        this(elementCodec);
     }
 
     /**
@@ -88,59 +120,42 @@ public class CoordinateSortedPairInfoMap<KEY, REC> implements Iterable<Map.Entry
     }
 
     private void ensureSequenceLoaded(final int sequenceIndex) {
-        try {
-            if (sequenceIndexOfMapInRam == sequenceIndex) {
-                return;
-            }
+        if (sequenceIndexOfMapInRam == sequenceIndex) {
+            return;
+        }
 
-            // Spill map in RAM to disk
-            if (mapInRam != null) {
-                final File spillFile = makeFileForSequence(sequenceIndexOfMapInRam);
-                if (spillFile.exists()) throw new IllegalStateException(spillFile + " should not exist.");
-                if (!mapInRam.isEmpty()) {
-                    // Do not create file or entry in sizeOfMapOnDisk if there is nothing to write.
-                    final OutputStream os = getOutputStreamForSequence(sequenceIndexOfMapInRam);
-                    elementCodec.setOutputStream(os);
-                    for (final Map.Entry<KEY, REC> entry : mapInRam.entrySet()) {
-                        elementCodec.encode(entry.getKey(), entry.getValue());
-                    }
-                    sizeOfMapOnDisk.put(sequenceIndexOfMapInRam, mapInRam.size());
-                    mapInRam.clear();
+        // Spill map in RAM to disk
+        if (mapInRam != null) {
+            if (spilledSequences.containsKey(sequenceIndexOfMapInRam))
+                throw new IllegalStateException("Records for " + sequenceIndexOfMapInRam + " should not be on disk.");
+            if (!mapInRam.isEmpty()) {
+                // Do not create entry in spilledSequences if there is nothing to write.
+                final SpilledSequence spilled = new SpilledSequence();
+                spilledSequences.put(sequenceIndexOfMapInRam, spilled);
+                for (final Map.Entry<KEY, REC> entry : mapInRam.entrySet()) {
+                    encode(spilled, entry.getKey(), entry.getValue());
                 }
-            } else {
-                mapInRam = new HashMap<KEY, REC>();
+                mapInRam.clear();
             }
+        } else {
+            mapInRam = new HashMap<KEY, REC>();
+        }
 
-            sequenceIndexOfMapInRam = sequenceIndex;
+        sequenceIndexOfMapInRam = sequenceIndex;
 
-            // Load map from disk if it existed
-            File mapOnDisk = makeFileForSequence(sequenceIndex);
-            if (outputStreams.containsKey(mapOnDisk)) {
-                outputStreams.remove(mapOnDisk).close();
+        // Load map from disk if it existed
+        final SpilledSequence spilled = spilledSequences.remove(sequenceIndex);
+        if (spilled != null) {
+            final InputStream is = openSpilledSequence(spilled);
+            elementCodec.setInputStream(is);
+            for (int i = 0; i < spilled.numRecords; ++i) {
+                final Map.Entry<KEY, REC> keyAndRecord = elementCodec.decode();
+                if (mapInRam.containsKey(keyAndRecord.getKey()))
+                    throw new SAMException("Value was put into PairInfoMap more than once.  " +
+                            sequenceIndex + ": " + keyAndRecord.getKey());
+                mapInRam.put(keyAndRecord.getKey(), keyAndRecord.getValue());
             }
-            final Integer numRecords = sizeOfMapOnDisk.remove(sequenceIndex);
-            if (mapOnDisk.exists()) {
-                if (numRecords == null)
-                    throw new IllegalStateException("null numRecords for " + mapOnDisk);
-                FileInputStream is = null;
-                try {
-                    is = new FileInputStream(mapOnDisk);
-                    elementCodec.setInputStream(is);
-                    for (int i = 0; i < numRecords; ++i) {
-                        final Map.Entry<KEY, REC> keyAndRecord = elementCodec.decode();
-                        if (mapInRam.containsKey(keyAndRecord.getKey()))
-                            throw new SAMException("Value was put into PairInfoMap more than once.  " +
-                                    sequenceIndex + ": " + keyAndRecord.getKey());
-                        mapInRam.put(keyAndRecord.getKey(), keyAndRecord.getValue());
-                    }
-                } finally {
-                    CloserUtil.close(is);
-                }
-                htsjdk.samtools.util.IOUtil.deleteFiles(mapOnDisk);
-            } else if (numRecords != null && numRecords > 0)
-                throw new IllegalStateException("Non-zero numRecords but " + mapOnDisk + " does not exist");
-        } catch (IOException e) {
-            throw new SAMException("Error loading new map from disk.", e);
+            releaseSpilledSequence(spilled);
         }
     }
 
@@ -160,32 +175,125 @@ public class CoordinateSortedPairInfoMap<KEY, REC> implements Iterable<Map.Entry
                         sequenceIndex + ": " + key);
             mapInRam.put(key, record);
         } else {
-            // Append to file
-            final OutputStream os = getOutputStreamForSequence(sequenceIndex);
-            elementCodec.setOutputStream(os);
-            elementCodec.encode(key, record);
-            Integer prevCount = sizeOfMapOnDisk.get(sequenceIndex);
-            if (prevCount == null) prevCount = 0;
-            sizeOfMapOnDisk.put(sequenceIndex,  prevCount + 1);
+            // Append to disk
+            SpilledSequence spilled = spilledSequences.get(sequenceIndex);
+            if (spilled == null) {
+                spilled = new SpilledSequence();
+                spilledSequences.put(sequenceIndex, spilled);
+            }
+            encode(spilled, key, record);
         }
     }
 
-    private File makeFileForSequence(final int index) {
-        final File file = new File(workDir, index + ".tmp");
-        file.deleteOnExit();
-        return file;
+    /**
+     * Encode a record into the pending buffer for the given sequence, appending buffers to the current segment
+     * as they fill up.
+     */
+    private void encode(final SpilledSequence spilled, final KEY key, final REC record) {
+        if (spilled.pending == null) spilled.pending = new ByteArrayOutputStream();
+        final int sizeBefore = spilled.pending.size();
+        elementCodec.setOutputStream(spilled.pending);
+        elementCodec.encode(key, record);
+        ++spilled.numRecords;
+        pendingBytes += spilled.pending.size() - sizeBefore;
+        if (spilled.pending.size() >= MAX_PENDING_BYTES_PER_SEQUENCE) {
+            appendPending(spilled);
+        } else if (pendingBytes >= MAX_PENDING_BYTES) {
+            for (final SpilledSequence s : spilledSequences.values()) {
+                appendPending(s);
+            }
+        }
     }
 
-    private OutputStream getOutputStreamForSequence(final int mateSequenceIndex) {
-        return outputStreams.get(makeFileForSequence(mateSequenceIndex));
+    /**
+     * Append the pending buffer of encoded records for the given sequence to the current segment.
+     */
+    private void appendPending(final SpilledSequence spilled) {
+        if (spilled.pending == null) return;
+        final int length = spilled.pending.size();
+        try {
+            if (currentSegment != null && currentSegment.length >= MAX_SEGMENT_BYTES) {
+                currentSegment.closeOutputStream();
+                currentSegment = null;
+            }
+            if (currentSegment == null) {
+                final File file = new File(workDir, segments.size() + ".tmp");
+                file.deleteOnExit();
+                currentSegment = new Segment(segments.size(), file);
+                segments.add(currentSegment);
+            }
+            spilled.pending.writeTo(currentSegment.out);
+        } catch (IOException e) {
+            throw new SAMException("Error writing PairInfoMap records to disk", e);
+        }
+        spilled.addExtent(currentSegment.segmentNumber, currentSegment.length, length);
+        currentSegment.length += length;
+        currentSegment.liveBytes += length;
+        pendingBytes -= length;
+        spilled.pending = null;
+    }
+
+    /**
+     * @return An InputStream over all the encoded records for the given sequence, both in segment files and pending.
+     */
+    private InputStream openSpilledSequence(final SpilledSequence spilled) {
+        final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>(spilled.numExtents + 1);
+        try {
+            if (currentSegment != null) currentSegment.out.flush();
+            // Extents were added in order of writing, so all the extents for a segment are adjacent.  Map the span
+            // covering all of them once, and slice each extent out of it.
+            int i = 0;
+            while (i < spilled.numExtents) {
+                final int segmentNumber = spilled.extentSegments[i];
+                int j = i;
+                while (j < spilled.numExtents && spilled.extentSegments[j] == segmentNumber) ++j;
+                final long spanStart = spilled.extentStarts[i];
+                final long spanEnd = spilled.extentStarts[j - 1] + spilled.extentLengths[j - 1];
+                final ByteBuffer span = segments.get(segmentNumber).map(spanStart, spanEnd - spanStart);
+                for (; i < j; ++i) {
+                    final ByteBuffer extent = span.duplicate();
+                    final int position = (int)(spilled.extentStarts[i] - spanStart);
+                    extent.limit(position + spilled.extentLengths[i]);
+                    extent.position(position);
+                    buffers.add(extent);
+                }
+            }
+        } catch (IOException e) {
+            throw new SAMException("Error loading new map from disk.", e);
+        }
+        if (spilled.pending != null) {
+            buffers.add(ByteBuffer.wrap(spilled.pending.toByteArray()));
+        }
+        return new ByteBuffersInputStream(buffers);
+    }
+
+    /**
+     * Account for the records of a sequence having been loaded into RAM, deleting any segment files that no longer
+     * hold any records that have not been loaded.
+     */
+    private void releaseSpilledSequence(final SpilledSequence spilled) {
+        if (spilled.pending != null) {
+            pendingBytes -= spilled.pending.size();
+            spilled.pending = null;
+        }
+        for (int i = 0; i < spilled.numExtents; ++i) {
+            final Segment segment = segments.get(spilled.extentSegments[i]);
+            segment.liveBytes -= spilled.extentLengths[i];
+            if (segment.liveBytes == 0) {
+                if (segment == currentSegment) {
+                    currentSegment.closeOutputStream();
+                    currentSegment = null;
+                }
+                IOUtil.deleteFiles(segment.file);
+                segments.set(segment.segmentNumber, null);
+            }
+        }
     }
 
     public int size() {
         int total = sizeInRam();
-        for (final Integer mapSize : sizeOfMapOnDisk.values()) {
-            if (mapSize != null) {
-                total += mapSize;
-            }
+        for (final SpilledSequence spilled : spilledSequences.values()) {
+            total += spilled.numRecords;
         }
         return total;
     }
@@ -210,7 +318,7 @@ public class CoordinateSortedPairInfoMap<KEY, REC> implements Iterable<Map.Entry
 
     private class MapIterator implements CloseableIterator<Map.Entry<KEY, REC>> {
         private boolean closed = false;
-        private Set<Integer> referenceIndices = new HashSet<Integer>(sizeOfMapOnDisk.keySet());
+        private Set<Integer> referenceIndices = new HashSet<Integer>(spilledSequences.keySet());
         private final Iterator<Integer> referenceIndexIterator;
         private Iterator<Map.Entry<KEY, REC>> currentReferenceIterator = null;
 
@@ -263,6 +371,115 @@ public class CoordinateSortedPairInfoMap<KEY, REC> implements Iterable<Map.Entry
         }
     }
 
+    /**
+     * Location of the encoded records for one reference sequence that are not in RAM.
+     */
+    private static class SpilledSequence {
+        int numRecords = 0;
+        // Encoded records not yet appended to a segment, or null if there are none.
+        ByteArrayOutputStream pending = null;
+        // Parallel arrays of segment number, start offset in segment and length of each run of encoded records.
+        int numExtents = 0;
+        int[] extentSegments = new int[1];
+        long[] extentStarts = new long[1];
+        int[] extentLengths = new int[1];
+
+        void addExtent(final int segmentNumber, final long start, final int length) {
+            // Coalesce with the previous extent if they are adjacent.
+            if (numExtents > 0 && extentSegments[numExtents - 1] == segmentNumber &&
+                    extentStarts[numExtents - 1] + extentLengths[numExtents - 1] == start &&
+                    (long)extentLengths[numExtents - 1] + length <= Integer.MAX_VALUE) {
+                extentLengths[numExtents - 1] += length;
+                return;
+            }
+            if (numExtents == extentSegments.length) {
+                final int newCapacity = numExtents * 2;
+                final int[] newSegments = new int[newCapacity];
+                final long[] newStarts = new long[newCapacity];
+                final int[] newLengths = new int[newCapacity];
+                System.arraycopy(extentSegments, 0, newSegments, 0, numExtents);
+                System.arraycopy(extentStarts, 0, newStarts, 0, numExtents);
+                System.arraycopy(extentLengths, 0, newLengths, 0, numExtents);
+                extentSegments = newSegments;
+                extentStarts = newStarts;
+                extentLengths = newLengths;
+            }
+            extentSegments[numExtents] = segmentNumber;
+            extentStarts[numExtents] = start;
+            extentLengths[numExtents] = length;
+            ++numExtents;
+        }
+    }
+
+    /**
+     * A file to which encoded records for any reference sequence are appended.
+     */
+    private static class Segment {
+        final int segmentNumber;
+        final File file;
+        // null once this segment is no longer being appended to
+        OutputStream out;
+        long length = 0;
+        // Number of bytes in the file belonging to records that have not yet been loaded into RAM.
+        long liveBytes = 0;
+
+        Segment(final int segmentNumber, final File file) throws IOException {
+            this.segmentNumber = segmentNumber;
+            this.file = file;
+            this.out = IOUtil.maybeBufferOutputStream(new FileOutputStream(file));
+        }
+
+        ByteBuffer map(final long start, final long size) throws IOException {
+            final RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, start, size);
+            } finally {
+                CloserUtil.close(raf);
+            }
+        }
+
+        void closeOutputStream() {
+            CloserUtil.close(out);
+            out = null;
+        }
+    }
+
+    /**
+     * Reads sequentially through a list of ByteBuffers.
+     */
+    private static class ByteBuffersInputStream extends InputStream {
+        private final Iterator<ByteBuffer> buffers;
+        private ByteBuffer current = null;
+
+        ByteBuffersInputStream(final List<ByteBuffer> buffers) {
+            this.buffers = buffers.iterator();
+        }
+
+        /** @return false if there is no more data. */
+        private boolean ensureCurrent() {
+            while (current == null || !current.hasRemaining()) {
+                if (!buffers.hasNext()) return false;
+                current = buffers.next();
+            }
+            return true;
+        }
+
+        @Override
+        public int read() {
+            if (!ensureCurrent()) return -1;
+            return current.get() & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            if (len == 0) return 0;
+            if (!ensureCurrent()) return -1;
+            final int n = Math.min(len, current.remaining());
+            current.get(b, off, n);
+            return n;
+        }
+    }
+
     /**
      * Client must implement this class, which defines the way in which records are written to and
      * read from file.
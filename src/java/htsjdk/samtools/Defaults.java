@@ -42,6 +42,12 @@ public class Defaults {
      */
     public static final File REFERENCE_FASTA;
 
+    /**
+     * Number of threads used to decode features when iterating over the whole of a tribble or tabix feature file
+     * with an ASCII codec.  0 or 1 decodes in the calling thread.  Default = 0.
+     */
+    public static final int FEATURE_DECODING_THREADS;
+
     static {
         CREATE_INDEX      = getBooleanProperty("create_index", false);
         CREATE_MD5        = getBooleanProperty("create_md5", false);
@@ -56,6 +62,7 @@ public class Defaults {
             NON_ZERO_BUFFER_SIZE = BUFFER_SIZE;
         }
         REFERENCE_FASTA   = getFileProperty("reference_fasta", null);
+        FEATURE_DECODING_THREADS = getIntProperty("feature_decoding_threads", 0);
     }
 
     /** Gets a string system property, prefixed with "samjdk." using the default if the property does not exist.*/
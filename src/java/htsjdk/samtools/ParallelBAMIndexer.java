@@ -0,0 +1,379 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sub-license, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools;
+
+import htsjdk.samtools.util.BlockCompressedFilePointerUtil;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.RuntimeIOException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Builds the index of an existing coordinate-sorted BAM file with several threads.  The file is split into
+ * ranges of BGZF blocks, the records that start in each range are indexed by one thread, and the partial
+ * indices are combined in file order, producing the same .bai file as BAMIndexer.createIndex().
+ *
+ * The thread indexing a range finds its first record by looking for a position in the first block of the range
+ * at which a chain of plausible records starts.  Where a range starts is checked against where the previous
+ * range ended, and a range that started in the wrong place is indexed again from the right place.
+ */
+class ParallelBAMIndexer {
+    // More ranges than threads, so that threads that finish early can take more work.
+    private static final int RANGES_PER_THREAD = 4;
+    private static final long MIN_RANGE_SIZE = 1024 * 1024;
+    // Bytes searched for the first record of a range, which may run past the first block of the range.
+    private static final int SEARCH_BUFFER_SIZE = 256 * 1024;
+    // The number of consecutive records that must look right for a position to be taken as the start of a record.
+    private static final int RECORDS_TO_CHECK = 8;
+    // Size of the fixed-length fields of a BAM record, including block_size.
+    private static final int FIXED_RECORD_LENGTH = 36;
+    private static final long UNKNOWN_OFFSET = -1;
+
+    private final File bamFile;
+    private final int numThreads;
+    private final SAMFileHeader header;
+    private final int numReferences;
+    private final long firstRecordOffset;
+
+    /**
+     * @param bamFile coordinate-sorted BAM file to index
+     * @param numThreads number of threads to use
+     */
+    ParallelBAMIndexer(final File bamFile, final int numThreads) {
+        this.bamFile = bamFile;
+        this.numThreads = numThreads;
+        final SAMFileReader reader = new SAMFileReader(bamFile);
+        try {
+            this.header = reader.getFileHeader();
+            this.firstRecordOffset = ((BAMFileSpan) reader.getFilePointerSpanningReads()).getFirstOffset();
+        } finally {
+            reader.close();
+        }
+        this.numReferences = header.getSequenceDictionary().size();
+    }
+
+    /**
+     * Index the BAM file and write the index.
+     * @param output File for output index file
+     */
+    void createIndex(final File output) {
+        final List<Long> rangeStarts = findRangeStarts();
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(numThreads, rangeStarts.size()));
+        try {
+            final List<RangeIndexer> rangeIndexers = new ArrayList<RangeIndexer>(rangeStarts.size());
+            final List<Future<PartialIndex>> futures = new ArrayList<Future<PartialIndex>>(rangeStarts.size());
+            for (int i = 0; i < rangeStarts.size(); ++i) {
+                final long endBlockAddress = (i + 1 < rangeStarts.size()) ? rangeStarts.get(i + 1) : Long.MAX_VALUE;
+                final RangeIndexer rangeIndexer = new RangeIndexer(rangeStarts.get(i), endBlockAddress,
+                        (i == 0) ? firstRecordOffset : UNKNOWN_OFFSET);
+                rangeIndexers.add(rangeIndexer);
+                futures.add(executor.submit(rangeIndexer));
+            }
+
+            final PartialIndex index = new PartialIndex(firstRecordOffset);
+            for (int i = 0; i < futures.size(); ++i) {
+                PartialIndex partialIndex;
+                try {
+                    partialIndex = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    if (i == 0) throw rethrow(e.getCause());
+                    // Records read from a wrongly guessed start can be garbage.
+                    partialIndex = null;
+                }
+                if (i > 0 && (partialIndex == null || partialIndex.startOffset != index.endOffset)) {
+                    partialIndex = rangeIndexers.get(i).indexFrom(index.endOffset);
+                }
+                index.append(partialIndex);
+            }
+            index.write(output);
+        } catch (InterruptedException e) {
+            throw new SAMException("Interrupted while creating BAM index", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private RuntimeException rethrow(final Throwable t) {
+        if (t instanceof RuntimeException) return (RuntimeException) t;
+        if (t instanceof Error) throw (Error) t;
+        return new SAMException("Exception creating BAM index", t);
+    }
+
+    /**
+     * Walk the BGZF block headers to split the blocks containing records into ranges of about the same size.
+     * @return The block address of the start of each range.
+     */
+    private List<Long> findRangeStarts() {
+        final long firstBlockAddress = BlockCompressedFilePointerUtil.getBlockAddress(firstRecordOffset);
+        final long fileLength = bamFile.length();
+        final int numRanges = (int) Math.max(1, Math.min((long) numThreads * RANGES_PER_THREAD,
+                (fileLength - firstBlockAddress) / MIN_RANGE_SIZE));
+        final List<Long> rangeStarts = new ArrayList<Long>(numRanges);
+        rangeStarts.add(firstBlockAddress);
+        if (numRanges == 1) return rangeStarts;
+
+        final long rangeSize = (fileLength - firstBlockAddress) / numRanges;
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(bamFile, "r");
+            final byte[] blockHeader = new byte[BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH];
+            long blockAddress = firstBlockAddress;
+            while (rangeStarts.size() < numRanges && blockAddress < fileLength) {
+                if (blockAddress >= firstBlockAddress + rangeSize * rangeStarts.size()) {
+                    rangeStarts.add(blockAddress);
+                }
+                file.seek(blockAddress);
+                file.readFully(blockHeader);
+                if (blockHeader[0] != BlockCompressedStreamConstants.GZIP_ID1 ||
+                        (blockHeader[1] & 0xFF) != BlockCompressedStreamConstants.GZIP_ID2 ||
+                        blockHeader[12] != BlockCompressedStreamConstants.BGZF_ID1 ||
+                        blockHeader[13] != BlockCompressedStreamConstants.BGZF_ID2) {
+                    throw new SAMFormatException("Invalid BGZF block header at offset " + blockAddress + " of " + bamFile);
+                }
+                final int blockLength = ((blockHeader[BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET] & 0xFF) |
+                        ((blockHeader[BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET + 1] & 0xFF) << 8)) + 1;
+                blockAddress += blockLength;
+            }
+        } catch (IOException e) {
+            throw new RuntimeIOException("Exception reading " + bamFile, e);
+        } finally {
+            CloserUtil.close(file);
+        }
+        return rangeStarts;
+    }
+
+    /**
+     * Indexes the records that start in a range of BGZF blocks.
+     */
+    private class RangeIndexer implements Callable<PartialIndex> {
+        private final long blockAddress;
+        private final long endBlockAddress;
+        private final long startOffset;
+
+        /**
+         * @param blockAddress file offset of the first block of the range
+         * @param endBlockAddress file offset of the first block after the range
+         * @param startOffset virtual file offset of the first record in the range, or UNKNOWN_OFFSET to find it
+         */
+        RangeIndexer(final long blockAddress, final long endBlockAddress, final long startOffset) {
+            this.blockAddress = blockAddress;
+            this.endBlockAddress = endBlockAddress;
+            this.startOffset = startOffset;
+        }
+
+        public PartialIndex call() throws IOException {
+            final BlockCompressedInputStream in = new BlockCompressedInputStream(bamFile);
+            try {
+                final long start = (startOffset == UNKNOWN_OFFSET) ? findFirstRecord(in) : startOffset;
+                return index(in, start);
+            } finally {
+                in.close();
+            }
+        }
+
+        /**
+         * Index the range starting from a known record.
+         */
+        PartialIndex indexFrom(final long start) {
+            BlockCompressedInputStream in = null;
+            try {
+                in = new BlockCompressedInputStream(bamFile);
+                return index(in, start);
+            } catch (IOException e) {
+                throw new RuntimeIOException("Exception reading " + bamFile, e);
+            } finally {
+                CloserUtil.close(in);
+            }
+        }
+
+        private PartialIndex index(final BlockCompressedInputStream in, final long start) throws IOException {
+            final PartialIndex partialIndex = new PartialIndex(start);
+            if (start == UNKNOWN_OFFSET) return partialIndex;
+
+            in.seek(start);
+            final BAMIndexingRecordReader rec = new BAMIndexingRecordReader(in, bamFile.getPath());
+            while (true) {
+                final long recordStart = in.getFilePointer();
+                if (BlockCompressedFilePointerUtil.getBlockAddress(recordStart) >= endBlockAddress || !rec.next()) {
+                    partialIndex.endOffset = recordStart;
+                    break;
+                }
+                partialIndex.processAlignment(rec);
+            }
+            return partialIndex;
+        }
+
+        /**
+         * @return The virtual file offset of the first position in the first block of the range that looks like the
+         * start of a record, or UNKNOWN_OFFSET if none does.
+         */
+        private long findFirstRecord(final BlockCompressedInputStream in) throws IOException {
+            // A virtual file offset is the block address in the upper 48 bits and the offset in the block in the lower 16.
+            in.seek(blockAddress << 16);
+            final int blockLength = in.available();
+            final byte[] buffer = new byte[SEARCH_BUFFER_SIZE];
+            final int length = Math.max(0, in.read(buffer, 0, buffer.length));
+            for (int offset = 0; offset < blockLength && offset < length; ++offset) {
+                if (looksLikeRecords(buffer, offset, length)) {
+                    return (blockAddress << 16) | offset;
+                }
+            }
+            return UNKNOWN_OFFSET;
+        }
+
+        /**
+         * @return true if the bytes in buffer starting at offset could be a chain of BAM records.
+         */
+        private boolean looksLikeRecords(final byte[] buffer, final int offset, final int length) {
+            int pos = offset;
+            for (int i = 0; i < RECORDS_TO_CHECK; ++i) {
+                if (pos + FIXED_RECORD_LENGTH > length) {
+                    // Ran out of data, which is fine if at least one record looked right.
+                    return i > 0;
+                }
+                final int blockSize = getInt(buffer, pos);
+                final int referenceIndex = getInt(buffer, pos + 4);
+                final int alignmentStart = getInt(buffer, pos + 8);
+                final int readNameLength = buffer[pos + 12] & 0xFF;
+                final int cigarLength = (buffer[pos + 16] & 0xFF) | ((buffer[pos + 17] & 0xFF) << 8);
+                final int readLength = getInt(buffer, pos + 20);
+                final int mateReferenceIndex = getInt(buffer, pos + 24);
+                final int mateAlignmentStart = getInt(buffer, pos + 28);
+                if (blockSize < FIXED_RECORD_LENGTH - 4 || referenceIndex < -1 || referenceIndex >= numReferences ||
+                        alignmentStart < -1 || readNameLength < 2 || readLength < 0 ||
+                        mateReferenceIndex < -1 || mateReferenceIndex >= numReferences || mateAlignmentStart < -1) {
+                    return false;
+                }
+                final long variableLength = readNameLength + 4L * cigarLength + (readLength + 1L) / 2 + readLength;
+                if (FIXED_RECORD_LENGTH - 4 + variableLength > blockSize) {
+                    return false;
+                }
+                // Read names are printable and null-terminated.
+                final int readName = pos + FIXED_RECORD_LENGTH;
+                for (int j = 0; j < readNameLength - 1 && readName + j < length; ++j) {
+                    final byte b = buffer[readName + j];
+                    if (b < '!' || b > '~' || b == '@') return false;
+                }
+                if (readName + readNameLength - 1 < length && buffer[readName + readNameLength - 1] != 0) {
+                    return false;
+                }
+                pos += 4 + blockSize;
+                if (pos < 0) return false;
+            }
+            return true;
+        }
+
+        private int getInt(final byte[] buffer, final int pos) {
+            return (buffer[pos] & 0xFF) | ((buffer[pos + 1] & 0xFF) << 8) |
+                    ((buffer[pos + 2] & 0xFF) << 16) | ((buffer[pos + 3] & 0xFF) << 24);
+        }
+    }
+
+    /**
+     * Index content for the records of a part of the file.
+     */
+    private class PartialIndex {
+        // Virtual file offsets of the first record indexed, and of the record after the last one indexed.
+        private final long startOffset;
+        private long endOffset = UNKNOWN_OFFSET;
+        private final BinningIndexBuilder[] builders = new BinningIndexBuilder[numReferences];
+        private final BAMIndexMetaData[] metaData = new BAMIndexMetaData[numReferences];
+        private long noCoordinateRecords = 0;
+        private int lastReference = -1;
+
+        PartialIndex(final long startOffset) {
+            this.startOffset = startOffset;
+        }
+
+        void processAlignment(final BAMIndexingRecordReader rec) {
+            if (rec.getStart() == SAMRecord.NO_ALIGNMENT_START) {
+                ++noCoordinateRecords;
+                return;
+            }
+            final int reference = rec.getReferenceIndex();
+            if (reference < 0 || reference < lastReference) {
+                throw new SAMException("Unexpected reference " + reference +
+                        " when constructing index for " + lastReference + " for record " + rec);
+            }
+            lastReference = reference;
+            if (builders[reference] == null) {
+                builders[reference] = new BinningIndexBuilder(reference,
+                        header.getSequence(reference).getSequenceLength());
+                metaData[reference] = new BAMIndexMetaData();
+            }
+            metaData[reference].recordMetaData(rec.getReadUnmappedFlag(), rec.getChunkStart(), rec.getChunkEnd());
+            builders[reference].processFeature(rec);
+        }
+
+        /**
+         * Add the index content of the records that follow the records indexed here.
+         */
+        void append(final PartialIndex later) {
+            for (int reference = 0; reference < numReferences; ++reference) {
+                if (later.builders[reference] == null) continue;
+                if (reference < lastReference) {
+                    throw new SAMException("Unexpected reference " + reference +
+                            " when constructing index for " + lastReference);
+                }
+                lastReference = reference;
+                if (builders[reference] == null) {
+                    builders[reference] = later.builders[reference];
+                    metaData[reference] = later.metaData[reference];
+                } else {
+                    builders[reference].append(later.builders[reference]);
+                    metaData[reference].merge(later.metaData[reference]);
+                }
+            }
+            noCoordinateRecords += later.noCoordinateRecords;
+            endOffset = later.endOffset;
+        }
+
+        void write(final File output) {
+            final BAMIndexWriter outputWriter = new BinaryBAMIndexWriter(numReferences, output);
+            for (int reference = 0; reference < numReferences; ++reference) {
+                final BinningIndexContent content = (builders[reference] == null) ? null :
+                        builders[reference].generateIndexContent();
+                if (content == null) {
+                    outputWriter.writeReference(null);
+                } else {
+                    outputWriter.writeReference(new BAMIndexContent(content.getReferenceSequence(), content.getBins(),
+                            metaData[reference], content.getLinearIndex()));
+                }
+            }
+            outputWriter.writeNoCoordinateRecordCount(noCoordinateRecords);
+            outputWriter.close();
+        }
+    }
+}
@@ -299,6 +299,13 @@ public class SAMFileReader implements SamReader, SamReader.Indexing {
         return mIsBinary;
     }
 
+    /**
+     * @return The file being read, or null if reading from a stream or URL.
+     */
+    File getSamFile() {
+        return samFile;
+    }
+
     /**
      * @return true if ths is a BAM file, and has an index
      */
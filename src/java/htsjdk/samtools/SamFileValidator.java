@@ -55,6 +55,8 @@ import java.io.PrintWriter;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -62,6 +64,11 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Validates SAM files as follows:
@@ -77,6 +84,12 @@ import java.util.Set;
  * </li>
  * </ul>
  *
+ * If setNumberOfThreads() is called with a value greater than 1, and the input is an indexed, coordinate-sorted BAM
+ * file, records are validated in parallel, one shard per reference sequence.  Each shard covers the range of the file
+ * from the first record of its reference to the first record of the next reference, so every record is validated
+ * exactly once, in file order within its shard.  Mates found in different shards are matched up once all the shards
+ * are done, and errors are reported in the same order and with the same record numbers as when validating serially.
+ *
  * @author Doug Voet
  * @see SAMRecord#isValid()
  */
@@ -94,9 +107,28 @@ public class SamFileValidator {
     private boolean validateIndex = false;
     private boolean sequenceDictionaryEmptyAndNoWarningEmitted = false;
     private final int maxTempFiles;
+    private int maxPairInfoRecordsInRam = DEFAULT_MAX_PAIR_INFO_RECORDS_IN_RAM;
+    private int numberOfThreads = 1;
+    private ReferenceSequenceFile reference = null;
+
+    // The following are only used by the validators of individual shards when validating in parallel.
+    // If non-null, errors are collected here rather than being written to out.
+    private List<ShardError> shardErrors = null;
+    // Position of the error currently being validated, used to order errors from different shards.
+    private long currentRecordNumber = 0;
+    private int currentErrorStage = 0;
 
     private final static Log log = Log.getInstance(SamFileValidator.class);
 
+    /** Reads waiting for their mates beyond this number are spilled to disk. */
+    public static final int DEFAULT_MAX_PAIR_INFO_RECORDS_IN_RAM = 5000000;
+
+    // The order in which the errors for a record are found, used to put errors found in parallel into serial order.
+    private static final int ERROR_STAGE_RECORD = 0;
+    private static final int ERROR_STAGE_MATE = 1;
+    private static final int ERROR_STAGE_SORT_ORDER = 2;
+    private static final int ERROR_STAGE_OTHER = 3;
+
     public SamFileValidator(final PrintWriter out, final int maxTempFiles) {
         this.out = out;
         this.maxTempFiles = maxTempFiles;
@@ -198,7 +230,12 @@ public class SamFileValidator {
             samReader.setValidationStringency(ValidationStringency.SILENT);
             validateHeader(samReader.getFileHeader());
             orderChecker = new SAMSortOrderChecker(samReader.getFileHeader().getSortOrder());
-            validateSamRecordsAndQualityFormat(samReader, samReader.getFileHeader());
+            final List<Chunk> shards = (numberOfThreads > 1) ? makeShards(samReader) : null;
+            if (shards != null) {
+                validateSamRecordsAndQualityFormatInParallel(samReader, shards);
+            } else {
+                validateSamRecordsAndQualityFormat(samReader, samReader.getFileHeader());
+            }
             validateUnmatchedPairs();
             if (validateIndex) {
                 try {
@@ -221,34 +258,32 @@ public class SamFileValidator {
      * Report on reads marked as paired, for which the mate was not found.
      */
     private void validateUnmatchedPairs() {
-        final InMemoryPairEndInfoMap inMemoryPairMap;
-        if (pairEndInfoByName instanceof CoordinateSortedPairEndInfoMap) {
-            // For the coordinate-sorted map, need to detect mate pairs in which the mateReferenceIndex on one end
-            // does not match the readReference index on the other end, so the pairs weren't united and validated.
-            inMemoryPairMap = new InMemoryPairEndInfoMap();
-            CloseableIterator<Map.Entry<String, PairEndInfo>> it = ((CoordinateSortedPairEndInfoMap) pairEndInfoByName).iterator();
-            while (it.hasNext()) {
-                Map.Entry<String, PairEndInfo> entry = it.next();
-                PairEndInfo pei = inMemoryPairMap.remove(entry.getValue().readReferenceIndex, entry.getKey());
-                if (pei != null) {
-                    // Found a mismatch btw read.mateReferenceIndex and mate.readReferenceIndex
-                    List<SAMValidationError> errors = pei.validateMates(entry.getValue(), entry.getKey());
-                    for (final SAMValidationError error : errors) {
-                        addError(error);
-                    }
-                } else {
-                    // Mate not found.
-                    inMemoryPairMap.put(entry.getValue().mateReferenceIndex, entry.getKey(), entry.getValue());
+        // When mates are looked up by reference, mate pairs in which the mateReferenceIndex on one end does not
+        // match the readReferenceIndex on the other end are not united and validated, so pair up what is left
+        // without regard to reference.
+        final CompactPairEndInfoMap unmatchedPairs = new CompactPairEndInfoMap(false);
+        final CloseableIterator<Map.Entry<String, PairEndInfo>> it = pairEndInfoByName.iterator();
+        while (it.hasNext()) {
+            final Map.Entry<String, PairEndInfo> entry = it.next();
+            final PairEndInfo pei = unmatchedPairs.remove(entry.getValue().readReferenceIndex, entry.getKey());
+            if (pei != null) {
+                // Found a mismatch btw read.mateReferenceIndex and mate.readReferenceIndex
+                final List<SAMValidationError> errors = pei.validateMates(entry.getValue(), entry.getKey());
+                for (final SAMValidationError error : errors) {
+                    addError(error);
                 }
+            } else {
+                // Mate not found.
+                unmatchedPairs.put(entry.getValue().mateReferenceIndex, entry.getKey(), entry.getValue());
             }
-            it.close();
-        } else {
-            inMemoryPairMap = (InMemoryPairEndInfoMap) pairEndInfoByName;
         }
-        // At this point, everything in InMemoryMap is a read marked as a pair, for which a mate was not found.
-        for (final Map.Entry<String, PairEndInfo> entry : inMemoryPairMap) {
-            addError(new SAMValidationError(Type.MATE_NOT_FOUND, "Mate not found for paired read", entry.getKey()));
+        it.close();
+        // At this point, everything in unmatchedPairs is a read marked as a pair, for which a mate was not found.
+        final CloseableIterator<Map.Entry<String, PairEndInfo>> unmatched = unmatchedPairs.iterator();
+        while (unmatched.hasNext()) {
+            addError(new SAMValidationError(Type.MATE_NOT_FOUND, "Mate not found for paired read", unmatched.next().getKey()));
         }
+        unmatched.close();
     }
 
     /**
@@ -260,6 +295,23 @@ public class SamFileValidator {
         final SAMRecordIterator iter = (SAMRecordIterator) samRecords.iterator();
         final ProgressLogger progress = new ProgressLogger(log, 10000000, "Validated Read");
         final QualityEncodingDetector qualityDetector = new QualityEncodingDetector();
+        try {
+            if (validateSamRecords(iter, header, progress, qualityDetector)) {
+                validateQualityFormat(qualityDetector, progress.getCount());
+            }
+        } catch (SAMFormatException e) {
+            throw new SAMException(reportSamFormatException(progress.getCount()), e);
+        } finally {
+            iter.close();
+        }
+    }
+
+    /**
+     * Validate each record, and accumulate its qualities in qualityDetector.
+     * @return false if the file was found to be truncated.
+     */
+    private boolean validateSamRecords(final Iterator<SAMRecord> iter, final SAMFileHeader header,
+                                       final ProgressLogger progress, final QualityEncodingDetector qualityDetector) {
         try {
             while (iter.hasNext()) {
                 final SAMRecord record = iter.next();
@@ -267,6 +319,8 @@ public class SamFileValidator {
                 qualityDetector.add(record);
 
                 final long recordNumber = progress.getCount() + 1;
+                currentRecordNumber = recordNumber;
+                currentErrorStage = ERROR_STAGE_RECORD;
                 final Collection<SAMValidationError> errors = record.isValid();
                 if (errors != null) {
                     for (final SAMValidationError error : errors) {
@@ -275,8 +329,11 @@ public class SamFileValidator {
                     }
                 }
 
+                currentErrorStage = ERROR_STAGE_MATE;
                 validateMateFields(record, recordNumber);
+                currentErrorStage = ERROR_STAGE_SORT_ORDER;
                 validateSortOrder(record, recordNumber);
+                currentErrorStage = ERROR_STAGE_OTHER;
                 validateReadGroup(record, header);
                 final boolean cigarIsValid = validateCigar(record, recordNumber);
                 if (cigarIsValid) {
@@ -291,30 +348,218 @@ public class SamFileValidator {
                 }
                 progress.record(record);
             }
+            return true;
+        } catch (FileTruncatedException e) {
+            currentRecordNumber = progress.getCount() + 1;
+            currentErrorStage = ERROR_STAGE_RECORD;
+            addError(new SAMValidationError(Type.TRUNCATED_FILE, "File is truncated", null));
+            return false;
+        }
+    }
+
+    private void validateQualityFormat(final QualityEncodingDetector qualityDetector, final long numRecords) {
+        try {
+            if (numRecords > 0) { // Avoid exception being thrown as a result of no qualities being read
+                final FastqQualityFormat format = qualityDetector.generateBestGuess(QualityEncodingDetector.FileContext.SAM, FastqQualityFormat.Standard);
+                if (format != FastqQualityFormat.Standard) {
+                    addError(new SAMValidationError(Type.INVALID_QUALITY_FORMAT, String.format("Detected %s quality score encoding, but expected %s.", format, FastqQualityFormat.Standard), null));
+                }
+            }
+        } catch (SAMException e) {
+            addError(new SAMValidationError(Type.INVALID_QUALITY_FORMAT, e.getMessage(), null));
+        }
+    }
+
+    /**
+     * Write a message to out about a SAMFormatException, and return it.
+     * @param numRecordsValidated number of records successfully validated before the exception.
+     */
+    private String reportSamFormatException(final long numRecordsValidated) {
+        // increment record number because the iterator behind the SAMFileReader
+        // reads one record ahead so we will get this failure one record ahead
+        final String msg = "SAMFormatException on record " + numRecordsValidated + 1;
+        out.println(msg);
+        return msg;
+    }
+
+    /**
+     * Split an indexed, coordinate-sorted BAM file into one shard per reference sequence that has records.
+     * @return Chunks that together cover all the records in the file, in file order,
+     * or null if the file cannot be validated in parallel.
+     */
+    private List<Chunk> makeShards(final SAMFileReader samReader) {
+        final SAMFileHeader header = samReader.getFileHeader();
+        if (samReader.getSamFile() == null || !samReader.isBinary() || !samReader.hasIndex() ||
+                header.getSortOrder() != SAMFileHeader.SortOrder.coordinate ||
+                header.getSequenceDictionary().isEmpty() ||
+                (reference != null && !reference.isIndexed())) {
+            log.info("Input is not an indexed, coordinate-sorted BAM file with an indexed reference; validating with one thread.");
+            return null;
+        }
+        final BAMIndex index = samReader.getIndex();
+        final List<Long> shardStarts = new ArrayList<Long>();
+        shardStarts.add(((BAMFileSpan) samReader.getFilePointerSpanningReads()).getFirstOffset());
+        for (int i = 0; i < header.getSequenceDictionary().size(); ++i) {
+            final BAMIndexMetaData metaData = index.getMetaData(i);
+            if (metaData == null || metaData.getFirstOffset() == -1) continue;
+            final long previousStart = shardStarts.get(shardStarts.size() - 1);
+            if (metaData.getFirstOffset() < previousStart) {
+                log.info("BAM index is not in file order; validating with one thread.");
+                return null;
+            } else if (metaData.getFirstOffset() > previousStart) {
+                shardStarts.add(metaData.getFirstOffset());
+            }
+        }
+        if (shardStarts.size() < 2) return null;
+
+        final List<Chunk> shards = new ArrayList<Chunk>(shardStarts.size());
+        for (int i = 0; i < shardStarts.size(); ++i) {
+            final long end = (i + 1 < shardStarts.size()) ? shardStarts.get(i + 1) : Long.MAX_VALUE;
+            shards.add(new Chunk(shardStarts.get(i), end));
+        }
+        return shards;
+    }
+
+    /**
+     * Validate the records of each shard in parallel, and then combine the results in file order so that errors and
+     * record numbers are the same as validateSamRecordsAndQualityFormat() would produce.
+     */
+    private void validateSamRecordsAndQualityFormatInParallel(final SAMFileReader samReader, final List<Chunk> shards) {
+        final SAMFileHeader header = samReader.getFileHeader();
+        final List<ShardValidation> validations = new ArrayList<ShardValidation>(shards.size());
+        for (final Chunk shard : shards) {
+            validations.add(new ShardValidation(samReader.getSamFile(), header, shard));
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(numberOfThreads, shards.size()));
+        final List<Future<Void>> futures;
+        try {
+            futures = executor.invokeAll(validations);
+        } catch (InterruptedException e) {
+            throw new SAMException("Interrupted while validating", e);
+        } finally {
+            executor.shutdown();
+        }
 
+        // Combine the shards in file order, up to the first one that could not be read to the end.
+        final List<ShardError> errors = new ArrayList<ShardError>();
+        final QualityEncodingDetector qualityDetector = new QualityEncodingDetector();
+        final SAMSortOrderChecker shardBoundaryChecker = new SAMSortOrderChecker(header.getSortOrder());
+        long numRecords = 0;
+        boolean truncated = false;
+        SAMFormatException formatException = null;
+        for (int i = 0; i < validations.size() && !truncated && formatException == null; ++i) {
+            final ShardValidation validation = validations.get(i);
             try {
-                if (progress.getCount() > 0) { // Avoid exception being thrown as a result of no qualities being read
-                    final FastqQualityFormat format = qualityDetector.generateBestGuess(QualityEncodingDetector.FileContext.SAM, FastqQualityFormat.Standard);
-                    if (format != FastqQualityFormat.Standard) {
-                        addError(new SAMValidationError(Type.INVALID_QUALITY_FORMAT, String.format("Detected %s quality score encoding, but expected %s.", format, FastqQualityFormat.Standard), null));
+                futures.get(i).get();
+            } catch (InterruptedException e) {
+                throw new SAMException("Interrupted while validating", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof SAMFormatException) {
+                    formatException = (SAMFormatException) e.getCause();
+                } else if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                } else {
+                    throw new SAMException("Exception validating shard " + validation.shard, e.getCause());
+                }
+            }
+            final SamFileValidator validator = validation.validator;
+
+            // Records were not checked against the last record of the previous shard.
+            if (validation.firstRecord != null) {
+                final SAMRecord prev = shardBoundaryChecker.getPreviousRecord();
+                if (!shardBoundaryChecker.isSorted(validation.firstRecord)) {
+                    addShardError(errors, new ShardError(numRecords + 1, ERROR_STAGE_SORT_ORDER,
+                            makeSortOrderError(validation.firstRecord, prev, numRecords + 1)));
+                }
+                shardBoundaryChecker.isSorted(validator.orderChecker.getPreviousRecord());
+            }
+
+            if (verbose) {
+                for (final ShardError error : validator.shardErrors) {
+                    error.offsetRecordNumber(numRecords);
+                    errors.add(error);
+                }
+            } else {
+                for (final Type type : validator.errorsByType.keySet()) {
+                    errorsByType.increment(type, validator.errorsByType.get(type).getValue());
+                }
+            }
+            qualityDetector.add(validation.qualityDetector);
+
+            // Pair up mates that were in different shards.  Only mates from earlier shards are looked for, so that
+            // mates are paired as they would have been when validating serially.
+            final List<Map.Entry<String, PairEndInfo>> unpaired = new ArrayList<Map.Entry<String, PairEndInfo>>();
+            final CloseableIterator<Map.Entry<String, PairEndInfo>> it = validator.pairEndInfoByName.iterator();
+            while (it.hasNext()) {
+                final Map.Entry<String, PairEndInfo> entry = it.next();
+                final PairEndInfo pairEndInfo = entry.getValue().withRecordNumberOffset(numRecords);
+                final PairEndInfo mateInfo = pairEndInfoByName.remove(pairEndInfo.readReferenceIndex, entry.getKey());
+                if (mateInfo == null) {
+                    unpaired.add(new AbstractMap.SimpleEntry<String, PairEndInfo>(entry.getKey(), pairEndInfo));
+                } else {
+                    for (final SAMValidationError error : mateInfo.validateMates(pairEndInfo, entry.getKey())) {
+                        addShardError(errors, new ShardError(pairEndInfo.recordNumber, ERROR_STAGE_MATE, error));
                     }
                 }
-            } catch (SAMException e) {
-                addError(new SAMValidationError(Type.INVALID_QUALITY_FORMAT, e.getMessage(), null));
             }
-        } catch (SAMFormatException e) {
-            // increment record number because the iterator behind the SAMFileReader
-            // reads one record ahead so we will get this failure one record ahead
-            final String msg = "SAMFormatException on record " + progress.getCount() + 1;
-            out.println(msg);
-            throw new SAMException(msg, e);
-        } catch (FileTruncatedException e) {
-            addError(new SAMValidationError(Type.TRUNCATED_FILE, "File is truncated", null));
-        } finally {
-            iter.close();
+            it.close();
+            for (final Map.Entry<String, PairEndInfo> entry : unpaired) {
+                pairEndInfoByName.put(entry.getValue().mateReferenceIndex, entry.getKey(), entry.getValue());
+            }
+
+            truncated = validation.truncated;
+            numRecords += validation.numRecords;
+        }
+
+        // Collections.sort is stable, so errors for the same record and stage stay in the order they were found.
+        Collections.sort(errors, new Comparator<ShardError>() {
+            public int compare(final ShardError e1, final ShardError e2) {
+                if (e1.recordNumber != e2.recordNumber) return e1.recordNumber < e2.recordNumber ? -1 : 1;
+                return e1.stage - e2.stage;
+            }
+        });
+        for (final ShardError error : errors) {
+            addError(error.error);
+        }
+
+        if (formatException != null) {
+            throw new SAMException(reportSamFormatException(numRecords), formatException);
+        }
+        if (!truncated) {
+            validateQualityFormat(qualityDetector, numRecords);
+        }
+    }
+
+    /**
+     * Add an error found while combining shards.  In verbose mode it is held so that it can be put in order
+     * with the errors found in the shards, otherwise it can be counted right away.
+     */
+    private void addShardError(final List<ShardError> errors, final ShardError error) {
+        if (verbose) {
+            errors.add(error);
+        } else {
+            addError(error.error);
         }
     }
 
+    /**
+     * @return A validator for one shard of the file, configured like this one, that collects errors rather
+     * than writing them.
+     */
+    private SamFileValidator makeShardValidator(final SAMFileHeader header) {
+        final SamFileValidator validator = new SamFileValidator(out, maxTempFiles);
+        validator.errorsToIgnore = errorsToIgnore;
+        validator.ignoreWarnings = ignoreWarnings;
+        validator.bisulfiteSequenced = bisulfiteSequenced;
+        validator.verbose = verbose;
+        validator.maxVerboseOutput = maxVerboseOutput;
+        validator.maxPairInfoRecordsInRam = Math.max(1, maxPairInfoRecordsInRam / numberOfThreads);
+        validator.shardErrors = new ArrayList<ShardError>();
+        validator.init(reference == null ? null : new SynchronizedReferenceSequenceFile(reference), header);
+        validator.orderChecker = new SAMSortOrderChecker(header.getSortOrder());
+        return validator;
+    }
+
     private void validateReadGroup(final SAMRecord record, final SAMFileHeader header) {
         final SAMReadGroupRecord rg = record.getReadGroup();
         if (rg == null) {
@@ -402,7 +647,12 @@ public class SamFileValidator {
     private void validateSortOrder(final SAMRecord record, final long recordNumber) {
         final SAMRecord prev = orderChecker.getPreviousRecord();
         if (!orderChecker.isSorted(record)) {
-            addError(new SAMValidationError(
+            addError(makeSortOrderError(record, prev, recordNumber));
+        }
+    }
+
+    private SAMValidationError makeSortOrderError(final SAMRecord record, final SAMRecord prev, final long recordNumber) {
+        return new SAMValidationError(
                     Type.RECORD_OUT_OF_ORDER,
                     String.format(
                             "The record is out of [%s] order, prior read name [%s], prior coodinates [%d:%d]",
@@ -411,25 +661,23 @@ public class SamFileValidator {
                             prev.getReferenceIndex(),
                             prev.getAlignmentStart()),
                     record.getReadName(),
-                    recordNumber));
-        }
+                    recordNumber);
     }
 
     private void init(final ReferenceSequenceFile reference, final SAMFileHeader header) {
-        if (header.getSortOrder() == SAMFileHeader.SortOrder.coordinate) {
-            this.pairEndInfoByName = new CoordinateSortedPairEndInfoMap();
-        } else {
-            this.pairEndInfoByName = new InMemoryPairEndInfoMap();
-        }
+        // When coordinate-sorted, a read's mate is expected on the reference given by its mate reference index.
+        this.pairEndInfoByName = new CompactPairEndInfoMap(header.getSortOrder() == SAMFileHeader.SortOrder.coordinate);
         if (reference != null) {
             this.refFileWalker = new ReferenceSequenceFileWalker(reference);
         }
+        this.reference = reference;
     }
 
     private void cleanup() {
         this.errorsByType = null;
         this.pairEndInfoByName = null;
         this.refFileWalker = null;
+        this.reference = null;
     }
 
     private void validateNmTag(final SAMRecord record, final long recordNumber) {
@@ -533,6 +781,16 @@ public class SamFileValidator {
         if (this.ignoreWarnings && error.getType().severity == SAMValidationError.Severity.WARNING) return;
 
         this.errorsByType.increment(error.getType());
+        if (shardErrors != null) {
+            // Validating one shard in parallel with others.  Errors are reported when all the shards are done.
+            if (verbose) {
+                shardErrors.add(new ShardError(currentRecordNumber, currentErrorStage, error));
+                if (shardErrors.size() >= maxVerboseOutput) {
+                    throw new MaxOutputExceededException();
+                }
+            }
+            return;
+        }
         if (verbose) {
             out.println(error);
             out.flush();
@@ -561,6 +819,24 @@ public class SamFileValidator {
         this.bisulfiteSequenced = bisulfiteSequenced;
     }
 
+    /**
+     * @param numberOfThreads If > 1, and the input is an indexed, coordinate-sorted BAM file, validate records
+     *                        using up to this many threads.  If a reference is given it must be indexed.
+     *                        Each thread may hold a whole reference sequence in RAM.
+     */
+    public void setNumberOfThreads(final int numberOfThreads) {
+        this.numberOfThreads = numberOfThreads;
+    }
+
+    /**
+     * @param maxPairInfoRecordsInRam The number of reads waiting for their mates that are held in RAM when the input
+     *                                is coordinate-sorted.  Beyond this they are spilled to temporary files.  Reads
+     *                                of input that is not coordinate-sorted are always held in RAM.
+     */
+    public void setMaxPairInfoRecordsInRam(final int maxPairInfoRecordsInRam) {
+        this.maxPairInfoRecordsInRam = maxPairInfoRecordsInRam;
+    }
+
     public SamFileValidator setValidateIndex(boolean validateIndex) {
         // The SAMFileReader must also have IndexCaching enabled to have the index validated,
         // samReader.enableIndexCaching(true);
@@ -575,7 +851,7 @@ public class SamFileValidator {
      * This class is used so we don't have to store the entire SAMRecord in memory while we wait
      * to find a record's mate and also to store the record number.
      */
-    private static class PairEndInfo {
+    static class PairEndInfo {
         private final int readAlignmentStart;
         private final int readReferenceIndex;
         private final boolean readNegStrandFlag;
@@ -630,6 +906,15 @@ public class SamFileValidator {
             this.recordNumber = recordNumber;
         }
 
+        /**
+         * @return A copy of this with offset added to the record number.
+         */
+        public PairEndInfo withRecordNumberOffset(final long offset) {
+            return new PairEndInfo(readAlignmentStart, readReferenceIndex, readNegStrandFlag, readUnmappedFlag,
+                    readCigarString, mateAlignmentStart, mateReferenceIndex, mateNegStrandFlag, mateUnmappedFlag,
+                    mateCigarString, firstOfPairFlag, recordNumber + offset);
+        }
+
         public List<SAMValidationError> validateMates(final PairEndInfo mate, final String readName) {
             final List<SAMValidationError> errors = new ArrayList<SAMValidationError>();
             validateMateFields(this, mate, readName, errors);
@@ -697,6 +982,139 @@ public class SamFileValidator {
         }
     }
 
+    /**
+     * Validates the records in one shard of a file on its own reader.
+     */
+    private class ShardValidation implements Callable<Void> {
+        private final File samFile;
+        private final SAMFileHeader header;
+        private final Chunk shard;
+        private final SamFileValidator validator;
+        private final QualityEncodingDetector qualityDetector = new QualityEncodingDetector();
+        private SAMRecord firstRecord = null;
+        private long numRecords = 0;
+        private boolean truncated = false;
+
+        ShardValidation(final File samFile, final SAMFileHeader header, final Chunk shard) {
+            this.samFile = samFile;
+            this.header = header;
+            this.shard = shard;
+            this.validator = makeShardValidator(header);
+        }
+
+        public Void call() {
+            final SAMFileReader reader = new SAMFileReader(samFile);
+            reader.setValidationStringency(ValidationStringency.SILENT);
+            final ProgressLogger progress = new ProgressLogger(log, 10000000, "Validated Read");
+            final CloseableIterator<SAMRecord> records = reader.iterator(new BAMFileSpan(shard));
+            // Remember the first record so that it can be checked against the end of the previous shard.
+            final Iterator<SAMRecord> iter = new Iterator<SAMRecord>() {
+                public boolean hasNext() {
+                    return records.hasNext();
+                }
+
+                public SAMRecord next() {
+                    final SAMRecord record = records.next();
+                    if (firstRecord == null) firstRecord = record;
+                    return record;
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+            try {
+                truncated = !validator.validateSamRecords(iter, header, progress, qualityDetector);
+            } catch (MaxOutputExceededException e) {
+                // This shard has as many errors as will be written, so there is no point in going further.
+            } finally {
+                numRecords = progress.getCount();
+                records.close();
+                reader.close();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * An error found while validating a shard, and the position of the record to which it belongs.
+     */
+    private static class ShardError {
+        private long recordNumber;
+        private final int stage;
+        private final SAMValidationError error;
+
+        ShardError(final long recordNumber, final int stage, final SAMValidationError error) {
+            this.recordNumber = recordNumber;
+            this.stage = stage;
+            this.error = error;
+        }
+
+        /** Convert record numbers within a shard into record numbers within the file. */
+        void offsetRecordNumber(final long offset) {
+            recordNumber += offset;
+            if (error.getRecordNumber() > 0) {
+                error.setRecordNumber(error.getRecordNumber() + offset);
+            }
+        }
+    }
+
+    /**
+     * Allows an indexed ReferenceSequenceFile to be shared by the threads validating shards.
+     */
+    private static class SynchronizedReferenceSequenceFile implements ReferenceSequenceFile {
+        private final ReferenceSequenceFile referenceSequenceFile;
+
+        SynchronizedReferenceSequenceFile(final ReferenceSequenceFile referenceSequenceFile) {
+            this.referenceSequenceFile = referenceSequenceFile;
+        }
+
+        public SAMSequenceDictionary getSequenceDictionary() {
+            synchronized (referenceSequenceFile) {
+                return referenceSequenceFile.getSequenceDictionary();
+            }
+        }
+
+        public ReferenceSequence nextSequence() {
+            synchronized (referenceSequenceFile) {
+                return referenceSequenceFile.nextSequence();
+            }
+        }
+
+        public void reset() {
+            synchronized (referenceSequenceFile) {
+                referenceSequenceFile.reset();
+            }
+        }
+
+        public boolean isIndexed() {
+            synchronized (referenceSequenceFile) {
+                return referenceSequenceFile.isIndexed();
+            }
+        }
+
+        public ReferenceSequence getSequence(final String contig) {
+            synchronized (referenceSequenceFile) {
+                return referenceSequenceFile.getSequence(contig);
+            }
+        }
+
+        public ReferenceSequence getSubsequenceAt(final String contig, final long start, final long stop) {
+            synchronized (referenceSequenceFile) {
+                return referenceSequenceFile.getSubsequenceAt(contig, start, stop);
+            }
+        }
+
+        /** The underlying file is closed by the owner of the SamFileValidator. */
+        public void close() {
+        }
+
+        @Override
+        public String toString() {
+            return referenceSequenceFile.toString();
+        }
+    }
+
     interface PairEndInfoMap extends Iterable<Map.Entry<String, PairEndInfo>> {
         void put(int mateReferenceIndex, String key, PairEndInfo value);
 
@@ -705,6 +1123,295 @@ public class SamFileValidator {
         CloseableIterator<Map.Entry<String, PairEndInfo>> iterator();
     }
 
+    /**
+     * Holds the PairEndInfo of reads waiting for their mates in parallel primitive arrays, indexed by an
+     * open-addressing hash table on a 64-bit hash of the read name, rather than as objects in a map
+     * keyed by read name.  Read names are stored as bytes and only compared when hashes are equal.  If mates are
+     * looked up by reference, i.e. the input is coordinate-sorted, and more than maxPairInfoRecordsInRam reads are
+     * waiting, they are spilled to a CoordinateSortedPairEndInfoMap.  Otherwise every miss would have to look on disk,
+     * so everything is kept in RAM.
+     */
+    class CompactPairEndInfoMap implements PairEndInfoMap {
+        private static final int INITIAL_CAPACITY = 1024;
+        // Strings are shared between slots through the pool, unless the pool is full.
+        private static final int MAX_POOLED_STRINGS = 100000;
+
+        private static final byte READ_NEG_STRAND = 0x1;
+        private static final byte READ_UNMAPPED = 0x2;
+        private static final byte MATE_NEG_STRAND = 0x4;
+        private static final byte MATE_UNMAPPED = 0x8;
+        private static final byte FIRST_OF_PAIR = 0x10;
+
+        // If true, a read is only the mate of a waiting read if it is on that read's mate reference.
+        private final boolean matchReferenceIndex;
+        private final Map<String, String> stringPool = new HashMap<String, String>();
+        private int size = 0;
+        private int mask;
+        // 0 marks an empty slot
+        private long[] hashes;
+        private byte[][] readNames;
+        private int[] readAlignmentStarts;
+        private int[] readReferenceIndices;
+        private int[] mateAlignmentStarts;
+        private int[] mateReferenceIndices;
+        private byte[] flags;
+        private String[] readCigarStrings;
+        private String[] mateCigarStrings;
+        private long[] recordNumbers;
+
+        private CoordinateSortedPairEndInfoMap spilled = null;
+        private int lastReferenceIndex = -1;
+
+        CompactPairEndInfoMap(final boolean matchReferenceIndex) {
+            this.matchReferenceIndex = matchReferenceIndex;
+            allocate(INITIAL_CAPACITY);
+        }
+
+        public void put(final int mateReferenceIndex, final String readName, final PairEndInfo value) {
+            if (mateReferenceIndex != value.mateReferenceIndex)
+                throw new IllegalArgumentException("mateReferenceIndex does not agree with PairEndInfo");
+            if (matchReferenceIndex && size >= maxPairInfoRecordsInRam) {
+                spill();
+            }
+            if (size >= hashes.length - (hashes.length >> 2)) {
+                rehash(hashes.length * 2);
+            }
+            final long hash = hash(readName);
+            final int slot = findEmptySlot(hash);
+            hashes[slot] = hash;
+            readNames[slot] = StringUtil.stringToBytes(readName);
+            readAlignmentStarts[slot] = value.readAlignmentStart;
+            readReferenceIndices[slot] = value.readReferenceIndex;
+            mateAlignmentStarts[slot] = value.mateAlignmentStart;
+            mateReferenceIndices[slot] = value.mateReferenceIndex;
+            flags[slot] = (byte) ((value.readNegStrandFlag ? READ_NEG_STRAND : 0) |
+                    (value.readUnmappedFlag ? READ_UNMAPPED : 0) |
+                    (value.mateNegStrandFlag ? MATE_NEG_STRAND : 0) |
+                    (value.mateUnmappedFlag ? MATE_UNMAPPED : 0) |
+                    (value.firstOfPairFlag ? FIRST_OF_PAIR : 0));
+            readCigarStrings[slot] = pool(value.readCigarString);
+            mateCigarStrings[slot] = pool(value.mateCigarString);
+            recordNumbers[slot] = value.recordNumber;
+            ++size;
+        }
+
+        public PairEndInfo remove(final int referenceIndex, final String readName) {
+            lastReferenceIndex = referenceIndex;
+            final long hash = hash(readName);
+            for (int slot = (int) hash & mask; hashes[slot] != 0; slot = (slot + 1) & mask) {
+                if (hashes[slot] == hash &&
+                        (!matchReferenceIndex || mateReferenceIndices[slot] == referenceIndex) &&
+                        nameEquals(readNames[slot], readName)) {
+                    final PairEndInfo pairEndInfo = get(slot);
+                    clear(slot);
+                    return pairEndInfo;
+                }
+            }
+            if (spilled != null) {
+                return spilled.remove(referenceIndex, readName);
+            }
+            return null;
+        }
+
+        public CloseableIterator<Map.Entry<String, PairEndInfo>> iterator() {
+            return new CloseableIterator<Map.Entry<String, PairEndInfo>>() {
+                private int slot = -1;
+                private CloseableIterator<Map.Entry<String, PairEndInfo>> spilledIterator = null;
+
+                {
+                    advance();
+                }
+
+                private void advance() {
+                    do {
+                        ++slot;
+                    } while (slot < hashes.length && hashes[slot] == 0);
+                    if (slot == hashes.length && spilled != null) {
+                        spilledIterator = spilled.iterator();
+                    }
+                }
+
+                public void close() {
+                    if (spilledIterator != null) spilledIterator.close();
+                }
+
+                public boolean hasNext() {
+                    return slot < hashes.length || (spilledIterator != null && spilledIterator.hasNext());
+                }
+
+                public Map.Entry<String, PairEndInfo> next() {
+                    if (slot == hashes.length) {
+                        return spilledIterator.next();
+                    }
+                    final Map.Entry<String, PairEndInfo> entry =
+                            new AbstractMap.SimpleEntry<String, PairEndInfo>(StringUtil.bytesToString(readNames[slot]), get(slot));
+                    advance();
+                    return entry;
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        private PairEndInfo get(final int slot) {
+            final byte f = flags[slot];
+            return new PairEndInfo(readAlignmentStarts[slot], readReferenceIndices[slot], (f & READ_NEG_STRAND) != 0,
+                    (f & READ_UNMAPPED) != 0, readCigarStrings[slot], mateAlignmentStarts[slot],
+                    mateReferenceIndices[slot], (f & MATE_NEG_STRAND) != 0, (f & MATE_UNMAPPED) != 0,
+                    mateCigarStrings[slot], (f & FIRST_OF_PAIR) != 0, recordNumbers[slot]);
+        }
+
+        /**
+         * Empty a slot, moving back any entries after it that would otherwise no longer be reachable from their
+         * home slots.
+         */
+        private void clear(final int slot) {
+            int hole = slot;
+            for (int next = (hole + 1) & mask; hashes[next] != 0; next = (next + 1) & mask) {
+                final int home = (int) hashes[next] & mask;
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    move(next, hole);
+                    hole = next;
+                }
+            }
+            release(hole);
+            --size;
+        }
+
+        private void move(final int from, final int to) {
+            hashes[to] = hashes[from];
+            readNames[to] = readNames[from];
+            readAlignmentStarts[to] = readAlignmentStarts[from];
+            readReferenceIndices[to] = readReferenceIndices[from];
+            mateAlignmentStarts[to] = mateAlignmentStarts[from];
+            mateReferenceIndices[to] = mateReferenceIndices[from];
+            flags[to] = flags[from];
+            readCigarStrings[to] = readCigarStrings[from];
+            mateCigarStrings[to] = mateCigarStrings[from];
+            recordNumbers[to] = recordNumbers[from];
+        }
+
+        private void release(final int slot) {
+            hashes[slot] = 0;
+            readNames[slot] = null;
+            readCigarStrings[slot] = null;
+            mateCigarStrings[slot] = null;
+        }
+
+        boolean isSpilled() {
+            return spilled != null;
+        }
+
+        /**
+         * Move waiting reads to disk.  Reads whose mates are expected on the reference currently being read are
+         * kept in RAM if that leaves enough room.
+         */
+        private void spill() {
+            if (spilled == null) {
+                log.info("More than " + maxPairInfoRecordsInRam + " reads are waiting for their mates; spilling to disk.");
+                spilled = new CoordinateSortedPairEndInfoMap();
+            }
+            int numCurrent = 0;
+            for (int slot = 0; slot < hashes.length; ++slot) {
+                if (hashes[slot] != 0 && mateReferenceIndices[slot] == lastReferenceIndex) ++numCurrent;
+            }
+            final boolean keepCurrent = numCurrent < maxPairInfoRecordsInRam / 2;
+            for (int slot = 0; slot < hashes.length; ++slot) {
+                if (hashes[slot] != 0 && !(keepCurrent && mateReferenceIndices[slot] == lastReferenceIndex)) {
+                    spilled.put(mateReferenceIndices[slot], StringUtil.bytesToString(readNames[slot]), get(slot));
+                    release(slot);
+                    --size;
+                }
+            }
+            rehash(hashes.length);
+        }
+
+        private void rehash(final int capacity) {
+            final long[] oldHashes = hashes;
+            final byte[][] oldReadNames = readNames;
+            final int[] oldReadAlignmentStarts = readAlignmentStarts;
+            final int[] oldReadReferenceIndices = readReferenceIndices;
+            final int[] oldMateAlignmentStarts = mateAlignmentStarts;
+            final int[] oldMateReferenceIndices = mateReferenceIndices;
+            final byte[] oldFlags = flags;
+            final String[] oldReadCigarStrings = readCigarStrings;
+            final String[] oldMateCigarStrings = mateCigarStrings;
+            final long[] oldRecordNumbers = recordNumbers;
+            allocate(capacity);
+            for (int i = 0; i < oldHashes.length; ++i) {
+                if (oldHashes[i] == 0) continue;
+                final int slot = findEmptySlot(oldHashes[i]);
+                hashes[slot] = oldHashes[i];
+                readNames[slot] = oldReadNames[i];
+                readAlignmentStarts[slot] = oldReadAlignmentStarts[i];
+                readReferenceIndices[slot] = oldReadReferenceIndices[i];
+                mateAlignmentStarts[slot] = oldMateAlignmentStarts[i];
+                mateReferenceIndices[slot] = oldMateReferenceIndices[i];
+                flags[slot] = oldFlags[i];
+                readCigarStrings[slot] = oldReadCigarStrings[i];
+                mateCigarStrings[slot] = oldMateCigarStrings[i];
+                recordNumbers[slot] = oldRecordNumbers[i];
+            }
+        }
+
+        private void allocate(final int capacity) {
+            mask = capacity - 1;
+            hashes = new long[capacity];
+            readNames = new byte[capacity][];
+            readAlignmentStarts = new int[capacity];
+            readReferenceIndices = new int[capacity];
+            mateAlignmentStarts = new int[capacity];
+            mateReferenceIndices = new int[capacity];
+            flags = new byte[capacity];
+            readCigarStrings = new String[capacity];
+            mateCigarStrings = new String[capacity];
+            recordNumbers = new long[capacity];
+        }
+
+        private int findEmptySlot(final long hash) {
+            int slot = (int) hash & mask;
+            while (hashes[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private String pool(final String s) {
+            if (s == null) return null;
+            final String pooled = stringPool.get(s);
+            if (pooled != null) return pooled;
+            if (stringPool.size() < MAX_POOLED_STRINGS) stringPool.put(s, s);
+            return s;
+        }
+
+        /** FNV-1a over the read name, followed by the MurmurHash3 finalizer.  Never returns 0. */
+        long hash(final String readName) {
+            long h = 0xcbf29ce484222325L;
+            for (int i = 0; i < readName.length(); ++i) {
+                h = (h ^ readName.charAt(i)) * 0x100000001b3L;
+            }
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            h ^= h >>> 33;
+            return (h == 0) ? 1 : h;
+        }
+
+        private boolean nameEquals(final byte[] name, final String readName) {
+            if (name.length != readName.length()) return false;
+            for (int i = 0; i < name.length; ++i) {
+                if (name[i] != (byte) readName.charAt(i)) return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Holds reads waiting for their mates in temporary files, one per mate reference.
+     */
     private class CoordinateSortedPairEndInfoMap implements PairEndInfoMap {
         private final CoordinateSortedPairInfoMap<String, PairEndInfo> onDiskMap =
                 new CoordinateSortedPairInfoMap<String, PairEndInfo>(maxTempFiles, new Codec());
@@ -779,46 +1486,11 @@ public class SamFileValidator {
                             readUnmappedFlag, readCigarString, mateAlignmentStart, mateReferenceIndex, mateNegStrandFlag,
                             mateUnmappedFlag, mateCigarString,
                             firstOfPairFlag, recordNumber);
-                    return new AbstractMap.SimpleEntry(key, rec);
+                    return new AbstractMap.SimpleEntry<String, PairEndInfo>(key, rec);
                 } catch (IOException e) {
                     throw new SAMException("Error reading PairInfo from disk", e);
                 }
             }
         }
     }
-
-    private static class InMemoryPairEndInfoMap implements PairEndInfoMap {
-        private final Map<String, PairEndInfo> map = new HashMap<String, PairEndInfo>();
-
-        public void put(int mateReferenceIndex, String key, PairEndInfo value) {
-            if (mateReferenceIndex != value.mateReferenceIndex)
-                throw new IllegalArgumentException("mateReferenceIndex does not agree with PairEndInfo");
-            map.put(key, value);
-        }
-
-        public PairEndInfo remove(int mateReferenceIndex, String key) {
-            return map.remove(key);
-        }
-
-        public CloseableIterator<Map.Entry<String, PairEndInfo>> iterator() {
-            final Iterator<Map.Entry<String, PairEndInfo>> it = map.entrySet().iterator();
-            return new CloseableIterator<Map.Entry<String, PairEndInfo>>() {
-                public void close() {
-                    // do nothing
-                }
-
-                public boolean hasNext() {
-                    return it.hasNext();
-                }
-
-                public Map.Entry<String, PairEndInfo> next() {
-                    return it.next();
-                }
-
-                public void remove() {
-                    it.remove();
-                }
-            };
-        }
-    }
 }
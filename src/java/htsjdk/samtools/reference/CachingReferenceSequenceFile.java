@@ -0,0 +1,241 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools.reference;
+
+import htsjdk.samtools.SAMException;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.util.ResourceLimitedMap;
+import htsjdk.samtools.util.ResourceLimitedMapFunctor;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Wraps an indexed ReferenceSequenceFile with an LRU cache of fixed-size windows of bases, so that lookups of
+ * nearby, overlapping subsequences in arbitrary order, such as those for the reads of a coordinate-sorted file,
+ * are served from memory rather than read again.  Subsequences longer than half the cache, and whole sequences,
+ * are read directly from the underlying file.  The methods are synchronized, so an instance can be shared by threads.
+ */
+public class CachingReferenceSequenceFile implements ReferenceSequenceFile {
+    public static final int DEFAULT_WINDOW_SIZE = 64 * 1024;
+    public static final int DEFAULT_MAX_WINDOWS = 64;
+
+    private final ReferenceSequenceFile referenceSequenceFile;
+    private final int windowSize;
+    private final int maxWindows;
+    private final Map<String, Long> contigLengths = new HashMap<String, Long>();
+    private final ResourceLimitedMap<WindowKey, ReferenceSequence> windows;
+
+    private long windowHits = 0;
+    private long windowMisses = 0;
+    private long uncachedLookups = 0;
+
+    public CachingReferenceSequenceFile(final ReferenceSequenceFile referenceSequenceFile) {
+        this(referenceSequenceFile, DEFAULT_WINDOW_SIZE, DEFAULT_MAX_WINDOWS);
+    }
+
+    /**
+     * @param referenceSequenceFile must be indexed, and have a sequence dictionary unless it is an
+     * IndexedFastaSequenceFile.
+     * @param windowSize number of bases in each cached window.
+     * @param maxWindows maximum number of windows in the cache.
+     */
+    public CachingReferenceSequenceFile(final ReferenceSequenceFile referenceSequenceFile, final int windowSize,
+                                        final int maxWindows) {
+        if (!referenceSequenceFile.isIndexed()) {
+            throw new IllegalArgumentException("CachingReferenceSequenceFile requires an indexed reference: " +
+                    referenceSequenceFile);
+        }
+        if (windowSize < 1 || maxWindows < 1) {
+            throw new IllegalArgumentException("windowSize and maxWindows must be positive");
+        }
+        this.referenceSequenceFile = referenceSequenceFile;
+        this.windowSize = windowSize;
+        this.maxWindows = maxWindows;
+
+        final SAMSequenceDictionary dictionary = referenceSequenceFile.getSequenceDictionary();
+        if (dictionary != null) {
+            for (final SAMSequenceRecord sequence : dictionary.getSequences()) {
+                contigLengths.put(sequence.getSequenceName(), (long) sequence.getSequenceLength());
+            }
+        } else if (referenceSequenceFile instanceof IndexedFastaSequenceFile) {
+            for (final FastaSequenceIndexEntry entry : ((IndexedFastaSequenceFile) referenceSequenceFile).getIndex()) {
+                contigLengths.put(entry.getContig(), entry.getSize());
+            }
+        } else {
+            throw new IllegalArgumentException("CachingReferenceSequenceFile requires a sequence dictionary: " +
+                    referenceSequenceFile);
+        }
+
+        windows = new ResourceLimitedMap<WindowKey, ReferenceSequence>(maxWindows,
+                new ResourceLimitedMapFunctor<WindowKey, ReferenceSequence>() {
+                    public ReferenceSequence makeValue(final WindowKey key) {
+                        final long start = (long) key.window * CachingReferenceSequenceFile.this.windowSize + 1;
+                        final long stop = Math.min(start + CachingReferenceSequenceFile.this.windowSize - 1,
+                                contigLengths.get(key.contig));
+                        return CachingReferenceSequenceFile.this.referenceSequenceFile.getSubsequenceAt(key.contig,
+                                start, stop);
+                    }
+
+                    public void finalizeValue(final WindowKey key, final ReferenceSequence value) {
+                    }
+                });
+    }
+
+    /**
+     * Gets the subsequence of the contig in the range [start,stop], from cached windows if possible.
+     * @param contig Contig whose subsequence to retrieve.
+     * @param start inclusive, 1-based start of region.
+     * @param stop inclusive, 1-based stop of region.
+     * @return The partial reference sequence associated with this range.
+     */
+    public synchronized ReferenceSequence getSubsequenceAt(final String contig, final long start, final long stop) {
+        if (start > stop + 1) {
+            throw new SAMException(String.format("Malformed query; start point %d lies after end point %d", start, stop));
+        }
+        final Long contigLength = contigLengths.get(contig);
+        if (contigLength == null) {
+            throw new SAMException("Unable to find entry for contig: " + contig);
+        }
+        if (stop > contigLength) {
+            throw new SAMException("Query asks for data past end of contig");
+        }
+        final int length = (int) (stop - start + 1);
+        final int firstWindow = (int) ((start - 1) / windowSize);
+        final int lastWindow = (int) (Math.max(stop - 1, start - 1) / windowSize);
+        if (lastWindow - firstWindow + 1 > Math.max(1, maxWindows / 2) || start < 1) {
+            ++uncachedLookups;
+            return referenceSequenceFile.getSubsequenceAt(contig, start, stop);
+        }
+
+        final byte[] bases = new byte[length];
+        int contigIndex = -1;
+        int filled = 0;
+        for (int window = firstWindow; window <= lastWindow && filled < length; ++window) {
+            final ReferenceSequence windowSequence = getWindow(contig, window);
+            contigIndex = windowSequence.getContigIndex();
+            final int offset = (int) (start - 1 + filled - (long) window * windowSize);
+            final int n = Math.min(length - filled, windowSequence.length() - offset);
+            System.arraycopy(windowSequence.getBases(), offset, bases, filled, n);
+            filled += n;
+        }
+        if (contigIndex == -1) {
+            // An empty range; find the contig index
+            contigIndex = getWindow(contig, firstWindow).getContigIndex();
+        }
+        return new ReferenceSequence(contig, contigIndex, bases);
+    }
+
+    private ReferenceSequence getWindow(final String contig, final int window) {
+        final WindowKey key = new WindowKey(contig, window);
+        if (windows.containsKey(key)) {
+            ++windowHits;
+        } else {
+            ++windowMisses;
+        }
+        return windows.get(key);
+    }
+
+    /**
+     * @return the number of window lookups served from the cache.
+     */
+    public synchronized long getWindowHits() { return windowHits; }
+
+    /**
+     * @return the number of windows read from the underlying file.
+     */
+    public synchronized long getWindowMisses() { return windowMisses; }
+
+    /**
+     * @return the number of lookups that were too large to cache, and read directly from the underlying file.
+     */
+    public synchronized long getUncachedLookups() { return uncachedLookups; }
+
+    /**
+     * @return the fraction of window lookups served from the cache, or 0 if there have been none.
+     */
+    public synchronized double getHitRate() {
+        final long lookups = windowHits + windowMisses;
+        return lookups == 0 ? 0 : windowHits / (double) lookups;
+    }
+
+    /**
+     * Retrieves the complete sequence directly from the underlying file, without caching it.
+     */
+    public synchronized ReferenceSequence getSequence(final String contig) {
+        ++uncachedLookups;
+        return referenceSequenceFile.getSequence(contig);
+    }
+
+    public SAMSequenceDictionary getSequenceDictionary() {
+        return referenceSequenceFile.getSequenceDictionary();
+    }
+
+    public synchronized ReferenceSequence nextSequence() {
+        return referenceSequenceFile.nextSequence();
+    }
+
+    public synchronized void reset() {
+        referenceSequenceFile.reset();
+    }
+
+    public boolean isIndexed() {
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return referenceSequenceFile.toString();
+    }
+
+    public synchronized void close() throws IOException {
+        windows.finalizeAll();
+        referenceSequenceFile.close();
+    }
+
+    private static class WindowKey {
+        private final String contig;
+        private final int window;
+
+        WindowKey(final String contig, final int window) {
+            this.contig = contig;
+            this.window = window;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (!(o instanceof WindowKey)) return false;
+            final WindowKey that = (WindowKey) o;
+            return window == that.window && contig.equals(that.contig);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * contig.hashCode() + window;
+        }
+    }
+}
@@ -26,10 +26,14 @@ package htsjdk.samtools.reference;
 
 import htsjdk.samtools.SAMException;
 import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.util.AsciiWriter;
 import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.RuntimeIOException;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -37,7 +41,7 @@ import java.util.Scanner;
 import java.util.regex.MatchResult;
 
 /**
- * Reads a fasta index file (.fai), as generated by `samtools faidx`.
+ * Reads a fasta index file (.fai), as generated by `samtools faidx`, or creates one from a fasta file.
  */
 public class FastaSequenceIndex implements Iterable<FastaSequenceIndexEntry> {
     /**
@@ -55,6 +59,44 @@ public class FastaSequenceIndex implements Iterable<FastaSequenceIndexEntry> {
         parseIndexFile(indexFile);
     }
 
+    /**
+     * Create the index of a fasta file by scanning it, as `samtools faidx` does.
+     * @param fastaFile uncompressed fasta file.
+     * @throws SAMException if the lines of a sequence do not all have the same length, except the last one.
+     */
+    public static FastaSequenceIndex createIndex(final File fastaFile) {
+        return createIndex(fastaFile, 1);
+    }
+
+    /**
+     * Create the index of a fasta file by scanning it, as `samtools faidx` does.
+     * @param fastaFile uncompressed fasta file.
+     * @param numThreads number of threads scanning parts of a large fasta concurrently.
+     * @throws SAMException if the lines of a sequence do not all have the same length, except the last one.
+     */
+    public static FastaSequenceIndex createIndex(final File fastaFile, final int numThreads) {
+        return FastaSequenceIndexCreator.createIndex(fastaFile, numThreads,
+                FastaSequenceIndexCreator.DEFAULT_MIN_RANGE_SIZE);
+    }
+
+    /**
+     * Write the index in .fai format.
+     * @param indexFile File to write, typically the name of the fasta file plus ".fai".
+     */
+    public void write(final File indexFile) {
+        final AsciiWriter writer;
+        try {
+            writer = new AsciiWriter(new FileOutputStream(indexFile));
+            for (final FastaSequenceIndexEntry entry : this) {
+                writer.write(entry.getContig() + "\t" + entry.getSize() + "\t" + entry.getLocation() + "\t" +
+                        entry.getBasesPerLine() + "\t" + entry.getBytesPerLine() + "\n");
+            }
+            writer.close();
+        } catch (IOException e) {
+            throw new RuntimeIOException("Error writing fasta index " + indexFile, e);
+        }
+    }
+
     /**
      * Empty, protected constructor for unit testing.
      */
@@ -0,0 +1,256 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools.reference;
+
+import htsjdk.samtools.SAMException;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.RuntimeIOException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Creates a FastaSequenceIndex by scanning a fasta file, as `samtools faidx` does.  The file is read through a
+ * FileChannel with positional reads into a large buffer.  Every line of a sequence but the last must have the same
+ * length and line terminator; blank lines are only allowed at the end of a sequence.
+ *
+ * In parallel, the file is split into ranges of bytes, and each thread indexes the sequences whose header lines
+ * start in its range, reading past the end of its range to finish the last one.
+ */
+class FastaSequenceIndexCreator {
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    static final long DEFAULT_MIN_RANGE_SIZE = 16 * 1024 * 1024;
+
+    private final File fastaFile;
+    private final FileChannel channel;
+    private final long fileSize;
+    private final long minRangeSize;
+
+    private FastaSequenceIndexCreator(final File fastaFile, final FileChannel channel, final long minRangeSize)
+            throws IOException {
+        this.fastaFile = fastaFile;
+        this.channel = channel;
+        this.fileSize = channel.size();
+        this.minRangeSize = minRangeSize;
+    }
+
+    /**
+     * @param minRangeSize smallest number of bytes for a thread to scan.
+     */
+    static FastaSequenceIndex createIndex(final File fastaFile, final int numThreads, final long minRangeSize) {
+        IOUtil.assertFileIsReadable(fastaFile);
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(fastaFile);
+            final FastaSequenceIndexCreator creator = new FastaSequenceIndexCreator(fastaFile, in.getChannel(), minRangeSize);
+            final List<FastaSequenceIndexEntry> entries = creator.scan(numThreads);
+            final FastaSequenceIndex index = new FastaSequenceIndex();
+            int sequenceIndex = 0;
+            for (final FastaSequenceIndexEntry entry : entries) {
+                index.add(new FastaSequenceIndexEntry(entry.getContig(), entry.getLocation(), entry.getSize(),
+                        entry.getBasesPerLine(), entry.getBytesPerLine(), sequenceIndex++));
+            }
+            return index;
+        } catch (IOException e) {
+            throw new RuntimeIOException("Error indexing " + fastaFile, e);
+        } finally {
+            CloserUtil.close(in);
+        }
+    }
+
+    private List<FastaSequenceIndexEntry> scan(final int numThreads) throws IOException {
+        final int numRanges = (int) Math.max(1, Math.min(numThreads, fileSize / minRangeSize));
+        if (numRanges == 1) {
+            return new RangeScanner(0, fileSize).call();
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(numRanges);
+        try {
+            final List<Future<List<FastaSequenceIndexEntry>>> futures = new ArrayList<Future<List<FastaSequenceIndexEntry>>>();
+            for (int i = 0; i < numRanges; ++i) {
+                futures.add(executor.submit(new RangeScanner(fileSize * i / numRanges, fileSize * (i + 1) / numRanges)));
+            }
+            final List<FastaSequenceIndexEntry> entries = new ArrayList<FastaSequenceIndexEntry>();
+            for (final Future<List<FastaSequenceIndexEntry>> future : futures) {
+                entries.addAll(future.get());
+            }
+            return entries;
+        } catch (InterruptedException e) {
+            throw new SAMException("Interrupted while indexing " + fastaFile, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new SAMException("Exception indexing " + fastaFile, e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Indexes the sequences whose header lines start in a range of the file.
+     */
+    private class RangeScanner implements Callable<List<FastaSequenceIndexEntry>> {
+        private final long rangeStart;
+        private final long rangeEnd;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        // File offset of the first byte in buffer
+        private long bufferStart;
+        private long position;
+
+        RangeScanner(final long rangeStart, final long rangeEnd) {
+            this.rangeStart = rangeStart;
+            this.rangeEnd = rangeEnd;
+            bufferStart = rangeStart;
+            buffer.limit(0);
+        }
+
+        public List<FastaSequenceIndexEntry> call() throws IOException {
+            final List<FastaSequenceIndexEntry> entries = new ArrayList<FastaSequenceIndexEntry>();
+            position = rangeStart;
+            if (rangeStart == 0) {
+                final int first = read();
+                if (first != '>' && first != -1) {
+                    throw new SAMException("Fasta file does not start with a '>' header line: " + fastaFile);
+                }
+            } else {
+                // Find the first header line that starts in the range
+                position = rangeStart - 1;
+                int previous = read();
+                int b;
+                while ((b = read()) != -1 && !(previous == '\n' && b == '>')) {
+                    previous = b;
+                    if (position >= rangeEnd) return entries;
+                }
+                if (b == -1) return entries;
+            }
+            // position is just after a '>' that starts a line
+            while (position - 1 < rangeEnd && position <= fileSize) {
+                if (!scanSequence(entries)) {
+                    break;
+                }
+            }
+            return entries;
+        }
+
+        /**
+         * Index the sequence whose header starts just before position.
+         * @return true if another sequence follows, in which case position is just after its '>'.
+         */
+        private boolean scanSequence(final List<FastaSequenceIndexEntry> entries) throws IOException {
+            final StringBuilder name = new StringBuilder();
+            int b;
+            while ((b = read()) != -1 && b != '\n' && b != '\r' && b != ' ' && b != '\t') {
+                name.append((char) b);
+            }
+            while (b != -1 && b != '\n') {
+                b = read();
+            }
+            if (name.length() == 0) {
+                throw new SAMException("Fasta header line without a sequence name at byte " + position + " in " + fastaFile);
+            }
+            final String contig = name.toString();
+            final long location = position;
+
+            long size = 0;
+            int basesPerLine = 0;
+            int bytesPerLine = 0;
+            boolean sawShortLine = false;
+            boolean sawBlankLine = false;
+            while (true) {
+                b = read();
+                if (b == -1) {
+                    break;
+                }
+                if (b == '>') {
+                    break;
+                }
+                // Read a line, starting with b
+                int lineBytes = 0;
+                int lineBases = 0;
+                boolean terminated = false;
+                while (b != -1) {
+                    ++lineBytes;
+                    if (b == '\n') {
+                        terminated = true;
+                        break;
+                    }
+                    if (b != '\r') {
+                        lineBases = lineBytes;
+                    }
+                    b = read();
+                }
+                if (lineBases == 0) {
+                    sawBlankLine = true;
+                    continue;
+                }
+                if (sawBlankLine || sawShortLine) {
+                    throw new SAMException("Inconsistent line length in sequence '" + contig + "' at byte " +
+                            (position - lineBytes) + " of " + fastaFile);
+                }
+                if (basesPerLine == 0) {
+                    basesPerLine = lineBases;
+                    bytesPerLine = terminated ? lineBytes : lineBases + 1;
+                } else if (lineBases > basesPerLine ||
+                        (lineBases == basesPerLine && terminated && lineBytes != bytesPerLine)) {
+                    throw new SAMException("Inconsistent line length in sequence '" + contig + "' at byte " +
+                            (position - lineBytes) + " of " + fastaFile);
+                } else if (lineBases < basesPerLine) {
+                    sawShortLine = true;
+                }
+                size += lineBases;
+            }
+            entries.add(new FastaSequenceIndexEntry(contig, location, size, basesPerLine, bytesPerLine, entries.size()));
+            return b == '>';
+        }
+
+        /**
+         * @return the byte at position, advancing position, or -1 at the end of the file.
+         */
+        private int read() throws IOException {
+            if (position < bufferStart || position - bufferStart >= buffer.limit()) {
+                if (position >= fileSize) {
+                    ++position;
+                    return -1;
+                }
+                buffer.clear();
+                bufferStart = position;
+                while (buffer.hasRemaining() && bufferStart + buffer.position() < fileSize) {
+                    if (channel.read(buffer, bufferStart + buffer.position()) < 0) break;
+                }
+                buffer.flip();
+            }
+            return buffer.get((int) (position++ - bufferStart)) & 0xff;
+        }
+    }
+}
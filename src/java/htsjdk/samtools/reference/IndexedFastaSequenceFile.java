@@ -36,19 +36,41 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * A fasta file driven by an index for fast, concurrent lookups.  Supports two interfaces:
  * the ReferenceSequenceFile for old-style, stateful lookups and a direct getter.
+ *
+ * In memory-mapped mode the fasta is mapped in windows as they are first needed, and bases are copied from the
+ * mapping, with the line terminators skipped according to the line layout in the index; no buffer is allocated and
+ * no system call is made per lookup.  In this mode the direct getters, getSequence() and getSubsequenceAt(), are
+ * thread-safe, so a single instance can be shared by many threads.  nextSequence() and reset() are stateful and
+ * must not be used concurrently.
  */
 public class IndexedFastaSequenceFile extends AbstractFastaSequenceFile implements Closeable {
+    /**
+     * Size of the windows in which a fasta is memory mapped.
+     */
+    static final int DEFAULT_MAPPED_WINDOW_SIZE = 1 << 30;
+
     /**
      * The interface facilitating direct access to the fasta.
      */
     private final FileChannel channel;
 
+    /**
+     * In memory-mapped mode, the consecutive windows of the fasta, each but the last mappedWindowSize long, or null
+     * until first used.  Only absolute gets are made on them, or on their duplicates, so that they can be shared by
+     * threads.
+     */
+    private final AtomicReferenceArray<MappedByteBuffer> mappedWindows;
+    private final int mappedWindowSize;
+    private final long fileSize;
+
     /**
      * A representation of the sequence index, stored alongside the fasta in a .fasta.fai file.
      */
@@ -66,6 +88,23 @@ public class IndexedFastaSequenceFile extends AbstractFastaSequenceFile implemen
      * @throws FileNotFoundException If the fasta or any of its supporting files cannot be found.
      */
     public IndexedFastaSequenceFile(final File file, final FastaSequenceIndex index) {
+        this(file, index, false);
+    }
+
+    /**
+     * Open the given indexed fasta sequence file.  Throw an exception if the file cannot be opened.
+     * @param file The file to open.
+     * @param index Pre-built FastaSequenceIndex, for the case in which one does not exist on disk.
+     * @param memoryMapped If true, memory map the fasta rather than reading it for each lookup.
+     */
+    public IndexedFastaSequenceFile(final File file, final FastaSequenceIndex index, final boolean memoryMapped) {
+        this(file, index, memoryMapped ? DEFAULT_MAPPED_WINDOW_SIZE : 0);
+    }
+
+    /**
+     * @param mappedWindowSize if positive, memory map the fasta in windows of this size.
+     */
+    IndexedFastaSequenceFile(final File file, final FastaSequenceIndex index, final int mappedWindowSize) {
         super(file);
         if (index == null) throw new IllegalArgumentException("Null index for fasta " + file);
         this.index = index;
@@ -77,6 +116,19 @@ public class IndexedFastaSequenceFile extends AbstractFastaSequenceFile implemen
             throw new SAMException("Fasta file should be readable but is not: " + file, e);
         }
         channel = in.getChannel();
+        this.mappedWindowSize = mappedWindowSize;
+        if (mappedWindowSize > 0) {
+            try {
+                fileSize = channel.size();
+            } catch (IOException e) {
+                throw new SAMException("Unable to memory map " + file, e);
+            }
+            mappedWindows = new AtomicReferenceArray<MappedByteBuffer>(
+                    (int) ((fileSize + mappedWindowSize - 1) / mappedWindowSize));
+        } else {
+            fileSize = 0;
+            mappedWindows = null;
+        }
         reset();
 
         if(getSequenceDictionary() != null)
@@ -92,6 +144,16 @@ public class IndexedFastaSequenceFile extends AbstractFastaSequenceFile implemen
         this(file, new FastaSequenceIndex((findRequiredFastaIndexFile(file))));
     }
 
+    /**
+     * Open the given indexed fasta sequence file.  Throw an exception if the file cannot be opened.
+     * @param file The file to open.
+     * @param memoryMapped If true, memory map the fasta rather than reading it for each lookup.
+     * @throws FileNotFoundException If the fasta or any of its supporting files cannot be found.
+     */
+    public IndexedFastaSequenceFile(final File file, final boolean memoryMapped) throws FileNotFoundException {
+        this(file, new FastaSequenceIndex((findRequiredFastaIndexFile(file))), memoryMapped);
+    }
+
 
     public boolean isIndexed() {return true;}
 
@@ -147,6 +209,10 @@ public class IndexedFastaSequenceFile extends AbstractFastaSequenceFile implemen
         }
     }
 
+    FastaSequenceIndex getIndex() {
+        return index;
+    }
+
     /**
      * Retrieves the sequence dictionary for the fasta file.
      * @return sequence dictionary of the fasta.
@@ -183,6 +249,10 @@ public class IndexedFastaSequenceFile extends AbstractFastaSequenceFile implemen
         int length = (int)(stop - start + 1);
 
         byte[] target = new byte[length];
+        if (mappedWindows != null) {
+            readMapped(indexEntry, start, target);
+            return new ReferenceSequence( contig, indexEntry.getSequenceIndex(), target );
+        }
         ByteBuffer targetBuffer = ByteBuffer.wrap(target);
 
         final int basesPerLine = indexEntry.getBasesPerLine();
@@ -231,6 +301,82 @@ public class IndexedFastaSequenceFile extends AbstractFastaSequenceFile implemen
         return new ReferenceSequence( contig, indexEntry.getSequenceIndex(), target );
     }
 
+    /**
+     * Copy the bases of the contig starting at the given position from the mapped windows, one line at a time.
+     * @param start inclusive, 1-based start of region.
+     */
+    private void readMapped(final FastaSequenceIndexEntry indexEntry, final long start, final byte[] target) {
+        final int basesPerLine = indexEntry.getBasesPerLine();
+        final int bytesPerLine = indexEntry.getBytesPerLine();
+        // Duplicate of the window being copied from, so that its position is private to this call
+        ByteBuffer window = null;
+        int windowIndex = -1;
+        long basePosition = start - 1;
+        int filled = 0;
+        while (filled < target.length) {
+            final int positionInLine = (int) (basePosition % basesPerLine);
+            int lineBases = Math.min(basesPerLine - positionInLine, target.length - filled);
+            long fileOffset = indexEntry.getLocation() + (basePosition / basesPerLine) * bytesPerLine + positionInLine;
+            basePosition += lineBases;
+            // A line may straddle two windows.
+            while (lineBases > 0) {
+                final int nextWindowIndex = (int) (fileOffset / mappedWindowSize);
+                if (nextWindowIndex >= mappedWindows.length()) {
+                    throw new SAMException("Unable to load " + indexEntry.getContig() + "(" + start + ", " +
+                            (start + target.length - 1) + ") from " + file + ": past end of file");
+                }
+                if (nextWindowIndex != windowIndex) {
+                    windowIndex = nextWindowIndex;
+                    window = getMappedWindow(windowIndex).duplicate();
+                }
+                final int positionInWindow = (int) (fileOffset % mappedWindowSize);
+                final int n = Math.min(lineBases, window.limit() - positionInWindow);
+                if (n <= 0) {
+                    throw new SAMException("Unable to load " + indexEntry.getContig() + "(" + start + ", " +
+                            (start + target.length - 1) + ") from " + file + ": past end of file");
+                }
+                window.position(positionInWindow);
+                window.get(target, filled, n);
+                filled += n;
+                fileOffset += n;
+                lineBases -= n;
+            }
+        }
+    }
+
+    /**
+     * @return the given window of the fasta, mapping it if this is its first use.
+     */
+    private MappedByteBuffer getMappedWindow(final int windowIndex) {
+        final MappedByteBuffer window = mappedWindows.get(windowIndex);
+        if (window != null) {
+            return window;
+        }
+        synchronized (mappedWindows) {
+            if (mappedWindows.get(windowIndex) == null) {
+                final long position = (long) windowIndex * mappedWindowSize;
+                try {
+                    mappedWindows.set(windowIndex, channel.map(FileChannel.MapMode.READ_ONLY, position,
+                            Math.min(mappedWindowSize, fileSize - position)));
+                } catch (IOException e) {
+                    throw new SAMException("Unable to memory map " + file, e);
+                }
+            }
+            return mappedWindows.get(windowIndex);
+        }
+    }
+
+    /**
+     * @return the number of windows of the fasta that have been memory mapped so far.
+     */
+    int getMappedWindowCount() {
+        int count = 0;
+        for (int i = 0; mappedWindows != null && i < mappedWindows.length(); ++i) {
+            if (mappedWindows.get(i) != null) ++count;
+        }
+        return count;
+    }
+
     /**
      * Gets the next sequence if available, or null if not present.
      * @return next sequence if available, or null if not present.
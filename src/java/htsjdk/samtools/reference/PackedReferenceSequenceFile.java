@@ -0,0 +1,545 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools.reference;
+
+import htsjdk.samtools.SAMException;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SAMTextHeaderCodec;
+import htsjdk.samtools.util.BufferedLineReader;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.RuntimeIOException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A whole reference held in memory with 2 bits per base.  Bases that are not A, C, G or T (in either case) are
+ * kept as runs of identical bases in a sparse exception list, so long runs of N cost almost nothing, and
+ * lower-case (soft-masked) bases are kept as a list of ranges.  Bases are unpacked only for the range asked for.
+ * A human reference takes about a quarter of the memory it takes as ReferenceSequences.
+ *
+ * A PackedReferenceSequenceFile is built from any ReferenceSequenceFile with pack(), and can be written to a
+ * binary file with write() and memory mapped with open(), so that the packed bases of a reference on disk are
+ * shared by every JVM that maps it.  The packed file holds only names and bases, so open() takes the sequence
+ * dictionary from a .dict file next to it when there is one, as FASTA files do.  Lookups only read shared state,
+ * so an instance can be shared by threads, except for nextSequence() and reset().
+ */
+public class PackedReferenceSequenceFile implements ReferenceSequenceFile {
+    private static final byte[] MAGIC = {'P', 'R', 'E', 'F'};
+    private static final int VERSION = 1;
+
+    private static final byte[] BASES = {'A', 'C', 'G', 'T'};
+    // 2-bit code of each upper- or lower-case ACGT, or -1
+    private static final byte[] CODES = new byte[256];
+    // The four bases packed into each possible byte, first base in the low bits
+    private static final byte[] UNPACKED = new byte[256 * 4];
+    static {
+        Arrays.fill(CODES, (byte) -1);
+        for (int i = 0; i < BASES.length; ++i) {
+            CODES[BASES[i]] = (byte) i;
+            CODES[Character.toLowerCase(BASES[i])] = (byte) i;
+        }
+        for (int b = 0; b < 256; ++b) {
+            for (int i = 0; i < 4; ++i) {
+                UNPACKED[b * 4 + i] = BASES[(b >> (2 * i)) & 3];
+            }
+        }
+    }
+
+    private final String source;
+    private final SAMSequenceDictionary sequenceDictionary;
+    private final List<PackedSequence> sequences;
+    private final Map<String, PackedSequence> sequencesByName = new HashMap<String, PackedSequence>();
+    private int nextSequenceIndex = 0;
+
+    private PackedReferenceSequenceFile(final String source, final SAMSequenceDictionary sequenceDictionary,
+                                        final List<PackedSequence> sequences) {
+        this.source = source;
+        this.sequences = sequences;
+        for (final PackedSequence sequence : sequences) {
+            sequencesByName.put(sequence.name, sequence);
+        }
+        if (sequenceDictionary != null) {
+            this.sequenceDictionary = sequenceDictionary;
+        } else {
+            final List<SAMSequenceRecord> records = new ArrayList<SAMSequenceRecord>();
+            for (final PackedSequence sequence : sequences) {
+                records.add(new SAMSequenceRecord(sequence.name, sequence.length));
+            }
+            this.sequenceDictionary = new SAMSequenceDictionary(records);
+        }
+    }
+
+    /**
+     * Pack all the sequences of the given file, from the first one.
+     */
+    public static PackedReferenceSequenceFile pack(final ReferenceSequenceFile referenceSequenceFile) {
+        referenceSequenceFile.reset();
+        final List<PackedSequence> sequences = new ArrayList<PackedSequence>();
+        ReferenceSequence sequence;
+        while ((sequence = referenceSequenceFile.nextSequence()) != null) {
+            sequences.add(PackedSequence.pack(sequence.getName(), sequences.size(), sequence.getBases()));
+        }
+        referenceSequenceFile.reset();
+        return new PackedReferenceSequenceFile(referenceSequenceFile.toString(),
+                referenceSequenceFile.getSequenceDictionary(), sequences);
+    }
+
+    /**
+     * Memory map a file written by write().  If foo.dict or foo.bin.dict exists next to foo.bin, it is used as the
+     * sequence dictionary, so that attributes such as M5 and UR are kept; otherwise the dictionary has only the
+     * names and lengths of the sequences.
+     */
+    public static PackedReferenceSequenceFile open(final File file) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(raf.getFD())));
+            final byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new SAMException("Not a packed reference file: " + file);
+            }
+            final int version = in.readInt();
+            if (version != VERSION) {
+                throw new SAMException("Unsupported packed reference version " + version + " in " + file);
+            }
+            final int headerLength = in.readInt();
+            final long dataStart = MAGIC.length + 8 + headerLength;
+            final int numSequences = in.readInt();
+            final List<PackedSequence> sequences = new ArrayList<PackedSequence>(numSequences);
+            final FileChannel channel = raf.getChannel();
+            for (int i = 0; i < numSequences; ++i) {
+                final PackedSequence sequence = PackedSequence.readHeader(in, i);
+                final long offset = in.readLong();
+                sequence.packed = channel.map(FileChannel.MapMode.READ_ONLY, dataStart + offset,
+                        PackedSequence.packedLength(sequence.length));
+                sequences.add(sequence);
+            }
+            return new PackedReferenceSequenceFile(file.getAbsolutePath(), readSequenceDictionary(file, sequences),
+                    sequences);
+        } catch (IOException e) {
+            throw new RuntimeIOException("Error reading packed reference " + file, e);
+        } finally {
+            // The mappings remain valid after the file is closed.
+            CloserUtil.close(raf);
+        }
+    }
+
+    /**
+     * @return The dictionary in the .dict file next to the packed file, or null if there is none.
+     */
+    private static SAMSequenceDictionary readSequenceDictionary(final File file, final List<PackedSequence> sequences) {
+        final String name = file.getName();
+        final int extension = name.lastIndexOf('.');
+        File dictionaryFile = new File(file.getAbsoluteFile().getParentFile(),
+                (extension > 0 ? name.substring(0, extension) : name) + ".dict");
+        if (!dictionaryFile.exists()) {
+            dictionaryFile = new File(file.getAbsolutePath() + ".dict");
+            if (!dictionaryFile.exists()) {
+                return null;
+            }
+        }
+        IOUtil.assertFileIsReadable(dictionaryFile);
+        final BufferedLineReader reader;
+        try {
+            reader = new BufferedLineReader(new FileInputStream(dictionaryFile));
+        } catch (IOException e) {
+            throw new RuntimeIOException("Could not open sequence dictionary file: " + dictionaryFile, e);
+        }
+        final SAMSequenceDictionary dictionary;
+        try {
+            dictionary = new SAMTextHeaderCodec().decode(reader, dictionaryFile.toString()).getSequenceDictionary();
+        } finally {
+            reader.close();
+        }
+        if (dictionary.size() != sequences.size()) {
+            throw new SAMException("Sequence dictionary " + dictionaryFile + " has " + dictionary.size() +
+                    " sequences but packed reference " + file + " has " + sequences.size());
+        }
+        for (final PackedSequence sequence : sequences) {
+            final SAMSequenceRecord record = dictionary.getSequence(sequence.index);
+            if (!record.getSequenceName().equals(sequence.name) || record.getSequenceLength() != sequence.length) {
+                throw new SAMException("Sequence dictionary " + dictionaryFile + " does not match packed reference " +
+                        file + " at sequence " + sequence.name);
+            }
+        }
+        return dictionary;
+    }
+
+    /**
+     * Write the packed reference to a file that can be memory mapped by open().
+     */
+    public void write(final File file) {
+        try {
+            final ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+            final DataOutputStream header = new DataOutputStream(headerBytes);
+            header.writeInt(sequences.size());
+            long offset = 0;
+            for (final PackedSequence sequence : sequences) {
+                sequence.writeHeader(header);
+                header.writeLong(offset);
+                offset += PackedSequence.packedLength(sequence.length);
+            }
+            header.close();
+
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(headerBytes.size());
+            headerBytes.writeTo(out);
+            final byte[] buffer = new byte[64 * 1024];
+            for (final PackedSequence sequence : sequences) {
+                final ByteBuffer packed = sequence.packed.duplicate();
+                packed.clear();
+                while (packed.hasRemaining()) {
+                    final int n = Math.min(buffer.length, packed.remaining());
+                    packed.get(buffer, 0, n);
+                    out.write(buffer, 0, n);
+                }
+            }
+            out.close();
+        } catch (IOException e) {
+            throw new RuntimeIOException("Error writing packed reference " + file, e);
+        }
+    }
+
+    private PackedSequence getPackedSequence(final String contig) {
+        final PackedSequence sequence = sequencesByName.get(contig);
+        if (sequence == null) {
+            throw new SAMException("Unable to find entry for contig: " + contig);
+        }
+        return sequence;
+    }
+
+    /**
+     * @param contigIndex 0-based index of the sequence.
+     * @param position 1-based position in the sequence.
+     * @return the base at the position, as it is in the source reference.
+     */
+    public byte getBase(final int contigIndex, final int position) {
+        final PackedSequence sequence = sequences.get(contigIndex);
+        if (position < 1 || position > sequence.length) {
+            throw new SAMException("Position " + position + " is outside of " + sequence.name);
+        }
+        return sequence.getBase(position - 1);
+    }
+
+    /**
+     * Unpack bases into a caller-supplied array, to avoid allocating a ReferenceSequence per lookup.
+     * @param contigIndex 0-based index of the sequence.
+     * @param start 1-based position of the first base.
+     * @param bases receives the bases.
+     * @param offset position in bases of the first base.
+     * @param length number of bases.
+     */
+    public void getBases(final int contigIndex, final int start, final byte[] bases, final int offset, final int length) {
+        final PackedSequence sequence = sequences.get(contigIndex);
+        if (start < 1 || length < 0 || start - 1 + (long) length > sequence.length) {
+            throw new SAMException("Query asks for data outside of " + sequence.name);
+        }
+        sequence.unpack(start - 1, bases, offset, length);
+    }
+
+    public ReferenceSequence getSubsequenceAt(final String contig, final long start, final long stop) {
+        if (start < 1) {
+            throw new SAMException(String.format("Malformed query; start point %d lies before the start of the contig", start));
+        }
+        if (start > stop + 1) {
+            throw new SAMException(String.format("Malformed query; start point %d lies after end point %d", start, stop));
+        }
+        final PackedSequence sequence = getPackedSequence(contig);
+        if (stop > sequence.length) {
+            throw new SAMException("Query asks for data past end of contig");
+        }
+        final byte[] bases = new byte[(int) (stop - start + 1)];
+        sequence.unpack((int) start - 1, bases, 0, bases.length);
+        return new ReferenceSequence(contig, sequence.index, bases);
+    }
+
+    public ReferenceSequence getSequence(final String contig) {
+        return getSubsequenceAt(contig, 1, getPackedSequence(contig).length);
+    }
+
+    public ReferenceSequence nextSequence() {
+        if (nextSequenceIndex >= sequences.size()) {
+            return null;
+        }
+        return getSequence(sequences.get(nextSequenceIndex++).name);
+    }
+
+    public void reset() {
+        nextSequenceIndex = 0;
+    }
+
+    public SAMSequenceDictionary getSequenceDictionary() {
+        return sequenceDictionary;
+    }
+
+    public boolean isIndexed() {
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+
+    public void close() throws IOException {
+    }
+
+    /**
+     * One packed sequence.  Positions are 0-based.
+     */
+    private static class PackedSequence {
+        private final String name;
+        private final int index;
+        private final int length;
+        // 2-bit codes, 4 per byte.  Exception positions hold code 0.
+        private ByteBuffer packed;
+        // Runs of identical bases that are not ACGT, in order
+        private final int[] exceptionStarts;
+        private final int[] exceptionLengths;
+        private final byte[] exceptionBases;
+        // Ranges of lower-case bases, start inclusive and end exclusive, in order
+        private final int[] lowerCaseStarts;
+        private final int[] lowerCaseEnds;
+
+        private PackedSequence(final String name, final int index, final int length, final int[] exceptionStarts,
+                               final int[] exceptionLengths, final byte[] exceptionBases,
+                               final int[] lowerCaseStarts, final int[] lowerCaseEnds) {
+            this.name = name;
+            this.index = index;
+            this.length = length;
+            this.exceptionStarts = exceptionStarts;
+            this.exceptionLengths = exceptionLengths;
+            this.exceptionBases = exceptionBases;
+            this.lowerCaseStarts = lowerCaseStarts;
+            this.lowerCaseEnds = lowerCaseEnds;
+        }
+
+        static int packedLength(final int length) {
+            return (length + 3) / 4;
+        }
+
+        static PackedSequence pack(final String name, final int index, final byte[] bases) {
+            final byte[] packed = new byte[packedLength(bases.length)];
+            final IntArray exceptionStarts = new IntArray();
+            final IntArray exceptionLengths = new IntArray();
+            final IntArray exceptionBases = new IntArray();
+            final IntArray lowerCaseStarts = new IntArray();
+            final IntArray lowerCaseEnds = new IntArray();
+            int lowerCaseStart = -1;
+            for (int i = 0; i < bases.length; ++i) {
+                final byte base = bases[i];
+                final int code = CODES[base & 0xff];
+                final boolean lowerCase = Character.isLowerCase((char) (base & 0xff));
+                if (code >= 0) {
+                    packed[i >> 2] |= code << (2 * (i & 3));
+                } else {
+                    final byte upper = (byte) Character.toUpperCase((char) (base & 0xff));
+                    final int last = exceptionStarts.size - 1;
+                    if (last >= 0 && exceptionStarts.values[last] + exceptionLengths.values[last] == i &&
+                            exceptionBases.values[last] == upper) {
+                        ++exceptionLengths.values[last];
+                    } else {
+                        exceptionStarts.add(i);
+                        exceptionLengths.add(1);
+                        exceptionBases.add(upper);
+                    }
+                }
+                if (lowerCase && lowerCaseStart == -1) {
+                    lowerCaseStart = i;
+                } else if (!lowerCase && lowerCaseStart != -1) {
+                    lowerCaseStarts.add(lowerCaseStart);
+                    lowerCaseEnds.add(i);
+                    lowerCaseStart = -1;
+                }
+            }
+            if (lowerCaseStart != -1) {
+                lowerCaseStarts.add(lowerCaseStart);
+                lowerCaseEnds.add(bases.length);
+            }
+            final PackedSequence sequence = new PackedSequence(name, index, bases.length, exceptionStarts.toArray(),
+                    exceptionLengths.toArray(), exceptionBases.toByteArray(), lowerCaseStarts.toArray(),
+                    lowerCaseEnds.toArray());
+            sequence.packed = ByteBuffer.wrap(packed);
+            return sequence;
+        }
+
+        byte getBase(final int position) {
+            byte base;
+            final int exception = firstRunEndingAfter(exceptionStarts, exceptionLengths, null, position);
+            if (exception < exceptionStarts.length && exceptionStarts[exception] <= position) {
+                base = exceptionBases[exception];
+            } else {
+                base = BASES[(packed.get(position >> 2) >> (2 * (position & 3))) & 3];
+            }
+            final int lowerCase = firstRunEndingAfter(lowerCaseStarts, null, lowerCaseEnds, position);
+            if (lowerCase < lowerCaseStarts.length && lowerCaseStarts[lowerCase] <= position) {
+                base = (byte) Character.toLowerCase((char) base);
+            }
+            return base;
+        }
+
+        /**
+         * Unpack bases [start, start + n) into target.
+         */
+        void unpack(final int start, final byte[] target, final int offset, final int n) {
+            // 2-bit codes, 4 at a time where aligned
+            int i = 0;
+            while (i < n) {
+                final int position = start + i;
+                final int b = packed.get(position >> 2) & 0xff;
+                if ((position & 3) == 0 && n - i >= 4) {
+                    System.arraycopy(UNPACKED, b * 4, target, offset + i, 4);
+                    i += 4;
+                } else {
+                    target[offset + i] = UNPACKED[b * 4 + (position & 3)];
+                    ++i;
+                }
+            }
+            final int end = start + n;
+            // Bases that are not ACGT
+            for (int r = firstRunEndingAfter(exceptionStarts, exceptionLengths, null, start);
+                 r < exceptionStarts.length && exceptionStarts[r] < end; ++r) {
+                final int from = Math.max(start, exceptionStarts[r]);
+                final int to = Math.min(end, exceptionStarts[r] + exceptionLengths[r]);
+                Arrays.fill(target, offset + from - start, offset + to - start, exceptionBases[r]);
+            }
+            // Soft-masked bases
+            for (int r = firstRunEndingAfter(lowerCaseStarts, null, lowerCaseEnds, start);
+                 r < lowerCaseStarts.length && lowerCaseStarts[r] < end; ++r) {
+                final int from = Math.max(start, lowerCaseStarts[r]);
+                final int to = Math.min(end, lowerCaseEnds[r]);
+                for (int j = offset + from - start; j < offset + to - start; ++j) {
+                    target[j] = (byte) Character.toLowerCase((char) target[j]);
+                }
+            }
+        }
+
+        /**
+         * @return the index of the first run that ends after the given position.  Runs are given by their starts,
+         * and either their lengths or their ends.
+         */
+        private static int firstRunEndingAfter(final int[] starts, final int[] lengths, final int[] ends,
+                                               final int position) {
+            int low = 0;
+            int high = starts.length;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                final int runEnd = (ends != null) ? ends[mid] : starts[mid] + lengths[mid];
+                if (runEnd <= position) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        void writeHeader(final DataOutputStream out) throws IOException {
+            out.writeUTF(name);
+            out.writeInt(length);
+            out.writeInt(exceptionStarts.length);
+            for (int i = 0; i < exceptionStarts.length; ++i) {
+                out.writeInt(exceptionStarts[i]);
+                out.writeInt(exceptionLengths[i]);
+                out.writeByte(exceptionBases[i]);
+            }
+            out.writeInt(lowerCaseStarts.length);
+            for (int i = 0; i < lowerCaseStarts.length; ++i) {
+                out.writeInt(lowerCaseStarts[i]);
+                out.writeInt(lowerCaseEnds[i]);
+            }
+        }
+
+        static PackedSequence readHeader(final DataInputStream in, final int index) throws IOException {
+            final String name = in.readUTF();
+            final int length = in.readInt();
+            final int numExceptions = in.readInt();
+            final int[] exceptionStarts = new int[numExceptions];
+            final int[] exceptionLengths = new int[numExceptions];
+            final byte[] exceptionBases = new byte[numExceptions];
+            for (int i = 0; i < numExceptions; ++i) {
+                exceptionStarts[i] = in.readInt();
+                exceptionLengths[i] = in.readInt();
+                exceptionBases[i] = in.readByte();
+            }
+            final int numLowerCase = in.readInt();
+            final int[] lowerCaseStarts = new int[numLowerCase];
+            final int[] lowerCaseEnds = new int[numLowerCase];
+            for (int i = 0; i < numLowerCase; ++i) {
+                lowerCaseStarts[i] = in.readInt();
+                lowerCaseEnds[i] = in.readInt();
+            }
+            return new PackedSequence(name, index, length, exceptionStarts, exceptionLengths, exceptionBases,
+                    lowerCaseStarts, lowerCaseEnds);
+        }
+    }
+
+    /**
+     * Growable array of ints.
+     */
+    private static class IntArray {
+        private int[] values = new int[16];
+        private int size = 0;
+
+        void add(final int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+
+        byte[] toByteArray() {
+            final byte[] bytes = new byte[size];
+            for (int i = 0; i < size; ++i) {
+                bytes[i] = (byte) values[i];
+            }
+            return bytes;
+        }
+    }
+}
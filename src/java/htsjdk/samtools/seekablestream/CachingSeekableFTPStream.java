@@ -0,0 +1,256 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools.seekablestream;
+
+import htsjdk.samtools.util.ftp.FTPConnectionPool;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A SeekableStream over FTP that reads the file in pages of pageSize bytes and keeps the most recently used pages,
+ * with {@link SeekablePagedStream}.  Transfers use connections from an {@link FTPConnectionPool}, so seeks do not
+ * connect and log in again, and streams on the same server share connections.  The uncached pages that a read needs
+ * are fetched in segments of up to {@link #MAX_PAGES_PER_FETCH} pages, several segments at a time on separate
+ * connections.
+ *
+ * Unlike {@link SeekableFTPStream}, connections are kept open after reads, in the pool.
+ */
+public class CachingSeekableFTPStream extends SeekablePagedStream {
+    public static final int DEFAULT_PAGE_SIZE = 64 * 1024;
+    public static final int DEFAULT_MAX_CACHED_PAGES = 64;
+    public static final int DEFAULT_MAX_READ_AHEAD_PAGES = 16;
+    public static final int DEFAULT_PARALLEL_FETCHES = 4;
+    // Most pages fetched with one transfer
+    public static final int MAX_PAGES_PER_FETCH = 16;
+
+    private final FTPRangeStream rangeStream;
+
+    public CachingSeekableFTPStream(final URL url) throws IOException {
+        this(url, null, FTPConnectionPool.getDefault(), DEFAULT_PAGE_SIZE, DEFAULT_MAX_CACHED_PAGES,
+                DEFAULT_MAX_READ_AHEAD_PAGES, DEFAULT_PARALLEL_FETCHES);
+    }
+
+    /**
+     * @param url the file to read.
+     * @param userPasswordInput dialog with which a user can enter credentials if login fails, or null.
+     * @param pool the pool of connections to use.
+     * @param pageSize the number of bytes in a page; pages start at multiples of this.
+     * @param maxCachedPages the most pages kept in memory.
+     * @param maxReadAheadPages the most pages fetched after a page that is read sequentially.  Must be less than
+     *                          maxCachedPages.
+     * @param parallelFetches the most transfers this stream runs at once.
+     */
+    public CachingSeekableFTPStream(final URL url, final UserPasswordInput userPasswordInput, final FTPConnectionPool pool,
+                                    final int pageSize, final int maxCachedPages, final int maxReadAheadPages,
+                                    final int parallelFetches) throws IOException {
+        this(new FTPRangeStream(url, userPasswordInput, pool, MAX_PAGES_PER_FETCH * pageSize, parallelFetches),
+                pageSize, maxCachedPages, maxReadAheadPages);
+    }
+
+    private CachingSeekableFTPStream(final FTPRangeStream rangeStream, final int pageSize, final int maxCachedPages,
+                                     final int maxReadAheadPages) {
+        super(rangeStream, pageSize, maxCachedPages, maxReadAheadPages);
+        this.rangeStream = rangeStream;
+    }
+
+    /**
+     * @return the number of transfers made.
+     */
+    public long getFetchCount() {
+        return rangeStream.fetchCount;
+    }
+
+    /**
+     * @return the number of bytes of the file fetched, including bytes fetched ahead of reads.
+     */
+    public long getBytesFetched() {
+        return rangeStream.bytesFetched;
+    }
+
+    /**
+     * Reads the file with pooled connections.  A read is split into segments of up to segmentLength bytes, which
+     * are transferred concurrently.
+     */
+    private static class FTPRangeStream extends SeekableStream {
+        private final URL url;
+        private final UserPasswordInput userPasswordInput;
+        private final FTPConnectionPool pool;
+        private final int segmentLength;
+        private final int parallelFetches;
+        private final long contentLength;
+        private long position = 0;
+        private ExecutorService fetchers = null;
+        private long fetchCount = 0;
+        private long bytesFetched = 0;
+
+        FTPRangeStream(final URL url, final UserPasswordInput userPasswordInput, final FTPConnectionPool pool,
+                       final int segmentLength, final int parallelFetches) throws IOException {
+            if (parallelFetches < 1) {
+                throw new IllegalArgumentException("parallelFetches must be positive: " + parallelFetches);
+            }
+            this.url = url;
+            this.userPasswordInput = userPasswordInput;
+            this.pool = pool;
+            this.segmentLength = segmentLength;
+            this.parallelFetches = parallelFetches;
+            this.contentLength = pool.size(url, userPasswordInput);
+        }
+
+        public long length() {
+            return contentLength;
+        }
+
+        public long position() {
+            return position;
+        }
+
+        public void seek(final long position) {
+            this.position = position;
+        }
+
+        public boolean eof() throws IOException {
+            return contentLength >= 0 && position >= contentLength;
+        }
+
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == 1 ? b[0] & 0xFF : -1;
+        }
+
+        /**
+         * Fetches len bytes from the current position, in segments.
+         * @return the number of bytes read, fewer than len if the file ends first, or -1 at the end of the file.
+         */
+        public int read(final byte[] buffer, final int offset, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            final int numSegments = (len + segmentLength - 1) / segmentLength;
+            final List<byte[]> segments = new ArrayList<byte[]>(numSegments);
+            if (numSegments == 1 || parallelFetches == 1) {
+                for (int i = 0; i < numSegments; ++i) {
+                    final byte[] data = fetchSegment(len, i);
+                    segments.add(data);
+                    if (data.length < segmentLength) {
+                        break;
+                    }
+                }
+            } else {
+                fetchSegmentsConcurrently(len, numSegments, segments);
+            }
+            int n = 0;
+            for (final byte[] data : segments) {
+                System.arraycopy(data, 0, buffer, offset + n, data.length);
+                n += data.length;
+                if (data.length < segmentLength) {
+                    // A short transfer is the end of the file
+                    break;
+                }
+            }
+            position += n;
+            return n == 0 ? -1 : n;
+        }
+
+        private void fetchSegmentsConcurrently(final int len, final int numSegments, final List<byte[]> segments)
+                throws IOException {
+            final List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>(numSegments);
+            try {
+                for (int i = 0; i < numSegments; ++i) {
+                    final int segment = i;
+                    futures.add(getFetchers().submit(new Callable<byte[]>() {
+                        @Override
+                        public byte[] call() throws IOException {
+                            return fetchSegment(len, segment);
+                        }
+                    }));
+                }
+                for (final Future<byte[]> future : futures) {
+                    segments.add(future.get());
+                }
+                futures.clear();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while reading " + url, e);
+            } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                if (cause instanceof IOException) throw (IOException) cause;
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                if (cause instanceof Error) throw (Error) cause;
+                throw new IOException("Error reading " + url, cause);
+            } finally {
+                for (final Future<byte[]> future : futures) {
+                    future.cancel(true);
+                }
+            }
+        }
+
+        /**
+         * Transfers one segment of a read of len bytes from the current position.  Called from the fetcher threads.
+         */
+        private byte[] fetchSegment(final int len, final int segment) throws IOException {
+            final int segmentStart = segment * segmentLength;
+            final byte[] data = pool.retrieveRange(url, userPasswordInput, position + segmentStart,
+                    Math.min(segmentLength, len - segmentStart));
+            synchronized (this) {
+                ++fetchCount;
+                bytesFetched += data.length;
+            }
+            return data;
+        }
+
+        private ExecutorService getFetchers() {
+            if (fetchers == null) {
+                fetchers = Executors.newFixedThreadPool(parallelFetches, new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        final Thread thread = new Thread(r, "CachingSeekableFTPStream fetch");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            return fetchers;
+        }
+
+        public void close() throws IOException {
+            if (fetchers != null) {
+                fetchers.shutdownNow();
+                fetchers = null;
+            }
+        }
+
+        @Override
+        public String getSource() {
+            return url.toString();
+        }
+    }
+}
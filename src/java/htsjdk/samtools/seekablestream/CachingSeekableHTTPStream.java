@@ -0,0 +1,233 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools.seekablestream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URL;
+
+/**
+ * A SeekableStream over HTTP that reads the resource in aligned pages and keeps the most recently used pages in
+ * memory, so that the many small reads of an index-driven query become a few larger range requests.  The pages are
+ * cached by {@link SeekablePagedStream}, over a stream that makes one range request per read:
+ * <ul>
+ *     <li>A read that needs several consecutive pages that are not cached fetches them with one request.</li>
+ *     <li>When pages are read in order, the pages following them are fetched with them.</li>
+ *     <li>Responses are read fully and the connection is not disconnected, so HttpURLConnection can reuse
+ *     keep-alive connections for later requests.</li>
+ * </ul>
+ * The number of requests made and of bytes fetched are available to measure how well the cache works.
+ * Like other SeekableStreams, this is not thread-safe.
+ *
+ * To use it for all http URLs, install an {@link ISeekableStreamFactory} that returns it with
+ * {@link SeekableStreamFactory#setInstance(ISeekableStreamFactory)}.
+ */
+public class CachingSeekableHTTPStream extends SeekablePagedStream {
+    public static final int DEFAULT_PAGE_SIZE = 64 * 1024;
+    public static final int DEFAULT_MAX_CACHED_PAGES = 64;
+    public static final int DEFAULT_MAX_READ_AHEAD_PAGES = 16;
+
+    private final HTTPRangeStream rangeStream;
+
+    public CachingSeekableHTTPStream(final URL url) throws IOException {
+        this(url, null, DEFAULT_PAGE_SIZE, DEFAULT_MAX_CACHED_PAGES, DEFAULT_MAX_READ_AHEAD_PAGES);
+    }
+
+    /**
+     * @param url the resource to read.
+     * @param proxy the proxy to connect through, or null for a direct connection.
+     * @param pageSize the number of bytes in a page; pages start at multiples of this.
+     * @param maxCachedPages the most pages kept in memory.
+     * @param maxReadAheadPages the most pages fetched after a page that is read sequentially.  Must be less than
+     *                          maxCachedPages.
+     */
+    public CachingSeekableHTTPStream(final URL url, final Proxy proxy, final int pageSize, final int maxCachedPages,
+                                     final int maxReadAheadPages) throws IOException {
+        this(new HTTPRangeStream(url, proxy), pageSize, maxCachedPages, maxReadAheadPages);
+    }
+
+    private CachingSeekableHTTPStream(final HTTPRangeStream rangeStream, final int pageSize, final int maxCachedPages,
+                                      final int maxReadAheadPages) {
+        super(rangeStream, pageSize, maxCachedPages, maxReadAheadPages);
+        this.rangeStream = rangeStream;
+    }
+
+    /**
+     * @return the number of HTTP requests made, including the one for the length of the resource.
+     */
+    public long getRequestCount() {
+        return rangeStream.requestCount;
+    }
+
+    /**
+     * @return the number of bytes of the resource fetched, including bytes fetched ahead of reads.
+     */
+    public long getBytesFetched() {
+        return rangeStream.bytesFetched;
+    }
+
+    /**
+     * Reads the resource with one range request per read, which is always for whole pages.
+     */
+    private static class HTTPRangeStream extends SeekableStream {
+        private final URL url;
+        private final Proxy proxy;
+        private long position = 0;
+        private final long contentLength;
+        private long requestCount = 0;
+        private long bytesFetched = 0;
+
+        HTTPRangeStream(final URL url, final Proxy proxy) throws IOException {
+            this.url = url;
+            this.proxy = proxy;
+            this.contentLength = fetchContentLength();
+        }
+
+        public long length() {
+            return contentLength;
+        }
+
+        public long position() {
+            return position;
+        }
+
+        public void seek(final long position) {
+            this.position = position;
+        }
+
+        public boolean eof() throws IOException {
+            return contentLength > 0 && position >= contentLength;
+        }
+
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == 1 ? b[0] & 0xFF : -1;
+        }
+
+        /**
+         * Fetches len bytes from the current position with one request.
+         * @return the number of bytes read, fewer than len if the range goes past the end of the resource, or -1
+         * if it starts there.
+         */
+        public int read(final byte[] buffer, final int offset, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            final long start = position;
+            final HttpURLConnection connection = openConnection();
+            connection.setRequestProperty("Range", "bytes=" + start + "-" + (start + len - 1));
+            ++requestCount;
+            final int responseCode = connection.getResponseCode();
+            if (responseCode == 416) {
+                // Requested range not satisfiable: the range starts past the end
+                closeQuietly(connection.getErrorStream());
+                return -1;
+            }
+            if (responseCode >= 400) {
+                closeQuietly(connection.getErrorStream());
+                throw new IOException("HTTP error " + responseCode + " reading bytes " + start + "-" + (start + len - 1) + " of " + url);
+            }
+            final InputStream is = connection.getInputStream();
+            int n = 0;
+            try {
+                if (responseCode != HttpURLConnection.HTTP_PARTIAL) {
+                    // The server ignored the range and sent the whole resource
+                    long toSkip = start;
+                    while (toSkip > 0) {
+                        final long skipped = is.skip(toSkip);
+                        if (skipped <= 0) {
+                            if (is.read() == -1) return -1;
+                            --toSkip;
+                        } else {
+                            toSkip -= skipped;
+                        }
+                    }
+                }
+                int count;
+                while (n < len && (count = is.read(buffer, offset + n, len - n)) >= 0) {
+                    n += count;
+                }
+                if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+                    // Read to the end of the response so that the connection can be reused
+                    while (is.read() >= 0) {
+                    }
+                }
+            } finally {
+                // Closing rather than disconnecting leaves the connection to be kept alive
+                is.close();
+            }
+            bytesFetched += n;
+            position += n;
+            return n == 0 ? -1 : n;
+        }
+
+        private long fetchContentLength() throws IOException {
+            final HttpURLConnection connection = openConnection();
+            connection.setRequestMethod("HEAD");
+            ++requestCount;
+            try {
+                final String contentLengthString = connection.getHeaderField("Content-Length");
+                if (contentLengthString != null) {
+                    try {
+                        return Long.parseLong(contentLengthString);
+                    } catch (NumberFormatException ignored) {
+                        System.err.println("WARNING: Invalid content length (" + contentLengthString + "  for: " + url);
+                    }
+                }
+                return -1;
+            } finally {
+                closeQuietly(connection.getErrorStream());
+            }
+        }
+
+        private HttpURLConnection openConnection() throws IOException {
+            final HttpURLConnection connection = proxy == null ?
+                    (HttpURLConnection) url.openConnection() :
+                    (HttpURLConnection) url.openConnection(proxy);
+            connection.setUseCaches(false);
+            return connection;
+        }
+
+        private static void closeQuietly(final InputStream is) {
+            if (is == null) return;
+            try {
+                while (is.read() >= 0) {
+                }
+                is.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        public void close() throws IOException {
+            // Nothing to do; connections are left to be kept alive
+        }
+
+        @Override
+        public String getSource() {
+            return url.toString();
+        }
+    }
+}
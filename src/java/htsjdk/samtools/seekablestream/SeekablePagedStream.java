@@ -0,0 +1,249 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools.seekablestream;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A page cache over a SeekableStream.  The wrapped stream is read in fixed-size pages, aligned to multiples of the
+ * page size, and the most recently used pages are kept, so that reads that go back and forth between a few regions
+ * (e.g. the header of a BAM file, its index-selected data, and the header again) do not re-read the wrapped stream.
+ * Unlike {@link SeekableBufferedStream}, seeking does not discard what has been read.
+ *
+ * When a page is not cached, the following uncached pages that the same read needs are read with it, in one read of
+ * the wrapped stream.  When it also follows the page read last, pages are read ahead of the reads: the number of
+ * pages read ahead doubles while access stays sequential, up to a maximum, and drops back to none on a seek elsewhere.
+ * So a wrapped stream that makes a request per read, e.g. over HTTP, gets a few large requests.
+ *
+ * Works with any SeekableStream, e.g. file, HTTP or FTP.
+ */
+public class SeekablePagedStream extends SeekableStream {
+    public static final int DEFAULT_PAGE_SIZE = 64 * 1024;
+    public static final int DEFAULT_MAX_PAGES = 32;
+    public static final int DEFAULT_MAX_READ_AHEAD_PAGES = 8;
+
+    private final SeekableStream wrappedStream;
+    private final int pageSize;
+    private final int maxPages;
+    private final int maxReadAheadPages;
+
+    // Cached pages, least recently used first.  Only the last page of the stream is shorter than pageSize.
+    private final LinkedHashMap<Long, byte[]> pages;
+    private long position = 0;
+    // -1 until known, if the wrapped stream does not know its length
+    private long length;
+    private long lastPageRead = -1;
+    private int readAheadPages = 0;
+    private byte[] readBuffer = null;
+    private final byte[] singleByte = new byte[1];
+
+    private long pagesRead = 0;
+    private long wrappedReads = 0;
+    private long cacheHits = 0;
+
+    public SeekablePagedStream(final SeekableStream stream) {
+        this(stream, DEFAULT_PAGE_SIZE, DEFAULT_MAX_PAGES, DEFAULT_MAX_READ_AHEAD_PAGES);
+    }
+
+    /**
+     * @param stream the stream to read pages from.  It is closed when this stream is closed.
+     * @param pageSize the number of bytes in a page.
+     * @param maxPages the most pages kept.
+     * @param maxReadAheadPages the most pages read after a page that is read sequentially.  Must be less than maxPages.
+     */
+    public SeekablePagedStream(final SeekableStream stream, final int pageSize, final int maxPages, final int maxReadAheadPages) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be positive: " + pageSize);
+        }
+        if (maxReadAheadPages < 0 || maxReadAheadPages >= maxPages) {
+            throw new IllegalArgumentException("maxReadAheadPages must be at least 0 and less than maxPages (" +
+                    maxPages + "): " + maxReadAheadPages);
+        }
+        this.wrappedStream = stream;
+        this.pageSize = pageSize;
+        this.maxPages = maxPages;
+        this.maxReadAheadPages = maxReadAheadPages;
+        this.length = stream.length() > 0 ? stream.length() : -1;
+        this.pages = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Long, byte[]> eldest) {
+                return size() > SeekablePagedStream.this.maxPages;
+            }
+        };
+    }
+
+    public long length() {
+        return length >= 0 ? length : wrappedStream.length();
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    public void seek(final long position) {
+        this.position = position;
+    }
+
+    @Override
+    public long skip(final long n) throws IOException {
+        final long bytesToSkip = length < 0 ? n : Math.max(0, Math.min(n, length - position));
+        position += bytesToSkip;
+        return bytesToSkip;
+    }
+
+    public boolean eof() throws IOException {
+        if (length < 0) {
+            final long pageIndex = position / pageSize;
+            if (getPage(pageIndex, 1).length <= position - pageIndex * pageSize) {
+                return true;
+            }
+        }
+        return length >= 0 && position >= length;
+    }
+
+    public int read() throws IOException {
+        return read(singleByte, 0, 1) == 1 ? singleByte[0] & 0xFF : -1;
+    }
+
+    public int read(final byte[] buffer, final int offset, final int len) throws IOException {
+        if (offset < 0 || len < 0 || (offset + len) > buffer.length) {
+            throw new IndexOutOfBoundsException("Offset=" + offset + ",len=" + len + ",buflen=" + buffer.length);
+        }
+        if (len == 0) {
+            return 0;
+        }
+        int n = 0;
+        while (n < len && (length < 0 || position < length)) {
+            final long pageIndex = position / pageSize;
+            final long lastPageNeeded = (position + len - n - 1) / pageSize;
+            final byte[] page = getPage(pageIndex, (int) Math.min(lastPageNeeded - pageIndex + 1, maxPages));
+            final int pageOffset = (int) (position - pageIndex * pageSize);
+            if (pageOffset >= page.length) {
+                break;
+            }
+            final int count = Math.min(len - n, page.length - pageOffset);
+            System.arraycopy(page, pageOffset, buffer, offset + n, count);
+            n += count;
+            position += count;
+        }
+        return n == 0 ? -1 : n;
+    }
+
+    /**
+     * @param pagesNeeded the number of pages from pageIndex on that the current read needs, at most maxPages.
+     */
+    private byte[] getPage(final long pageIndex, final int pagesNeeded) throws IOException {
+        byte[] page = pages.get(pageIndex);
+        if (page != null) {
+            ++cacheHits;
+        } else {
+            if (pageIndex == lastPageRead + 1) {
+                readAheadPages = Math.min(maxReadAheadPages, readAheadPages == 0 ? 1 : readAheadPages * 2);
+            } else {
+                readAheadPages = 0;
+            }
+            page = readPages(pageIndex, Math.max(pagesNeeded - 1, readAheadPages));
+        }
+        lastPageRead = pageIndex;
+        return page;
+    }
+
+    /**
+     * Reads a page and the uncached pages after it, up to morePages of them, with one read of the wrapped stream.
+     * @return the page at pageIndex, empty if it is past the end of the stream.
+     */
+    private byte[] readPages(final long pageIndex, final int morePages) throws IOException {
+        int count = 1;
+        while (count <= morePages && !pages.containsKey(pageIndex + count) &&
+                (length < 0 || (pageIndex + count) * pageSize < length)) {
+            ++count;
+        }
+        final int bytesWanted = count * pageSize;
+        if (readBuffer == null || readBuffer.length < bytesWanted) {
+            readBuffer = new byte[bytesWanted];
+        }
+        final long start = pageIndex * pageSize;
+        wrappedStream.seek(start);
+        int n = 0;
+        while (n < bytesWanted) {
+            final int bytesRead = wrappedStream.read(readBuffer, n, bytesWanted - n);
+            ++wrappedReads;
+            // Some streams return 0 rather than -1 at the end; either way no more bytes are coming
+            if (bytesRead <= 0) {
+                break;
+            }
+            n += bytesRead;
+        }
+        if (n < bytesWanted) {
+            length = start + n;
+        }
+        byte[] first = null;
+        for (int pageStart = 0; pageStart < n || pageStart == 0; pageStart += pageSize) {
+            final byte[] page = new byte[Math.max(0, Math.min(pageSize, n - pageStart))];
+            System.arraycopy(readBuffer, pageStart, page, 0, page.length);
+            if (page.length > 0) {
+                pages.put(pageIndex + pageStart / pageSize, page);
+                ++pagesRead;
+            }
+            if (first == null) {
+                first = page;
+            }
+        }
+        return first;
+    }
+
+    /**
+     * @return the number of pages read from the wrapped stream.
+     */
+    public long getPagesRead() {
+        return pagesRead;
+    }
+
+    /**
+     * @return the number of read calls made on the wrapped stream.
+     */
+    public long getWrappedReads() {
+        return wrappedReads;
+    }
+
+    /**
+     * @return the number of times a page was found in the cache.
+     */
+    public long getCacheHits() {
+        return cacheHits;
+    }
+
+    public void close() throws IOException {
+        pages.clear();
+        wrappedStream.close();
+    }
+
+    @Override
+    public String getSource() {
+        return wrappedStream.getSource();
+    }
+}
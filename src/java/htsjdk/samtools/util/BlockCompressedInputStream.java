@@ -40,6 +40,8 @@ import java.net.URL;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /*
  * Utility class for reading BGZF block compressed files.  The caller can treat this file like any other InputStream.
@@ -58,6 +60,21 @@ public class BlockCompressedInputStream extends InputStream implements LocationA
     private long mBlockAddress = 0;
     private int mLastBlockLength = 0;
     private final BlockGunzipper blockGunzipper = new BlockGunzipper();
+    // Inflated blocks by block address, least recently used first, if enabled with setBlockCacheSize
+    private LinkedHashMap<Long, CachedBlock> mBlockCache = null;
+    // True if mFile is not positioned at the end of the current block, because it was taken from mBlockCache
+    private boolean mFilePositionStale = false;
+    private long mBlockCacheHits = 0;
+
+    private static class CachedBlock {
+        final byte[] data;
+        final int compressedLength;
+
+        CachedBlock(final byte[] data, final int compressedLength) {
+            this.data = data;
+            this.compressedLength = compressedLength;
+        }
+    }
 
 
     /**
@@ -115,6 +132,38 @@ public class BlockCompressedInputStream extends InputStream implements LocationA
         this.blockGunzipper.setCheckCrcs(check);
     }
 
+    /**
+     * Keeps up to maxBlocks inflated blocks, so that seeking back into a block that was read recently does not read
+     * and inflate it again, as happens with repeated or neighbouring queries.  Each block takes up to 64KB.  A size
+     * of 0 disables the cache, which is the default.  Only streams that can seek use the cache.
+     */
+    public void setBlockCacheSize(final int maxBlocks) {
+        if (maxBlocks < 0) {
+            throw new IllegalArgumentException("maxBlocks must not be negative: " + maxBlocks);
+        }
+        if (maxBlocks == 0 || mFile == null) {
+            mBlockCache = null;
+            return;
+        }
+        final LinkedHashMap<Long, CachedBlock> cache = new LinkedHashMap<Long, CachedBlock>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Long, CachedBlock> eldest) {
+                return size() > maxBlocks;
+            }
+        };
+        if (mBlockCache != null) {
+            cache.putAll(mBlockCache);
+        }
+        mBlockCache = cache;
+    }
+
+    /**
+     * @return the number of blocks taken from the block cache rather than read and inflated.
+     */
+    public long getBlockCacheHits() {
+        return mBlockCacheHits;
+    }
+
     /**
      * @return the number of bytes that can be read (or skipped over) from this input stream without blocking by the
      * next caller of a method for this input stream. The next caller might be the same thread or another thread.
@@ -147,6 +196,7 @@ public class BlockCompressedInputStream extends InputStream implements LocationA
         // Encourage garbage collection
         mFileBuffer = null;
         mCurrentBlock = null;
+        mBlockCache = null;
     }
 
     /**
@@ -161,6 +211,26 @@ public class BlockCompressedInputStream extends InputStream implements LocationA
         return (available() > 0) ? (mCurrentBlock[mCurrentOffset++] & 0xFF) : -1;
     }
 
+    /**
+     * Skips over n bytes of uncompressed data without copying them.
+     *
+     * @return the number of bytes skipped, which is less than n only at end of file, and 0 if n is not positive.
+     */
+    @Override
+    public long skip(final long n)
+        throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        long remaining = n;
+        while (remaining > 0 && available() > 0) {
+            final int skipped = (int) Math.min(remaining, mCurrentBlock.length - mCurrentOffset);
+            mCurrentOffset += skipped;
+            remaining -= skipped;
+        }
+        return n - remaining;
+    }
+
     /**
      * Reads some number of bytes from the input stream and stores them into the buffer array b. The number of bytes
      * actually read is returned as an integer. This method blocks until input data is available, end of file is detected,
@@ -286,7 +356,12 @@ public class BlockCompressedInputStream extends InputStream implements LocationA
         if (mBlockAddress == compressedOffset && mCurrentBlock != null) {
             available = mCurrentBlock.length;
         } else {
-            mFile.seek(compressedOffset);
+            if (mBlockCache != null) {
+                // Seek the file only if the block has to be read
+                mFilePositionStale = true;
+            } else {
+                mFile.seek(compressedOffset);
+            }
             mBlockAddress = compressedOffset;
             mLastBlockLength = 0;
             readBlock();
@@ -300,6 +375,7 @@ public class BlockCompressedInputStream extends InputStream implements LocationA
     }
 
     private boolean eof() throws IOException {
+        syncFilePosition();
         if (mFile.eof()) {
             return true;
         }
@@ -358,6 +434,20 @@ public class BlockCompressedInputStream extends InputStream implements LocationA
     private void readBlock()
         throws IOException {
 
+        if (mBlockCache != null) {
+            final long nextBlockAddress = mBlockAddress + mLastBlockLength;
+            final CachedBlock cached = mBlockCache.get(nextBlockAddress);
+            if (cached != null) {
+                ++mBlockCacheHits;
+                mCurrentBlock = cached.data;
+                mCurrentOffset = 0;
+                mBlockAddress = nextBlockAddress;
+                mLastBlockLength = cached.compressedLength;
+                mFilePositionStale = true;
+                return;
+            }
+        }
+        syncFilePosition();
         if (mFileBuffer == null) {
             mFileBuffer = new byte[BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE];
         }
@@ -385,12 +475,26 @@ public class BlockCompressedInputStream extends InputStream implements LocationA
         mCurrentOffset = 0;
         mBlockAddress += mLastBlockLength;
         mLastBlockLength = blockLength;
+        if (mBlockCache != null) {
+            mBlockCache.put(mBlockAddress, new CachedBlock(mCurrentBlock, blockLength));
+        }
+    }
+
+    /**
+     * Positions mFile at the end of the current block, if it was left elsewhere when the block came from the cache.
+     */
+    private void syncFilePosition() throws IOException {
+        if (mFilePositionStale) {
+            mFile.seek(mBlockAddress + mLastBlockLength);
+            mFilePositionStale = false;
+        }
     }
 
     private void inflateBlock(final byte[] compressedBlock, final int compressedLength)
         throws IOException {
         final int uncompressedLength = unpackInt32(compressedBlock, compressedLength-4);
-        byte[] buffer = mCurrentBlock;
+        // Cached blocks must not be overwritten
+        byte[] buffer = mBlockCache == null ? mCurrentBlock : null;
         mCurrentBlock = null;
         if (buffer == null || buffer.length != uncompressedLength) {
             try {
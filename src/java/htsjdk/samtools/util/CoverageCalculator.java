@@ -0,0 +1,438 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools.util;
+
+import htsjdk.samtools.AlignmentBlock;
+import htsjdk.samtools.SAMException;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.filter.AggregateFilter;
+import htsjdk.samtools.filter.DuplicateReadFilter;
+import htsjdk.samtools.filter.FilteringIterator;
+import htsjdk.samtools.filter.SamRecordFilter;
+import htsjdk.samtools.filter.SecondaryOrSupplementaryFilter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Computes the depth of coverage of a coordinate-sorted SAM file without building a pileup for every locus.
+ * Each aligned block of each read adds +1 at its first position and -1 after its last position to a difference
+ * array over a sliding window, and the depths are recovered by a running sum as the window moves past them.  The
+ * work per read is proportional to its number of alignment blocks, unless a base quality cutoff is set, in which
+ * case the qualities of each block are scanned to split it into runs of passing bases.
+ *
+ * Depths are counted the same way as the size of the pileups of a SamLocusIterator with the same settings, and
+ * are reported to CoverageListeners as runs of consecutive positions with the same depth.  Every position of
+ * the target intervals (or of every reference sequence, if there are none) is reported, including those with
+ * zero coverage.  By default duplicate reads and non-primary alignments are filtered out.
+ */
+public class CoverageCalculator {
+    private static final int INITIAL_WINDOW_SIZE = 1 << 16;
+
+    /**
+     * Receives the depth of coverage, in coordinate order.
+     */
+    public interface CoverageListener {
+        /**
+         * Called for each run of consecutive positions with the same depth.
+         * @param interval the target interval (or whole reference sequence) that contains the run.
+         * @param start 1-based first position of the run.
+         * @param end 1-based last position of the run, inclusive.
+         * @param depth number of reads covering each position of the run.
+         */
+        void coverage(Interval interval, int start, int end, int depth);
+    }
+
+    /**
+     * Accumulates a Histogram of the number of positions at each depth.
+     */
+    public static class DepthHistogramListener implements CoverageListener {
+        private final Histogram<Integer> histogram = new Histogram<Integer>("depth", "count");
+
+        public void coverage(final Interval interval, final int start, final int end, final int depth) {
+            histogram.increment(depth, end - start + 1);
+        }
+
+        public Histogram<Integer> getHistogram() {
+            return histogram;
+        }
+    }
+
+    /**
+     * Summarizes the coverage of each target interval.
+     */
+    public static class IntervalSummaryListener implements CoverageListener {
+        private final List<IntervalSummary> summaries = new ArrayList<IntervalSummary>();
+        private IntervalSummary current = null;
+
+        public void coverage(final Interval interval, final int start, final int end, final int depth) {
+            if (current == null || current.interval != interval) {
+                current = new IntervalSummary(interval);
+                summaries.add(current);
+            }
+            current.add(end - start + 1, depth);
+        }
+
+        /**
+         * @return one summary per target interval, in coordinate order.
+         */
+        public List<IntervalSummary> getSummaries() {
+            return Collections.unmodifiableList(summaries);
+        }
+    }
+
+    /**
+     * Depth of coverage statistics of a single interval.
+     */
+    public static class IntervalSummary {
+        private final Interval interval;
+        private long totalDepth = 0;
+        private int basesCovered = 0;
+        private int minDepth = Integer.MAX_VALUE;
+        private int maxDepth = 0;
+
+        IntervalSummary(final Interval interval) {
+            this.interval = interval;
+        }
+
+        private void add(final int length, final int depth) {
+            totalDepth += (long) length * depth;
+            if (depth > 0) basesCovered += length;
+            minDepth = Math.min(minDepth, depth);
+            maxDepth = Math.max(maxDepth, depth);
+        }
+
+        public Interval getInterval() { return interval; }
+
+        /** @return the sum of the depths of all positions in the interval */
+        public long getTotalDepth() { return totalDepth; }
+
+        /** @return the number of positions in the interval with non-zero depth */
+        public int getBasesCovered() { return basesCovered; }
+
+        public int getMinDepth() { return minDepth; }
+
+        public int getMaxDepth() { return maxDepth; }
+
+        public double getMeanDepth() { return totalDepth / (double) interval.length(); }
+    }
+
+    private final SamReader samReader;
+    private final List<Interval> intervals;
+    private List<SamRecordFilter> samFilters = Arrays.asList(new SecondaryOrSupplementaryFilter(),
+                                                             new DuplicateReadFilter());
+    private int qualityScoreCutoff = Integer.MIN_VALUE;
+    private int mappingQualityScoreCutoff = Integer.MIN_VALUE;
+    private boolean includeNonPfReads = true;
+
+    // State of a calculation.
+    private CoverageListener[] listeners;
+    // Target intervals of each reference sequence, in order
+    private List<List<Interval>> territory;
+    private int sequenceIndex;
+    // Index in territory of the first interval that has not been completely reported on the current sequence
+    private int intervalIndex;
+    // Difference array, as a ring buffer indexed by position & (diff.length - 1)
+    private int[] diff;
+    // Position of the first entry of diff that has not been summed into depth
+    private int windowStart;
+    // Last position with a non-zero entry in diff, or windowStart - 1 if there are none
+    private int windowEnd;
+    // Depth at windowStart - 1
+    private int depth;
+    // Run of positions not yet reported to the listeners
+    private Interval runInterval;
+    private int runStart;
+    private int runEnd;
+    private int runDepth;
+
+    /**
+     * @param samReader must be coordinate sorted.
+     */
+    public CoverageCalculator(final SamReader samReader) {
+        this(samReader, null);
+    }
+
+    /**
+     * @param samReader must be coordinate sorted.  If it has an index, it is used to read only the reads that
+     * overlap the intervals.
+     * @param intervalList Either the list of desired intervals, or null.
+     */
+    public CoverageCalculator(final SamReader samReader, final IntervalList intervalList) {
+        if (samReader.getFileHeader().getSortOrder() != SAMFileHeader.SortOrder.coordinate) {
+            throw new SAMException("CoverageCalculator cannot operate on a SAM file that is not coordinate sorted.");
+        }
+        this.samReader = samReader;
+        this.intervals = (intervalList == null) ? null : intervalList.uniqued().getIntervals();
+    }
+
+    /**
+     * Compute the depth of coverage, reporting it to the given listeners.  Each call makes a pass over the reads.
+     */
+    public void calculate(final CoverageListener... listeners) {
+        this.listeners = listeners;
+        final SAMFileHeader header = samReader.getFileHeader();
+        territory = new ArrayList<List<Interval>>();
+        for (final SAMSequenceRecord sequence : header.getSequenceDictionary().getSequences()) {
+            final List<Interval> sequenceIntervals = new ArrayList<Interval>();
+            if (intervals == null) {
+                sequenceIntervals.add(new Interval(sequence.getSequenceName(), 1, sequence.getSequenceLength()));
+            }
+            territory.add(sequenceIntervals);
+        }
+        if (intervals != null) {
+            for (final Interval interval : intervals) {
+                final int index = header.getSequenceIndex(interval.getSequence());
+                if (index == -1) {
+                    throw new SAMException("Interval sequence not found in SAM header: " + interval);
+                }
+                territory.get(index).add(interval);
+            }
+        }
+        diff = new int[INITIAL_WINDOW_SIZE];
+        sequenceIndex = -1;
+
+        CloseableIterator<SAMRecord> iterator;
+        if (intervals != null) {
+            iterator = new SamRecordIntervalIteratorFactory().makeSamRecordIntervalIterator(samReader, intervals,
+                    samReader.hasIndex());
+        } else {
+            iterator = samReader.iterator();
+        }
+        if (samFilters != null) {
+            iterator = new FilteringIterator(iterator, new AggregateFilter(samFilters));
+        }
+        try {
+            while (iterator.hasNext()) {
+                final SAMRecord rec = iterator.next();
+                // The mapped reads are all before those with no reference index.
+                if (rec.getReferenceIndex() == -1) {
+                    break;
+                }
+                if (rec.getReadUnmappedFlag()
+                        || rec.getMappingQuality() < mappingQualityScoreCutoff
+                        || (!includeNonPfReads && rec.getReadFailsVendorQualityCheckFlag())) {
+                    continue;
+                }
+                if (rec.getReferenceIndex() != sequenceIndex) {
+                    if (rec.getReferenceIndex() < sequenceIndex) {
+                        throw new SAMException("SAM file is not coordinate sorted at " + rec.getSAMString());
+                    }
+                    advanceToSequence(rec.getReferenceIndex());
+                }
+                if (rec.getAlignmentStart() < windowStart) {
+                    throw new SAMException("SAM file is not coordinate sorted at " + rec.getSAMString());
+                }
+                flush(rec.getAlignmentStart());
+                addRecord(rec);
+            }
+        } finally {
+            iterator.close();
+        }
+        advanceToSequence(territory.size());
+        flushRun();
+        this.listeners = null;
+        this.territory = null;
+        this.diff = null;
+    }
+
+    /**
+     * Finish the current sequence, report the sequences before the given one as having no coverage, and start
+     * the given one.
+     */
+    private void advanceToSequence(final int newSequenceIndex) {
+        if (sequenceIndex >= 0) {
+            flush(Integer.MAX_VALUE);
+            flushRun();
+        }
+        for (int i = sequenceIndex + 1; i < newSequenceIndex; ++i) {
+            for (final Interval interval : territory.get(i)) {
+                report(interval, interval.getStart(), interval.getEnd(), 0);
+            }
+        }
+        sequenceIndex = newSequenceIndex;
+        intervalIndex = 0;
+        windowStart = 1;
+        windowEnd = 0;
+        depth = 0;
+    }
+
+    private void addRecord(final SAMRecord rec) {
+        final byte[] qualities = (qualityScoreCutoff > 0) ? rec.getBaseQualities() : null;
+        for (final AlignmentBlock block : rec.getAlignmentBlocks()) {
+            if (qualities == null) {
+                addBlock(block.getReferenceStart(), block.getReferenceStart() + block.getLength() - 1);
+                continue;
+            }
+            // Add each run of bases that meet the quality cutoff
+            int runStart = -1;
+            for (int i = 0; i <= block.getLength(); ++i) {
+                final boolean passes = i < block.getLength() &&
+                        qualities[block.getReadStart() - 1 + i] >= qualityScoreCutoff;
+                if (passes && runStart == -1) {
+                    runStart = i;
+                } else if (!passes && runStart != -1) {
+                    addBlock(block.getReferenceStart() + runStart, block.getReferenceStart() + i - 1);
+                    runStart = -1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Count one more read over the positions from start to end inclusive, which must not be before windowStart.
+     */
+    private void addBlock(final int start, final int end) {
+        if (end + 1 - windowStart >= diff.length) {
+            growWindow(end + 2 - windowStart);
+        }
+        final int mask = diff.length - 1;
+        ++diff[start & mask];
+        --diff[(end + 1) & mask];
+        windowEnd = Math.max(windowEnd, end + 1);
+    }
+
+    private void growWindow(final int minSize) {
+        int size = diff.length;
+        while (size < minSize) size *= 2;
+        final int[] newDiff = new int[size];
+        for (int pos = windowStart; pos <= windowEnd; ++pos) {
+            newDiff[pos & (size - 1)] = diff[pos & (diff.length - 1)];
+        }
+        diff = newDiff;
+    }
+
+    /**
+     * Sum the difference array up to, but not including, the given position, and report the depths.
+     */
+    private void flush(final int stopBefore) {
+        final int mask = diff.length - 1;
+        final int end = Math.min(stopBefore, windowEnd + 1);
+        int pos = windowStart;
+        int start = pos;
+        for (; pos < end; ++pos) {
+            final int newDepth = depth + diff[pos & mask];
+            diff[pos & mask] = 0;
+            if (newDepth != depth) {
+                if (pos > start) reportOnTerritory(start, pos - 1, depth);
+                start = pos;
+                depth = newDepth;
+            }
+        }
+        if (pos > start) reportOnTerritory(start, pos - 1, depth);
+        // Past the end of the window, there are no reads.
+        if (pos < stopBefore) {
+            reportOnTerritory(pos, stopBefore - 1, 0);
+        }
+        windowStart = stopBefore;
+    }
+
+    /**
+     * Report a depth for the parts of positions start to end of the current sequence that are in the territory.
+     */
+    private void reportOnTerritory(int start, final int end, final int depth) {
+        final List<Interval> sequenceIntervals = territory.get(sequenceIndex);
+        while (start <= end && intervalIndex < sequenceIntervals.size()) {
+            final Interval interval = sequenceIntervals.get(intervalIndex);
+            if (interval.getEnd() < start) {
+                ++intervalIndex;
+                continue;
+            }
+            if (interval.getStart() > end) {
+                return;
+            }
+            final int runEnd = Math.min(end, interval.getEnd());
+            report(interval, Math.max(start, interval.getStart()), runEnd, depth);
+            if (runEnd == interval.getEnd()) {
+                ++intervalIndex;
+            }
+            start = runEnd + 1;
+        }
+    }
+
+    /**
+     * Extend the pending run if possible, otherwise report it and start a new one.
+     */
+    private void report(final Interval interval, final int start, final int end, final int depth) {
+        if (runInterval == interval && runDepth == depth && runEnd + 1 == start) {
+            runEnd = end;
+            return;
+        }
+        flushRun();
+        runInterval = interval;
+        runStart = start;
+        runEnd = end;
+        runDepth = depth;
+    }
+
+    private void flushRun() {
+        if (runInterval != null) {
+            for (final CoverageListener listener : listeners) {
+                listener.coverage(runInterval, runStart, runEnd, runDepth);
+            }
+            runInterval = null;
+        }
+    }
+
+    /**
+     * @return a Histogram of the number of positions at each depth.
+     */
+    public Histogram<Integer> calculateDepthHistogram() {
+        final DepthHistogramListener listener = new DepthHistogramListener();
+        calculate(listener);
+        return listener.getHistogram();
+    }
+
+    /**
+     * @return a summary of the coverage of each target interval (or of each reference sequence if there are none).
+     */
+    public List<IntervalSummary> calculateIntervalSummaries() {
+        final IntervalSummaryListener listener = new IntervalSummaryListener();
+        calculate(listener);
+        return listener.getSummaries();
+    }
+
+    /**
+     * Controls which, if any, SAMRecords are filtered.  By default duplicate reads and non-primary alignments
+     * are filtered out.  The list of filters passed here replaces any existing filters.
+     * @param samFilters list of filters, or null if no filtering is desired.
+     */
+    public void setSamFilters(final List<SamRecordFilter> samFilters) {
+        this.samFilters = samFilters;
+    }
+
+    public int getQualityScoreCutoff() { return qualityScoreCutoff; }
+    public void setQualityScoreCutoff(final int qualityScoreCutoff) { this.qualityScoreCutoff = qualityScoreCutoff; }
+
+    public int getMappingQualityScoreCutoff() { return mappingQualityScoreCutoff; }
+    public void setMappingQualityScoreCutoff(final int mappingQualityScoreCutoff) { this.mappingQualityScoreCutoff = mappingQualityScoreCutoff; }
+
+    public boolean isIncludeNonPfReads() { return includeNonPfReads; }
+    public void setIncludeNonPfReads(final boolean includeNonPfReads) { this.includeNonPfReads = includeNonPfReads; }
+}
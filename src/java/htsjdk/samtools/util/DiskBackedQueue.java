@@ -25,6 +25,7 @@ package htsjdk.samtools.util;
 
 import htsjdk.samtools.Defaults;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -32,11 +33,16 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * A single-ended FIFO queue. Writes elements to temporary files when the queue gets too big.
@@ -46,11 +52,18 @@ import java.util.Queue;
  * This avoids issues arising from conflicts between the input and output streams.
  * This could perhaps be avoided by creating a version of BAMRecordCodec that operates on RandomAccessFiles or channels.
  * <p/>
+ * If created with useAsyncIo == true, records spilled to disk are handed off in batches to a background thread
+ * that encodes them, and once reading from disk begins, another background thread decodes batches of records ahead
+ * of the consumer.  In this mode a spilled record may be encoded some time after add() returns, so it must not be
+ * modified after it is added.  The background threads refer to the queue, so a queue that has spilled to disk never
+ * becomes unreachable, and is not finalized, while they run: whoever creates the queue owns them, and must call
+ * close() (or clear()) when done with it to stop them and delete the temporary file.
+ * <p/>
  *
  *
  * Created by bradt on 4/28/14.
  */
-public class DiskBackedQueue<E> implements Queue<E> {
+public class DiskBackedQueue<E> implements Queue<E>, Closeable {
     private final int maxRecordsInRamQueue;
     private final Queue<E> ramRecords;
     private File diskRecords = null;
@@ -60,6 +73,16 @@ public class DiskBackedQueue<E> implements Queue<E> {
     private boolean canAdd = true;
     private int numRecordsOnDisk = 0;
 
+    /** Number of records handed between threads at a time when useAsyncIo is true. */
+    static final int ASYNC_BATCH_SIZE = 1000;
+    /** Number of batches that may be queued between threads, in addition to the batch each thread is working on. */
+    private static final int ASYNC_QUEUED_BATCHES = 2;
+    private static volatile int threadsCreated = 0; // Just used for thread naming.
+
+    private final boolean useAsyncIo;
+    private AsyncSpillWriter asyncWriter = null;
+    private AsyncRecordReader asyncReader = null;
+
     /** Record representing the head of the queue; returned by peek, poll **/
     private E headRecord = null;
 
@@ -78,9 +101,10 @@ public class DiskBackedQueue<E> implements Queue<E> {
      * @param codec For writing records to file and reading them back into RAM
      * @param maxRecordsInRam how many records to accumulate before spilling to disk
      * @param tmpDirs Where to write files of records that will not fit in RAM
+     * @param useAsyncIo Whether to write and read back records on disk in background threads
      */
     private DiskBackedQueue(final SortingCollection.Codec<E> codec,
-                            final int maxRecordsInRam, final List<File> tmpDirs) {
+                            final int maxRecordsInRam, final List<File> tmpDirs, final boolean useAsyncIo) {
         if (maxRecordsInRam < 0) {
             throw new IllegalArgumentException("maxRecordsInRamQueue must be >= 0");
         }
@@ -90,6 +114,7 @@ public class DiskBackedQueue<E> implements Queue<E> {
         for (final File tmpDir : tmpDirs) IOUtil.assertDirectoryIsWritable(tmpDir);
         this.tmpDirs = tmpDirs;
         this.codec = codec;
+        this.useAsyncIo = useAsyncIo;
         this.maxRecordsInRamQueue = (maxRecordsInRam == 0) ? 0 : maxRecordsInRam - 1; // the first of our ram records is stored as headRecord
         this.ramRecords = new ArrayDeque<E>(this.maxRecordsInRamQueue);
     }
@@ -104,7 +129,23 @@ public class DiskBackedQueue<E> implements Queue<E> {
     public static <T> DiskBackedQueue<T> newInstance(final SortingCollection.Codec<T> codec,
                                                      final int maxRecordsInRAM,
                                                      final List<File> tmpDir) {
-        return new DiskBackedQueue<T>(codec, maxRecordsInRAM, tmpDir);
+        return new DiskBackedQueue<T>(codec, maxRecordsInRAM, tmpDir, false);
+    }
+
+    /**
+     * Syntactic sugar around the ctor, to save some typing of type parameters
+     *
+     * @param codec For writing records to file and reading them back into RAM
+     * @param maxRecordsInRAM how many records to accumulate in memory before spilling to disk
+     * @param tmpDir Where to write files of records that will not fit in RAM
+     * @param useAsyncIo if true, records are written to and read back from disk in background threads, so that
+     *                   producers and consumers do not wait on the temporary file.
+     */
+    public static <T> DiskBackedQueue<T> newInstance(final SortingCollection.Codec<T> codec,
+                                                     final int maxRecordsInRAM,
+                                                     final List<File> tmpDir,
+                                                     final boolean useAsyncIo) {
+        return new DiskBackedQueue<T>(codec, maxRecordsInRAM, tmpDir, useAsyncIo);
     }
 
     public boolean canAdd() {
@@ -224,9 +265,19 @@ public class DiskBackedQueue<E> implements Queue<E> {
         this.outputStream = null;
         this.inputStream = null;
         this.diskRecords = null;
+        this.numRecordsOnDisk = 0;
         this.canAdd = true;
     }
 
+    /**
+     * Discards the contents of the queue, stops any background threads and deletes the temporary file.  The queue
+     * may still be used afterwards, as after clear().
+     */
+    @Override
+    public void close() {
+        clear();
+    }
+
     /**
      * Clean up disk resources in case clear() has not been explicitly called (as would be preferable)
      * Closes the input and output streams associated with this DiskBackedQueue and deletes the temporary file
@@ -248,9 +299,10 @@ public class DiskBackedQueue<E> implements Queue<E> {
                 this.diskRecords = newTempFile();
                 this.outputStream = tempStreamFactory.wrapTempOutputStream(new FileOutputStream(this.diskRecords), Defaults.BUFFER_SIZE);
                 this.codec.setOutputStream(this.outputStream);
+                if (this.useAsyncIo) this.asyncWriter = new AsyncSpillWriter();
             }
-            this.codec.encode(record);
-            this.outputStream.flush();
+            if (this.asyncWriter != null) this.asyncWriter.add(record);
+            else this.codec.encode(record);
             this.numRecordsOnDisk++;
         } catch (final IOException e) {
             throw new RuntimeIOException("Problem writing temporary file. Try setting TMP_DIR to a file system with lots of space.", e);
@@ -298,10 +350,18 @@ public class DiskBackedQueue<E> implements Queue<E> {
         }
         try {
             if (this.inputStream == null) {
+                // Nothing more can be added, so finish writing the file before reading it.
+                if (this.asyncWriter != null) {
+                    this.asyncWriter.finish();
+                    this.asyncWriter = null;
+                }
+                this.outputStream.close();
                 inputStream = new FileInputStream(file);
                 this.codec.setInputStream(tempStreamFactory.wrapTempInputStream(inputStream, Defaults.BUFFER_SIZE));
+                if (this.useAsyncIo) this.asyncReader = new AsyncRecordReader();
             }
-            final E record = this.codec.decode(); // NB: returns null if end-of-file is reached.
+            // NB: returns null if end-of-file is reached.
+            final E record = (this.asyncReader != null) ? this.asyncReader.next() : this.codec.decode();
             if (record != null) {
                 numRecordsOnDisk--;
             }
@@ -312,6 +372,15 @@ public class DiskBackedQueue<E> implements Queue<E> {
     }
 
     private void closeIOResources() {
+        // Stop the background threads before closing the streams out from under them.
+        if (this.asyncWriter != null) {
+            this.asyncWriter.abort();
+            this.asyncWriter = null;
+        }
+        if (this.asyncReader != null) {
+            this.asyncReader.abort();
+            this.asyncReader = null;
+        }
         CloserUtil.close(this.outputStream);
         CloserUtil.close(this.inputStream);
         if (this.diskRecords != null) IOUtil.deleteFiles(this.diskRecords);
@@ -395,4 +464,165 @@ public class DiskBackedQueue<E> implements Queue<E> {
     public <T1> T1[] toArray(final T1[] a) {
         throw new UnsupportedOperationException("DiskBackedQueue does not support toArray(T1[] a)");
     }
+
+    /**
+     * Rethrows an exception raised in a background thread as an Error or RuntimeException as appropriate.
+     */
+    private static void rethrow(final Throwable t) {
+        if (t instanceof Error) throw (Error) t;
+        if (t instanceof RuntimeIOException) throw (RuntimeIOException) t;
+        throw new RuntimeIOException("Exception in DiskBackedQueue background thread", t);
+    }
+
+    /**
+     * Encodes spilled records to the temporary file on a background thread.  Records are accumulated into batches
+     * on the producer thread, and only full batches are passed to the writer thread.
+     */
+    private class AsyncSpillWriter implements Runnable {
+        private final BlockingQueue<List<E>> batches = new ArrayBlockingQueue<List<E>>(ASYNC_QUEUED_BATCHES);
+        /** Placed on the queue after the final batch. */
+        private final List<E> endOfBatches = new ArrayList<E>(0);
+        private final AtomicReference<Throwable> ex = new AtomicReference<Throwable>(null);
+        private final Thread thread;
+        private List<E> currentBatch = new ArrayList<E>(ASYNC_BATCH_SIZE);
+
+        AsyncSpillWriter() {
+            this.thread = new Thread(this, "DiskBackedQueueWriter" + threadsCreated++);
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        void add(final E record) {
+            currentBatch.add(record);
+            if (currentBatch.size() == ASYNC_BATCH_SIZE) {
+                enqueue(currentBatch);
+                currentBatch = new ArrayList<E>(ASYNC_BATCH_SIZE);
+            }
+        }
+
+        /** Write any partial batch, and wait for the writer thread to encode everything. */
+        void finish() {
+            if (!currentBatch.isEmpty()) enqueue(currentBatch);
+            currentBatch = null;
+            enqueue(endOfBatches);
+            try {
+                thread.join();
+            } catch (final InterruptedException ie) {
+                throw new RuntimeException("Interrupted waiting on DiskBackedQueue writer thread.", ie);
+            }
+            checkAndRethrow();
+        }
+
+        /** Stop the writer thread without waiting for queued records to be written. */
+        void abort() {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (final InterruptedException ie) {
+                throw new RuntimeException("Interrupted waiting on DiskBackedQueue writer thread.", ie);
+            }
+        }
+
+        private void enqueue(final List<E> batch) {
+            try {
+                while (!batches.offer(batch, 1, TimeUnit.SECONDS)) {
+                    checkAndRethrow();
+                }
+            } catch (final InterruptedException ie) {
+                throw new RuntimeException("Interrupted queueing records for writing.", ie);
+            }
+            checkAndRethrow();
+        }
+
+        private void checkAndRethrow() {
+            final Throwable t = ex.get();
+            if (t != null) rethrow(t);
+        }
+
+        public void run() {
+            try {
+                for (List<E> batch = batches.take(); batch != endOfBatches; batch = batches.take()) {
+                    for (final E record : batch) {
+                        if (Thread.currentThread().isInterrupted()) return;
+                        codec.encode(record);
+                    }
+                }
+            } catch (final InterruptedException ie) {
+                /* abort() was called.  Do Nothing */
+            } catch (final Throwable t) {
+                ex.compareAndSet(null, t);
+            }
+        }
+    }
+
+    /**
+     * Decodes records from the temporary file on a background thread, staying a few batches ahead of the consumer.
+     */
+    private class AsyncRecordReader implements Runnable {
+        private final BlockingQueue<List<E>> batches = new ArrayBlockingQueue<List<E>>(ASYNC_QUEUED_BATCHES);
+        /** Placed on the queue after the final batch. */
+        private final List<E> endOfBatches = new ArrayList<E>(0);
+        private final AtomicReference<Throwable> ex = new AtomicReference<Throwable>(null);
+        private final Thread thread;
+        private List<E> currentBatch = null;
+        private int currentIndex = 0;
+
+        AsyncRecordReader() {
+            this.thread = new Thread(this, "DiskBackedQueueReader" + threadsCreated++);
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        /** @return The next record from the file, or null if end-of-file has been reached. */
+        E next() {
+            if (currentBatch == endOfBatches) return null;
+            if (currentBatch == null || currentIndex == currentBatch.size()) {
+                try {
+                    do {
+                        currentBatch = batches.poll(1, TimeUnit.SECONDS);
+                        final Throwable t = ex.get();
+                        if (t != null) rethrow(t);
+                    } while (currentBatch == null);
+                } catch (final InterruptedException ie) {
+                    throw new RuntimeException("Interrupted waiting for records from disk.", ie);
+                }
+                currentIndex = 0;
+                if (currentBatch == endOfBatches) return null;
+            }
+            final E record = currentBatch.get(currentIndex);
+            currentBatch.set(currentIndex++, null);
+            return record;
+        }
+
+        /** Stop the reader thread. */
+        void abort() {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (final InterruptedException ie) {
+                throw new RuntimeException("Interrupted waiting on DiskBackedQueue reader thread.", ie);
+            }
+        }
+
+        public void run() {
+            try {
+                for (;;) {
+                    final List<E> batch = new ArrayList<E>(ASYNC_BATCH_SIZE);
+                    E record = null;
+                    while (batch.size() < ASYNC_BATCH_SIZE && (record = codec.decode()) != null) {
+                        batch.add(record);
+                    }
+                    if (!batch.isEmpty()) batches.put(batch);
+                    if (record == null) {
+                        batches.put(endOfBatches);
+                        return;
+                    }
+                }
+            } catch (final InterruptedException ie) {
+                /* abort() was called.  Do Nothing */
+            } catch (final Throwable t) {
+                ex.compareAndSet(null, t);
+            }
+        }
+    }
 }
@@ -39,6 +39,8 @@ public class IntervalListReferenceSequenceMask implements ReferenceSequenceMask
     // if memory usage becomes a problem... this could be changed to a SparseBitSet
     // http://java.sun.com/developer/onlineTraining/collections/magercises/BitSet/index.html
     private final BitSet currentBitSet = new BitSet();
+    // Position of bit 0 of currentBitSet, so that a mask of a few intervals far along a sequence stays small
+    private int currentBitSetOffset = 0;
     private int currentSequenceIndex = -1;
     private final PeekableIterator<Interval> intervalIterator;
     private final int lastSequenceIndex;
@@ -67,7 +69,7 @@ public class IntervalListReferenceSequenceMask implements ReferenceSequenceMask
      */
     public boolean get(final int sequenceIndex, final int position) {
         ensureSequenceLoaded(sequenceIndex);
-        return currentBitSet.get(position);
+        return position >= currentBitSetOffset && currentBitSet.get(position - currentBitSetOffset);
     }
 
     /**
@@ -77,7 +79,8 @@ public class IntervalListReferenceSequenceMask implements ReferenceSequenceMask
     public int nextPosition(final int sequenceIndex, final int position) {
         ensureSequenceLoaded(sequenceIndex);
 		// nextSetBit returns the first set bit on or after the starting index, therefore position+1
-        return currentBitSet.nextSetBit(position+1);
+        final int nextBit = currentBitSet.nextSetBit(Math.max(position + 1 - currentBitSetOffset, 0));
+        return nextBit == -1 ? -1 : nextBit + currentBitSetOffset;
     }
 
     private void ensureSequenceLoaded(final int sequenceIndex) {
@@ -87,18 +90,25 @@ public class IntervalListReferenceSequenceMask implements ReferenceSequenceMask
         }
         if (sequenceIndex > currentSequenceIndex) {
             currentBitSet.clear();
+            currentBitSetOffset = -1;
             while (intervalIterator.hasNext()) {
                 final Interval interval = intervalIterator.peek();
                 final int nextSequenceIndex = header.getSequenceIndex(interval.getSequence());
                 if (nextSequenceIndex < sequenceIndex) {
                     intervalIterator.next();
                 } else if (nextSequenceIndex == sequenceIndex) {
-                    currentBitSet.set(interval.getStart(), interval.getEnd() + 1);
+                    if (currentBitSetOffset == -1) {
+                        currentBitSetOffset = interval.getStart();
+                    }
+                    currentBitSet.set(interval.getStart() - currentBitSetOffset, interval.getEnd() + 1 - currentBitSetOffset);
                     intervalIterator.next();
                 } else {
                     break;
                 }
             }
+            if (currentBitSetOffset == -1) {
+                currentBitSetOffset = 0;
+            }
             currentSequenceIndex = sequenceIndex;
         }
     }
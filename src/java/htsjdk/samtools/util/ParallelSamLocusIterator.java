@@ -0,0 +1,393 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools.util;
+
+import htsjdk.samtools.SAMException;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileReader;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.filter.SamRecordFilter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Locus iteration over an indexed, coordinate-sorted SAM or BAM file, driven by index queries.  The intervals of
+ * interest (or the whole of each reference sequence if there is no interval list) are grouped into shards:
+ * intervals closer than maxMergeGap are put in the same shard, and no shard spans more than maxShardLength bases.
+ * Each shard is processed by a SamLocusIterator that queries only the reads overlapping its intervals.
+ *
+ * With more than one thread, shards are processed concurrently, each thread with its own SAMFileReader,
+ * and LocusInfos are returned in genomic order.  Each shard hands its LocusInfos to the consumer in batches
+ * through a small bounded queue, and a worker waits when its queue is full, so memory use is bounded by
+ * the number of threads rather than by the size of the shards.  The LocusInfos returned are the same as
+ * those a SamLocusIterator over the same intervals with the same settings would return.
+ */
+public class ParallelSamLocusIterator implements Iterable<SamLocusIterator.LocusInfo>,
+        CloseableIterator<SamLocusIterator.LocusInfo> {
+    public static final int DEFAULT_MAX_MERGE_GAP = 1000;
+    public static final int DEFAULT_MAX_SHARD_LENGTH = 100000;
+    private static final int SHARDS_IN_FLIGHT_PER_THREAD = 2;
+    private static final int LOCI_PER_BATCH = 1000;
+    private static final int BATCHES_IN_FLIGHT_PER_SHARD = 4;
+    // Marks the end of a shard's batches; compared by identity, never a real batch
+    private static final List<SamLocusIterator.LocusInfo> END_OF_SHARD = new ArrayList<SamLocusIterator.LocusInfo>(0);
+
+    private final File samFile;
+    private final File indexFile;
+    private final SAMFileHeader header;
+    private final List<Interval> intervals;
+    private final int numThreads;
+
+    private int maxMergeGap = DEFAULT_MAX_MERGE_GAP;
+    private int maxShardLength = DEFAULT_MAX_SHARD_LENGTH;
+    private List<SamRecordFilter> samFilters = null;
+    private boolean useDefaultSamFilters = true;
+    private int qualityScoreCutoff = Integer.MIN_VALUE;
+    private int mappingQualityScoreCutoff = Integer.MIN_VALUE;
+    private boolean includeNonPfReads = true;
+    private boolean emitUncoveredLoci = true;
+
+    private Iterator<List<Interval>> shardIterator = null;
+    private ExecutorService executor = null;
+    private final LinkedList<ShardTask> pending = new LinkedList<ShardTask>();
+    // The shard being iterated in the calling thread when there is only one thread
+    private SamLocusIterator currentShard = null;
+    private Iterator<SamLocusIterator.LocusInfo> current = Collections.<SamLocusIterator.LocusInfo>emptyList().iterator();
+
+    // Readers opened by the shard workers, one per thread
+    private final List<SAMFileReader> readers = Collections.synchronizedList(new ArrayList<SAMFileReader>());
+    private final ThreadLocal<SAMFileReader> threadReader = new ThreadLocal<SAMFileReader>() {
+        @Override
+        protected SAMFileReader initialValue() {
+            final SAMFileReader reader = openReader();
+            readers.add(reader);
+            return reader;
+        }
+    };
+
+    /**
+     * @param samFile coordinate-sorted SAM or BAM file with an index.
+     * @param indexFile the index of samFile, or null to look for it next to samFile.
+     * @param intervalList Either the list of desired intervals, or null to visit every reference sequence.
+     * @param numThreads number of shards to process concurrently.  If 1, shards are processed in the calling thread.
+     */
+    public ParallelSamLocusIterator(final File samFile, final File indexFile, final IntervalList intervalList,
+                                    final int numThreads) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("numThreads must be at least 1: " + numThreads);
+        }
+        this.samFile = samFile;
+        this.indexFile = indexFile;
+        this.numThreads = numThreads;
+        final SAMFileReader reader = openReader();
+        try {
+            if (!reader.hasIndex()) {
+                throw new SAMException("ParallelSamLocusIterator requires an index for " + samFile);
+            }
+            if (reader.getFileHeader().getSortOrder() != SAMFileHeader.SortOrder.coordinate) {
+                throw new SAMException("ParallelSamLocusIterator cannot operate on a SAM file that is not coordinate sorted.");
+            }
+            header = reader.getFileHeader().clone();
+        } finally {
+            reader.close();
+        }
+        if (intervalList != null) {
+            intervals = intervalList.uniqued().getIntervals();
+        } else {
+            intervals = new ArrayList<Interval>();
+            for (final SAMSequenceRecord sequence : header.getSequenceDictionary().getSequences()) {
+                intervals.add(new Interval(sequence.getSequenceName(), 1, sequence.getSequenceLength()));
+            }
+        }
+    }
+
+    private SAMFileReader openReader() {
+        return indexFile == null ? new SAMFileReader(samFile) : new SAMFileReader(samFile, indexFile);
+    }
+
+    /**
+     * Group the intervals into shards of nearby intervals, splitting intervals longer than maxShardLength.
+     */
+    List<List<Interval>> makeShards() {
+        final List<List<Interval>> shards = new ArrayList<List<Interval>>();
+        List<Interval> shard = null;
+        for (final Interval interval : intervals) {
+            for (int start = interval.getStart(); start <= interval.getEnd(); start += maxShardLength) {
+                final int end = Math.min(interval.getEnd(), start + maxShardLength - 1);
+                final Interval piece = (start == interval.getStart() && end == interval.getEnd()) ? interval :
+                        new Interval(interval.getSequence(), start, end, interval.isNegativeStrand(), interval.getName());
+                if (shard != null) {
+                    final Interval first = shard.get(0);
+                    final Interval last = shard.get(shard.size() - 1);
+                    if (!last.getSequence().equals(piece.getSequence()) ||
+                            piece.getStart() - last.getEnd() - 1 > maxMergeGap ||
+                            piece.getEnd() - first.getStart() + 1 > maxShardLength) {
+                        shard = null;
+                    }
+                }
+                if (shard == null) {
+                    shard = new ArrayList<Interval>();
+                    shards.add(shard);
+                }
+                shard.add(piece);
+            }
+        }
+        return shards;
+    }
+
+    public Iterator<SamLocusIterator.LocusInfo> iterator() {
+        if (shardIterator != null) {
+            throw new IllegalStateException("Cannot call iterator() more than once on ParallelSamLocusIterator");
+        }
+        shardIterator = makeShards().iterator();
+        if (numThreads > 1) {
+            executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread thread = new Thread(r, "ParallelSamLocusIterator Thread");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return this;
+    }
+
+    public boolean hasNext() {
+        if (shardIterator == null) {
+            iterator();
+        }
+        while (!current.hasNext()) {
+            if (executor != null) {
+                while (pending.size() < numThreads * SHARDS_IN_FLIGHT_PER_THREAD && shardIterator.hasNext()) {
+                    final ShardTask task = new ShardTask(shardIterator.next());
+                    executor.execute(task);
+                    pending.add(task);
+                }
+                if (pending.isEmpty()) {
+                    close();
+                    return false;
+                }
+                final List<SamLocusIterator.LocusInfo> batch = pending.getFirst().takeBatch();
+                if (batch == END_OF_SHARD) {
+                    pending.removeFirst();
+                } else {
+                    current = batch.iterator();
+                }
+            } else {
+                if (currentShard != null) {
+                    currentShard.close();
+                    currentShard = null;
+                }
+                if (!shardIterator.hasNext()) {
+                    close();
+                    return false;
+                }
+                currentShard = makeLocusIterator(threadReader.get(), shardIterator.next());
+                current = currentShard;
+            }
+        }
+        return true;
+    }
+
+    public SamLocusIterator.LocusInfo next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return current.next();
+    }
+
+    private SamLocusIterator makeLocusIterator(final SAMFileReader reader, final List<Interval> shard) {
+        final IntervalList intervalList = new IntervalList(header);
+        intervalList.addall(shard);
+        final SamLocusIterator iterator = new SamLocusIterator(reader, intervalList, true);
+        if (!useDefaultSamFilters) {
+            iterator.setSamFilters(samFilters);
+        }
+        iterator.setQualityScoreCutoff(qualityScoreCutoff);
+        iterator.setMappingQualityScoreCutoff(mappingQualityScoreCutoff);
+        iterator.setIncludeNonPfReads(includeNonPfReads);
+        iterator.setEmitUncoveredLoci(emitUncoveredLoci);
+        return iterator;
+    }
+
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+            try {
+                // Running shard tasks stop at their next batches.put(); until then they may still be reading.
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                throw new SAMException("Interrupted while closing " + samFile, e);
+            } finally {
+                executor = null;
+            }
+        }
+        pending.clear();
+        if (currentShard != null) {
+            currentShard.close();
+            currentShard = null;
+        }
+        current = Collections.<SamLocusIterator.LocusInfo>emptyList().iterator();
+        shardIterator = Collections.<List<Interval>>emptyList().iterator();
+        synchronized (readers) {
+            for (final SAMFileReader reader : readers) {
+                reader.close();
+            }
+            readers.clear();
+        }
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException("Can not remove records from a SAM file via an iterator!");
+    }
+
+    /**
+     * Computes the LocusInfos of one shard with the reader of the current thread, and passes them to the consumer
+     * in batches.  The worker waits while BATCHES_IN_FLIGHT_PER_SHARD batches are waiting to be consumed.
+     */
+    private class ShardTask implements Runnable {
+        private final List<Interval> shard;
+        private final BlockingQueue<List<SamLocusIterator.LocusInfo>> batches =
+                new ArrayBlockingQueue<List<SamLocusIterator.LocusInfo>>(BATCHES_IN_FLIGHT_PER_SHARD);
+        // Set before END_OF_SHARD is queued, so visible to the consumer once it takes END_OF_SHARD
+        private Throwable failure = null;
+
+        ShardTask(final List<Interval> shard) {
+            this.shard = shard;
+        }
+
+        public void run() {
+            try {
+                try {
+                    computeBatches();
+                } catch (final RuntimeException e) {
+                    failure = e;
+                } catch (final Error e) {
+                    failure = e;
+                }
+                batches.put(END_OF_SHARD);
+            } catch (final InterruptedException e) {
+                // The iterator has been closed, so nobody is waiting for the rest of this shard.
+            }
+        }
+
+        private void computeBatches() throws InterruptedException {
+            final SamLocusIterator iterator = makeLocusIterator(threadReader.get(), shard);
+            try {
+                List<SamLocusIterator.LocusInfo> batch = new ArrayList<SamLocusIterator.LocusInfo>(LOCI_PER_BATCH);
+                while (iterator.hasNext()) {
+                    batch.add(iterator.next());
+                    if (batch.size() == LOCI_PER_BATCH) {
+                        batches.put(batch);
+                        batch = new ArrayList<SamLocusIterator.LocusInfo>(LOCI_PER_BATCH);
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    batches.put(batch);
+                }
+            } finally {
+                iterator.close();
+            }
+        }
+
+        /**
+         * @return The next batch of LocusInfos of this shard, or END_OF_SHARD.
+         */
+        List<SamLocusIterator.LocusInfo> takeBatch() {
+            final List<SamLocusIterator.LocusInfo> batch;
+            try {
+                batch = batches.take();
+            } catch (InterruptedException e) {
+                throw new SAMException("Interrupted while iterating over loci", e);
+            }
+            if (batch == END_OF_SHARD && failure != null) {
+                if (failure instanceof Error) {
+                    throw (Error) failure;
+                }
+                throw (RuntimeException) failure;
+            }
+            return batch;
+        }
+    }
+
+    // --------------------------------------------------------------------------------------------
+    // Settings below this point must be changed before iteration starts.
+    // --------------------------------------------------------------------------------------------
+
+    public int getMaxMergeGap() { return maxMergeGap; }
+
+    /**
+     * @param maxMergeGap Intervals separated by no more than this many bases are processed in the same shard,
+     * with a single index query.
+     */
+    public void setMaxMergeGap(final int maxMergeGap) { this.maxMergeGap = maxMergeGap; }
+
+    public int getMaxShardLength() { return maxShardLength; }
+
+    /**
+     * @param maxShardLength The most reference bases spanned by a shard.  Longer intervals are split.
+     */
+    public void setMaxShardLength(final int maxShardLength) {
+        if (maxShardLength < 1) {
+            throw new IllegalArgumentException("maxShardLength must be positive: " + maxShardLength);
+        }
+        this.maxShardLength = maxShardLength;
+    }
+
+    /**
+     * Controls which, if any, SAMRecords are filtered.  By default duplicate reads and non-primary alignments
+     * are filtered out.  The filters are shared by all threads, so must not have mutable state.
+     * @param samFilters list of filters, or null if no filtering is desired.
+     * @see SamLocusIterator#setSamFilters(java.util.List)
+     */
+    public void setSamFilters(final List<SamRecordFilter> samFilters) {
+        this.samFilters = samFilters;
+        this.useDefaultSamFilters = false;
+    }
+
+    public int getQualityScoreCutoff() { return qualityScoreCutoff; }
+    public void setQualityScoreCutoff(final int qualityScoreCutoff) { this.qualityScoreCutoff = qualityScoreCutoff; }
+
+    public int getMappingQualityScoreCutoff() { return mappingQualityScoreCutoff; }
+    public void setMappingQualityScoreCutoff(final int mappingQualityScoreCutoff) { this.mappingQualityScoreCutoff = mappingQualityScoreCutoff; }
+
+    public boolean isIncludeNonPfReads() { return includeNonPfReads; }
+    public void setIncludeNonPfReads(final boolean includeNonPfReads) { this.includeNonPfReads = includeNonPfReads; }
+
+    public boolean isEmitUncoveredLoci() { return emitUncoveredLoci; }
+    public void setEmitUncoveredLoci(final boolean emitUncoveredLoci) { this.emitUncoveredLoci = emitUncoveredLoci; }
+}
@@ -125,6 +125,13 @@ public class QualityEncodingDetector {
             addAsciiQuality(samRecord.getBaseQualityString().getBytes());
         }
 
+        /**
+         * Adds all the qualities observed by another aggregator to this aggregator.
+         */
+        public void add(final QualityRecordAggregator other) {
+            observedAsciiQualities.addAll(other.observedAsciiQualities);
+        }
+
         private void addAsciiQuality(final byte... asciiQualities) {
             for (final byte asciiQuality : asciiQualities) {
                 observedAsciiQualities.add((int) asciiQuality);
@@ -186,6 +193,13 @@ public class QualityEncodingDetector {
         this.qualityAggregator.add(samRecord);
     }
 
+    /**
+     * Adds the qualities observed by another detector to this detector.
+     */
+    public void add(final QualityEncodingDetector other) {
+        this.qualityAggregator.add(other.qualityAggregator);
+    }
+
     /**
      * Tests whether or not the detector can make a determination without guessing (i.e., if all but one quality format
      * can be excluded using established exclusion conventions).
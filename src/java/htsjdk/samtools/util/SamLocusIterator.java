@@ -87,23 +87,124 @@ public class SamLocusIterator implements Iterable<SamLocusIterator.LocusInfo>, C
     }
 
     /**
-     * The unit of iteration.  Holds the locus, plus a ReadAndOffset for each read that overlaps the locus
+     * The unit of iteration.  Holds the locus, plus the base, quality, read offset, strand and record of each read
+     * that overlaps the locus.  These are kept in parallel primitive arrays rather than as an object per read, so
+     * deep pileups do not allocate per base; getRecordAndPositions() is a view over them.
      */
     public static class LocusInfo implements Locus {
-        private final SAMSequenceRecord referenceSequence;
-        private final int position;
-        private final List<RecordAndOffset> recordAndOffsets = new ArrayList<RecordAndOffset>(100);
+        private static final int INITIAL_CAPACITY = 16;
+
+        private SAMSequenceRecord referenceSequence;
+        private int position;
+
+        private int size = 0;
+        private byte[] bases = new byte[INITIAL_CAPACITY];
+        private byte[] baseQualities = new byte[INITIAL_CAPACITY];
+        private int[] offsets = new int[INITIAL_CAPACITY];
+        private boolean[] negativeStrand = new boolean[INITIAL_CAPACITY];
+
+        // While the locus is being accumulated, each read is a slot in the iterator's shared record table.
+        // Once the locus has been handed out (unless LocusInfos are being reused), or if reads were added
+        // through the public add(), the reads are held directly in records instead.
+        private RecordTable recordTable;
+        private int[] recordSlots;
+        private SAMRecord[] records;
+
+        private List<RecordAndOffset> recordAndOffsets = null;
 
         LocusInfo(final SAMSequenceRecord referenceSequence, final int position) {
             this.referenceSequence = referenceSequence;
             this.position = position;
         }
 
+        private LocusInfo(final SAMSequenceRecord referenceSequence, final int position, final RecordTable recordTable) {
+            this(referenceSequence, position);
+            this.recordTable = recordTable;
+            this.recordSlots = new int[INITIAL_CAPACITY];
+        }
+
         /**
          * Accumulate info for one read at the locus.
          */
         public void add(final SAMRecord read, final int position) {
-            recordAndOffsets.add(new RecordAndOffset(read, position));
+            if (recordTable != null) {
+                detach();
+            }
+            if (records == null) {
+                records = new SAMRecord[bases.length];
+            }
+            final int i = addBase(read.getReadBases(), read.getBaseQualities(), position, read.getReadNegativeStrandFlag());
+            records[i] = read;
+        }
+
+        /**
+         * Accumulate one base of the read in the given slot of the shared record table.
+         */
+        private void add(final int recordSlot, final byte[] readBases, final byte[] readQualities, final int offset,
+                         final boolean negative) {
+            final int i = addBase(readBases, readQualities, offset, negative);
+            recordSlots[i] = recordSlot;
+        }
+
+        private int addBase(final byte[] readBases, final byte[] readQualities, final int offset, final boolean negative) {
+            if (size == bases.length) {
+                final int capacity = size * 2;
+                bases = Arrays.copyOf(bases, capacity);
+                baseQualities = Arrays.copyOf(baseQualities, capacity);
+                offsets = Arrays.copyOf(offsets, capacity);
+                negativeStrand = Arrays.copyOf(negativeStrand, capacity);
+                if (recordSlots != null) recordSlots = Arrays.copyOf(recordSlots, capacity);
+                if (records != null) records = Arrays.copyOf(records, capacity);
+            }
+            bases[size] = offset < readBases.length ? readBases[offset] : (byte) 'N';
+            baseQualities[size] = offset < readQualities.length ? readQualities[offset] : 0;
+            offsets[size] = offset;
+            negativeStrand[size] = negative;
+            recordAndOffsets = null;
+            return size++;
+        }
+
+        /**
+         * Stop referring to the shared record table, holding the reads of this locus directly.
+         */
+        private void detach() {
+            if (recordTable == null) {
+                return;
+            }
+            // Parallel to bases, so that add() can append to it; empty loci allocate it only if a read is added.
+            records = size == 0 ? null : new SAMRecord[bases.length];
+            for (int i = 0; i < size; ++i) {
+                records[i] = recordTable.get(recordSlots[i]);
+                recordTable.release(recordSlots[i]);
+            }
+            recordTable = null;
+            recordSlots = null;
+        }
+
+        /**
+         * Make this empty locus hold a new position, reusing its buffers.
+         */
+        private void recycle(final SAMSequenceRecord referenceSequence, final int position, final RecordTable recordTable) {
+            this.referenceSequence = referenceSequence;
+            this.position = position;
+            this.recordTable = recordTable;
+            if (recordSlots == null) {
+                recordSlots = new int[bases.length];
+            }
+            records = null;
+            recordAndOffsets = null;
+        }
+
+        /**
+         * Give back the slots of this locus to the shared record table, and make the locus empty.
+         */
+        private void releaseRecords() {
+            if (recordTable != null) {
+                for (int i = 0; i < size; ++i) {
+                    recordTable.release(recordSlots[i]);
+                }
+            }
+            size = 0;
         }
 
         public int getSequenceIndex() { return referenceSequence.getSequenceIndex(); }
@@ -113,8 +214,51 @@ public class SamLocusIterator implements Iterable<SamLocusIterator.LocusInfo>, C
          */
         public int getPosition() { return position; }
 
+        /**
+         * @return the number of reads accumulated at this locus
+         */
+        public int size() { return size; }
+
+        public boolean isEmpty() { return size == 0; }
+
+        /**
+         * @return the base of the i-th read at this locus
+         */
+        public byte getBase(final int i) { return bases[checkIndex(i)]; }
+
+        /**
+         * @return the base quality of the i-th read at this locus
+         */
+        public byte getBaseQuality(final int i) { return baseQualities[checkIndex(i)]; }
+
+        /**
+         * @return zero-based offset into the i-th read corresponding to this locus
+         */
+        public int getOffset(final int i) { return offsets[checkIndex(i)]; }
+
+        public boolean isNegativeStrand(final int i) { return negativeStrand[checkIndex(i)]; }
+
+        public SAMRecord getRecord(final int i) {
+            checkIndex(i);
+            return recordTable != null ? recordTable.get(recordSlots[i]) : records[i];
+        }
+
+        private int checkIndex(final int i) {
+            if (i < 0 || i >= size) {
+                throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+            }
+            return i;
+        }
+
         public List<RecordAndOffset> getRecordAndPositions() {
-            return Collections.unmodifiableList(recordAndOffsets);
+            if (recordAndOffsets == null) {
+                final List<RecordAndOffset> list = new ArrayList<RecordAndOffset>(size);
+                for (int i = 0; i < size; ++i) {
+                    list.add(new RecordAndOffset(getRecord(i), offsets[i]));
+                }
+                recordAndOffsets = Collections.unmodifiableList(list);
+            }
+            return recordAndOffsets;
         }
 
         public String getSequenceName() { return referenceSequence.getSequenceName(); }
@@ -127,7 +271,62 @@ public class SamLocusIterator implements Iterable<SamLocusIterator.LocusInfo>, C
         public int getSequenceLength(){return referenceSequence.getSequenceLength();}
     }
 
+    /**
+     * The reads that overlap the LocusInfos being accumulated.  Each read is stored once, in a slot that
+     * the LocusInfos refer to by index, and the slot is freed when the last LocusInfo that refers to it is
+     * handed out or recycled.
+     */
+    private static class RecordTable {
+        private SAMRecord[] records = new SAMRecord[256];
+        private int[] referenceCounts = new int[256];
+        private int[] freeSlots = new int[256];
+        private int numFreeSlots = 0;
+        private int numSlots = 0;
+
+        /**
+         * @return the slot holding the record.  It is freed once released as many times as it is retained.
+         */
+        int add(final SAMRecord record) {
+            final int slot;
+            if (numFreeSlots > 0) {
+                slot = freeSlots[--numFreeSlots];
+            } else {
+                if (numSlots == records.length) {
+                    records = Arrays.copyOf(records, numSlots * 2);
+                    referenceCounts = Arrays.copyOf(referenceCounts, numSlots * 2);
+                }
+                slot = numSlots++;
+            }
+            records[slot] = record;
+            referenceCounts[slot] = 0;
+            return slot;
+        }
 
+        SAMRecord get(final int slot) {
+            return records[slot];
+        }
+
+        void retain(final int slot, final int count) {
+            referenceCounts[slot] += count;
+            if (referenceCounts[slot] == 0) {
+                free(slot);
+            }
+        }
+
+        void release(final int slot) {
+            if (--referenceCounts[slot] == 0) {
+                free(slot);
+            }
+        }
+
+        private void free(final int slot) {
+            records[slot] = null;
+            if (numFreeSlots == freeSlots.length) {
+                freeSlots = Arrays.copyOf(freeSlots, numFreeSlots * 2);
+            }
+            freeSlots[numFreeSlots++] = slot;
+        }
+    }
 
     private final SAMFileReader samReader;
     private final ReferenceSequenceMask referenceSequenceMask;
@@ -165,6 +364,19 @@ public class SamLocusIterator implements Iterable<SamLocusIterator.LocusInfo>, C
 
     private final LocusComparator<Locus> locusComparator = new LocusComparator<Locus>();
 
+    // Reads that overlap the LocusInfos in the accumulator
+    private final RecordTable recordTable = new RecordTable();
+
+    // LocusInfos whose buffers may be used for new loci
+    private final List<LocusInfo> freeLocusInfos = new ArrayList<LocusInfo>();
+
+    /**
+     * If true, the LocusInfo returned by next() is recycled on the following call to next(), so that its
+     * buffers are reused rather than allocated for every locus.
+     */
+    private boolean reuseLocusInfos = false;
+    private LocusInfo lastReturned = null;
+
 
     /**
      * Prepare to iterate through the given SAM records, skipping non-primary alignments.  Do not use
@@ -248,7 +460,7 @@ public class SamLocusIterator implements Iterable<SamLocusIterator.LocusInfo>, C
         }
 
         while (complete.isEmpty() && ((!accumulator.isEmpty()) || samHasMore() || hasRemainingMaskBases())) {
-            final LocusInfo locusInfo = next();
+            final LocusInfo locusInfo = nextLocusInfo();
             if (locusInfo != null) {
                 complete.addFirst(locusInfo);
             }
@@ -276,6 +488,22 @@ public class SamLocusIterator implements Iterable<SamLocusIterator.LocusInfo>, C
      * hasNext() has been fixed so that if it returns true, next() is now guaranteed not to return null.
      */
     public LocusInfo next() {
+        if (lastReturned != null) {
+            recycle(lastReturned);
+            lastReturned = null;
+        }
+        final LocusInfo locusInfo = nextLocusInfo();
+        if (locusInfo != null) {
+            if (reuseLocusInfos) {
+                lastReturned = locusInfo;
+            } else {
+                locusInfo.detach();
+            }
+        }
+        return locusInfo;
+    }
+
+    private LocusInfo nextLocusInfo() {
 
         // if we don't have any completed entries to return, try and make some!
         while(complete.isEmpty() && samHasMore()) {
@@ -357,8 +585,31 @@ public class SamLocusIterator implements Iterable<SamLocusIterator.LocusInfo>, C
      * creating new LocusInfos as needed.
      */
     private void accumulateSamRecord(final SAMRecord rec) {
-        // interpret the CIGAR string and add the base info
-        for(final AlignmentBlock alignmentBlock : rec.getAlignmentBlocks()) {
+        final List<AlignmentBlock> alignmentBlocks = rec.getAlignmentBlocks();
+        if (alignmentBlocks.isEmpty()) {
+            return;
+        }
+        final SAMSequenceRecord referenceSequence = getReferenceSequence(rec.getReferenceIndex());
+        final AlignmentBlock lastBlock = alignmentBlocks.get(alignmentBlocks.size() - 1);
+        final int lastRefOffset = lastBlock.getReferenceStart() + lastBlock.getLength() - 1 - rec.getAlignmentStart();
+
+        // Ensure there are LocusInfos up to and including the last aligned position
+        for (int j = accumulator.size(); j <= lastRefOffset; ++j) {
+            accumulator.add(newLocusInfo(referenceSequence, rec.getAlignmentStart() + j));
+        }
+
+        final byte[] readBases = rec.getReadBases();
+        final byte[] readQualities = rec.getBaseQualities();
+        final boolean negative = rec.getReadNegativeStrandFlag();
+        final int slot = recordTable.add(rec);
+        int basesAdded = 0;
+
+        // interpret the CIGAR string and add the base info.  Blocks are in reference order, so the
+        // accumulator is walked once rather than indexed for every base.
+        final Iterator<LocusInfo> loci = accumulator.iterator();
+        int lociOffset = 0;
+        LocusInfo locusInfo = null;
+        for(final AlignmentBlock alignmentBlock : alignmentBlocks) {
             for (int i = 0; i < alignmentBlock.getLength(); ++i) {
                 // 0-based offset into the read of the current base
                 final int readOffset = alignmentBlock.getReadStart() + i - 1;
@@ -368,18 +619,39 @@ public class SamLocusIterator implements Iterable<SamLocusIterator.LocusInfo>, C
                 // 0-based offset from the aligned position of the first base in the read to the aligned position
                 // of the current base.
                 final int refOffset =  refPos - rec.getAlignmentStart();
-
-                // Ensure there are LocusInfos up to and including this position
-                for (int j = accumulator.size(); j <= refOffset; ++j) {
-                    accumulator.add(new LocusInfo(getReferenceSequence(rec.getReferenceIndex()),
-                            rec.getAlignmentStart() + j));
+                while (lociOffset <= refOffset) {
+                    locusInfo = loci.next();
+                    ++lociOffset;
                 }
+
                 // if the quality score cutoff is met, accumulate the base info
-                if (rec.getBaseQualities()[readOffset] >= getQualityScoreCutoff()) {
-                    accumulator.get(refOffset).add(rec, readOffset);
+                if (readQualities[readOffset] >= getQualityScoreCutoff()) {
+                    locusInfo.add(slot, readBases, readQualities, readOffset, negative);
+                    ++basesAdded;
                 }
             }
         }
+        recordTable.retain(slot, basesAdded);
+    }
+
+    /**
+     * Free the reads of a LocusInfo that will not be returned again, and keep its buffers for a later locus.
+     */
+    private void recycle(final LocusInfo locusInfo) {
+        locusInfo.releaseRecords();
+        freeLocusInfos.add(locusInfo);
+    }
+
+    /**
+     * @return an empty LocusInfo, reusing the buffers of a recycled one if there is one.
+     */
+    private LocusInfo newLocusInfo(final SAMSequenceRecord referenceSequence, final int position) {
+        if (freeLocusInfos.isEmpty()) {
+            return new LocusInfo(referenceSequence, position, recordTable);
+        }
+        final LocusInfo locusInfo = freeLocusInfos.remove(freeLocusInfos.size() - 1);
+        locusInfo.recycle(referenceSequence, position, recordTable);
+        return locusInfo;
     }
 
     /**
@@ -412,7 +684,7 @@ public class SamLocusIterator implements Iterable<SamLocusIterator.LocusInfo>, C
             } else if (lastReferenceSequence < stopBeforeLocus.getSequenceIndex() ||
                     nextbit < stopBeforeLocus.getPosition()) {
                 lastPosition = nextbit;
-                return new LocusInfo(getReferenceSequence(lastReferenceSequence), lastPosition);
+                return newLocusInfo(getReferenceSequence(lastReferenceSequence), lastPosition);
             } else if (nextbit >= stopBeforeLocus.getPosition()) {
                 return null;
             }
@@ -432,9 +704,9 @@ public class SamLocusIterator implements Iterable<SamLocusIterator.LocusInfo>, C
     private void populateCompleteQueue(final Locus stopBeforeLocus) {
         // Because of gapped alignments, it is possible to create LocusInfo's with no reads associated with them.
         // Skip over these.
-        while (!accumulator.isEmpty() && accumulator.getFirst().getRecordAndPositions().isEmpty() &&
+        while (!accumulator.isEmpty() && accumulator.getFirst().isEmpty() &&
                locusComparator.compare(accumulator.getFirst(), stopBeforeLocus) < 0) {
-            accumulator.removeFirst();
+            recycle(accumulator.removeFirst());
         }
         if (accumulator.isEmpty()) {
             return;
@@ -463,6 +735,8 @@ public class SamLocusIterator implements Iterable<SamLocusIterator.LocusInfo>, C
         // only add to the complete queue if it's in the mask (or we have no mask!)
         if (referenceSequenceMask.get(locusInfo.getSequenceIndex(), locusInfo.getPosition())) {
             complete.addLast(locusInfo);
+        } else {
+            recycle(locusInfo);
         }
 
         lastReferenceSequence = sequenceIndex;
@@ -501,6 +775,15 @@ public class SamLocusIterator implements Iterable<SamLocusIterator.LocusInfo>, C
     public boolean isIncludeNonPfReads() { return includeNonPfReads; }
     public void setIncludeNonPfReads(final boolean includeNonPfReads) { this.includeNonPfReads = includeNonPfReads; }
 
+    public boolean isReuseLocusInfos() { return reuseLocusInfos; }
+
+    /**
+     * @param reuseLocusInfos If true, the LocusInfo returned by next() is only valid until the following call to
+     * next(), after which its buffers are used for another locus.  This avoids allocating for every locus when
+     * the caller does not hold on to LocusInfos.
+     */
+    public void setReuseLocusInfos(final boolean reuseLocusInfos) { this.reuseLocusInfos = reuseLocusInfos; }
+
     public boolean isEmitUncoveredLoci() {
         return emitUncoveredLoci;
     }
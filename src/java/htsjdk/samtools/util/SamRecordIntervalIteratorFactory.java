@@ -24,8 +24,8 @@
 package htsjdk.samtools.util;
 
 import htsjdk.samtools.QueryInterval;
-import htsjdk.samtools.SAMFileReader;
 import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
 import htsjdk.samtools.filter.IntervalFilter;
 import htsjdk.samtools.filter.SamRecordFilter;
 
@@ -34,7 +34,7 @@ import java.util.List;
 import java.util.NoSuchElementException;
 
 /**
- * Create an iterator over a SAMFileReader that only returns reads that overlap one of the intervals
+ * Create an iterator over a SamReader that only returns reads that overlap one of the intervals
  * in an interval list.
  *
  * @author alecw@broadinstitute.org
@@ -50,7 +50,7 @@ public class SamRecordIntervalIteratorFactory {
      * Note however that if there are many intervals that cover a great deal of the genome, using the BAM
      * index may actually make performance worse.
      */
-    public CloseableIterator<SAMRecord> makeSamRecordIntervalIterator(final SAMFileReader samReader,
+    public CloseableIterator<SAMRecord> makeSamRecordIntervalIterator(final SamReader samReader,
                                                                final List<Interval> uniqueIntervals,
                                                                final boolean useIndex) {
         if (!samReader.hasIndex() || !useIndex) {
@@ -70,8 +70,12 @@ public class SamRecordIntervalIteratorFactory {
             final QueryInterval[] queryIntervals = new QueryInterval[uniqueIntervals.size()];
             for (int i = 0; i < queryIntervals.length; ++i) {
                 final Interval inputInterval = uniqueIntervals.get(i);
-                queryIntervals[i] = samReader.makeQueryInterval(inputInterval.getSequence(),
-                        inputInterval.getStart(), inputInterval.getEnd());
+                final int referenceIndex = samReader.getFileHeader().getSequenceIndex(inputInterval.getSequence());
+                if (referenceIndex < 0) {
+                    throw new IllegalArgumentException(String.format("Sequence '%s' not found in sequence dictionary",
+                            inputInterval.getSequence()));
+                }
+                queryIntervals[i] = new QueryInterval(referenceIndex, inputInterval.getStart(), inputInterval.getEnd());
             }
             return samReader.queryOverlapping(queryIntervals);
         }
@@ -66,6 +66,95 @@ public class SequenceUtil {
         return lhs == rhs;
     }
 
+    /**
+     * Compares two ranges of bases with the same semantics as basesEqual(byte, byte), eight bases at a time.
+     * @return true if every base in lhs[lhsOffset, lhsOffset + length) equals the corresponding base in rhs.
+     */
+    public static boolean basesEqual(final byte[] lhs, final int lhsOffset, final byte[] rhs, final int rhsOffset,
+                                     final int length) {
+        int i = 0;
+        for (; i + BASES_PER_WORD <= length; i += BASES_PER_WORD) {
+            if (mismatchMask(lhs, lhsOffset + i, rhs, rhsOffset + i) != 0) return false;
+        }
+        for (; i < length; ++i) {
+            if (!basesEqual(lhs[lhsOffset + i], rhs[rhsOffset + i])) return false;
+        }
+        return true;
+    }
+
+    /*
+     * Word-at-a-time comparison of bases.  Eight bases are packed little-endian into a long, so that byte i of the
+     * word is bits [8i, 8i+8).  Case folding reproduces basesEqual(byte, byte) exactly: any byte in (90, 127] has
+     * 32 subtracted from it, and bytes >= 128 (negative as a Java byte) are left alone.  After folding, the high bit
+     * of each byte of the returned mask is set iff the corresponding bases differ, so that
+     * Long.bitCount(mask) is the number of mismatches and
+     * Long.numberOfTrailingZeros(mask) >>> 3 is the offset of the first one.
+     */
+    private static final int BASES_PER_WORD = 8;
+    private static final long LOW_SEVEN_BITS = 0x7f7f7f7f7f7f7f7fL;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+    // Added to the low seven bits of a byte, sets the high bit iff the byte is > 90
+    private static final long GREATER_THAN_90 = 0x2525252525252525L;
+
+    /** Reads eight bytes starting at offset into a long, little-endian. */
+    private static long getWord(final byte[] bytes, final int offset) {
+        return (bytes[offset] & 0xffL) |
+                (bytes[offset + 1] & 0xffL) << 8 |
+                (bytes[offset + 2] & 0xffL) << 16 |
+                (bytes[offset + 3] & 0xffL) << 24 |
+                (bytes[offset + 4] & 0xffL) << 32 |
+                (bytes[offset + 5] & 0xffL) << 40 |
+                (bytes[offset + 6] & 0xffL) << 48 |
+                (bytes[offset + 7] & 0xffL) << 56;
+    }
+
+    /** Upper-cases each byte of the word the way basesEqual(byte, byte) does. */
+    private static long foldCase(final long word) {
+        final long greaterThan90 = ((word & LOW_SEVEN_BITS) + GREATER_THAN_90) & ~word & HIGH_BITS;
+        return word - (greaterThan90 >>> 2);
+    }
+
+    /** @return a word with the high bit of byte i set iff bases lhs[lhsOffset + i] and rhs[rhsOffset + i] differ. */
+    private static long mismatchMask(final byte[] lhs, final int lhsOffset, final byte[] rhs, final int rhsOffset) {
+        final long lhsWord = getWord(lhs, lhsOffset);
+        final long rhsWord = getWord(rhs, rhsOffset);
+        if (lhsWord == rhsWord) return 0;
+        final long diff = foldCase(lhsWord) ^ foldCase(rhsWord);
+        return (((diff & LOW_SEVEN_BITS) + LOW_SEVEN_BITS) | diff) & HIGH_BITS;
+    }
+
+    /**
+     * Counts the mismatches between readBases[readStart, readStart + length) and the corresponding reference bases.
+     */
+    private static int countMismatches(final byte[] readBases, final int readStart,
+                                       final byte[] referenceBases, final int referenceStart, final int length,
+                                       final boolean bisulfiteSequence, final boolean negativeStrand) {
+        int mismatches = 0;
+        int i = 0;
+        for (; i + BASES_PER_WORD <= length; i += BASES_PER_WORD) {
+            long mismatchMask = mismatchMask(readBases, readStart + i, referenceBases, referenceStart + i);
+            if (!bisulfiteSequence) {
+                mismatches += Long.bitCount(mismatchMask);
+            } else {
+                while (mismatchMask != 0) {
+                    final int j = i + (Long.numberOfTrailingZeros(mismatchMask) >>> 3);
+                    mismatchMask &= mismatchMask - 1;
+                    if (!isBisulfiteConverted(readBases[readStart + j], referenceBases[referenceStart + j], negativeStrand)) {
+                        ++mismatches;
+                    }
+                }
+            }
+        }
+        for (; i < length; ++i) {
+            if (!basesEqual(readBases[readStart + i], referenceBases[referenceStart + i]) &&
+                    (!bisulfiteSequence ||
+                            !isBisulfiteConverted(readBases[readStart + i], referenceBases[referenceStart + i], negativeStrand))) {
+                ++mismatches;
+            }
+        }
+        return mismatches;
+    }
+
     /**
      * returns true if the value of base represents a no call
      */
@@ -279,25 +368,11 @@ public class SequenceUtil {
             int mismatches = 0;
 
             final byte[] readBases = read.getReadBases();
+            final boolean negativeStrand = read.getReadNegativeStrandFlag();
 
             for (final AlignmentBlock block : read.getAlignmentBlocks()) {
-                final int readBlockStart = block.getReadStart() - 1;
-                final int referenceBlockStart = block.getReferenceStart() - 1 - referenceOffset;
-                final int length = block.getLength();
-
-                for (int i=0; i<length; ++i) {
-                    if (!bisulfiteSequence) {
-                        if (!basesEqual(readBases[readBlockStart+i], referenceBases[referenceBlockStart+i])) {
-                            ++mismatches;
-                        }
-                    }
-                    else {
-                        if (!bisulfiteBasesEqual(read.getReadNegativeStrandFlag(), readBases[readBlockStart+i],
-                                referenceBases[referenceBlockStart+i])) {
-                            ++mismatches;
-                        }
-                    }
-                }
+                mismatches += countMismatches(readBases, block.getReadStart() - 1, referenceBases,
+                        block.getReferenceStart() - 1 - referenceOffset, block.getLength(), bisulfiteSequence, negativeStrand);
             }
             return mismatches;
         } catch (Exception e) {
@@ -386,23 +461,30 @@ public class SequenceUtil {
                     ") <= referenceOffset(" + referenceOffset + ")");
         }
 
+        final boolean negativeStrand = read.getReadNegativeStrandFlag();
+
         for (final AlignmentBlock block : read.getAlignmentBlocks()) {
             final int readBlockStart = block.getReadStart() - 1;
             final int referenceBlockStart = block.getReferenceStart() - 1 - referenceOffset;
             final int length = block.getLength();
 
-            for (int i=0; i<length; ++i) {
-                if (!bisulfiteSequence) {
-                    if (!basesEqual(readBases[readBlockStart+i], referenceBases[referenceBlockStart+i])) {
-                        qualities += readQualities[readBlockStart+i];
+            int i = 0;
+            for (; i + BASES_PER_WORD <= length; i += BASES_PER_WORD) {
+                long mismatchMask = mismatchMask(readBases, readBlockStart + i, referenceBases, referenceBlockStart + i);
+                while (mismatchMask != 0) {
+                    final int j = i + (Long.numberOfTrailingZeros(mismatchMask) >>> 3);
+                    mismatchMask &= mismatchMask - 1;
+                    if (!bisulfiteSequence ||
+                            !isBisulfiteConverted(readBases[readBlockStart+j], referenceBases[referenceBlockStart+j], negativeStrand)) {
+                        qualities += readQualities[readBlockStart+j];
                     }
-
                 }
-                else {
-                    if (!bisulfiteBasesEqual(read.getReadNegativeStrandFlag(), readBases[readBlockStart+i],
-                            referenceBases[referenceBlockStart+i])) {
-                        qualities += readQualities[readBlockStart+i];
-                    }
+            }
+            for (; i<length; ++i) {
+                if (!basesEqual(readBases[readBlockStart+i], referenceBases[referenceBlockStart+i]) &&
+                        (!bisulfiteSequence ||
+                                !isBisulfiteConverted(readBases[readBlockStart+i], referenceBases[referenceBlockStart+i], negativeStrand))) {
+                    qualities += readQualities[readBlockStart+i];
                 }
             }
         }
@@ -525,6 +607,112 @@ public class SequenceUtil {
         return samNm;
     }
 
+    /**
+     * Calculates the predefined NM and MD tags from the SAM spec in a single pass over the CIGAR, and sets them on
+     * the read.  NM is the same value calculateSamNmTag() returns.  In MD, mismatched and deleted reference bases
+     * are written upper-cased.  Unmapped reads are left unchanged.
+     *
+     * @param referenceBases Array of ASCII bytes in which the 0th position in the array corresponds
+     * to the first element of the reference sequence to which read is aligned.
+     */
+    public static void calculateMdAndNmTags(final SAMRecord read, final byte[] referenceBases) {
+        calculateMdAndNmTags(read, referenceBases, 0, false);
+    }
+
+    /**
+     * Calculates the predefined NM and MD tags from the SAM spec in a single pass over the CIGAR, and sets them on
+     * the read.  NM is the same value calculateSamNmTag() returns.  In MD, mismatched and deleted reference bases
+     * are written upper-cased, and bisulfite conversions that are not counted as mismatches are reported as matches.
+     * Unmapped reads are left unchanged.
+     *
+     * @param referenceBases Array of ASCII bytes that covers at least the the portion of the reference sequence
+     * to which read is aligned from getReferenceStart to getReferenceEnd.
+     * @param referenceOffset 0-based offset of the first element of referenceBases relative to the start
+     * of that reference sequence.
+     * @param bisulfiteSequence If this is true, it is assumed that the reads were bisulfite treated
+     *      and C->T on the positive strand and G->A on the negative strand will not be counted
+     *      as mismatches.
+     */
+    public static void calculateMdAndNmTags(final SAMRecord read, final byte[] referenceBases,
+                                            final int referenceOffset, final boolean bisulfiteSequence) {
+        if (read.getReadUnmappedFlag()) return;
+        final byte[] readBases = read.getReadBases();
+        final boolean negativeStrand = read.getReadNegativeStrandFlag();
+        final StringBuilder md = new StringBuilder();
+        int samNm = 0;
+        int matches = 0;
+        int readPos = 0;
+        int referencePos = read.getAlignmentStart() - 1 - referenceOffset;
+        try {
+            for (final CigarElement el : read.getCigar().getCigarElements()) {
+                final int length = el.getLength();
+                switch (el.getOperator()) {
+                    case M:
+                    case EQ:
+                    case X:
+                        int i = 0;
+                        for (; i + BASES_PER_WORD <= length; i += BASES_PER_WORD) {
+                            long mismatchMask = mismatchMask(readBases, readPos + i, referenceBases, referencePos + i);
+                            int last = i;
+                            while (mismatchMask != 0) {
+                                final int j = i + (Long.numberOfTrailingZeros(mismatchMask) >>> 3);
+                                mismatchMask &= mismatchMask - 1;
+                                if (!bisulfiteSequence ||
+                                        !isBisulfiteConverted(readBases[readPos + j], referenceBases[referencePos + j], negativeStrand)) {
+                                    md.append(matches + j - last).append((char) StringUtil.toUpperCase(referenceBases[referencePos + j]));
+                                    matches = 0;
+                                    last = j + 1;
+                                    ++samNm;
+                                }
+                            }
+                            matches += i + BASES_PER_WORD - last;
+                        }
+                        for (; i < length; ++i) {
+                            final byte readBase = readBases[readPos + i];
+                            final byte referenceBase = referenceBases[referencePos + i];
+                            if (basesEqual(readBase, referenceBase) ||
+                                    (bisulfiteSequence && isBisulfiteConverted(readBase, referenceBase, negativeStrand))) {
+                                ++matches;
+                            } else {
+                                md.append(matches).append((char) StringUtil.toUpperCase(referenceBase));
+                                matches = 0;
+                                ++samNm;
+                            }
+                        }
+                        readPos += length;
+                        referencePos += length;
+                        break;
+                    case D:
+                        md.append(matches).append('^');
+                        for (int k = 0; k < length; ++k) {
+                            md.append((char) StringUtil.toUpperCase(referenceBases[referencePos + k]));
+                        }
+                        matches = 0;
+                        samNm += length;
+                        referencePos += length;
+                        break;
+                    case N:
+                        referencePos += length;
+                        break;
+                    case I:
+                        samNm += length;
+                        readPos += length;
+                        break;
+                    case S:
+                        readPos += length;
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } catch (Exception e) {
+            throw new SAMException("Exception calculating MD and NM tags for read " + read, e);
+        }
+        md.append(matches);
+        read.setAttribute(SAMTag.MD.name(), md.toString());
+        read.setAttribute(SAMTag.NM.name(), samNm);
+    }
+
     /** Returns the complement of a single byte. */
     public static byte complement(final byte b) {
         switch (b) {
@@ -23,20 +23,24 @@
  */
 package htsjdk.samtools.util;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.EOFException;
+import htsjdk.samtools.Defaults;
+
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
 import java.util.List;
 import java.util.NoSuchElementException;
-import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Accumulate a list of longs that can then be sorted in natural order and iterated over.
@@ -55,7 +59,12 @@ import java.util.PriorityQueue;
  * and iterated over trivially.
  *
  * If there are more values that can fit in RAM, then values are sorted and written to a temp file when the max
- * number to be stored in RAM is reached. Multiple temp files are then merged during iteration via PriorityQueue.
+ * number to be stored in RAM is reached. Multiple temp files are then merged during iteration via a binary heap
+ * of primitive values, reading each temp file through a sliding memory-mapped window.
+ *
+ * By default the in-RAM buffer is sorted with Arrays.sort().  If radixSortThreads > 0 is passed to the ctor, an LSD
+ * radix sort is used instead, spread across that many threads.  The radix sort is much faster for large buffers,
+ * but requires a second buffer of maxValuesInRam longs, so it doubles the RAM used by this class.
  *
  * c.f. SortingCollection for more details.
  *
@@ -65,6 +74,16 @@ public class SortingLongCollection {
     public static final int SIZEOF = 8;
     public static final int MAX_ITEMS_IN_RAM = (int)Math.floor((Integer.MAX_VALUE/8)*.999);
 
+    /** Number of values in each memory-mapped window when reading back a temp file. */
+    private static final int MAPPED_WINDOW_VALUES = 1024 * 1024;
+
+    /** Below this many values, radix sort is done on the calling thread regardless of radixSortThreads. */
+    private static final int MIN_VALUES_PER_SORT_THREAD = 64 * 1024;
+
+    private static final int RADIX_BITS = 8;
+    private static final int RADIX = 1 << RADIX_BITS;
+    private static final int RADIX_PASSES = 64 / RADIX_BITS;
+
     /**
      * Where files of sorted values go.
      */
@@ -74,6 +93,15 @@ public class SortingLongCollection {
     private int numValuesInRam = 0;
     private long[] ramValues;
 
+    /**
+     * Number of threads to use for radix sorting the in-RAM buffer, or 0 to use Arrays.sort().
+     */
+    private final int radixSortThreads;
+
+    /**
+     * Scratch buffer for radix sort, allocated on first use.
+     */
+    private long[] radixScratch;
 
     /**
      * Set to true when done adding and ready to iterate
@@ -93,8 +121,11 @@ public class SortingLongCollection {
     // for in-memory iteration
     private int iterationIndex = 0;
 
-    // For disk-based iteration
-    private PriorityQueue<PeekFileValueIterator> priorityQueue;
+    // For disk-based iteration.  A binary min-heap of the next value from each temp file, keyed on heapValues,
+    // with heapReaders holding the reader from which each value came.
+    private long[] heapValues;
+    private FileValueReader[] heapReaders;
+    private int heapSize = 0;
 
     /**
      * Prepare to accumulate values to be sorted
@@ -102,11 +133,27 @@ public class SortingLongCollection {
      * @param tmpDir Where to write files of values that will not fit in RAM
      */
     public SortingLongCollection(final int maxValuesInRam, final File... tmpDir) {
+        this(maxValuesInRam, 0, tmpDir);
+    }
+
+    /**
+     * Prepare to accumulate values to be sorted
+     * @param maxValuesInRam how many values to accumulate before spilling to disk
+     * @param radixSortThreads if > 0, sort the values in RAM with an LSD radix sort using up to this many threads.
+     *                         This requires an additional buffer of maxValuesInRam longs.
+     *                         If 0, values in RAM are sorted with Arrays.sort().
+     * @param tmpDir Where to write files of values that will not fit in RAM
+     */
+    public SortingLongCollection(final int maxValuesInRam, final int radixSortThreads, final File... tmpDir) {
         if (maxValuesInRam <= 0) {
             throw new IllegalArgumentException("maxValuesInRam must be > 0");
         }
+        if (radixSortThreads < 0) {
+            throw new IllegalArgumentException("radixSortThreads must be >= 0");
+        }
         this.tmpDir = tmpDir;
         this.maxValuesInRam = Math.min(maxValuesInRam, MAX_ITEMS_IN_RAM);
+        this.radixSortThreads = radixSortThreads;
         this.ramValues = new long[maxValuesInRam];
     }
 
@@ -134,7 +181,8 @@ public class SortingLongCollection {
         doneAdding = true;
 
         if (this.files.isEmpty()) {
-            Arrays.sort(this.ramValues, 0, this.numValuesInRam);
+            sortRamValues();
+            this.radixScratch = null;
             return;
         }
 
@@ -142,17 +190,22 @@ public class SortingLongCollection {
             spillToDisk();
         }
 
-        this.priorityQueue = new PriorityQueue<PeekFileValueIterator>(files.size(),
-                                                                       new PeekFileValueIteratorComparator());
+        // Facilitate GC
+        this.ramValues = null;
+        this.radixScratch = null;
+
+        this.heapValues = new long[files.size()];
+        this.heapReaders = new FileValueReader[files.size()];
         for (final File f : files) {
-            final FileValueIterator it = new FileValueIterator(f);
-            if (it.hasNext()) {
-                this.priorityQueue.offer(new PeekFileValueIterator(it));
+            final FileValueReader reader = new FileValueReader(f);
+            if (reader.hasNext()) {
+                heapValues[heapSize] = reader.next();
+                heapReaders[heapSize] = reader;
+                siftUp(heapSize++);
+            } else {
+                reader.close();
             }
         }
-
-        // Facilitate GC
-        this.ramValues = null;
     }
 
     /**
@@ -161,21 +214,29 @@ public class SortingLongCollection {
     private void spillToDisk() {
 
         try {
-            Arrays.sort(this.ramValues, 0, this.numValuesInRam);
+            sortRamValues();
             final File f = IOUtil.newTempFile("sortingcollection.", ".tmp", this.tmpDir, IOUtil.FIVE_GBS);
-            DataOutputStream os = null;
+            RandomAccessFile raf = null;
             try {
-                final long numBytes = this.numValuesInRam * SIZEOF;
-                os = new DataOutputStream(IOUtil.maybeBufferOutputStream(new FileOutputStream(f)));
+                raf = new RandomAccessFile(f, "rw");
                 f.deleteOnExit();
-                for (int i = 0; i < this.numValuesInRam; ++i) {
-                    os.writeLong(ramValues[i]);
+                final FileChannel channel = raf.getChannel();
+                final ByteBuffer buffer = ByteBuffer.allocateDirect(Defaults.NON_ZERO_BUFFER_SIZE - Defaults.NON_ZERO_BUFFER_SIZE % SIZEOF);
+                final LongBuffer longBuffer = buffer.asLongBuffer();
+                for (int i = 0; i < this.numValuesInRam; ) {
+                    final int n = Math.min(longBuffer.capacity(), this.numValuesInRam - i);
+                    longBuffer.clear();
+                    longBuffer.put(ramValues, i, n);
+                    buffer.position(0).limit(n * SIZEOF);
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    i += n;
                 }
-                os.flush();
             }
             finally {
-                if (os != null) {
-                    os.close();
+                if (raf != null) {
+                    raf.close();
                 }
             }
 
@@ -188,6 +249,21 @@ public class SortingLongCollection {
         }
     }
 
+    /**
+     * Sort ramValues[0, numValuesInRam) with whichever algorithm was requested in the ctor.
+     */
+    private void sortRamValues() {
+        if (radixSortThreads == 0) {
+            Arrays.sort(this.ramValues, 0, this.numValuesInRam);
+        } else {
+            if (radixScratch == null) {
+                radixScratch = new long[ramValues.length];
+            }
+            radixSort(ramValues, radixScratch, numValuesInRam,
+                    Math.max(1, Math.min(radixSortThreads, numValuesInRam / MIN_VALUES_PER_SORT_THREAD)));
+        }
+    }
+
     /**
      * Delete any temporary files.  After this method is called, no other method calls should be made on this object.
      */
@@ -195,6 +271,13 @@ public class SortingLongCollection {
         this.doneAdding = true;
         this.cleanedUp = true;
         this.ramValues = null;
+        this.radixScratch = null;
+
+        for (int i = 0; i < heapSize; ++i) {
+            heapReaders[i].close();
+            heapReaders[i] = null;
+        }
+        heapSize = 0;
 
         IOUtil.deleteFiles(this.files);
     }
@@ -213,7 +296,7 @@ public class SortingLongCollection {
             // in-memory iteration
             return this.iterationIndex < numValuesInRam;
         } else {
-            return !priorityQueue.isEmpty();
+            return heapSize > 0;
         }
     }
 
@@ -229,120 +312,251 @@ public class SortingLongCollection {
             // in-memory iteration
             return ramValues[iterationIndex++];
         } else {
-
-            final PeekFileValueIterator fileIterator = priorityQueue.poll();
-            final long ret = fileIterator.next();
-            if (fileIterator.hasNext()) {
-                this.priorityQueue.offer(fileIterator);
+            final long ret = heapValues[0];
+            final FileValueReader reader = heapReaders[0];
+            if (reader.hasNext()) {
+                heapValues[0] = reader.next();
             } else {
-                fileIterator.close();
+                reader.close();
+                --heapSize;
+                heapValues[0] = heapValues[heapSize];
+                heapReaders[0] = heapReaders[heapSize];
+                heapReaders[heapSize] = null;
             }
+            siftDown(0);
             return ret;
         }
     }
 
+    private void siftUp(int i) {
+        final long value = heapValues[i];
+        final FileValueReader reader = heapReaders[i];
+        while (i > 0) {
+            final int parent = (i - 1) >>> 1;
+            if (heapValues[parent] <= value) break;
+            heapValues[i] = heapValues[parent];
+            heapReaders[i] = heapReaders[parent];
+            i = parent;
+        }
+        heapValues[i] = value;
+        heapReaders[i] = reader;
+    }
+
+    private void siftDown(int i) {
+        if (i >= heapSize) return;
+        final long value = heapValues[i];
+        final FileValueReader reader = heapReaders[i];
+        final int half = heapSize >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            final int right = child + 1;
+            if (right < heapSize && heapValues[right] < heapValues[child]) {
+                child = right;
+            }
+            if (value <= heapValues[child]) break;
+            heapValues[i] = heapValues[child];
+            heapReaders[i] = heapReaders[child];
+            i = child;
+        }
+        heapValues[i] = value;
+        heapReaders[i] = reader;
+    }
+
     /**
-     * Read a file of longs
+     * Stable LSD radix sort of values[0, n) into natural (signed) order, 8 bits at a time.  Each pass computes
+     * per-thread histograms of a contiguous slice, then each thread scatters its slice into scratch at offsets that
+     * preserve the order of the slices.  Passes in which every value has the same digit are skipped.
+     *
+     * @param values data to be sorted.  On return, values[0, n) is sorted.
+     * @param scratch buffer at least n long.  Contents on return are undefined.
+     * @param numThreads number of threads among which to split the work.
      */
-    private static class FileValueIterator {
-        private final File file;
-        private final DataInputStream is;
-        private long currentRecord = 0;
-        private boolean isCurrentRecord = true;
+    static void radixSort(final long[] values, final long[] scratch, final int n, final int numThreads) {
+        if (n < 2) return;
+        final int[][] counts = new int[numThreads][RADIX];
+        final int[] sliceStarts = new int[numThreads + 1];
+        for (int t = 0; t <= numThreads; ++t) {
+            sliceStarts[t] = (int)((long)n * t / numThreads);
+        }
+        final ExecutorService executor = numThreads > 1 ? Executors.newFixedThreadPool(numThreads) : null;
+        try {
+            long[] src = values;
+            long[] dest = scratch;
+            for (int pass = 0; pass < RADIX_PASSES; ++pass) {
+                final int shift = pass * RADIX_BITS;
+                // Flip the sign bit in the most significant digit so that negative values sort first.
+                final int flip = (pass == RADIX_PASSES - 1) ? RADIX >>> 1 : 0;
+
+                final List<Callable<Void>> histogramTasks = new ArrayList<Callable<Void>>(numThreads);
+                for (int t = 0; t < numThreads; ++t) {
+                    histogramTasks.add(new RadixHistogramTask(src, sliceStarts[t], sliceStarts[t + 1], shift, flip, counts[t]));
+                }
+                runAll(executor, histogramTasks);
+
+                // Convert counts into starting offsets, bucket-major then slice-major, so that scatter is stable.
+                int offset = 0;
+                boolean allInOneBucket = false;
+                for (int digit = 0; digit < RADIX; ++digit) {
+                    int bucketTotal = 0;
+                    for (int t = 0; t < numThreads; ++t) {
+                        final int c = counts[t][digit];
+                        counts[t][digit] = offset + bucketTotal;
+                        bucketTotal += c;
+                    }
+                    if (bucketTotal == n) allInOneBucket = true;
+                    offset += bucketTotal;
+                }
+                if (allInOneBucket) continue;
 
-        FileValueIterator(final File file) {
-            this.file = file;
-            try {
-                is = new DataInputStream(IOUtil.maybeBufferInputStream(new FileInputStream(file)));
-                next();
+                final List<Callable<Void>> scatterTasks = new ArrayList<Callable<Void>>(numThreads);
+                for (int t = 0; t < numThreads; ++t) {
+                    scatterTasks.add(new RadixScatterTask(src, dest, sliceStarts[t], sliceStarts[t + 1], shift, flip, counts[t]));
+                }
+                runAll(executor, scatterTasks);
+
+                final long[] tmp = src;
+                src = dest;
+                dest = tmp;
             }
-            catch (FileNotFoundException e) {
-                throw new RuntimeIOException(file.getAbsolutePath(), e);
+            if (src != values) {
+                System.arraycopy(src, 0, values, 0, n);
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
             }
         }
+    }
 
-        boolean hasNext() {
-            return isCurrentRecord;
+    /**
+     * Run the given tasks on the executor, or on the calling thread if executor is null, and wait for all of them.
+     */
+    private static void runAll(final ExecutorService executor, final List<Callable<Void>> tasks) {
+        try {
+            if (executor == null) {
+                for (final Callable<Void> task : tasks) {
+                    task.call();
+                }
+            } else {
+                for (final Future<Void> future : executor.invokeAll(tasks)) {
+                    future.get();
+                }
+            }
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof Error) throw (Error) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new RuntimeException(cause);
+        } catch (final InterruptedException e) {
+            throw new RuntimeException("Interrupted while sorting.", e);
+        } catch (final RuntimeException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw new RuntimeException(e);
         }
+    }
 
-        long next() {
-            if (!hasNext()) {
-                throw new NoSuchElementException();
-            }
-            final long ret = currentRecord;
-            try {
-                currentRecord = is.readLong();
-            } catch (EOFException eof) {
-                isCurrentRecord = false;
-                currentRecord = 0;
-            } catch(IOException e) {
-                throw new RuntimeException(e);
-            }
-            return ret;
+    private static class RadixHistogramTask implements Callable<Void> {
+        private final long[] src;
+        private final int start, end, shift, flip;
+        private final int[] counts;
+
+        RadixHistogramTask(final long[] src, final int start, final int end, final int shift, final int flip, final int[] counts) {
+            this.src = src;
+            this.start = start;
+            this.end = end;
+            this.shift = shift;
+            this.flip = flip;
+            this.counts = counts;
         }
 
-        void close() {
-            CloserUtil.close(is);
-            IOUtil.deleteFiles(file);
+        public Void call() {
+            Arrays.fill(counts, 0);
+            for (int i = start; i < end; ++i) {
+                ++counts[((int)(src[i] >>> shift) & (RADIX - 1)) ^ flip];
+            }
+            return null;
         }
     }
 
+    private static class RadixScatterTask implements Callable<Void> {
+        private final long[] src, dest;
+        private final int start, end, shift, flip;
+        private final int[] offsets;
+
+        RadixScatterTask(final long[] src, final long[] dest, final int start, final int end, final int shift,
+                         final int flip, final int[] offsets) {
+            this.src = src;
+            this.dest = dest;
+            this.start = start;
+            this.end = end;
+            this.shift = shift;
+            this.flip = flip;
+            this.offsets = offsets;
+        }
+
+        public Void call() {
+            for (int i = start; i < end; ++i) {
+                final long value = src[i];
+                dest[offsets[((int)(value >>> shift) & (RADIX - 1)) ^ flip]++] = value;
+            }
+            return null;
+        }
+    }
 
     /**
-     * Add peek() functionality to FileValueIterator
+     * Read a file of longs through a memory-mapped window that slides forward through the file.
      */
-    private static class PeekFileValueIterator {
-        private FileValueIterator underlyingIterator;
-        private long peekValue;
-        private boolean hasPeekedValue = false;
+    private static class FileValueReader {
+        private final File file;
+        private final long numValues;
+        private FileChannel channel;
+        private LongBuffer window;
+        private long windowStart = 0;
 
-        PeekFileValueIterator(final FileValueIterator underlyingIterator) {
-            this.underlyingIterator = underlyingIterator;
+        FileValueReader(final File file) {
+            this.file = file;
+            try {
+                final RandomAccessFile raf = new RandomAccessFile(file, "r");
+                channel = raf.getChannel();
+                numValues = channel.size() / SIZEOF;
+                mapWindow(0);
+            }
+            catch (IOException e) {
+                throw new RuntimeIOException(file.getAbsolutePath(), e);
+            }
         }
 
-        boolean hasNext() {
-            return hasPeekedValue || underlyingIterator.hasNext();
+        private void mapWindow(final long start) throws IOException {
+            final int n = (int)Math.min(MAPPED_WINDOW_VALUES, numValues - start);
+            final MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, start * SIZEOF, (long)n * SIZEOF);
+            window = mapped.asLongBuffer();
+            windowStart = start;
         }
 
-        long next() {
-            if (!hasNext()) {
-                throw new NoSuchElementException();
-            }
-            if (hasPeekedValue) {
-                hasPeekedValue = false;
-                return peekValue;
-            }
-            return underlyingIterator.next();
+        boolean hasNext() {
+            return windowStart + window.position() < numValues;
         }
 
-        long peek() {
+        long next() {
             if (!hasNext()) {
                 throw new NoSuchElementException();
             }
-            if (!hasPeekedValue) {
-                peekValue = underlyingIterator.next();
-                hasPeekedValue = true;
+            if (!window.hasRemaining()) {
+                try {
+                    mapWindow(windowStart + window.limit());
+                } catch (IOException e) {
+                    throw new RuntimeIOException(file.getAbsolutePath(), e);
+                }
             }
-            return peekValue;
+            return window.get();
         }
 
         void close() {
-            underlyingIterator.close();
-            hasPeekedValue = false;
-            underlyingIterator = null;
-        }
-    }
-
-    private static class PeekFileValueIteratorComparator implements Comparator<PeekFileValueIterator> {
-
-        public int compare(final PeekFileValueIterator it1, final PeekFileValueIterator it2) {
-            if (it1.peek() < it2.peek()) {
-                return -1;
-            }
-            if (it1.peek() == it2.peek()) {
-                return 0;
-            }
-            return 1;
+            window = null;
+            CloserUtil.close(channel);
+            channel = null;
+            IOUtil.deleteFiles(file);
         }
     }
 }
@@ -56,8 +56,15 @@ public class FTPClient {
      * Connects to the given FTP host on the default port.
      */
     public FTPReply connect(String host) throws IOException {
+        return connect(host, 21);
+    }
+
+    /**
+     * Connects to the given FTP host on the given port.
+     */
+    public FTPReply connect(String host, int port) throws IOException {
         this.host = host;
-        commandSocket = new Socket(host, 21);
+        commandSocket = new Socket(host, port);
         commandSocket.setSoTimeout(READ_TIMEOUT);
         commandStream = new PrintStream(commandSocket.getOutputStream());
         responseReader = new BufferedReader(new InputStreamReader(commandSocket.getInputStream()));
@@ -112,6 +119,10 @@ public class FTPClient {
         }
 
         String response = reply.getReplyString();
+        if (response == null) {
+            // No reply; the server has closed the connection
+            return reply;
+        }
 
 
         int code = reply.getCode();
@@ -159,6 +170,71 @@ public class FTPClient {
         return executeCommand("RETR " + file);
     }
 
+    /**
+     * Retrieves up to <code>length</code> bytes of a file, starting at <code>start</code>, on a new passive data
+     * connection.  The transfer is cut short once enough bytes have been read, and its completion reply is read, so
+     * that this client can be used for further commands.  If an IOException is thrown the state of the control
+     * connection is unknown, and the client should be disconnected.
+     *
+     * @return the bytes read, fewer than <code>length</code> if the file ends first
+     */
+    public byte[] retrieveRange(String file, long start, int length) throws IOException {
+        FTPReply reply = pasv();
+        if (!reply.isPositiveCompletion()) {
+            throw new IOException("PASV failed on " + host + ": " + reply.getCode() + " " + reply.getReplyString());
+        }
+        try {
+            setRestPosition(start);
+            try {
+                reply = retr(file);
+            } finally {
+                restPosition = -1;
+            }
+            // A preliminary reply (1xx) is followed by a completion reply once the transfer is over
+            boolean completionPending = reply.getCode() >= 100 && reply.getCode() < 200;
+            if (!completionPending && !reply.isPositiveCompletion()) {
+                throw new IOException("Error retrieving " + file + " from " + host + " at " + start + ": " +
+                        reply.getCode() + " " + reply.getReplyString());
+            }
+
+            byte[] data = new byte[length];
+            int n = 0;
+            int count;
+            while (n < length && (count = dataStream.read(data, n, length - n)) >= 0) {
+                n += count;
+            }
+            closeDataStream();
+            if (completionPending) {
+                // 226 if the transfer finished, or e.g. 426 if it was cut short by closing the data connection
+                reply = getReply();
+                if (reply.getCode() < 0) {
+                    throw new IOException("Connection to " + host + " closed during transfer of " + file);
+                }
+                if (!reply.isPositiveCompletion()) {
+                    // Some servers follow the 426 of an aborted transfer with a 226.  Either comes before the reply
+                    // to a NOOP, so read up to that to leave no reply unread on the connection.
+                    reply = executeCommand("NOOP");
+                    while (reply.getCode() == 226 || reply.getCode() == 250) {
+                        reply = getReply();
+                    }
+                    if (reply.getCode() < 0) {
+                        throw new IOException("Connection to " + host + " closed after transfer of " + file);
+                    }
+                }
+            }
+            if (n < length) {
+                byte[] tmp = new byte[n];
+                System.arraycopy(data, 0, tmp, 0, n);
+                data = tmp;
+            }
+            return data;
+        } finally {
+            if (dataStream != null) {
+                dataStream.close();
+            }
+        }
+    }
+
     public FTPReply getReply() throws IOException {
         return new FTPReply(responseReader);
     }
@@ -0,0 +1,231 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools.util.ftp;
+
+import htsjdk.samtools.seekablestream.UserPasswordInput;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of logged-in FTP control connections, so that streams reading from the same server do not each connect and
+ * log in for every read.  Each connection is used by one thread at a time; concurrent transfers from the same server
+ * use separate connections, each with its own data connection.
+ *
+ * Servers close control connections that have been idle for a while.  A transfer that fails on a connection taken
+ * from the pool is therefore retried once on a new connection.
+ */
+public class FTPConnectionPool {
+    public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 4;
+
+    private static final FTPConnectionPool defaultPool = new FTPConnectionPool(DEFAULT_MAX_IDLE_CONNECTIONS);
+
+    private final int maxIdleConnections;
+    // Idle connections by server and user, most recently used first
+    private final Map<String, LinkedList<FTPClient>> idle = new HashMap<String, LinkedList<FTPClient>>();
+    private final AtomicLong connectionsOpened = new AtomicLong();
+
+    /**
+     * @param maxIdleConnections the most idle connections kept for each server and user.
+     */
+    public FTPConnectionPool(final int maxIdleConnections) {
+        if (maxIdleConnections < 0) {
+            throw new IllegalArgumentException("maxIdleConnections must not be negative: " + maxIdleConnections);
+        }
+        this.maxIdleConnections = maxIdleConnections;
+    }
+
+    /**
+     * @return the pool shared by streams that are not given one.
+     */
+    public static FTPConnectionPool getDefault() {
+        return defaultPool;
+    }
+
+    /**
+     * @return the size of the file at url, or -1 if the server does not report it.
+     */
+    public long size(final URL url, final UserPasswordInput userPasswordInput) throws IOException {
+        final FTPClient idleClient = takeIdle(url);
+        if (idleClient != null) {
+            try {
+                return size(idleClient, url);
+            } catch (IOException e) {
+                // Most likely closed by the server while idle; try once more on a new connection
+            }
+        }
+        return size(connect(url, userPasswordInput), url);
+    }
+
+    /**
+     * Retrieves a range of the file at url on a pooled connection.  May be called from several threads at once.
+     *
+     * @return the bytes, fewer than length if the file ends first
+     */
+    public byte[] retrieveRange(final URL url, final UserPasswordInput userPasswordInput, final long start,
+                                final int length) throws IOException {
+        final FTPClient idleClient = takeIdle(url);
+        if (idleClient != null) {
+            try {
+                return retrieveRange(idleClient, url, start, length);
+            } catch (IOException e) {
+                // Most likely closed by the server while idle; try once more on a new connection
+            }
+        }
+        return retrieveRange(connect(url, userPasswordInput), url, start, length);
+    }
+
+    /**
+     * Gets the size of the file on ftp, then releases ftp to the pool, or disconnects it if anything went wrong.
+     */
+    private long size(final FTPClient ftp, final URL url) throws IOException {
+        boolean succeeded = false;
+        try {
+            final FTPReply reply = ftp.size(url.getPath());
+            if (reply.getCode() < 0) {
+                throw new IOException("Connection to " + url.getHost() + " closed");
+            }
+            succeeded = true;
+            if (!reply.isPositiveCompletion()) {
+                return -1;
+            }
+            try {
+                return Long.parseLong(reply.getReplyString());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        } finally {
+            releaseOrDisconnect(url, ftp, succeeded);
+        }
+    }
+
+    /**
+     * Retrieves a range on ftp, then releases ftp to the pool, or disconnects it if anything went wrong.
+     */
+    private byte[] retrieveRange(final FTPClient ftp, final URL url, final long start, final int length) throws IOException {
+        boolean succeeded = false;
+        try {
+            final byte[] data = ftp.retrieveRange(url.getPath(), start, length);
+            succeeded = true;
+            return data;
+        } finally {
+            releaseOrDisconnect(url, ftp, succeeded);
+        }
+    }
+
+    private void releaseOrDisconnect(final URL url, final FTPClient ftp, final boolean reusable) {
+        if (reusable) {
+            release(url, ftp);
+        } else {
+            // The connection may be in the middle of a reply or transfer
+            ftp.disconnect();
+        }
+    }
+
+    /**
+     * @return a logged-in connection to the server of url, from the pool if one is idle.  It should be given back
+     * with {@link #release(URL, FTPClient)} when done with, or disconnected if it is in an unknown state.
+     */
+    public FTPClient acquire(final URL url, final UserPasswordInput userPasswordInput) throws IOException {
+        final FTPClient ftp = takeIdle(url);
+        return ftp != null ? ftp : connect(url, userPasswordInput);
+    }
+
+    /**
+     * Returns a connection to the pool, or disconnects it if the pool already has enough idle connections to its server.
+     */
+    public void release(final URL url, final FTPClient ftp) {
+        synchronized (idle) {
+            final String key = key(url);
+            LinkedList<FTPClient> clients = idle.get(key);
+            if (clients == null) {
+                clients = new LinkedList<FTPClient>();
+                idle.put(key, clients);
+            }
+            if (clients.size() < maxIdleConnections) {
+                clients.addFirst(ftp);
+                return;
+            }
+        }
+        ftp.disconnect();
+    }
+
+    /**
+     * Disconnects all idle connections.  Connections in use are disconnected when they are released.
+     */
+    public void close() {
+        final LinkedList<FTPClient> clients = new LinkedList<FTPClient>();
+        synchronized (idle) {
+            for (final LinkedList<FTPClient> list : idle.values()) {
+                clients.addAll(list);
+            }
+            idle.clear();
+        }
+        for (final FTPClient ftp : clients) {
+            ftp.disconnect();
+        }
+    }
+
+    /**
+     * @return the number of idle connections to the server of url.
+     */
+    public int getIdleConnectionCount(final URL url) {
+        synchronized (idle) {
+            final LinkedList<FTPClient> clients = idle.get(key(url));
+            return clients == null ? 0 : clients.size();
+        }
+    }
+
+    /**
+     * @return the number of connections this pool has opened.
+     */
+    public long getConnectionsOpened() {
+        return connectionsOpened.get();
+    }
+
+    private FTPClient takeIdle(final URL url) {
+        synchronized (idle) {
+            final LinkedList<FTPClient> clients = idle.get(key(url));
+            return clients == null || clients.isEmpty() ? null : clients.removeFirst();
+        }
+    }
+
+    private FTPClient connect(final URL url, final UserPasswordInput userPasswordInput) throws IOException {
+        final FTPClient ftp = FTPUtils.connect(url.getHost(), port(url), url.getUserInfo(), userPasswordInput);
+        connectionsOpened.incrementAndGet();
+        return ftp;
+    }
+
+    private static int port(final URL url) {
+        return url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+    }
+
+    private static String key(final URL url) {
+        return url.getUserInfo() + "@" + url.getHost() + ":" + port(url);
+    }
+}
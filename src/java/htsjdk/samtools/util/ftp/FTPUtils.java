@@ -26,6 +26,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -36,7 +37,8 @@ import java.util.Map;
  */
 public class FTPUtils {
 
-    static Map<String, String> userCredentials = new HashMap<String, String>();
+    // Credentials entered by the user, by host.  Connections are made on several threads at once.
+    static Map<String, String> userCredentials = Collections.synchronizedMap(new HashMap<String, String>());
 
     static int TIMEOUT = 10000;
 
@@ -89,10 +91,24 @@ public class FTPUtils {
      * @return
      * @throws IOException
      */
-    public static synchronized FTPClient connect(String host, String userInfo, UserPasswordInput userPasswordInput) throws IOException {
+    public static FTPClient connect(String host, String userInfo, UserPasswordInput userPasswordInput) throws IOException {
+        return connect(host, 21, userInfo, userPasswordInput);
+    }
+
+    /**
+     * Connect to an FTP server on the given port
+     *
+     * @param host
+     * @param port
+     * @param userInfo
+     * @param userPasswordInput Dialog with which a user can enter credentials, if login fails
+     * @return
+     * @throws IOException
+     */
+    public static FTPClient connect(String host, int port, String userInfo, UserPasswordInput userPasswordInput) throws IOException {
 
         FTPClient ftp = new FTPClient();
-        FTPReply reply = ftp.connect(host);
+        FTPReply reply = ftp.connect(host, port);
         if (!reply.isSuccess()) {
             throw new RuntimeException("Could not connect to " + host);
         }
@@ -117,6 +133,8 @@ public class FTPUtils {
                 throw new RuntimeException("Login failure for host: " + host);
         	}
         	else {
+        	    // One dialog at a time, as connections may be made on several threads
+        	    synchronized (userPasswordInput) {
 	        	userPasswordInput.setHost(host);
 	            boolean success = false;
 	            while (!success) {
@@ -137,6 +155,7 @@ public class FTPUtils {
 	            } else {
 	                throw new RuntimeException("Login failure for host: " + host);
 	            }
+        	    }
         	}
         }
 
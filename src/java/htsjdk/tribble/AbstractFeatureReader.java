@@ -18,12 +18,16 @@
 
 package htsjdk.tribble;
 
+import htsjdk.samtools.Defaults;
+import htsjdk.samtools.util.BlockCompressedInputStream;
 import htsjdk.tribble.index.Index;
+import htsjdk.tribble.readers.PositionalBufferedStream;
 import htsjdk.tribble.util.ParsingUtils;
 import htsjdk.tribble.util.TabixUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
@@ -47,6 +51,9 @@ public abstract class AbstractFeatureReader<T extends Feature, SOURCE> implement
     protected final FeatureCodec<T, SOURCE> codec;
     protected FeatureCodecHeader header;
 
+    // the number of threads decoding features when iterating over the whole file
+    private int decodingThreads = Defaults.FEATURE_DECODING_THREADS;
+
     private static ComponentMethods methods = new ComponentMethods();
 
     public static final Set<String> BLOCK_COMPRESSED_EXTENSIONS = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(".gz", ".gzip", ".bgz", ".bgzf")));
@@ -154,6 +161,59 @@ public abstract class AbstractFeatureReader<T extends Feature, SOURCE> implement
         return hasBlockCompressedExtension(file.getName());
     }
 
+    public int getDecodingThreads() {
+        return decodingThreads;
+    }
+
+    /**
+     * Sets the number of threads that decode features when iterating over the whole file.  With more than one,
+     * lines are read on a thread of their own and decoded in batches on a pool of threads, each with its own copy
+     * of the codec, and features are returned in file order.  This only applies to ASCII codecs that can be copied
+     * (see {@link AsciiFeatureCodec#newDecodingInstance()}); others always decode in the calling thread.
+     * Defaults to {@link Defaults#FEATURE_DECODING_THREADS}.
+     */
+    public void setDecodingThreads(final int decodingThreads) {
+        this.decodingThreads = decodingThreads;
+    }
+
+    /**
+     * @return true if iterator() should decode features with a {@link ParallelFeatureIterator}, i.e. if more than
+     * one decoding thread has been asked for and the codec can be copied.
+     */
+    boolean decodesInParallel() {
+        return decodingThreads > 1 && AsciiFeatureCodec.copyForDecoding(codec) != null;
+    }
+
+    /**
+     * Opens the file, decompressed, from its first byte.  When decoding in parallel, each copy of the codec reads
+     * the header from a stream opened with this.  The default opens path, decompressing it if it has one of the
+     * BLOCK_COMPRESSED_EXTENSIONS; readers whose files are opened differently override it.
+     */
+    protected InputStream openHeaderStream() throws IOException {
+        final InputStream is = ParsingUtils.openInputStream(path);
+        return hasBlockCompressedExtension(path) ? new BlockCompressedInputStream(is) : is;
+    }
+
+    /**
+     * @return a copy of the codec, for a decoding thread, that has read the header of the file.
+     */
+    AsciiFeatureCodec<T> newDecodingCodec() {
+        final AsciiFeatureCodec<T> copy = AsciiFeatureCodec.copyForDecoding(codec);
+        if (copy == null) {
+            throw new TribbleException("Codec " + codec.getClass().getSimpleName() + " cannot be copied for decoding in parallel");
+        }
+        PositionalBufferedStream pbs = null;
+        try {
+            pbs = new PositionalBufferedStream(openHeaderStream());
+            copy.readHeader(copy.makeSourceFromStream(pbs));
+        } catch (IOException e) {
+            throw new TribbleException.MalformedFeatureFile("Unable to parse header with error: " + e.getMessage(), path, e);
+        } finally {
+            if (pbs != null) pbs.close();
+        }
+        return copy;
+    }
+
     /**
      * get the header
      *
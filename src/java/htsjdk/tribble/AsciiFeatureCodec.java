@@ -20,8 +20,10 @@ package htsjdk.tribble;
 
 import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.LocationAware;
+import htsjdk.tribble.readers.AsciiLine;
 import htsjdk.tribble.readers.AsciiLineReader;
 import htsjdk.tribble.readers.AsciiLineReaderIterator;
+import htsjdk.tribble.readers.AsciiLineSliceIterator;
 import htsjdk.tribble.readers.LineIterator;
 import htsjdk.tribble.readers.LineIteratorImpl;
 import htsjdk.tribble.readers.LineReaderUtil;
@@ -35,6 +37,10 @@ import java.io.InputStream;
  * <p/>
  * This class overrides the general decode locs for streams and presents instead
  * Strings to decode(String) and readHeader(LineReader) functions.
+ * <p/>
+ * Codecs that can decode a line from its bytes may also override {@link #decode(AsciiLine)} and
+ * {@link #decodesLineSlices()}.  Their sources are then {@link AsciiLineSliceIterator}s, and features are decoded
+ * without making a String for each line.
  *
  * @param <T> The feature type this codec reads
  */
@@ -61,11 +67,17 @@ public abstract class AsciiFeatureCodec<T extends Feature> extends AbstractFeatu
         } else {
             pbs = new PositionalBufferedStream(bufferedInputStream);
         }
+        if (decodesLineSlices()) {
+            return new AsciiLineSliceIterator(pbs);
+        }
         return new AsciiLineReaderIterator(new AsciiLineReader(pbs));
     }
 
     @Override
     public LineIterator makeSourceFromStream(final InputStream bufferedInputStream) {
+        if (decodesLineSlices()) {
+            return new AsciiLineSliceIterator(bufferedInputStream);
+        }
         return new LineIteratorImpl(LineReaderUtil.fromBufferedStream(bufferedInputStream));
     }
 
@@ -76,12 +88,55 @@ public abstract class AsciiFeatureCodec<T extends Feature> extends AbstractFeatu
      */
     @Override
     public T decode(final LineIterator lineIterator) {
+        if (lineIterator instanceof AsciiLineSliceIterator && decodesLineSlices()) {
+            return decode(((AsciiLineSliceIterator) lineIterator).nextLine());
+        }
         return decode(lineIterator.next());
     }
 
     /** @see {@link AsciiFeatureCodec#decode(htsjdk.tribble.readers.LineIterator)} */
     public abstract T decode(String s);
 
+    /**
+     * Decode a line given as a view of a byte buffer.  The line is only valid during this call, so anything kept
+     * from it must be copied.  This implementation converts the line to a String and calls decode(String); codecs
+     * that override it to work on the bytes directly should also override {@link #decodesLineSlices()}.
+     */
+    public T decode(final AsciiLine line) {
+        return decode(line.toString());
+    }
+
+    /**
+     * @return true if this codec decodes lines with {@link #decode(AsciiLine)}, and so wants sources that read
+     * lines as byte slices.  False by default.
+     */
+    protected boolean decodesLineSlices() {
+        return false;
+    }
+
+    /**
+     * Returns a new codec that decodes lines the same way as this one, with the same settings but no header read
+     * yet, so that lines can be decoded on several threads at once with one codec per thread.  Features decoded by
+     * the new codec must not depend on its state once decode returns.  Returns null, the default, if this codec
+     * cannot be copied; readers then decode with this codec only.  Callers outside codecs use
+     * {@link #copyForDecoding(FeatureCodec)}.
+     */
+    protected AsciiFeatureCodec<T> newDecodingInstance() {
+        return null;
+    }
+
+    /**
+     * @return A new codec made by {@link #newDecodingInstance()} if codec is an AsciiFeatureCodec that can be
+     * copied, otherwise null.
+     */
+    @SuppressWarnings("unchecked") // An AsciiFeatureCodec<X> is a FeatureCodec<X, LineIterator>, so X is T.
+    public static <T extends Feature> AsciiFeatureCodec<T> copyForDecoding(final FeatureCodec<T, ?> codec) {
+        if (!(codec instanceof AsciiFeatureCodec)) {
+            return null;
+        }
+        return ((AsciiFeatureCodec<T>) codec).newDecodingInstance();
+    }
+
     @Override
     public FeatureCodecHeader readHeader(final LineIterator lineIterator) throws IOException {
         // TODO: Track header end here, rather than assuming there isn't one.
@@ -0,0 +1,258 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.tribble;
+
+import htsjdk.tribble.readers.LineReader;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Iterates over the features of a whole file, decoding lines on a pool of threads.  One thread reads lines in
+ * batches; each batch is decoded by a worker thread with its own copy of the reader's codec, which has read the
+ * header of the file itself.  Features are returned in the order of the lines they were decoded from, and only a
+ * few batches per thread are read ahead of the consumer.
+ *
+ * @see AbstractFeatureReader#setDecodingThreads(int)
+ */
+class ParallelFeatureIterator<T extends Feature> implements CloseableTribbleIterator<T> {
+    static final int LINES_PER_BATCH = 1000;
+    private static final int BATCHES_IN_FLIGHT_PER_THREAD = 2;
+
+    // Put on the queue by the line reading thread after the last batch, including when reading fails
+    private static final List<String> END_OF_INPUT = new ArrayList<String>(0);
+
+    private final AbstractFeatureReader<T, ?> reader;
+    private final LineReader lineReader;
+    private final int numThreads;
+
+    private final BlockingQueue<List<String>> batches;
+    private ExecutorService lineExecutor;
+    private ExecutorService executor;
+    private final Future<Void> lineReading;
+    private final LinkedList<Future<List<T>>> pending = new LinkedList<Future<List<T>>>();
+    private boolean endOfInput = false;
+    private Iterator<T> current = Collections.<T>emptyList().iterator();
+
+    private final ThreadLocal<AsciiFeatureCodec<T>> threadCodec = new ThreadLocal<AsciiFeatureCodec<T>>() {
+        @Override
+        protected AsciiFeatureCodec<T> initialValue() {
+            return reader.newDecodingCodec();
+        }
+    };
+
+    /**
+     * @param reader the reader whose codec is copied for each decoding thread.
+     * @param lineReader the lines to decode, which is closed with this iterator.
+     * @param numThreads the number of threads decoding lines, in addition to the thread reading them.
+     */
+    ParallelFeatureIterator(final AbstractFeatureReader<T, ?> reader, final LineReader lineReader, final int numThreads) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("numThreads must be at least 1: " + numThreads);
+        }
+        this.reader = reader;
+        this.lineReader = lineReader;
+        this.numThreads = numThreads;
+        this.batches = new ArrayBlockingQueue<List<String>>(numThreads * BATCHES_IN_FLIGHT_PER_THREAD);
+        final ThreadFactory threadFactory = new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "ParallelFeatureIterator Thread");
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        lineExecutor = Executors.newSingleThreadExecutor(threadFactory);
+        executor = Executors.newFixedThreadPool(numThreads, threadFactory);
+        lineReading = lineExecutor.submit(new LineReadingTask());
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!current.hasNext()) {
+            if (executor == null) {
+                return false;
+            }
+            while (!endOfInput && pending.size() < numThreads * BATCHES_IN_FLIGHT_PER_THREAD) {
+                final List<String> batch = takeBatch();
+                if (batch == END_OF_INPUT) {
+                    endOfInput = true;
+                } else {
+                    pending.add(executor.submit(new DecodingTask(batch)));
+                }
+            }
+            if (pending.isEmpty()) {
+                // Features decoded before a read error have been returned; now report it
+                getResult(lineReading);
+                close();
+                return false;
+            }
+            current = getResult(pending.removeFirst()).iterator();
+        }
+        return true;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return current.next();
+    }
+
+    private List<String> takeBatch() {
+        try {
+            return batches.take();
+        } catch (InterruptedException e) {
+            throw new TribbleException("Interrupted while reading features", e);
+        }
+    }
+
+    private <V> V getResult(final Future<V> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new TribbleException("Interrupted while decoding features", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new TribbleException("Unable to read the next record from " + reader.path, e.getCause());
+        }
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("Remove is not supported in Iterators");
+    }
+
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+            lineExecutor.shutdownNow();
+            final ExecutorService lineReadingExecutor = lineExecutor;
+            executor = null;
+            lineExecutor = null;
+            pending.clear();
+            current = Collections.<T>emptyList().iterator();
+            try {
+                // The line reading thread may be in readLine(), which is not interruptible; it stops at the next
+                // batches.put(), and only then can the line reader be closed.
+                lineReadingExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                throw new TribbleException("Interrupted while closing " + reader.path, e);
+            }
+            lineReader.close();
+        }
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return this;
+    }
+
+    /**
+     * Reads lines into batches until the end of the file.
+     */
+    private class LineReadingTask implements Callable<Void> {
+        @Override
+        public Void call() throws IOException, InterruptedException {
+            boolean interrupted = false;
+            try {
+                List<String> batch = new ArrayList<String>(LINES_PER_BATCH);
+                String line;
+                while ((line = lineReader.readLine()) != null) {
+                    batch.add(line);
+                    if (batch.size() == LINES_PER_BATCH) {
+                        batches.put(batch);
+                        batch = new ArrayList<String>(LINES_PER_BATCH);
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    batches.put(batch);
+                }
+            } catch (InterruptedException e) {
+                // The iterator has been closed, so nobody is waiting for the end of the input
+                interrupted = true;
+                throw e;
+            } finally {
+                if (!interrupted) {
+                    batches.put(END_OF_INPUT);
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Decodes a batch of lines with the codec of the current thread.
+     */
+    private class DecodingTask implements Callable<List<T>> {
+        private final List<String> lines;
+
+        DecodingTask(final List<String> lines) {
+            this.lines = lines;
+        }
+
+        @Override
+        public List<T> call() {
+            final AsciiFeatureCodec<T> codec = threadCodec.get();
+            final List<T> features = new ArrayList<T>(lines.size());
+            for (final String line : lines) {
+                final T f;
+                try {
+                    f = codec.decode(line);
+                } catch (TribbleException e) {
+                    e.setSource(reader.path);
+                    throw e;
+                } catch (NumberFormatException e) {
+                    final String error = "Error parsing line: " + line;
+                    throw new TribbleException.MalformedFeatureFile(error, reader.path, e);
+                }
+                if (f != null) {
+                    features.add(f);
+                }
+            }
+            return features;
+        }
+    }
+}
@@ -83,7 +83,7 @@ public class TabixFeatureReader<T extends Feature, SOURCE> extends AbstractFeatu
     private void readHeader() throws IOException {
         SOURCE source = null;
         try {
-            source = codec.makeSourceFromStream(new PositionalBufferedStream(new BlockCompressedInputStream(ParsingUtils.openInputStream(path))));
+            source = codec.makeSourceFromStream(new PositionalBufferedStream(openHeaderStream()));
             header = codec.readHeader(source);
         } catch (Exception e) {
             throw new TribbleException.MalformedFeatureFile("Unable to parse header with error: " + e.getMessage(), path, e);
@@ -94,6 +94,11 @@ public class TabixFeatureReader<T extends Feature, SOURCE> extends AbstractFeatu
         }
     }
 
+    @Override
+    protected InputStream openHeaderStream() throws IOException {
+        return new BlockCompressedInputStream(ParsingUtils.openInputStream(path));
+    }
+
     @Override
     public boolean hasIndex(){
         return true;
@@ -128,6 +133,9 @@ public class TabixFeatureReader<T extends Feature, SOURCE> extends AbstractFeatu
         final InputStream is = new BlockCompressedInputStream(ParsingUtils.openInputStream(path));
         final PositionalBufferedStream stream = new PositionalBufferedStream(is);
         final LineReader reader = LineReaderUtil.fromBufferedStream(stream, LineReaderUtil.LineReaderOption.SYNCHRONOUS);
+        if (decodesInParallel()) {
+            return new ParallelFeatureIterator<T>(this, reader, getDecodingThreads());
+        }
         return new FeatureIterator<T>(reader, 0, Integer.MAX_VALUE);
     }
 
@@ -25,9 +25,12 @@ package htsjdk.tribble;
 
 import htsjdk.samtools.seekablestream.SeekableStream;
 import htsjdk.samtools.seekablestream.SeekableStreamFactory;
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.RuntimeIOException;
 import htsjdk.tribble.index.Block;
 import htsjdk.tribble.index.Index;
 import htsjdk.tribble.index.IndexFactory;
+import htsjdk.tribble.readers.LineReaderUtil;
 import htsjdk.tribble.readers.PositionalBufferedStream;
 import htsjdk.tribble.util.ParsingUtils;
 
@@ -35,8 +38,14 @@ import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.zip.GZIPInputStream;
 
 /**
@@ -204,6 +213,16 @@ public class TribbleIndexedFeatureReader<T extends Feature, SOURCE> extends Abst
         return index != null;
     }
 
+    @Override
+    protected InputStream openHeaderStream() throws IOException {
+        final InputStream is = ParsingUtils.openInputStream(path);
+        if (path.endsWith("gz")) {
+            // TODO -- warning I don't think this can work, the buffered input stream screws up position
+            return new GZIPInputStream(new BufferedInputStream(is));
+        }
+        return is;
+    }
+
     /**
      * read the header from the file
      *
@@ -213,11 +232,7 @@ public class TribbleIndexedFeatureReader<T extends Feature, SOURCE> extends Abst
         InputStream is = null;
         PositionalBufferedStream pbs = null;
         try {
-            is = ParsingUtils.openInputStream(path);
-            if (path.endsWith("gz")) {
-                // TODO -- warning I don't think this can work, the buffered input stream screws up position
-                is = new GZIPInputStream(new BufferedInputStream(is));
-            }
+            is = openHeaderStream();
             pbs = new PositionalBufferedStream(is);
             final SOURCE source = codec.makeSourceFromStream(pbs);
             header = codec.readHeader(source);
@@ -261,15 +276,113 @@ public class TribbleIndexedFeatureReader<T extends Feature, SOURCE> extends Abst
         }
     }
 
+    /**
+     * Return an iterator over the features overlapping each of a collection of intervals, reading the file in a
+     * single pass.  The index blocks for all the intervals on a sequence are merged, so that each byte range of the
+     * file is read and decoded once, and each decoded feature is handed to every query interval that it overlaps.
+     * This is much cheaper than calling query() once per interval when the intervals are many and close together,
+     * e.g. when annotating the sites of a VCF.
+     * <p/>
+     * The intervals must be grouped by sequence, and sorted by start position within each sequence.  One
+     * QueryResult is returned for each interval, in the order given, including intervals that overlap no features.
+     * <p/>
+     * As with query(), only one iterator should be open on a reader at a time.
+     *
+     * @param intervals the query intervals, 1-based and closed, as for query()
+     * @return an iterator with one QueryResult for each of the intervals
+     * @throws IOException
+     */
+    public CloseableIterator<QueryResult<T>> query(final List<? extends Feature> intervals) throws IOException {
+        // Split the intervals by sequence, checking that they are sorted
+        final List<List<Feature>> intervalsBySequence = new ArrayList<List<Feature>>();
+        final Set<String> sequencesSeen = new HashSet<String>();
+        List<Feature> current = null;
+        for (final Feature interval : intervals) {
+            if (current == null || !current.get(0).getChr().equals(interval.getChr())) {
+                if (!sequencesSeen.add(interval.getChr())) {
+                    throw new IllegalArgumentException("Query intervals are not grouped by sequence at " + interval.getChr() +
+                            ":" + interval.getStart() + "-" + interval.getEnd());
+                }
+                current = new ArrayList<Feature>();
+                intervalsBySequence.add(current);
+            } else if (interval.getStart() < current.get(current.size() - 1).getStart()) {
+                throw new IllegalArgumentException("Query intervals are not sorted at " + interval.getChr() +
+                        ":" + interval.getStart() + "-" + interval.getEnd());
+            }
+            current.add(interval);
+        }
+
+        if (!this.hasIndex()) {
+            throw new TribbleException("Index not found for: " + path);
+        }
+        return new BatchQueryIterator(intervalsBySequence);
+    }
+
+    /**
+     * Merges the blocks into a list of disjoint blocks, sorted by position.  Blocks that overlap or abut are
+     * combined, so that they can be read in one pass.
+     */
+    static List<Block> mergeBlocks(final List<Block> blocks) {
+        final List<Block> sorted = new ArrayList<Block>(blocks);
+        Collections.sort(sorted, new Comparator<Block>() {
+            public int compare(final Block b1, final Block b2) {
+                if (b1.getStartPosition() < b2.getStartPosition()) return -1;
+                if (b1.getStartPosition() > b2.getStartPosition()) return 1;
+                return 0;
+            }
+        });
+        final List<Block> merged = new ArrayList<Block>();
+        Block last = null;
+        for (final Block block : sorted) {
+            if (block.getSize() <= 0) continue;
+            if (last != null && block.getStartPosition() <= last.getEndPosition()) {
+                if (block.getEndPosition() > last.getEndPosition()) last.setEndPosition(block.getEndPosition());
+            } else {
+                // copy, as setEndPosition() modifies the block and the blocks may belong to the index
+                last = new Block(block.getStartPosition(), block.getSize());
+                merged.add(last);
+            }
+        }
+        return merged;
+    }
+
 
     /**
      * @return Return an iterator to iterate over the entire file
      * @throws IOException
      */
     public CloseableTribbleIterator<T> iterator() throws IOException {
+        if (decodesInParallel()) {
+            final PositionalBufferedStream pbs = openWholeFileStream();
+            return new ParallelFeatureIterator<T>(this, LineReaderUtil.fromBufferedStream(pbs, LineReaderUtil.LineReaderOption.SYNCHRONOUS),
+                    getDecodingThreads());
+        }
         return new WFIterator();
     }
 
+    /**
+     * @return a stream over the file, decompressed if necessary, positioned after the header.
+     */
+    private PositionalBufferedStream openWholeFileStream() throws IOException {
+        final InputStream inputStream = ParsingUtils.openInputStream(path);
+
+        final PositionalBufferedStream pbs;
+        if (path.endsWith(".gz")) {
+            // Gzipped -- we need to buffer the GZIPInputStream methods as this class makes read() calls,
+            // and seekableStream does not support single byte reads
+            final InputStream is = new GZIPInputStream(new BufferedInputStream(inputStream, 512000));
+            pbs = new PositionalBufferedStream(is, 1000);  // Small buffer as this is buffered already.
+        } else {
+            pbs = new PositionalBufferedStream(inputStream, 512000);
+        }
+        /**
+         * The header was already read from the original source in the constructor; don't read it again, since some codecs keep state
+         * about its initializagtion.  Instead, skip that part of the stream.
+         */
+        pbs.skip(header.getHeaderEnd());
+        return pbs;
+    }
+
     /**
      * Class to iterator over an entire file.
      */
@@ -283,23 +396,7 @@ public class TribbleIndexedFeatureReader<T extends Feature, SOURCE> extends Abst
          * @throws IOException
          */
         public WFIterator() throws IOException {
-            final InputStream inputStream = ParsingUtils.openInputStream(path);
-
-            final PositionalBufferedStream pbs;
-            if (path.endsWith(".gz")) {
-                // Gzipped -- we need to buffer the GZIPInputStream methods as this class makes read() calls,
-                // and seekableStream does not support single byte reads
-                final InputStream is = new GZIPInputStream(new BufferedInputStream(inputStream, 512000));
-                pbs = new PositionalBufferedStream(is, 1000);  // Small buffer as this is buffered already.
-            } else {
-                pbs = new PositionalBufferedStream(inputStream, 512000);
-            }
-            /**
-             * The header was already read from the original source in the constructor; don't read it again, since some codecs keep state
-             * about its initializagtion.  Instead, skip that part of the stream.
-             */
-            pbs.skip(header.getHeaderEnd());
-            source = codec.makeSourceFromStream(pbs);
+            source = codec.makeSourceFromStream(openWholeFileStream());
             readNextRecord();
         }
 
@@ -506,6 +603,187 @@ public class TribbleIndexedFeatureReader<T extends Feature, SOURCE> extends Abst
     }
 
 
+    /**
+     * The features overlapping one of the intervals of a multi-interval query.
+     */
+    public static class QueryResult<T extends Feature> {
+        private final Feature interval;
+        private final List<T> features = new ArrayList<T>();
+        private boolean complete = false;
+
+        QueryResult(final Feature interval) {
+            this.interval = interval;
+        }
+
+        /** @return the query interval, as given to query() */
+        public Feature getInterval() {
+            return interval;
+        }
+
+        /** @return the features overlapping the interval, in file order */
+        public List<T> getFeatures() {
+            return features;
+        }
+    }
+
+    /**
+     * Iterator for a multi-interval query.  For each sequence, the merged blocks for all its intervals are read in
+     * order.  Since features are sorted by start, an interval is complete as soon as a feature starting beyond its end
+     * is read, and results are handed out in the order of the intervals as they become complete.
+     */
+    class BatchQueryIterator implements CloseableIterator<QueryResult<T>> {
+        private final Iterator<List<Feature>> sequenceIterator;
+        private final SeekableStream mySeekableStream;
+        // Results that are complete, or waiting for an earlier interval to be completed
+        private final LinkedList<QueryResult<T>> results = new LinkedList<QueryResult<T>>();
+        // Results that may still overlap features yet to be read
+        private final List<QueryResult<T>> active = new LinkedList<QueryResult<T>>();
+
+        // State for the current sequence
+        private List<Feature> sequenceIntervals = null;
+        private int nextInterval;
+        private Iterator<Block> blockIterator;
+        private String chrAlias;
+        private SOURCE source;
+
+        BatchQueryIterator(final List<List<Feature>> intervalsBySequence) throws IOException {
+            sequenceIterator = intervalsBySequence.iterator();
+            mySeekableStream = getSeekableStream();
+        }
+
+        public boolean hasNext() {
+            try {
+                while (results.isEmpty() || !results.getFirst().complete) {
+                    if (!advance()) return false;
+                }
+                return true;
+            } catch (IOException e) {
+                throw new RuntimeIOException("Unable to read features from " + path, e);
+            }
+        }
+
+        public QueryResult<T> next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            return results.removeFirst();
+        }
+
+        /**
+         * Decode the next feature and dispatch it to the intervals it overlaps, moving on to the next block or
+         * sequence as needed.
+         * @return false if there is nothing left to read.
+         */
+        private boolean advance() throws IOException {
+            if (sequenceIntervals == null) {
+                return startNextSequence();
+            }
+            if (nextInterval == sequenceIntervals.size() && active.isEmpty()) {
+                // No interval on this sequence can use more features
+                finishSequence();
+                return true;
+            }
+            while (source == null || codec.isDone(source)) {
+                if (!advanceBlock()) {
+                    finishSequence();
+                    return true;
+                }
+            }
+            final T f;
+            try {
+                f = codec.decode(source);
+            } catch (TribbleException e) {
+                e.setSource(path);
+                throw e;
+            } catch (NumberFormatException e) {
+                final String error = "Error parsing line: " + source;
+                throw new TribbleException.MalformedFeatureFile(error, path, e);
+            }
+            if (f == null) return true;
+
+            // The feature chromosome might not be the query chromosome, due to alias definitions.  As in
+            // QueryIterator, assume the chromosome of the first record is correct.
+            if (chrAlias == null) chrAlias = f.getChr();
+            else if (!f.getChr().equals(chrAlias)) return true;
+
+            while (nextInterval < sequenceIntervals.size() && sequenceIntervals.get(nextInterval).getStart() <= f.getEnd()) {
+                final QueryResult<T> result = new QueryResult<T>(sequenceIntervals.get(nextInterval++));
+                results.add(result);
+                active.add(result);
+            }
+            for (final Iterator<QueryResult<T>> it = active.iterator(); it.hasNext(); ) {
+                final QueryResult<T> result = it.next();
+                if (result.interval.getEnd() < f.getStart()) {
+                    // Later features start no earlier than this one
+                    result.complete = true;
+                    it.remove();
+                } else if (result.interval.getStart() <= f.getEnd()) {
+                    result.features.add(f);
+                }
+            }
+            return true;
+        }
+
+        private boolean startNextSequence() throws IOException {
+            if (!sequenceIterator.hasNext()) return false;
+            sequenceIntervals = sequenceIterator.next();
+            nextInterval = 0;
+            chrAlias = null;
+            final String chr = sequenceIntervals.get(0).getChr();
+            final List<Block> blocks = new ArrayList<Block>();
+            if (index.containsChromosome(chr)) {
+                for (final Feature interval : sequenceIntervals) {
+                    blocks.addAll(index.getBlocks(chr, interval.getStart() - 1, interval.getEnd()));
+                }
+            }
+            blockIterator = mergeBlocks(blocks).iterator();
+            return true;
+        }
+
+        private boolean advanceBlock() throws IOException {
+            closeSource();
+            if (!blockIterator.hasNext()) return false;
+            final Block block = blockIterator.next();
+            final int bufferSize = Math.min(2000000, block.getSize() > 100000000 ? 10000000 : (int) block.getSize());
+            source = codec.makeSourceFromStream(new PositionalBufferedStream(new BlockStreamWrapper(mySeekableStream, block), bufferSize));
+            return true;
+        }
+
+        /** Complete all the intervals on the current sequence, including any that no feature reached. */
+        private void finishSequence() {
+            closeSource();
+            while (nextInterval < sequenceIntervals.size()) {
+                results.add(new QueryResult<T>(sequenceIntervals.get(nextInterval++)));
+            }
+            for (final QueryResult<T> result : results) {
+                result.complete = true;
+            }
+            active.clear();
+            sequenceIntervals = null;
+        }
+
+        private void closeSource() {
+            if (source != null) {
+                codec.close(source);
+                source = null;
+            }
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException("Remove is not supported.");
+        }
+
+        public void close() {
+            closeSource();
+            if (!reuseStreamInQuery()) {
+                try {
+                    mySeekableStream.close();
+                } catch (IOException e) {
+                    throw new TribbleException("Couldn't close seekable stream", e);
+                }
+            }
+        }
+    }
+
+
     /**
      * Wrapper around a SeekableStream that limits reading to the specified "block" of bytes.  Attempts to
      * read beyond the end of the block should return -1  (EOF).
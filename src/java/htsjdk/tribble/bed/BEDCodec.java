@@ -25,6 +25,8 @@ package htsjdk.tribble.bed;
 
 import htsjdk.tribble.AsciiFeatureCodec;
 import htsjdk.tribble.annotation.Strand;
+import htsjdk.tribble.readers.AsciiLine;
+import htsjdk.tribble.readers.AsciiLineTokenizer;
 import htsjdk.tribble.readers.LineIterator;
 import htsjdk.tribble.util.ParsingUtils;
 
@@ -41,6 +43,9 @@ public class BEDCodec extends AsciiFeatureCodec<BEDFeature> {
 
     private static final Pattern SPLIT_PATTERN = Pattern.compile("\\t|( +)");
     private final int startOffsetValue;
+    private final AsciiLineTokenizer tokenizer = new AsciiLineTokenizer('\t', true);
+    // The chromosome of the previous feature decoded from an AsciiLine, reused to avoid a String per feature
+    private String lastChr = null;
 
     /**
      * Calls {@link #BEDCodec(StartOffset)} with an argument
@@ -81,6 +86,98 @@ public class BEDCodec extends AsciiFeatureCodec<BEDFeature> {
         return decode(tokens);
     }
 
+    /**
+     * Decode a line from its bytes, with the same result as decode(String) but without splitting the line into
+     * Strings.  Only used by BEDCodec itself, as subclasses may override decode(String).
+     */
+    @Override
+    public BEDFeature decode(final AsciiLine line) {
+        if (line.isBlank()) {
+            return null;
+        }
+
+        if (line.startsWith("#") || line.startsWith("track") || line.startsWith("browser")) {
+            this.readHeaderLine(line.toString());
+            return null;
+        }
+
+        final int tokenCount = tokenizer.tokenize(line);
+        if (tokenCount < 2) {
+            return null;
+        }
+
+        if (!tokenizer.fieldEquals(0, lastChr)) {
+            lastChr = tokenizer.getString(0);
+        }
+
+        // The BED format uses a first-base-is-zero convention,  Tribble features use 1 => add 1.
+        final int start = tokenizer.getInt(1) + startOffsetValue;
+
+        int end = start;
+        if (tokenCount > 2) {
+            end = tokenizer.getInt(2);
+        }
+
+        final FullBEDFeature feature = new FullBEDFeature(lastChr, start, end);
+
+        // Name
+        if (tokenCount > 3) {
+            final String name = tokenizer.getString(3);
+            feature.setName(name.indexOf('"') < 0 ? name : name.replaceAll("\"", ""));
+        }
+
+        // Score
+        if (tokenCount > 4) {
+            try {
+                feature.setScore(Float.parseFloat(tokenizer.getString(4)));
+            } catch (NumberFormatException numberFormatException) {
+                return feature;
+            }
+        }
+
+        // Strand
+        if (tokenCount > 5) {
+            // First character after trimming, as in decode(String[])
+            final byte[] bytes = line.getBytes();
+            int i = tokenizer.getFieldStart(5);
+            final int fieldEnd = tokenizer.getFieldEnd(5);
+            while (i < fieldEnd && (bytes[i] & 0xff) <= ' ') ++i;
+            final byte strand = i < fieldEnd ? bytes[i] : (byte) ' ';
+            if (strand == '-') {
+                feature.setStrand(Strand.NEGATIVE);
+            } else if (strand == '+') {
+                feature.setStrand(Strand.POSITIVE);
+            } else {
+                feature.setStrand(Strand.NONE);
+            }
+        }
+
+        //Color
+        if (tokenCount > 8) {
+            feature.setColor(ParsingUtils.parseColor(tokenizer.getString(8)));
+        }
+
+        // Coding information is optional
+        if (tokenCount > 11) {
+            createExons(start, tokenizer.getStrings(), feature, feature.getStrand());
+        }
+
+        return feature;
+    }
+
+    @Override
+    protected boolean decodesLineSlices() {
+        return getClass() == BEDCodec.class;
+    }
+
+    @Override
+    protected AsciiFeatureCodec<BEDFeature> newDecodingInstance() {
+        if (getClass() != BEDCodec.class) {
+            return null;
+        }
+        return new BEDCodec(startOffsetValue == StartOffset.ZERO.value() ? StartOffset.ZERO : StartOffset.ONE);
+    }
+
     @Override
     public Object readActualHeader(LineIterator reader) {
         return null;
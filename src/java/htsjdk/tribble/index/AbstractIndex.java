@@ -18,16 +18,20 @@
 
 package htsjdk.tribble.index;
 
+import htsjdk.samtools.seekablestream.SeekableStream;
 import htsjdk.tribble.Tribble;
 import htsjdk.tribble.TribbleException;
 import htsjdk.tribble.util.LittleEndianInputStream;
 import htsjdk.tribble.util.LittleEndianOutputStream;
 
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -91,6 +95,13 @@ public abstract class AbstractIndex implements MutableIndex {
      */
     protected LinkedHashMap<String, ChrIndex> chrIndices;
 
+    /**
+     * If the index was read lazily, the stream it was read from, and the offset and length in that stream of each
+     * ChrIndex.  ChrIndex entries that have not been loaded yet are null in chrIndices.
+     */
+    private SeekableStream lazyStream = null;
+    private Map<String, long[]> chrIndexExtents = null;
+
     /**
      * Any flags we're using
      */
@@ -108,6 +119,8 @@ public abstract class AbstractIndex implements MutableIndex {
         }
 
         final AbstractIndex other = (AbstractIndex) obj;
+        loadAllChrIndices();
+        other.loadAllChrIndices();
 
         if (version != other.version) {
             System.err.printf("equals version: this %d != other %d%n", version, other.version);
@@ -322,8 +335,8 @@ public abstract class AbstractIndex implements MutableIndex {
      * @return return the ChrIndex associated with chr,
      * @throws IllegalArgumentException if {@code chr} not found
      */
-    private final ChrIndex getChrIndex(final String chr) {
-        final ChrIndex chrIdx = chrIndices.get(chr);
+    protected final ChrIndex getChrIndex(final String chr) {
+        final ChrIndex chrIdx = chrIndexExtents == null ? chrIndices.get(chr) : loadChrIndex(chr);
         if (chrIdx == null) {
             throw new IllegalArgumentException("getBlocks() called with of unknown contig " + chr);
         } else {
@@ -332,6 +345,7 @@ public abstract class AbstractIndex implements MutableIndex {
     }
 
     public void write(final LittleEndianOutputStream stream) throws IOException {
+        loadAllChrIndices();
         writeHeader(stream);
 
         //# of chromosomes
@@ -375,6 +389,100 @@ public abstract class AbstractIndex implements MutableIndex {
         //printIndexInfo();
     }
 
+    /**
+     * Read the header and find the extent of each ChrIndex, without reading the ChrIndex entries themselves.  Each
+     * entry is read from the stream the first time it is needed, so the stream must be left open for as long as the
+     * index is used.  The stream should be buffered, or memory-mapped, as the header is read a byte at a time.
+     *
+     * @param stream the index file, which is read from the start
+     * @throws IOException
+     */
+    protected void readLazily(final SeekableStream stream) throws IOException {
+        stream.seek(0);
+        final LittleEndianInputStream dis = new LittleEndianInputStream(stream);
+        validateIndexHeader(getType(), dis);
+        readHeader(dis);
+
+        int nChromosomes = dis.readInt();
+        chrIndices = new LinkedHashMap<String, ChrIndex>(nChromosomes);
+        chrIndexExtents = new HashMap<String, long[]>(nChromosomes);
+        while (nChromosomes-- > 0) {
+            final long start = stream.position();
+            final String name = skipChrIndex(dis);
+            chrIndices.put(name, null);
+            chrIndexExtents.put(name, new long[]{start, stream.position() - start});
+        }
+        lazyStream = stream;
+    }
+
+    /**
+     * Read the name of the next ChrIndex, and skip over the rest of it.  Used by readLazily() to find the extent
+     * of each ChrIndex.  This implementation reads the whole ChrIndex; subclasses should override it to skip
+     * the bulk of the entry without decoding it.
+     *
+     * @param dis the stream, positioned at the start of a ChrIndex
+     * @return the name of the ChrIndex
+     * @throws IOException
+     */
+    protected String skipChrIndex(final LittleEndianInputStream dis) throws IOException {
+        final ChrIndex chrIdx = newChrIndex();
+        chrIdx.read(dis);
+        return chrIdx.getName();
+    }
+
+    /** Skip exactly n bytes of the stream. */
+    protected static void skipFully(final LittleEndianInputStream dis, long n) throws IOException {
+        while (n > 0) {
+            final long skipped = dis.skip(n);
+            if (skipped <= 0) throw new EOFException();
+            n -= skipped;
+        }
+    }
+
+    /**
+     * @return the ChrIndex for chr, reading it from the stream if the index was read lazily and the ChrIndex has not
+     * been loaded yet, or null if there is no such ChrIndex.
+     */
+    private synchronized ChrIndex loadChrIndex(final String chr) {
+        ChrIndex chrIdx = chrIndices.get(chr);
+        if (chrIdx == null && chrIndexExtents != null && chrIndices.containsKey(chr)) {
+            final long[] extent = chrIndexExtents.get(chr);
+            try {
+                final byte[] bytes = new byte[(int) extent[1]];
+                lazyStream.seek(extent[0]);
+                lazyStream.readFully(bytes);
+                chrIdx = newChrIndex();
+                chrIdx.read(new LittleEndianInputStream(new ByteArrayInputStream(bytes)));
+            } catch (final IOException e) {
+                throw new TribbleException("Error reading index for " + chr + " from " + lazyStream.getSource(), e);
+            }
+            chrIndices.put(chr, chrIdx);
+        }
+        return chrIdx;
+    }
+
+    /**
+     * Make sure every ChrIndex is loaded, if the index was read lazily.  Called before operations that need all
+     * of the entries.
+     */
+    protected void loadAllChrIndices() {
+        if (chrIndexExtents != null) {
+            for (final String chr : new ArrayList<String>(chrIndices.keySet())) {
+                loadChrIndex(chr);
+            }
+        }
+    }
+
+    private ChrIndex newChrIndex() {
+        try {
+            return (ChrIndex) getChrIndexClass().newInstance();
+        } catch (final InstantiationException e) {
+            throw new TribbleException.UnableToCreateCorrectIndexType("Unable to create class " + getChrIndexClass(), e);
+        } catch (final IllegalAccessException e) {
+            throw new TribbleException.UnableToCreateCorrectIndexType("Unable to create class " + getChrIndexClass(), e);
+        }
+    }
+
     protected void printIndexInfo() {
         System.out.println(String.format("Index for %s with %d indices", indexedFile, chrIndices.size()));
         final BlockStats stats = getBlockStats(true);
@@ -387,6 +495,7 @@ public abstract class AbstractIndex implements MutableIndex {
     }
 
     protected BlockStats getBlockStats(final boolean logDetails) {
+        loadAllChrIndices();
         final BlockStats stats = new BlockStats();
         for (final Map.Entry<String, ChrIndex> elt : chrIndices.entrySet()) {
             final List<Block> blocks = elt.getValue().getBlocks();
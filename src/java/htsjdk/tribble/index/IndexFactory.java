@@ -25,8 +25,12 @@ package htsjdk.tribble.index;
 
 import htsjdk.samtools.Defaults;
 import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.seekablestream.SeekableBufferedStream;
+import htsjdk.samtools.seekablestream.SeekableStream;
 import htsjdk.samtools.util.BlockCompressedInputStream;
 import htsjdk.samtools.util.LocationAware;
+import htsjdk.tribble.AsciiFeatureCodec;
+import htsjdk.tribble.BasicFeature;
 import htsjdk.tribble.CloseableTribbleIterator;
 import htsjdk.tribble.Feature;
 import htsjdk.tribble.FeatureCodec;
@@ -39,6 +43,7 @@ import htsjdk.tribble.index.linear.LinearIndexCreator;
 import htsjdk.tribble.index.tabix.TabixFormat;
 import htsjdk.tribble.index.tabix.TabixIndex;
 import htsjdk.tribble.index.tabix.TabixIndexCreator;
+import htsjdk.tribble.readers.LineIterator;
 import htsjdk.tribble.readers.PositionalBufferedStream;
 import htsjdk.tribble.util.LittleEndianInputStream;
 import htsjdk.tribble.util.LittleEndianOutputStream;
@@ -47,6 +52,7 @@ import htsjdk.tribble.util.TabixUtils;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -54,9 +60,19 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.GZIPInputStream;
 
 /**
@@ -65,6 +81,9 @@ import java.util.zip.GZIPInputStream;
  * by this factory.
  */
 public class IndexFactory {
+    /** Smallest number of bytes of a file decoded by one thread when creating an index on several threads. */
+    static final long MIN_BYTES_PER_RANGE = 256 * 1024;
+
     /** We can optimize index-file-creation for different factors. As of this writing, those are index-file size or seeking time. */
     public enum IndexBalanceApproach {
         FOR_SIZE,
@@ -198,6 +217,125 @@ public class IndexFactory {
         }
     }
 
+    /**
+     * Load a linear or interval tree index from the specified file, reading only its header and the location of
+     * the index for each sequence.  The index for a sequence is read from a memory mapping of the file the first
+     * time it is used, so that the cost of loading an index for a query of a few regions does not grow with the size
+     * of the index.  Gzipped and tabix indexes are loaded in full, as by loadIndex().
+     *
+     * @param indexFile from which to load the index
+     */
+    public static Index loadIndexLazily(final File indexFile) {
+        if (indexFile.getName().endsWith(".gz") || indexFile.getName().endsWith(TabixUtils.STANDARD_INDEX_EXTENSION) ||
+                indexFile.length() > Integer.MAX_VALUE) {
+            return loadIndex(indexFile.getAbsolutePath());
+        }
+        try {
+            return loadIndexLazily(new MappedFileStream(indexFile), indexFile.getAbsolutePath());
+        } catch (final IOException ex) {
+            throw new TribbleException.UnableToReadIndexFile("Unable to read index file", indexFile.getAbsolutePath(), ex);
+        }
+    }
+
+    /**
+     * Load a linear or interval tree index from the specified stream, reading only its header and the location of
+     * the index for each sequence.  The index for a sequence is read from the stream the first time it is used, so
+     * the stream must be left open for as long as the index is used.  The caller is responsible for closing it.
+     *
+     * @param indexStream the uncompressed index, e.g. from SeekableStreamFactory
+     */
+    public static Index loadIndexLazily(final SeekableStream indexStream) throws IOException {
+        return loadIndexLazily(new SeekableBufferedStream(indexStream, LAZY_INDEX_BUFFER_SIZE), indexStream.getSource());
+    }
+
+    private static final int LAZY_INDEX_BUFFER_SIZE = 64 * 1024;
+
+    private static Index loadIndexLazily(final SeekableStream stream, final String source) throws IOException {
+        stream.seek(0);
+        final LittleEndianInputStream dis = new LittleEndianInputStream(stream);
+        final int magicNumber = dis.readInt();
+        final int type = dis.readInt();
+        if (magicNumber == AbstractIndex.MAGIC_NUMBER && type == LinearIndex.INDEX_TYPE) {
+            return LinearIndex.loadLazily(stream);
+        } else if (magicNumber == AbstractIndex.MAGIC_NUMBER && type == IntervalTreeIndex.INDEX_TYPE) {
+            return IntervalTreeIndex.loadLazily(stream);
+        }
+        throw new TribbleException.UnableToCreateCorrectIndexType(
+                String.format("Index %s cannot be loaded lazily.  magic number: 0x%x; type %d", source, magicNumber, type));
+    }
+
+    /**
+     * A SeekableStream over a read-only memory mapping of a file.  The file is closed as soon as it is mapped.
+     */
+    static class MappedFileStream extends SeekableStream {
+        private final File file;
+        private final ByteBuffer buffer;
+
+        MappedFileStream(final File file) throws IOException {
+            this.file = file;
+            final FileInputStream in = new FileInputStream(file);
+            try {
+                final FileChannel channel = in.getChannel();
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                in.close();
+            }
+        }
+
+        @Override
+        public long length() {
+            return buffer.capacity();
+        }
+
+        @Override
+        public long position() {
+            return buffer.position();
+        }
+
+        @Override
+        public void seek(final long position) throws IOException {
+            if (position < 0 || position > buffer.limit()) {
+                throw new EOFException("Seek to " + position + " outside of " + file);
+            }
+            buffer.position((int) position);
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(final byte[] bytes, final int offset, final int length) {
+            if (length == 0) return 0;
+            if (!buffer.hasRemaining()) return -1;
+            final int n = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, n);
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) {
+            final int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean eof() {
+            return !buffer.hasRemaining();
+        }
+
+        @Override
+        public String getSource() {
+            return file.getAbsolutePath();
+        }
+    }
+
 
     /**
      * a helper method for creating a linear binned index with default bin size
@@ -278,6 +416,29 @@ public class IndexFactory {
         throw new IllegalArgumentException("Unrecognized IndexType " + type);
     }
 
+    /**
+     * Create an index of the specified type with default binning parameters, decoding the features of the file on
+     * several threads if the codec can be copied (see {@link AsciiFeatureCodec#copyForDecoding(FeatureCodec)}).  The index
+     * is the same as the one {@link #createIndex(File, FeatureCodec, IndexType)} creates.
+     *
+     * @param inputFile the input file to load features from
+     * @param codec     the codec to use for decoding records
+     * @param type      the type of index to create
+     * @param numThreads the number of threads decoding features
+     */
+    public static <FEATURE_TYPE extends Feature, SOURCE_TYPE> Index createIndex(final File inputFile,
+                                                                                final FeatureCodec<FEATURE_TYPE, SOURCE_TYPE> codec,
+                                                                                final IndexType type,
+                                                                                final int numThreads) {
+        switch (type) {
+            case INTERVAL_TREE: return createIndex(inputFile, codec, new IntervalIndexCreator(inputFile), numThreads);
+            case LINEAR:        return createIndex(inputFile, codec, new LinearIndexCreator(inputFile), numThreads);
+            // Tabix index initialization requires additional information, so this construction method won't work.
+            case TABIX:         throw new UnsupportedOperationException("Tabix indices cannot be created through a generic interface");
+        }
+        throw new IllegalArgumentException("Unrecognized IndexType " + type);
+    }
+
     /**
      * Write the index to a file; little endian.
      * @param idx
@@ -329,6 +490,34 @@ public class IndexFactory {
 
 
 
+    /**
+     * @param inputFile The file to be indexed.
+     * @param codec Mechanism for reading inputFile.
+     * @param tabixFormat Header fields for TabixIndex to be produced.
+     * @param sequenceDictionary May be null, but if present may reduce memory footprint for index creation.  Features
+     *                           in inputFile must be in the order defined by sequenceDictionary, if it is present.
+     * @param numThreads the number of threads decoding features, if the codec can be copied.
+     */
+    public static <FEATURE_TYPE extends Feature, SOURCE_TYPE> TabixIndex createTabixIndex(final File inputFile,
+                                                                                     final FeatureCodec<FEATURE_TYPE, SOURCE_TYPE> codec,
+                                                                                     final TabixFormat tabixFormat,
+                                                                                     final SAMSequenceDictionary sequenceDictionary,
+                                                                                     final int numThreads) {
+        final TabixIndexCreator indexCreator = new TabixIndexCreator(sequenceDictionary, tabixFormat);
+        return (TabixIndex)createIndex(inputFile, codec, indexCreator, numThreads);
+    }
+
+    private static <FEATURE_TYPE extends Feature, SOURCE_TYPE> Index createIndex(final File inputFile,
+                                                                                 final FeatureCodec<FEATURE_TYPE, SOURCE_TYPE> codec,
+                                                                                 final IndexCreator creator,
+                                                                                 final int numThreads) {
+        if (numThreads > 1 && inputFile.length() >= 2 * MIN_BYTES_PER_RANGE &&
+                AsciiFeatureCodec.copyForDecoding(codec) != null) {
+            return new ParallelFeatureScan(inputFile, (AsciiFeatureCodec<?>) codec).createIndex(creator, numThreads);
+        }
+        return createIndex(inputFile, new FeatureIterator<FEATURE_TYPE, SOURCE_TYPE>(inputFile, codec), creator);
+    }
+
     private static Index createIndex(final File inputFile, final FeatureIterator iterator, final IndexCreator creator) {
         Feature lastFeature = null;
         Feature currentFeature;
@@ -336,25 +525,7 @@ public class IndexFactory {
         while (iterator.hasNext()) {
             final long position = iterator.getPosition();
             currentFeature = iterator.next();
-
-            checkSorted(inputFile, lastFeature, currentFeature);
-            //should only visit chromosomes once
-            final String curChr = currentFeature.getChr();
-            final String lastChr = lastFeature != null ? lastFeature.getChr() : null;
-            if(!curChr.equals(lastChr)){
-                if(visitedChromos.containsKey(curChr)){
-                    String msg = "Input file must have contiguous chromosomes.";
-                    msg += " Saw feature " + featToString(visitedChromos.get(curChr));
-                    msg += " followed later by " + featToString(lastFeature);
-                    msg += " and then " + featToString(currentFeature);
-                    throw new TribbleException.MalformedFeatureFile(msg, inputFile.getAbsolutePath());
-                }else{
-                    visitedChromos.put(curChr, currentFeature);
-                }
-            }
-
-            creator.addFeature(currentFeature, position);
-
+            addFeature(inputFile, creator, visitedChromos, lastFeature, currentFeature, position);
             lastFeature = currentFeature;
         }
 
@@ -362,6 +533,27 @@ public class IndexFactory {
         return creator.finalizeIndex(iterator.getPosition());
     }
 
+    private static void addFeature(final File inputFile, final IndexCreator creator, final Map<String, Feature> visitedChromos,
+                                   final Feature lastFeature, final Feature currentFeature, final long position) {
+        checkSorted(inputFile, lastFeature, currentFeature);
+        //should only visit chromosomes once
+        final String curChr = currentFeature.getChr();
+        final String lastChr = lastFeature != null ? lastFeature.getChr() : null;
+        if(!curChr.equals(lastChr)){
+            if(visitedChromos.containsKey(curChr)){
+                String msg = "Input file must have contiguous chromosomes.";
+                msg += " Saw feature " + featToString(visitedChromos.get(curChr));
+                msg += " followed later by " + featToString(lastFeature);
+                msg += " and then " + featToString(currentFeature);
+                throw new TribbleException.MalformedFeatureFile(msg, inputFile.getAbsolutePath());
+            }else{
+                visitedChromos.put(curChr, currentFeature);
+            }
+        }
+
+        creator.addFeature(currentFeature, position);
+    }
+
     private static String featToString(final Feature feature){
         return feature.getChr() + ":" + feature.getStart() + "-" + feature.getEnd();
     }
@@ -482,4 +674,169 @@ public class IndexFactory {
             }
         }
     }
+
+    /**
+     * Finds the features of a plain text file on several threads, for an index.  The part of the file after the
+     * header is split into ranges at line starts, and each range is decoded with decodeLoc by its own copy of the
+     * codec, keeping only the locations and file positions of the features.  The features are then added to the
+     * index creator in file order, at the positions FeatureIterator gives them, so the index is the same as if the
+     * file had been read on one thread.
+     */
+    private static class ParallelFeatureScan {
+        private final File inputFile;
+        private final AsciiFeatureCodec<?> codec;
+        private final long fileSize;
+
+        ParallelFeatureScan(final File inputFile, final AsciiFeatureCodec<?> codec) {
+            this.inputFile = inputFile;
+            this.codec = codec;
+            this.fileSize = inputFile.length();
+        }
+
+        Index createIndex(final IndexCreator creator, final int numThreads) {
+            // As with FeatureIterator, the header is read into the caller's codec too
+            final long headerEnd = readHeader(codec).getHeaderEnd();
+            final int numRanges = (int) Math.max(1, Math.min(numThreads, (fileSize - headerEnd) / MIN_BYTES_PER_RANGE));
+            final List<LocatedFeatures> ranges = scan(headerEnd, numRanges);
+
+            Feature lastFeature = null;
+            final Map<String, Feature> visitedChromos = new HashMap<String, Feature>(40);
+            // The position of a feature is the end of the line of the previous feature, which for the first feature
+            // of a range is found in an earlier range.
+            long previousFeatureEnd = headerEnd;
+            for (final LocatedFeatures range : ranges) {
+                for (int i = 0; i < range.size; ++i) {
+                    final long position = range.positions[i] == -1 ? previousFeatureEnd : range.positions[i];
+                    final Feature currentFeature = new BasicFeature(range.chrs[i], range.starts[i], range.ends[i]);
+                    addFeature(inputFile, creator, visitedChromos, lastFeature, currentFeature, position);
+                    lastFeature = currentFeature;
+                }
+                if (range.lastFeatureEnd != -1) {
+                    previousFeatureEnd = range.lastFeatureEnd;
+                }
+            }
+            return creator.finalizeIndex(fileSize);
+        }
+
+        private List<LocatedFeatures> scan(final long headerEnd, final int numRanges) {
+            final ExecutorService executor = Executors.newFixedThreadPool(numRanges);
+            try {
+                final long length = fileSize - headerEnd;
+                final List<Future<LocatedFeatures>> futures = new ArrayList<Future<LocatedFeatures>>(numRanges);
+                for (int i = 0; i < numRanges; ++i) {
+                    futures.add(executor.submit(new RangeScanner(headerEnd + length * i / numRanges,
+                            headerEnd + length * (i + 1) / numRanges, i == 0)));
+                }
+                final List<LocatedFeatures> ranges = new ArrayList<LocatedFeatures>(numRanges);
+                for (final Future<LocatedFeatures> future : futures) {
+                    ranges.add(future.get());
+                }
+                return ranges;
+            } catch (final InterruptedException e) {
+                throw new TribbleException("Interrupted while indexing " + inputFile.getAbsolutePath(), e);
+            } catch (final ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                if (e.getCause() instanceof Error) throw (Error) e.getCause();
+                throw new TribbleException.MalformedFeatureFile("Unable to read a line from the file", inputFile.getAbsolutePath(),
+                        (Exception) e.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        private FeatureCodecHeader readHeader(final AsciiFeatureCodec<?> codec) {
+            final PositionalBufferedStream pbs = openStream();
+            try {
+                return codec.readHeader(codec.makeSourceFromStream(pbs));
+            } catch (final IOException e) {
+                throw new TribbleException.InvalidHeader("Error reading header " + e.getMessage());
+            } finally {
+                pbs.close();
+            }
+        }
+
+        private PositionalBufferedStream openStream() {
+            try {
+                return new PositionalBufferedStream(new FileInputStream(inputFile));
+            } catch (final FileNotFoundException e) {
+                throw new TribbleException.FeatureFileDoesntExist("Unable to open the input file, most likely the file doesn't exist.", inputFile.getAbsolutePath());
+            }
+        }
+
+        /**
+         * Decodes the features on lines starting in a range of the file.
+         */
+        private class RangeScanner implements Callable<LocatedFeatures> {
+            private final long rangeStart;
+            private final long rangeEnd;
+            // If true, rangeStart is the end of the header, otherwise the range starts at the first line start after it
+            private final boolean firstRange;
+
+            RangeScanner(final long rangeStart, final long rangeEnd, final boolean firstRange) {
+                this.rangeStart = rangeStart;
+                this.rangeEnd = rangeEnd;
+                this.firstRange = firstRange;
+            }
+
+            public LocatedFeatures call() throws IOException {
+                final AsciiFeatureCodec<?> copy = AsciiFeatureCodec.copyForDecoding(codec);
+                readHeader(copy);
+                final LocatedFeatures features = new LocatedFeatures();
+                final PositionalBufferedStream pbs = openStream();
+                try {
+                    if (firstRange) {
+                        pbs.skip(rangeStart);
+                        features.lastFeatureEnd = rangeStart;
+                    } else {
+                        pbs.skip(rangeStart - 1);
+                        int b;
+                        while ((b = pbs.read()) != -1 && b != '\n') {
+                        }
+                    }
+                    final LineIterator source = (LineIterator) copy.makeIndexableSourceFromStream(pbs);
+                    while (!copy.isDone(source) && ((LocationAware) source).getPosition() < rangeEnd) {
+                        final Feature feature = copy.decodeLoc(source);
+                        if (feature != null) {
+                            features.add(feature, features.lastFeatureEnd);
+                            features.lastFeatureEnd = ((LocationAware) source).getPosition();
+                        }
+                    }
+                } finally {
+                    pbs.close();
+                }
+                return features;
+            }
+        }
+    }
+
+    /**
+     * Locations and file positions of the features in a range of a file, in parallel arrays.
+     */
+    private static class LocatedFeatures {
+        private String[] chrs = new String[1024];
+        private int[] starts = new int[1024];
+        private int[] ends = new int[1024];
+        // The position of each feature, or -1 if it is the end of the previous feature, in an earlier range
+        private long[] positions = new long[1024];
+        private int size = 0;
+        // The position after the line of the last feature, or -1 if there is no feature in this range or before it
+        private long lastFeatureEnd = -1;
+
+        void add(final Feature feature, final long position) {
+            if (size == starts.length) {
+                final int capacity = size * 2;
+                chrs = Arrays.copyOf(chrs, capacity);
+                starts = Arrays.copyOf(starts, capacity);
+                ends = Arrays.copyOf(ends, capacity);
+                positions = Arrays.copyOf(positions, capacity);
+            }
+            // Share the sequence name of the previous feature rather than keep a String per feature
+            final String chr = feature.getChr();
+            chrs[size] = (size > 0 && chr.equals(chrs[size - 1])) ? chrs[size - 1] : chr;
+            starts[size] = feature.getStart();
+            ends[size] = feature.getEnd();
+            positions[size] = position;
+            ++size;
+        }
+    }
 }
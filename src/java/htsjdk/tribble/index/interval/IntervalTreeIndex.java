@@ -18,6 +18,7 @@
 
 package htsjdk.tribble.index.interval;
 
+import htsjdk.samtools.seekablestream.SeekableStream;
 import htsjdk.tribble.index.AbstractIndex;
 import htsjdk.tribble.index.Block;
 import htsjdk.tribble.util.LittleEndianInputStream;
@@ -58,6 +59,29 @@ public class IntervalTreeIndex extends AbstractIndex {
         super(featureFile);
     }
 
+    private IntervalTreeIndex() {
+    }
+
+    /**
+     * Load from file, reading each ChrIndex the first time it is used rather than up front.
+     * @param stream The index file.  It must be left open for as long as the index is used, and closed by the
+     *               caller.  It should be buffered or memory-mapped.
+     */
+    public static IntervalTreeIndex loadLazily(final SeekableStream stream) throws IOException {
+        final IntervalTreeIndex index = new IntervalTreeIndex();
+        index.readLazily(stream);
+        return index;
+    }
+
+    @Override
+    protected String skipChrIndex(final LittleEndianInputStream dis) throws IOException {
+        // name, nIntervals, then start, end, block position and block size for each interval
+        final String name = dis.readString();
+        final int nIntervals = dis.readInt();
+        skipFully(dis, nIntervals * 20L);
+        return name;
+    }
+
     @Override
     public Class getChrIndexClass() {
         return ChrIndex.class;
@@ -74,7 +98,7 @@ public class IntervalTreeIndex extends AbstractIndex {
      * @param interval
      */
     public void insert(final String chr, final Interval interval) {
-        ChrIndex chrIdx = (ChrIndex) chrIndices.get(chr);
+        ChrIndex chrIdx = containsChromosome(chr) ? (ChrIndex) getChrIndex(chr) : null;
         if (chrIdx == null) {
             chrIdx = new ChrIndex(chr);
             chrIndices.put(chr, chrIdx);
@@ -89,7 +113,7 @@ public class IntervalTreeIndex extends AbstractIndex {
     }
 
     public void printTree() {
-
+        loadAllChrIndices();
         for (final String chr : chrIndices.keySet()) {
             System.out.println(chr + ":");
             final ChrIndex chrIdx = (ChrIndex) chrIndices.get(chr);
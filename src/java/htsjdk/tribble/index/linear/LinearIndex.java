@@ -18,6 +18,7 @@
 
 package htsjdk.tribble.index.linear;
 
+import htsjdk.samtools.seekablestream.SeekableStream;
 import htsjdk.tribble.index.AbstractIndex;
 import htsjdk.tribble.index.Block;
 import htsjdk.tribble.index.Index;
@@ -101,8 +102,33 @@ public class LinearIndex extends AbstractIndex {
         read(dis);
     }
 
+    private LinearIndex() {
+    }
+
+    /**
+     * Load from file, reading each ChrIndex the first time it is used rather than up front.
+     * @param stream The index file.  It must be left open for as long as the index is used, and closed by the
+     *               caller.  It should be buffered or memory-mapped.
+     */
+    public static LinearIndex loadLazily(final SeekableStream stream) throws IOException {
+        final LinearIndex index = new LinearIndex();
+        index.readLazily(stream);
+        return index;
+    }
+
+    @Override
+    protected String skipChrIndex(final LittleEndianInputStream dis) throws IOException {
+        // name, binWidth, nBins, longestFeature, old V3 value, nFeatures, then nBins + 1 block positions
+        final String name = dis.readString();
+        dis.readInt();
+        final int nBins = dis.readInt();
+        skipFully(dis, 3 * 4 + (nBins + 1) * 8L);
+        return name;
+    }
+
     public boolean isCurrentVersion() {
         if (!super.isCurrentVersion()) return false;
+        loadAllChrIndices();
 
         // todo fixme nasty hack to determine if this is an old style V3 linear index (without nFeaturesPerBin)
         for (final htsjdk.tribble.index.ChrIndex chrIndex : chrIndices.values())
@@ -392,7 +418,7 @@ public class LinearIndex extends AbstractIndex {
      */
     public Index optimize(final double threshold) {
         if (enableAdaptiveIndexing) {
-
+            loadAllChrIndices();
             final List<ChrIndex> newIndices = new ArrayList<ChrIndex>(this.chrIndices.size());
             for (final String name : chrIndices.keySet()) {
                 final LinearIndex.ChrIndex oldIdx = (LinearIndex.ChrIndex) chrIndices.get(name);
@@ -415,6 +441,7 @@ public class LinearIndex extends AbstractIndex {
      */
     public void writeTable(final PrintStream out) {
         out.printf("chr binWidth avg.feature.size nFeatures.total block.id start.pos size nFeatures%n");
+        loadAllChrIndices();
         for (final String name : chrIndices.keySet()) {
             final LinearIndex.ChrIndex chrIdx = (LinearIndex.ChrIndex) chrIndices.get(name);
             int blockCount = 0;
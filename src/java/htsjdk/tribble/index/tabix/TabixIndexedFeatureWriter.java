@@ -0,0 +1,179 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.tribble.index.tabix;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.RuntimeIOException;
+import htsjdk.tribble.Feature;
+import htsjdk.tribble.util.TabixUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Writes lines of a feature file to a BGZF file and builds its tabix index in the same pass, so that the file
+ * does not have to be read and decoded again to index it.  The caller encodes each feature as a line, and passes
+ * the line together with the feature; the feature is added to a {@link TabixIndexCreator} at the virtual file
+ * pointer of the start of its line.  Header lines may be written before the first feature.
+ *
+ * Features must be added in the order required by tabix: grouped by sequence, and sorted by start within a
+ * sequence.  Their coordinates are 1-based, inclusive, whatever the coordinate convention of the file.
+ * The index is written when the writer is closed.
+ */
+public class TabixIndexedFeatureWriter implements Closeable {
+    private static final Charset LATIN_1 = Charset.forName("ISO-8859-1");
+
+    private final BlockCompressedOutputStream out;
+    private final File indexFile;
+    private final TabixIndexCreator indexCreator;
+    private TabixIndex index = null;
+    private boolean featureWritten = false;
+    private boolean closed = false;
+    // Lines are encoded as ISO-8859-1, as AsciiLineReader decodes them; characters outside it are written as '?'.
+    private final CharsetEncoder encoder = LATIN_1.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    // Reused to encode lines
+    private ByteBuffer lineBuffer = ByteBuffer.allocate(1024);
+
+    /**
+     * @param outputFile the BGZF file to write.  The index is written next to it, with the standard extension.
+     * @param formatSpec the tabix format of the lines written.
+     */
+    public TabixIndexedFeatureWriter(final File outputFile, final TabixFormat formatSpec) {
+        this(outputFile, null, formatSpec);
+    }
+
+    /**
+     * @param outputFile the BGZF file to write.  The index is written next to it, with the standard extension.
+     * @param sequenceDictionary is not required, but if present all features added must refer to sequences in the
+     *                           dictionary.  It is used to optimize the memory needed to build the index.
+     * @param formatSpec the tabix format of the lines written.
+     */
+    public TabixIndexedFeatureWriter(final File outputFile, final SAMSequenceDictionary sequenceDictionary,
+                                     final TabixFormat formatSpec) {
+        this(new BlockCompressedOutputStream(outputFile), new File(outputFile.getAbsolutePath() + TabixUtils.STANDARD_INDEX_EXTENSION),
+                sequenceDictionary, formatSpec);
+    }
+
+    /**
+     * @param out the stream to write the lines to.  It is closed when this writer is closed.
+     * @param indexFile the file to write the index to.
+     * @param sequenceDictionary is not required, but if present all features added must refer to sequences in the
+     *                           dictionary.  It is used to optimize the memory needed to build the index.
+     * @param formatSpec the tabix format of the lines written.
+     */
+    public TabixIndexedFeatureWriter(final BlockCompressedOutputStream out, final File indexFile,
+                                     final SAMSequenceDictionary sequenceDictionary, final TabixFormat formatSpec) {
+        this.out = out;
+        this.indexFile = indexFile;
+        this.indexCreator = new TabixIndexCreator(sequenceDictionary, formatSpec);
+    }
+
+    /**
+     * Writes a line that is not indexed, which must start with the meta character of the tabix format.
+     * @param line the line, without a line terminator.
+     */
+    public void writeHeaderLine(final String line) {
+        if (featureWritten) {
+            throw new IllegalStateException("Header lines must be written before any feature");
+        }
+        writeLine(line);
+    }
+
+    /**
+     * Writes the line encoding a feature, and adds the feature to the index.
+     * @param feature the feature, of which start, end, and contig must be filled in.
+     * @param line the encoded feature, without a line terminator.
+     */
+    public void add(final Feature feature, final String line) {
+        indexCreator.addFeature(feature, out.getFilePointer());
+        featureWritten = true;
+        writeLine(line);
+    }
+
+    private void writeLine(final String line) {
+        // ISO-8859-1 encodes each char as at most one byte
+        final int maxLength = line.length() + 1;
+        if (lineBuffer.capacity() < maxLength) {
+            lineBuffer = ByteBuffer.allocate(Math.max(maxLength, lineBuffer.capacity() * 2));
+        }
+        lineBuffer.clear();
+        encoder.reset();
+        encoder.encode(CharBuffer.wrap(line), lineBuffer, true);
+        encoder.flush(lineBuffer);
+        lineBuffer.put((byte) '\n');
+        try {
+            out.write(lineBuffer.array(), 0, lineBuffer.position());
+        } catch (IOException e) {
+            throw new RuntimeIOException(e);
+        }
+    }
+
+    /**
+     * @return the virtual file pointer at which the next line will be written.
+     */
+    public long getFilePointer() {
+        return out.getFilePointer();
+    }
+
+    /**
+     * @return the index of the lines written, once this writer has been closed, otherwise null.
+     */
+    public TabixIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Closes the BGZF output and writes the index.  The output is closed even if the index cannot be finalized.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            index = (TabixIndex) indexCreator.finalizeIndex(out.getFilePointer());
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // Otherwise the exception finalizing the index is propagating, and must not be hidden
+                if (index != null) {
+                    throw new RuntimeIOException(e);
+                }
+            }
+        }
+        index.write(indexFile);
+    }
+}
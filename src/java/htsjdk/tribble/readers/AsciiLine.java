@@ -0,0 +1,123 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.tribble.readers;
+
+import java.nio.charset.Charset;
+
+/**
+ * A view of one line of ASCII text as a slice of a byte array, without its line terminator.  Readers such as
+ * {@link AsciiLineSliceIterator} reuse a single instance and its backing array for every line, so a line is only
+ * valid until the next line is read, and anything that must outlive it has to be copied out.
+ * <p/>
+ * Bytes are mapped to chars as ISO-8859-1, as {@link AsciiLineReader} does.
+ */
+public final class AsciiLine implements CharSequence {
+    private static final Charset LATIN_1 = Charset.forName("ISO-8859-1");
+
+    private byte[] bytes;
+    private int start;
+    private int end;
+
+    public AsciiLine() {
+        this(new byte[0], 0, 0);
+    }
+
+    public AsciiLine(final byte[] bytes, final int start, final int end) {
+        set(bytes, start, end);
+    }
+
+    /**
+     * Point this line at bytes[start, end).
+     * @return this line
+     */
+    public AsciiLine set(final byte[] bytes, final int start, final int end) {
+        if (start < 0 || end < start || end > bytes.length) {
+            throw new IndexOutOfBoundsException("Invalid slice [" + start + ", " + end + ") of array of length " + bytes.length);
+        }
+        this.bytes = bytes;
+        this.start = start;
+        this.end = end;
+        return this;
+    }
+
+    /** @return the backing array, which the line occupies from getStart() to getEnd() */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    /** @return the offset in getBytes() of the first byte of the line */
+    public int getStart() {
+        return start;
+    }
+
+    /** @return the offset in getBytes() just past the last byte of the line */
+    public int getEnd() {
+        return end;
+    }
+
+    public int length() {
+        return end - start;
+    }
+
+    /** @return the byte at index i of the line */
+    public byte byteAt(final int i) {
+        if (i < 0 || i >= end - start) throw new IndexOutOfBoundsException("Index " + i + " of line of length " + length());
+        return bytes[start + i];
+    }
+
+    public char charAt(final int i) {
+        return (char) (byteAt(i) & 0xff);
+    }
+
+    public CharSequence subSequence(final int from, final int to) {
+        if (from < 0 || to < from || to > end - start) {
+            throw new IndexOutOfBoundsException("Invalid subsequence [" + from + ", " + to + ") of line of length " + length());
+        }
+        return new String(bytes, start + from, to - from, LATIN_1);
+    }
+
+    /** @return true if the line starts with prefix, which should be ASCII */
+    public boolean startsWith(final String prefix) {
+        final int length = prefix.length();
+        if (length > end - start) return false;
+        for (int i = 0; i < length; ++i) {
+            if ((bytes[start + i] & 0xff) != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /** @return true if the line is empty or contains only whitespace, as for String.trim().length() == 0 */
+    public boolean isBlank() {
+        for (int i = start; i < end; ++i) {
+            if ((bytes[i] & 0xff) > ' ') return false;
+        }
+        return true;
+    }
+
+    /** @return a copy of the line */
+    @Override
+    public String toString() {
+        return new String(bytes, start, end - start, LATIN_1);
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.tribble.readers;
+
+import htsjdk.samtools.util.LocationAware;
+import htsjdk.samtools.util.RuntimeIOException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.NoSuchElementException;
+
+/**
+ * A {@link LineIterator} that reads lines into a buffer of bytes, and can hand out each line as an {@link AsciiLine}
+ * view of that buffer via {@link #nextLine()}, so that no String or char array need be made for a line.  The
+ * String methods of LineIterator are supported too, for reading headers and for callers that want Strings.
+ * <p/>
+ * A line is terminated by '\n', '\r' or "\r\n", as for {@link AsciiLineReader}.  The AsciiLine returned by
+ * nextLine() is reused, and is only valid until the next call to hasNext(), next(), peek() or nextLine().
+ * <p/>
+ * Like {@link AsciiLineReaderIterator}, {@link #getPosition()} returns the position at the end of the most recently
+ * returned line, so this class can be used as the source when indexing.
+ */
+public class AsciiLineSliceIterator implements LineIterator, LocationAware, Closeable {
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final InputStream in;
+    private byte[] buffer;
+    // buffer[0, bufferEnd) holds data, of which buffer[readPos, bufferEnd) has not been returned as a line yet
+    private int bufferEnd = 0;
+    private int readPos = 0;
+    // position in the stream of buffer[0]
+    private long bufferPosition;
+    private boolean eof = false;
+
+    private final AsciiLine line = new AsciiLine();
+    // true if line has been read by hasNext() but not returned yet
+    private boolean pending = false;
+    private long pendingEndPosition;
+    private long position;
+
+    /**
+     * @param in the stream to read.  If it is {@link Positional}, positions are relative to its current position,
+     *           otherwise to 0.
+     */
+    public AsciiLineSliceIterator(final InputStream in) {
+        this(in, DEFAULT_BUFFER_SIZE);
+    }
+
+    public AsciiLineSliceIterator(final InputStream in, final int bufferSize) {
+        this.in = in;
+        this.buffer = new byte[Math.max(bufferSize, 2)];
+        this.bufferPosition = in instanceof Positional ? ((Positional) in).getPosition() : 0;
+        this.position = bufferPosition;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (!pending) {
+            try {
+                pending = readLine();
+            } catch (final IOException e) {
+                throw new RuntimeIOException(e);
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * @return the next line, as a view that is only valid until the next call to hasNext(), next(), peek() or
+     * nextLine()
+     * @throws NoSuchElementException if there are no more lines
+     */
+    public AsciiLine nextLine() {
+        if (!hasNext()) throw new NoSuchElementException();
+        pending = false;
+        position = pendingEndPosition;
+        return line;
+    }
+
+    @Override
+    public String next() {
+        return nextLine().toString();
+    }
+
+    @Override
+    public String peek() {
+        return hasNext() ? line.toString() : null;
+    }
+
+    /** Returns the byte position at the end of the most recently returned line. */
+    @Override
+    public long getPosition() {
+        return position;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("Remove is not supported");
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Find the next line and point line at it.
+     * @return false if there are no more lines
+     */
+    private boolean readLine() throws IOException {
+        int scan = readPos;
+        while (true) {
+            while (scan < bufferEnd && buffer[scan] != '\n' && buffer[scan] != '\r') ++scan;
+            if (scan < bufferEnd) {
+                if (buffer[scan] == '\r' && scan + 1 == bufferEnd && !eof) {
+                    // Need to see whether a '\n' follows
+                    scan -= fill();
+                    continue;
+                }
+                int next = scan + 1;
+                if (buffer[scan] == '\r' && next < bufferEnd && buffer[next] == '\n') ++next;
+                line.set(buffer, readPos, scan);
+                readPos = next;
+                pendingEndPosition = bufferPosition + next;
+                return true;
+            }
+            if (eof) {
+                if (readPos == bufferEnd) return false;
+                // Last line has no terminator
+                line.set(buffer, readPos, bufferEnd);
+                readPos = bufferEnd;
+                pendingEndPosition = bufferPosition + bufferEnd;
+                return true;
+            }
+            scan -= fill();
+        }
+    }
+
+    /**
+     * Discard the data that has been returned, and read more into the buffer, growing it if it is full.
+     * @return the number of bytes by which the unreturned data moved toward the start of the buffer
+     */
+    private int fill() throws IOException {
+        final int shift = readPos;
+        if (shift > 0) {
+            System.arraycopy(buffer, readPos, buffer, 0, bufferEnd - readPos);
+            bufferPosition += shift;
+            bufferEnd -= shift;
+            readPos = 0;
+        }
+        if (bufferEnd == buffer.length) {
+            final byte[] newBuffer = new byte[buffer.length * 2];
+            System.arraycopy(buffer, 0, newBuffer, 0, bufferEnd);
+            buffer = newBuffer;
+        }
+        final int n = in.read(buffer, bufferEnd, buffer.length - bufferEnd);
+        if (n < 0) eof = true;
+        else bufferEnd += n;
+        return shift;
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.tribble.readers;
+
+/**
+ * Splits an {@link AsciiLine} into delimited fields without copying it.  The tokenizer records the extent of each
+ * field, and decodes fields on demand into Strings or numbers.  Numbers are parsed straight from the bytes.  A
+ * tokenizer can be reused for every line, so that tokenizing allocates nothing once its field arrays are large
+ * enough.
+ * <p/>
+ * Fields are split as by String.split(regex, -1): every delimiter ends a field, so consecutive delimiters give an
+ * empty field, and a line that ends with a delimiter has an empty last field.
+ */
+public final class AsciiLineTokenizer {
+    private final byte delimiter;
+    private final boolean spaceRunsAreDelimiters;
+
+    private byte[] bytes;
+    private int[] fieldStarts = new int[16];
+    private int[] fieldEnds = new int[16];
+    private int fieldCount = 0;
+
+    /**
+     * @param delimiter the byte that separates fields, e.g. '\t'
+     */
+    public AsciiLineTokenizer(final char delimiter) {
+        this(delimiter, false);
+    }
+
+    /**
+     * @param delimiter the byte that separates fields, e.g. '\t'
+     * @param spaceRunsAreDelimiters if true, a run of one or more spaces also separates fields, as for the regex
+     *                               "\\t|( +)" when the delimiter is a tab
+     */
+    public AsciiLineTokenizer(final char delimiter, final boolean spaceRunsAreDelimiters) {
+        if (delimiter > 127) throw new IllegalArgumentException("Delimiter must be ASCII: " + delimiter);
+        this.delimiter = (byte) delimiter;
+        this.spaceRunsAreDelimiters = spaceRunsAreDelimiters;
+    }
+
+    /**
+     * Split the line into fields.  The fields refer to the line's backing array, so are only valid until the line
+     * is changed.
+     *
+     * @return the number of fields, which is at least one
+     */
+    public int tokenize(final AsciiLine line) {
+        bytes = line.getBytes();
+        final int end = line.getEnd();
+        fieldCount = 0;
+        int fieldStart = line.getStart();
+        for (int i = fieldStart; i < end; ++i) {
+            final byte b = bytes[i];
+            if (b == delimiter) {
+                addField(fieldStart, i);
+                fieldStart = i + 1;
+            } else if (b == ' ' && spaceRunsAreDelimiters) {
+                addField(fieldStart, i);
+                while (i + 1 < end && bytes[i + 1] == ' ') ++i;
+                fieldStart = i + 1;
+            }
+        }
+        addField(fieldStart, end);
+        return fieldCount;
+    }
+
+    private void addField(final int start, final int end) {
+        if (fieldCount == fieldStarts.length) {
+            final int[] newStarts = new int[fieldCount * 2];
+            final int[] newEnds = new int[fieldCount * 2];
+            System.arraycopy(fieldStarts, 0, newStarts, 0, fieldCount);
+            System.arraycopy(fieldEnds, 0, newEnds, 0, fieldCount);
+            fieldStarts = newStarts;
+            fieldEnds = newEnds;
+        }
+        fieldStarts[fieldCount] = start;
+        fieldEnds[fieldCount] = end;
+        ++fieldCount;
+    }
+
+    /** @return the number of fields in the most recently tokenized line */
+    public int getFieldCount() {
+        return fieldCount;
+    }
+
+    /** @return the offset in the line's backing array of the first byte of field i */
+    public int getFieldStart(final int i) {
+        checkField(i);
+        return fieldStarts[i];
+    }
+
+    /** @return the offset in the line's backing array just past the last byte of field i */
+    public int getFieldEnd(final int i) {
+        checkField(i);
+        return fieldEnds[i];
+    }
+
+    public int getFieldLength(final int i) {
+        checkField(i);
+        return fieldEnds[i] - fieldStarts[i];
+    }
+
+    private void checkField(final int i) {
+        if (i < 0 || i >= fieldCount) {
+            throw new IndexOutOfBoundsException("Field " + i + " of line with " + fieldCount + " fields");
+        }
+    }
+
+    /** @return a copy of field i */
+    public String getString(final int i) {
+        checkField(i);
+        final char[] chars = new char[fieldEnds[i] - fieldStarts[i]];
+        for (int j = 0; j < chars.length; ++j) {
+            chars[j] = (char) (bytes[fieldStarts[i] + j] & 0xff);
+        }
+        return new String(chars);
+    }
+
+    /** @return copies of all the fields */
+    public String[] getStrings() {
+        final String[] strings = new String[fieldCount];
+        for (int i = 0; i < fieldCount; ++i) {
+            strings[i] = getString(i);
+        }
+        return strings;
+    }
+
+    /** @return true if field i is equal to s.  If s is null, returns false. */
+    public boolean fieldEquals(final int i, final String s) {
+        checkField(i);
+        final int length = fieldEnds[i] - fieldStarts[i];
+        if (s == null || s.length() != length) return false;
+        for (int j = 0; j < length; ++j) {
+            if ((bytes[fieldStarts[i] + j] & 0xff) != s.charAt(j)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parse field i as a decimal int, accepting the same strings as Integer.parseInt().
+     * @throws NumberFormatException if the field is not a valid int
+     */
+    public int getInt(final int i) {
+        final long value = getLong(i);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new NumberFormatException("For input string: \"" + getString(i) + "\"");
+        }
+        return (int) value;
+    }
+
+    /**
+     * Parse field i as a decimal long, accepting the same strings as Long.parseLong().
+     * @throws NumberFormatException if the field is not a valid long
+     */
+    public long getLong(final int i) {
+        checkField(i);
+        int pos = fieldStarts[i];
+        final int end = fieldEnds[i];
+        boolean negative = false;
+        long limit = -Long.MAX_VALUE;
+        if (pos < end && (bytes[pos] == '-' || bytes[pos] == '+')) {
+            if (bytes[pos] == '-') {
+                negative = true;
+                limit = Long.MIN_VALUE;
+            }
+            ++pos;
+        }
+        if (pos == end) throw new NumberFormatException("For input string: \"" + getString(i) + "\"");
+        // Accumulate negatively, as Long.parseLong() does, so that Long.MIN_VALUE can be parsed
+        final long multiplyLimit = limit / 10;
+        long result = 0;
+        for (; pos < end; ++pos) {
+            final int digit = bytes[pos] - '0';
+            if (digit < 0 || digit > 9 || result < multiplyLimit) {
+                throw new NumberFormatException("For input string: \"" + getString(i) + "\"");
+            }
+            result *= 10;
+            if (result < limit + digit) {
+                throw new NumberFormatException("For input string: \"" + getString(i) + "\"");
+            }
+            result -= digit;
+        }
+        return negative ? result : -result;
+    }
+}
@@ -37,6 +37,7 @@ import java.nio.ByteOrder;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 
@@ -44,6 +45,11 @@ import java.util.Set;
  * @author Heng Li <hengli@broadinstitute.org>
  */
 public class TabixReader {
+    /** Number of inflated BGZF blocks kept by default, so that neighbouring queries do not inflate them again. */
+    public static final int DEFAULT_BLOCK_CACHE_SIZE = 32;
+    /** Number of merged chunk lists of recent queries kept. */
+    private static final int CHUNK_CACHE_SIZE = 128;
+
     private String mFn;
     private String mIdxFn;
     private BlockCompressedInputStream mFp;
@@ -80,13 +86,30 @@ public class TabixReader {
         }
     }
 
+    /**
+     * The index of one sequence.  Bins are sorted so that they can be found by binary search, and the chunks of all
+     * bins are stored in two arrays, so that the index is a handful of primitive arrays rather than an object per
+     * chunk.
+     */
     protected static class TIndex {
-        HashMap<Integer, TPair64[]> b; // binning index
+        int[] bins; // bin numbers, ascending
+        int[] binChunks; // the chunks of bins[i] are at binChunks[i] until binChunks[i + 1]
+        long[] chunkBegins; // virtual file offsets
+        long[] chunkEnds;
         long[] l; // linear index
     }
 
     protected TIndex[] mIndex;
 
+    // Merged chunk lists of recent queries, by sequence and 16kb windows of the query
+    private final Map<Long, long[]> mChunkCache = new LinkedHashMap<Long, long[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Long, long[]> eldest) {
+            return size() > CHUNK_CACHE_SIZE;
+        }
+    };
+    private final int[] mBins = new int[MAX_BIN];
+
     private static class TIntv {
         int tid, beg, end;
     }
@@ -126,6 +149,7 @@ public class TabixReader {
     public TabixReader(final String fn, final String idxFn, SeekableStream stream) throws IOException {
         mFn = fn;
         mFp = new BlockCompressedInputStream(stream);
+        mFp.setBlockCacheSize(DEFAULT_BLOCK_CACHE_SIZE);
         if(idxFn == null){
             mIdxFn = ParsingUtils.appendToPath(fn, TabixUtils.STANDARD_INDEX_EXTENSION);
         } else {
@@ -134,6 +158,19 @@ public class TabixReader {
         readIndex();
     }
 
+    /**
+     * Sets the number of inflated blocks of the data file kept for reuse by queries; 0 disables the cache.  Each block
+     * takes up to 64KB.
+     */
+    public void setBlockCacheSize(final int maxBlocks) {
+        mFp.setBlockCacheSize(maxBlocks);
+    }
+
+    /** number of data file blocks reused from the block cache rather than read and inflated */
+    long getBlockCacheHits() {
+        return mFp.getBlockCacheHits();
+    }
+
     /** return the source (filename/URL) of that reader */
     public String getSource()
         {
@@ -211,20 +248,46 @@ public class TabixReader {
         // read the index
         mIndex = new TIndex[mSeq.length];
         for (i = 0; i < mSeq.length; ++i) {
-            // the binning index
+            // the binning index, as stored
             int n_bin = readInt(is);
-            mIndex[i] = new TIndex();
-            mIndex[i].b = new HashMap<Integer, TPair64[]>(n_bin);
+            int[] bins = new int[n_bin];
+            int[] firstChunk = new int[n_bin + 1];
+            long[] begins = new long[16];
+            long[] ends = new long[16];
+            int n_chunk = 0;
             for (j = 0; j < n_bin; ++j) {
-                int bin = readInt(is);
-                TPair64[] chunks = new TPair64[readInt(is)];
-                for (k = 0; k < chunks.length; ++k) {
-                    long u = readLong(is);
-                    long v = readLong(is);
-                    chunks[k] = new TPair64(u, v); // in C, this is inefficient
+                bins[j] = readInt(is);
+                int n = readInt(is);
+                firstChunk[j] = n_chunk;
+                if (n_chunk + n > begins.length) {
+                    begins = Arrays.copyOf(begins, Math.max(begins.length * 2, n_chunk + n));
+                    ends = Arrays.copyOf(ends, begins.length);
+                }
+                for (k = 0; k < n; ++k, ++n_chunk) {
+                    begins[n_chunk] = readLong(is);
+                    ends[n_chunk] = readLong(is);
                 }
-                mIndex[i].b.put(bin, chunks);
             }
+            firstChunk[n_bin] = n_chunk;
+            // ordered by bin number; the low bits of each key are the position of the bin as stored
+            long[] order = new long[n_bin];
+            for (j = 0; j < n_bin; ++j) order[j] = ((long) bins[j] << 32) | j;
+            Arrays.sort(order);
+            TIndex idx = mIndex[i] = new TIndex();
+            idx.bins = new int[n_bin];
+            idx.binChunks = new int[n_bin + 1];
+            idx.chunkBegins = new long[n_chunk];
+            idx.chunkEnds = new long[n_chunk];
+            for (j = 0, n_chunk = 0; j < n_bin; ++j) {
+                int b = (int) order[j];
+                int n = firstChunk[b + 1] - firstChunk[b];
+                idx.bins[j] = bins[b];
+                idx.binChunks[j] = n_chunk;
+                System.arraycopy(begins, firstChunk[b], idx.chunkBegins, n_chunk, n);
+                System.arraycopy(ends, firstChunk[b], idx.chunkEnds, n_chunk, n);
+                n_chunk += n;
+            }
+            idx.binChunks[n_bin] = n_chunk;
             // the linear index
             mIndex[i].l = new long[readInt(is)];
             for (k = 0; k < mIndex[i].l.length; ++k)
@@ -356,11 +419,11 @@ public class TabixReader {
         private int i;
         //private int n_seeks;
         private int tid, beg, end;
-        private TPair64[] off;
+        private long[] off; // chunk i is from off[2 * i] to off[2 * i + 1]
         private long curr_off;
         private boolean iseof;
 
-        private IteratorImpl(final int _tid, final int _beg, final int _end, final TPair64[] _off) {
+        private IteratorImpl(final int _tid, final int _beg, final int _end, final long[] _off) {
             i = -1;
             //n_seeks = 0;
             curr_off = 0;
@@ -375,11 +438,11 @@ public class TabixReader {
         public String next() throws IOException {
             if (iseof) return null;
             for (; ;) {
-                if (curr_off == 0 || !less64(curr_off, off[i].v)) { // then jump to the next chunk
-                    if (i == off.length - 1) break; // no more chunks
-                    if (i >= 0) assert (curr_off == off[i].v); // otherwise bug
-                    if (i < 0 || off[i].v != off[i + 1].u) { // not adjacent chunks; then seek
-                        mFp.seek(off[i + 1].u);
+                if (curr_off == 0 || !less64(curr_off, off[2 * i + 1])) { // then jump to the next chunk
+                    if (i == off.length / 2 - 1) break; // no more chunks
+                    if (i >= 0) assert (curr_off == off[2 * i + 1]); // otherwise bug
+                    if (i < 0 || off[2 * i + 1] != off[2 * i + 2]) { // not adjacent chunks; then seek
+                        mFp.seek(off[2 * i + 2]);
                         curr_off = mFp.getFilePointer();
                         //++n_seeks;
                     }
@@ -388,9 +451,8 @@ public class TabixReader {
                 String s;
                 if ((s = readLine(mFp)) != null) {
                     TIntv intv;
-                    char[] str = s.toCharArray();
                     curr_off = mFp.getFilePointer();
-                    if (str.length == 0 || str[0] == mMeta) continue;
+                    if (s.length() == 0 || s.charAt(0) == mMeta) continue;
                     intv = getIntv(s);
                     if (intv.tid != tid || intv.beg >= end) break; // no need to proceed
                     else if (intv.end > beg && intv.beg < end) return s; // overlap; return
@@ -409,57 +471,119 @@ public class TabixReader {
      * @return an iterator over the lines within the specified interval
      */
     public Iterator query(final int tid, final int beg, final int end) {
-        TPair64[] off, chunks;
-        long min_off;
         if(tid< 0 || tid>=this.mIndex.length) return EOF_ITERATOR;
-        TIndex idx = mIndex[tid];
-        int[] bins = new int[MAX_BIN];
-        int i, l, n_off, n_bins = reg2bins(beg, end, bins);
+        long[] off = getChunks(tid, beg, end);
+        if (off.length == 0) return EOF_ITERATOR;
+        return new TabixReader.IteratorImpl(tid, beg, end, off);
+    }
+
+    /**
+     * The chunks to read for a query depend only on the 16kb windows of the linear index that the query starts and
+     * ends in, so they are kept for the neighbouring queries that share those windows.
+     *
+     * @return the sorted, merged chunks overlapping the query, chunk i being from off[2 * i] to off[2 * i + 1]
+     */
+    private long[] getChunks(final int tid, final int beg, final int end) {
+        if (beg >= end) return new long[0];
+        long key = ((long) tid << 36) | (((long) (beg >> TAD_LIDX_SHIFT) & 0x3ffff) << 18) | ((Math.min(end, 1 << 29) - 1) >> TAD_LIDX_SHIFT);
+        long[] off = mChunkCache.get(key);
+        if (off == null) {
+            off = computeChunks(mIndex[tid], beg, end);
+            mChunkCache.put(key, off);
+        }
+        return off;
+    }
+
+    private long[] computeChunks(final TIndex idx, final int beg, final int end) {
+        long min_off;
+        int i, j, l, n_off, n_bins = reg2bins(beg, end, mBins);
         if (idx.l.length > 0)
             min_off = (beg >> TAD_LIDX_SHIFT >= idx.l.length) ? idx.l[idx.l.length - 1] : idx.l[beg >> TAD_LIDX_SHIFT];
         else min_off = 0;
-        for (i = n_off = 0; i < n_bins; ++i) {
-            if ((chunks = idx.b.get(bins[i])) != null)
-                n_off += chunks.length;
+        // replace the bin numbers with their positions in the index, or -1 if absent
+        for (i = 0; i < n_bins; ++i) {
+            int b = Arrays.binarySearch(idx.bins, mBins[i]);
+            mBins[i] = b >= 0 ? b : -1;
         }
-        if (n_off == 0) return EOF_ITERATOR;
-        off = new TPair64[n_off];
         for (i = n_off = 0; i < n_bins; ++i)
-            if ((chunks = idx.b.get(bins[i])) != null)
-                for (int j = 0; j < chunks.length; ++j)
-                    if (less64(min_off, chunks[j].v))
-                        off[n_off++] = new TPair64(chunks[j]);
-        Arrays.sort(off, 0, n_off);
+            if (mBins[i] >= 0) n_off += idx.binChunks[mBins[i] + 1] - idx.binChunks[mBins[i]];
+        if (n_off == 0) return new long[0];
+        long[] u = new long[n_off], v = new long[n_off];
+        for (i = n_off = 0; i < n_bins; ++i)
+            if (mBins[i] >= 0)
+                for (j = idx.binChunks[mBins[i]]; j < idx.binChunks[mBins[i] + 1]; ++j)
+                    if (less64(min_off, idx.chunkEnds[j])) {
+                        u[n_off] = idx.chunkBegins[j];
+                        v[n_off++] = idx.chunkEnds[j];
+                    }
+        if (n_off == 0) return new long[0];
+        sortChunks(u, v, 0, n_off);
         // resolve completely contained adjacent blocks
         for (i = 1, l = 0; i < n_off; ++i) {
-            if (less64(off[l].v, off[i].v)) {
+            if (less64(v[l], v[i])) {
                 ++l;
-                off[l].u = off[i].u;
-                off[l].v = off[i].v;
+                u[l] = u[i];
+                v[l] = v[i];
             }
         }
         n_off = l + 1;
         // resolve overlaps between adjacent blocks; this may happen due to the merge in indexing
         for (i = 1; i < n_off; ++i)
-            if (!less64(off[i - 1].v, off[i].u)) off[i - 1].v = off[i].u;
+            if (!less64(v[i - 1], u[i])) v[i - 1] = u[i];
         // merge adjacent blocks
         for (i = 1, l = 0; i < n_off; ++i) {
-            if (off[l].v >> 16 == off[i].u >> 16) off[l].v = off[i].v;
+            if (v[l] >> 16 == u[i] >> 16) v[l] = v[i];
             else {
                 ++l;
-                off[l].u = off[i].u;
-                off[l].v = off[i].v;
+                u[l] = u[i];
+                v[l] = v[i];
             }
         }
         n_off = l + 1;
-        // return
-        TPair64[] ret = new TPair64[n_off];
+        long[] off = new long[2 * n_off];
         for (i = 0; i < n_off; ++i) {
-            if (off[i] != null) ret[i] = new TPair64(off[i].u, off[i].v); // in C, this is inefficient
+            off[2 * i] = u[i];
+            off[2 * i + 1] = v[i];
+        }
+        return off;
+    }
+
+    /**
+     * Sorts the chunks from lo until hi by their beginnings, as unsigned 64-bit values.
+     */
+    private static void sortChunks(final long[] u, final long[] v, int lo, int hi) {
+        while (hi - lo > 16) {
+            long pivot = u[(lo + hi) >>> 1];
+            int i = lo, j = hi - 1;
+            while (i <= j) {
+                while (less64(u[i], pivot)) ++i;
+                while (less64(pivot, u[j])) --j;
+                if (i <= j) {
+                    long t = u[i]; u[i] = u[j]; u[j] = t;
+                    t = v[i]; v[i] = v[j]; v[j] = t;
+                    ++i;
+                    --j;
+                }
+            }
+            // recurse into the smaller part
+            if (j - lo < hi - i) {
+                sortChunks(u, v, lo, j + 1);
+                lo = i;
+            } else {
+                sortChunks(u, v, i, hi);
+                hi = j + 1;
+            }
+        }
+        for (int i = lo + 1; i < hi; ++i) {
+            long ku = u[i], kv = v[i];
+            int j = i - 1;
+            for (; j >= lo && less64(ku, u[j]); --j) {
+                u[j + 1] = u[j];
+                v[j + 1] = v[j];
+            }
+            u[j + 1] = ku;
+            v[j + 1] = kv;
         }
-        if (ret.length == 0 || (ret.length == 1 && ret[0] == null))
-            return EOF_ITERATOR;
-        return new TabixReader.IteratorImpl(tid, beg, end, ret);
     }
 
     /**
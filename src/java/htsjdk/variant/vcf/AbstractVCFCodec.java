@@ -107,6 +107,12 @@ public abstract class AbstractVCFCodec extends AsciiFeatureCodec<VariantContext>
      */
     protected String remappedSampleName = null;
 
+    /**
+     * If true, genotypes are parsed when a record is decoded rather than on first use.  Lazy parsing uses this
+     * codec's buffers, so copies that decode on worker threads must not leave it to the consumer's thread.
+     */
+    protected boolean decodeGenotypesEagerly = false;
+
     protected AbstractVCFCodec() {
         super(VariantContext.class);
     }
@@ -349,7 +355,7 @@ public abstract class AbstractVCFCodec extends AsciiFeatureCodec<VariantContext>
             LazyGenotypesContext lazy = new LazyGenotypesContext(lazyParser, parts[8], nGenotypes);
 
             // did we resort the sample names?  If so, we need to load the genotype data
-            if ( !header.samplesWereAlreadySorted() )
+            if ( !header.samplesWereAlreadySorted() || decodeGenotypesEagerly )
                 lazy.decode();
 
             builder.genotypesNoValidation(lazy);
@@ -765,6 +771,28 @@ public abstract class AbstractVCFCodec extends AsciiFeatureCodec<VariantContext>
         return values;
     }
 
+    /**
+     * Copies VCFCodecs and VCF3Codecs with their settings.  The copies parse genotypes eagerly, so that records they
+     * decode hold no reference to their buffers.
+     */
+    @Override
+    protected AsciiFeatureCodec<VariantContext> newDecodingInstance() {
+        final AbstractVCFCodec copy;
+        if (getClass() == VCFCodec.class) {
+            copy = new VCFCodec();
+        } else if (getClass() == VCF3Codec.class) {
+            copy = new VCF3Codec();
+        } else {
+            return null;
+        }
+        copy.name = name;
+        copy.doOnTheFlyModifications = doOnTheFlyModifications;
+        copy.remappedSampleName = remappedSampleName;
+        copy.warnedAboutNoEqualsForNonFlag = warnedAboutNoEqualsForNonFlag;
+        copy.decodeGenotypesEagerly = true;
+        return copy;
+    }
+
     /**
      * Forces all VCFCodecs to not perform any on the fly modifications to the VCF header
      * of VCF records.  Useful primarily for raw comparisons such as when comparing
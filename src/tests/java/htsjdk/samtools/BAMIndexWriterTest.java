@@ -28,7 +28,9 @@ import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.Random;
 
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertTrue;
@@ -88,6 +90,78 @@ public class BAMIndexWriterTest {
 
     }
 
+    @Test
+    public void testIndexingWithoutDecodingRecords() throws Exception {
+        // Records read from a stream are fully decoded; from a file, only the fields needed for indexing are read.
+        final File decodedBaiFile = File.createTempFile("decodedBai.", ".bai");
+        final File fileBaiFile = File.createTempFile("fileBai.", ".bai");
+        decodedBaiFile.deleteOnExit();
+        fileBaiFile.deleteOnExit();
+        final SAMFileReader streamReader = new SAMFileReader(new FileInputStream(BAM_FILE));
+        BAMIndexer.createIndex(streamReader, decodedBaiFile);
+        streamReader.close();
+        final SAMFileReader fileReader = new SAMFileReader(BAM_FILE);
+        BAMIndexer.createIndex(fileReader, fileBaiFile);
+        fileReader.close();
+        IOUtil.assertFilesEqual(fileBaiFile, decodedBaiFile);
+    }
+
+    @Test
+    public void testParallelIndexMatchesSerial() throws Exception {
+        // Big enough to be split into several ranges.
+        final File bamFile = File.createTempFile("parallelIndex.", ".bam");
+        bamFile.deleteOnExit();
+        final SAMFileHeader header = new SAMFileHeader();
+        header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+        for (int i = 0; i < 5; ++i) {
+            header.addSequence(new SAMSequenceRecord("chr" + (i + 1), 10000000));
+        }
+        final SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(header, true, bamFile);
+        final Random random = new Random(1);
+        final byte[] bases = {'A', 'C', 'G', 'T'};
+        int recordNumber = 0;
+        // Nothing on the 4th reference; the last reads have no position.
+        for (final int referenceIndex : new int[]{0, 1, 2, 4, -1}) {
+            int start = 1;
+            for (int i = 0; i < 40000; ++i) {
+                final SAMRecord rec = new SAMRecord(header);
+                rec.setReadName("read" + recordNumber++);
+                final byte[] readBases = new byte[50];
+                final byte[] quals = new byte[readBases.length];
+                for (int j = 0; j < readBases.length; ++j) {
+                    readBases[j] = bases[random.nextInt(bases.length)];
+                    quals[j] = (byte) random.nextInt(40);
+                }
+                rec.setReadBases(readBases);
+                rec.setBaseQualities(quals);
+                if (referenceIndex == -1) {
+                    rec.setReadUnmappedFlag(true);
+                } else {
+                    start += random.nextInt(500);
+                    rec.setReferenceIndex(referenceIndex);
+                    rec.setAlignmentStart(start);
+                    // Placed but unmapped reads are indexed too.
+                    if (i % 100 == 0) {
+                        rec.setReadUnmappedFlag(true);
+                    } else {
+                        rec.setCigarString(random.nextBoolean() ? "50M" : "20M1000N30M");
+                    }
+                }
+                writer.addAlignment(rec);
+            }
+        }
+        writer.close();
+        assertTrue(bamFile.length() > 4 * 1024 * 1024);
+
+        final File serialBaiFile = File.createTempFile("serialBai.", ".bai");
+        final File parallelBaiFile = File.createTempFile("parallelBai.", ".bai");
+        serialBaiFile.deleteOnExit();
+        parallelBaiFile.deleteOnExit();
+        BAMIndexer.createIndex(bamFile, serialBaiFile, 1);
+        BAMIndexer.createIndex(bamFile, parallelBaiFile, 4);
+        IOUtil.assertFilesEqual(parallelBaiFile, serialBaiFile);
+    }
+
     @Test(enabled = false, dataProvider = "linearIndexTestData")
     /** Test linear index at specific references and windows */
     public void testLinearIndex(String testName, String filepath, int problemReference, int problemWindowStart, int problemWindowEnd, int expectedCount) {
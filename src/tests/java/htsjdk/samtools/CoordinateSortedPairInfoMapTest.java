@@ -0,0 +1,120 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools;
+
+import htsjdk.samtools.util.CloseableIterator;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Map;
+
+public class CoordinateSortedPairInfoMapTest {
+
+    @DataProvider(name = "pairInfoMapData")
+    public Object[][] pairInfoMapData() {
+        return new Object[][] {
+                {"few sequences", 3, 10},
+                {"many sequences", 2000, 20},
+                {"large per-sequence spill", 4, 20000},
+        };
+    }
+
+    /**
+     * Simulate walking a coordinate-sorted file, where the mate of each read is on a later sequence.  Every mate
+     * should be found when its sequence is reached, and nothing should remain afterwards.
+     */
+    @Test(dataProvider = "pairInfoMapData")
+    public void testMatesFound(final String testName, final int numSequences, final int pairsPerSequencePair) {
+        final CoordinateSortedPairInfoMap<String, Integer> map =
+                new CoordinateSortedPairInfoMap<String, Integer>(new StringIntegerCodec());
+        final Map<Integer, Integer> expectedPerSequence = new HashMap<Integer, Integer>();
+        for (int readSequence = 0; readSequence < numSequences; ++readSequence) {
+            // Find all the mates of reads on earlier sequences
+            final Integer expected = expectedPerSequence.remove(readSequence);
+            for (int i = 0; expected != null && i < expected; ++i) {
+                Assert.assertNotNull(map.remove(readSequence, readSequence + ":" + i));
+            }
+            // Add reads whose mates are on later sequences, interleaving the mate sequences.
+            for (int i = 0; i < pairsPerSequencePair; ++i) {
+                for (int mateSequence = readSequence + 1; mateSequence < Math.min(numSequences, readSequence + 4); ++mateSequence) {
+                    final Integer count = expectedPerSequence.get(mateSequence);
+                    final int n = (count == null) ? 0 : count;
+                    map.put(mateSequence, mateSequence + ":" + n, readSequence);
+                    expectedPerSequence.put(mateSequence, n + 1);
+                }
+            }
+            // Put some reads whose mates are never found.
+            map.put(readSequence, "unpaired" + readSequence, readSequence);
+        }
+        Assert.assertEquals(map.size(), numSequences);
+        int numUnpaired = 0;
+        final CloseableIterator<Map.Entry<String, Integer>> it = map.iterator();
+        while (it.hasNext()) {
+            final Map.Entry<String, Integer> entry = it.next();
+            Assert.assertEquals(entry.getKey(), "unpaired" + entry.getValue());
+            ++numUnpaired;
+        }
+        it.close();
+        Assert.assertEquals(numUnpaired, numSequences);
+    }
+
+    private static class StringIntegerCodec implements CoordinateSortedPairInfoMap.Codec<String, Integer> {
+        private DataInputStream in;
+        private DataOutputStream out;
+
+        public void setOutputStream(final OutputStream os) {
+            this.out = new DataOutputStream(os);
+        }
+
+        public void setInputStream(final InputStream is) {
+            this.in = new DataInputStream(is);
+        }
+
+        public void encode(final String key, final Integer record) {
+            try {
+                out.writeUTF(key);
+                out.writeInt(record);
+            } catch (IOException e) {
+                throw new SAMException("Error encoding", e);
+            }
+        }
+
+        public Map.Entry<String, Integer> decode() {
+            try {
+                final String key = in.readUTF();
+                return new AbstractMap.SimpleEntry<String, Integer>(key, in.readInt());
+            } catch (IOException e) {
+                throw new SAMException("Error decoding", e);
+            }
+        }
+    }
+}
@@ -28,6 +28,7 @@ import htsjdk.samtools.metrics.MetricBase;
 import htsjdk.samtools.metrics.MetricsFile;
 import htsjdk.samtools.reference.ReferenceSequence;
 import htsjdk.samtools.reference.ReferenceSequenceFile;
+import htsjdk.samtools.util.CloseableIterator;
 import htsjdk.samtools.util.Histogram;
 import htsjdk.samtools.util.StringUtil;
 import org.testng.Assert;
@@ -42,8 +43,13 @@ import java.io.InputStream;
 import java.io.LineNumberReader;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
 /**
  * Tests almost all error conditions detected by the sam file validator. The
@@ -413,6 +419,228 @@ public class ValidateSamFileTest {
         }
     }
 
+    @Test
+    public void testParallelValidationMatchesSerial() throws Exception {
+        final File bamFile = makeBamWithMateErrors();
+        for (final boolean verbose : new boolean[]{true, false}) {
+            final String serial = validate(bamFile, 1, verbose, SamFileValidator.DEFAULT_MAX_PAIR_INFO_RECORDS_IN_RAM);
+            final String parallel = validate(bamFile, 4, verbose, SamFileValidator.DEFAULT_MAX_PAIR_INFO_RECORDS_IN_RAM);
+            Assert.assertTrue(serial.contains(verbose ? "Mate not found" : SAMValidationError.Type.MATE_NOT_FOUND.toString()), serial);
+            Assert.assertTrue(serial.contains(verbose ? "Mate negative strand flag does not match" :
+                    SAMValidationError.Type.MISMATCH_FLAG_MATE_NEG_STRAND.toString()), serial);
+            Assert.assertEquals(parallel, serial);
+        }
+    }
+
+    @Test
+    public void testSpilledMateTracking() throws Exception {
+        final File bamFile = makeBamWithMateErrors();
+        final String inRam = validate(bamFile, 1, false, SamFileValidator.DEFAULT_MAX_PAIR_INFO_RECORDS_IN_RAM);
+        Assert.assertEquals(validate(bamFile, 1, false, 5), inRam);
+        Assert.assertEquals(validate(bamFile, 4, false, 5), inRam);
+    }
+
+    private File makeBamWithMateErrors() throws IOException {
+        final SAMRecordSetBuilder samBuilder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.coordinate);
+        for (int i = 0; i < 20; ++i) {
+            samBuilder.addPair("same" + i, i % 4, 100 + i, 300 + i);
+            samBuilder.addPair("split" + i, i % 4, (i + 1) % 4, 200 + i, 50 + i, false, false, "36M", "36M",
+                    false, true, false, false, 20);
+        }
+        for (int i = 0; i < 10; ++i) {
+            // Mate information that disagrees with the mate, within a reference and across references.
+            final List<SAMRecord> pair = samBuilder.addPair("bad" + i, i % 4, (i + 2) % 4, 400 + i, 100 + i,
+                    false, false, "36M", "36M", false, true, false, false, 20);
+            pair.get(0).setMateAlignmentStart(pair.get(1).getAlignmentStart() + 1);
+            pair.get(1).setMateNegativeStrandFlag(true);
+            // Paired reads whose mate is missing.
+            final List<SAMRecord> lonely = samBuilder.addPair("lonely" + i, i % 4, (i + 3) % 4, 500 + i, 700 + i,
+                    false, false, "36M", "36M", false, true, false, false, 20);
+            samBuilder.getRecords().remove(lonely.get(1));
+            samBuilder.addFrag("badRg" + i, i % 4, 600 + i, false, false, null, null, -1).setAttribute(SAMTag.RG.name(), "missing");
+        }
+        samBuilder.addUnmappedPair("unmapped");
+        return writeIndexedBam(samBuilder);
+    }
+
+    private File writeIndexedBam(final SAMRecordSetBuilder samBuilder) throws IOException {
+        final File bamFile = File.createTempFile("parallelValidation.", ".bam");
+        final File indexFile = new File(bamFile.getPath().replaceFirst("\\.bam$", ".bai"));
+        bamFile.deleteOnExit();
+        indexFile.deleteOnExit();
+        final SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true)
+                .makeBAMWriter(samBuilder.getHeader(), true, bamFile);
+        for (final SAMRecord record : samBuilder) {
+            writer.addAlignment(record);
+        }
+        writer.close();
+        Assert.assertTrue(indexFile.exists());
+        return bamFile;
+    }
+
+    @Test
+    public void testPairsStraddlingSpill() throws Exception {
+        // Each pair has one end on reference 0 and the other on reference 1 or 2, so with a small limit most
+        // first ends are spilled to disk before their mates are read.
+        final SAMRecordSetBuilder samBuilder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.coordinate);
+        for (int i = 0; i < 40; ++i) {
+            samBuilder.addPair("cross" + i, 0, 1 + i % 2, 100 + 10 * i, 1000 - 10 * i, false, false, "36M", "36M",
+                    false, true, false, false, 20);
+            samBuilder.addPair("within" + i, 0, 0, 50 + 10 * i, 2000 + 10 * i, false, false, "36M", "36M",
+                    false, true, false, false, 20);
+        }
+        final File bamFile = writeIndexedBam(samBuilder);
+        final String inRam = validate(bamFile, 1, false, SamFileValidator.DEFAULT_MAX_PAIR_INFO_RECORDS_IN_RAM);
+        Assert.assertFalse(inRam.contains("MATE"), inRam);
+        for (final int numberOfThreads : new int[]{1, 4}) {
+            for (final int maxInRam : new int[]{1, 2, 7}) {
+                Assert.assertEquals(validate(bamFile, numberOfThreads, false, maxInRam), inRam, numberOfThreads + " " + maxInRam);
+            }
+        }
+    }
+
+    @Test
+    public void testMatesWithDifferentReadGroupsArePaired() throws Exception {
+        final SAMRecordSetBuilder samBuilder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.coordinate);
+        final SAMReadGroupRecord readGroup = new SAMReadGroupRecord("other");
+        readGroup.setSample("other");
+        samBuilder.getHeader().addReadGroup(readGroup);
+        for (int i = 0; i < 10; ++i) {
+            final List<SAMRecord> differing = samBuilder.addPair("differing" + i, i % 2, (i + 1) % 2, 100 + i, 200 + i,
+                    false, false, "36M", "36M", false, true, false, false, 20);
+            differing.get(1).setAttribute(SAMTag.RG.name(), "other");
+            final List<SAMRecord> missing = samBuilder.addPair("missing" + i, i % 2, 300 + i, 400 + i,
+                    false, false, "36M", "36M", false, true, 20);
+            missing.get(0).setAttribute(SAMTag.RG.name(), null);
+        }
+        final File bamFile = writeIndexedBam(samBuilder);
+        for (final int numberOfThreads : new int[]{1, 4}) {
+            for (final int maxInRam : new int[]{2, SamFileValidator.DEFAULT_MAX_PAIR_INFO_RECORDS_IN_RAM}) {
+                final String result = validate(bamFile, numberOfThreads, false, maxInRam);
+                Assert.assertFalse(result.contains("MATE"), result);
+                Assert.assertTrue(result.contains(SAMValidationError.Type.RECORD_MISSING_READ_GROUP.toString()), result);
+            }
+        }
+    }
+
+    /**
+     * Puts the first ends of pairs in a CompactPairEndInfoMap whose hash function gives every read name the same
+     * hash, and checks that each second end finds its own mate.
+     */
+    @Test
+    public void testCompactPairEndInfoMapHashCollisions() throws Exception {
+        final SamFileValidator validator = new SamFileValidator(new PrintWriter(new StringWriter()), 8000);
+        final SamFileValidator.CompactPairEndInfoMap map = validator.new CompactPairEndInfoMap(true) {
+            @Override
+            long hash(final String readName) {
+                return 42;
+            }
+        };
+        checkCompactPairEndInfoMap(map, 200);
+    }
+
+    @Test
+    public void testCompactPairEndInfoMapSpill() throws Exception {
+        final SamFileValidator validator = new SamFileValidator(new PrintWriter(new StringWriter()), 8000);
+        validator.setMaxPairInfoRecordsInRam(10);
+        final SamFileValidator.CompactPairEndInfoMap map = validator.new CompactPairEndInfoMap(true);
+        checkCompactPairEndInfoMap(map, 100);
+        Assert.assertTrue(map.isSpilled());
+    }
+
+    @Test
+    public void testCompactPairEndInfoMapNotSpilledWithoutReferenceMatching() throws Exception {
+        final SamFileValidator validator = new SamFileValidator(new PrintWriter(new StringWriter()), 8000);
+        validator.setMaxPairInfoRecordsInRam(10);
+        final SamFileValidator.CompactPairEndInfoMap map = validator.new CompactPairEndInfoMap(false);
+        checkCompactPairEndInfoMap(map, 100);
+        Assert.assertFalse(map.isSpilled());
+    }
+
+    @Test
+    public void testUnsortedInputWithLowPairInfoLimit() throws Exception {
+        final SAMRecordSetBuilder samBuilder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.unsorted);
+        for (int i = 0; i < 20; ++i) {
+            samBuilder.addPair("pair" + i, i % 4, (i + 1) % 4, 200 + i, 50 + i, false, false, "36M", "36M",
+                    false, true, false, false, 20);
+            final List<SAMRecord> lonely = samBuilder.addPair("lonely" + i, i % 4, (i + 3) % 4, 500 + i, 700 + i,
+                    false, false, "36M", "36M", false, true, false, false, 20);
+            samBuilder.getRecords().remove(lonely.get(1));
+        }
+        final List<SAMRecord> records = new ArrayList<SAMRecord>(samBuilder.getRecords());
+        Collections.shuffle(records, new Random(11));
+        final File bamFile = File.createTempFile("unsortedValidation.", ".bam");
+        bamFile.deleteOnExit();
+        final SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(samBuilder.getHeader(), true, bamFile);
+        for (final SAMRecord record : records) {
+            writer.addAlignment(record);
+        }
+        writer.close();
+        final String inRam = validate(bamFile, 1, false, SamFileValidator.DEFAULT_MAX_PAIR_INFO_RECORDS_IN_RAM);
+        Assert.assertTrue(inRam.contains(SAMValidationError.Type.MATE_NOT_FOUND.toString()), inRam);
+        Assert.assertEquals(validate(bamFile, 1, false, 2), inRam);
+    }
+
+    @Test
+    public void testCompactPairEndInfoMapIgnoresReadGroup() throws Exception {
+        final SamFileValidator validator = new SamFileValidator(new PrintWriter(new StringWriter()), 8000);
+        final SamFileValidator.CompactPairEndInfoMap map = validator.new CompactPairEndInfoMap(true);
+        final SAMRecordSetBuilder samBuilder = new SAMRecordSetBuilder(false, SAMFileHeader.SortOrder.unsorted);
+        final List<SAMRecord> pair = samBuilder.addPair("read", 0, 100, 200, false, false, "36M", "36M", false, true, 20);
+        pair.get(0).setAttribute(SAMTag.RG.name(), "A");
+        pair.get(1).setAttribute(SAMTag.RG.name(), null);
+        map.put(0, "read", new SamFileValidator.PairEndInfo(pair.get(0), 1));
+        final SamFileValidator.PairEndInfo mate = map.remove(0, "read");
+        Assert.assertNotNull(mate);
+        Assert.assertTrue(mate.validateMates(new SamFileValidator.PairEndInfo(pair.get(1), 2), "read").isEmpty());
+    }
+
+    /**
+     * Adds the first ends of numPairs pairs, each with its mate on reference 1 at a different position, then removes
+     * them in random order, interleaved with lookups of names that are not there.
+     */
+    private void checkCompactPairEndInfoMap(final SamFileValidator.CompactPairEndInfoMap map, final int numPairs) {
+        final SAMRecordSetBuilder samBuilder = new SAMRecordSetBuilder(false, SAMFileHeader.SortOrder.unsorted);
+        final List<List<SAMRecord>> pairs = new ArrayList<List<SAMRecord>>();
+        for (int i = 0; i < numPairs; ++i) {
+            pairs.add(samBuilder.addPair("pair" + i, 0, 1, 100 + i, 5000 + 3 * i, false, false, "36M", "36M",
+                    false, true, false, false, 20));
+            map.put(1, "pair" + i, new SamFileValidator.PairEndInfo(pairs.get(i).get(0), 2 * i));
+        }
+        final List<Integer> order = new ArrayList<Integer>();
+        for (int i = 0; i < numPairs; ++i) order.add(i);
+        Collections.shuffle(order, new Random(7));
+        for (final int i : order) {
+            Assert.assertNull(map.remove(1, "absent" + i));
+            final String name = "pair" + i;
+            final SamFileValidator.PairEndInfo mate = map.remove(1, name);
+            Assert.assertNotNull(mate, name);
+            Assert.assertTrue(mate.validateMates(new SamFileValidator.PairEndInfo(pairs.get(i).get(1), 2 * i + 1), name).isEmpty(), name);
+            Assert.assertNull(map.remove(1, name), name);
+        }
+        final CloseableIterator<Map.Entry<String, SamFileValidator.PairEndInfo>> it = map.iterator();
+        Assert.assertFalse(it.hasNext());
+        it.close();
+    }
+
+    private String validate(final File bamFile, final int numberOfThreads, final boolean verbose,
+                            final int maxPairInfoRecordsInRam) {
+        final SAMFileReader samReader = new SAMFileReader(bamFile);
+        final StringWriter out = new StringWriter();
+        final SamFileValidator validator = new SamFileValidator(new PrintWriter(out), 8000);
+        validator.setNumberOfThreads(numberOfThreads);
+        validator.setMaxPairInfoRecordsInRam(maxPairInfoRecordsInRam);
+        if (verbose) {
+            validator.setVerbose(true, 1000);
+            validator.validateSamFileVerbose(samReader, null);
+        } else {
+            validator.validateSamFileSummary(samReader, null);
+        }
+        samReader.close();
+        // Summary output starts with a timestamped metrics header.
+        return out.toString().replaceAll("(?m)^# Started on:.*$", "");
+    }
+
     private Histogram<String> executeValidation(final SAMFileReader samReader, final ReferenceSequenceFile reference) throws IOException {
         final File outFile = File.createTempFile("validation", ".txt");
         outFile.deleteOnExit();
@@ -0,0 +1,110 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools.reference;
+
+import htsjdk.samtools.SAMException;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.StringUtil;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+
+public class CachingReferenceSequenceFileTest {
+    private static final File TEST_DATA_DIR = new File("testdata/htsjdk/samtools/reference");
+    private static final File SEQUENCE_FILE = new File(TEST_DATA_DIR, "Homo_sapiens_assembly18.trimmed.fasta");
+    private static final File SEQUENCE_FILE_NODICT = new File(TEST_DATA_DIR, "Homo_sapiens_assembly18.trimmed.nodict.fasta");
+
+    @Test
+    public void testSubsequencesMatchUnderlyingFile() throws Exception {
+        final IndexedFastaSequenceFile dictionaryFile = new IndexedFastaSequenceFile(SEQUENCE_FILE);
+        final List<SAMSequenceRecord> sequences = dictionaryFile.getSequenceDictionary().getSequences();
+        dictionaryFile.close();
+        for (final File file : new File[]{SEQUENCE_FILE, SEQUENCE_FILE_NODICT}) {
+            final IndexedFastaSequenceFile expectedFile = new IndexedFastaSequenceFile(file);
+            final CachingReferenceSequenceFile cachingFile =
+                    new CachingReferenceSequenceFile(new IndexedFastaSequenceFile(file), 1000, 8);
+            final Random random = new Random(11);
+            for (final SAMSequenceRecord sequence : sequences) {
+                final int contigLength = sequence.getSequenceLength();
+                // Walk along the contig in roughly sorted, locally random order, as for the reads of a sorted file
+                for (int i = 0; i < 2000; ++i) {
+                    final int start = Math.min(contigLength, 1 + i * 5 + random.nextInt(300));
+                    final int stop = Math.min(contigLength, start + random.nextInt(150));
+                    assertSameSubsequence(expectedFile, cachingFile, sequence.getSequenceName(), start, stop);
+                }
+                // Contig end, window boundaries, an empty range, and a lookup too large to cache
+                assertSameSubsequence(expectedFile, cachingFile, sequence.getSequenceName(), contigLength - 1500, contigLength);
+                assertSameSubsequence(expectedFile, cachingFile, sequence.getSequenceName(), 1000, 2001);
+                assertSameSubsequence(expectedFile, cachingFile, sequence.getSequenceName(), 101, 100);
+                assertSameSubsequence(expectedFile, cachingFile, sequence.getSequenceName(), 1, 7000);
+            }
+            Assert.assertTrue(cachingFile.getHitRate() > 0.9, "hit rate " + cachingFile.getHitRate());
+            Assert.assertTrue(cachingFile.getWindowMisses() > 8);
+            Assert.assertEquals(cachingFile.getUncachedLookups(), 2);
+            CloserUtil.close(expectedFile);
+            CloserUtil.close(cachingFile);
+        }
+    }
+
+    @Test
+    public void testSingleWindowCache() throws Exception {
+        final IndexedFastaSequenceFile expectedFile = new IndexedFastaSequenceFile(SEQUENCE_FILE);
+        final CachingReferenceSequenceFile cachingFile =
+                new CachingReferenceSequenceFile(new IndexedFastaSequenceFile(SEQUENCE_FILE), 1000, 1);
+        try {
+            for (int start = 1; start < 3000; start += 50) {
+                assertSameSubsequence(expectedFile, cachingFile, "chrM", start, start + 20);
+            }
+            Assert.assertEquals(cachingFile.getUncachedLookups(), 0);
+            Assert.assertTrue(cachingFile.getHitRate() > 0.9, "hit rate " + cachingFile.getHitRate());
+        } finally {
+            CloserUtil.close(expectedFile);
+            CloserUtil.close(cachingFile);
+        }
+    }
+
+    @Test(expectedExceptions = SAMException.class)
+    public void testReadPastEndOfContig() throws Exception {
+        final CachingReferenceSequenceFile cachingFile =
+                new CachingReferenceSequenceFile(new IndexedFastaSequenceFile(SEQUENCE_FILE));
+        try {
+            cachingFile.getSubsequenceAt("chrM", 16000, 17000);
+        } finally {
+            CloserUtil.close(cachingFile);
+        }
+    }
+
+    private void assertSameSubsequence(final ReferenceSequenceFile expectedFile, final ReferenceSequenceFile cachingFile,
+                                       final String contig, final long start, final long stop) {
+        final ReferenceSequence expected = expectedFile.getSubsequenceAt(contig, start, stop);
+        final ReferenceSequence actual = cachingFile.getSubsequenceAt(contig, start, stop);
+        Assert.assertEquals(actual.getName(), expected.getName());
+        Assert.assertEquals(actual.getContigIndex(), expected.getContigIndex());
+        Assert.assertEquals(StringUtil.bytesToString(actual.getBases()), StringUtil.bytesToString(expected.getBases()));
+    }
+}
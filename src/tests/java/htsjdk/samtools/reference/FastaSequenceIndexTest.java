@@ -31,7 +31,10 @@ import org.testng.annotations.Test;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.util.Iterator;
+import java.util.Random;
 
 /**
  * Test the fasta sequence index reader.
@@ -249,4 +252,76 @@ public class FastaSequenceIndexTest {
         Assert.assertEquals(ent.getBasesPerLine(),70,"Contig file:gi|17981852|ref|NC_001807.4| bases per line is not correct");
         Assert.assertEquals(ent.getBytesPerLine(),71,"Contig file:gi|17981852|ref|NC_001807.4| bytes per line is not correct");
     }
+
+    @Test
+    public void testCreateIndex() throws IOException {
+        final File fastaFile = new File(TEST_DATA_DIR, "Homo_sapiens_assembly18.trimmed.fasta");
+        final FastaSequenceIndex expected = new FastaSequenceIndex(new File(TEST_DATA_DIR, "Homo_sapiens_assembly18.trimmed.fasta.fai"));
+        final FastaSequenceIndex index = FastaSequenceIndex.createIndex(fastaFile);
+        Assert.assertEquals(index, expected);
+
+        final File indexFile = File.createTempFile("FastaSequenceIndexTest.", ".fai");
+        indexFile.deleteOnExit();
+        index.write(indexFile);
+        Assert.assertEquals(new FastaSequenceIndex(indexFile), expected);
+    }
+
+    @Test
+    public void testCreateIndexInParallel() throws IOException {
+        // Many sequences of various lengths, line lengths and line terminators
+        final Random random = new Random(5);
+        final StringBuilder fasta = new StringBuilder();
+        final FastaSequenceIndex expected = new FastaSequenceIndex();
+        for (int i = 0; i < 500; ++i) {
+            final int length = random.nextInt(1000);
+            final int basesPerLine = 1 + random.nextInt(80);
+            final String terminator = random.nextInt(5) == 0 ? "\r\n" : "\n";
+            fasta.append(">contig").append(i).append(i % 3 == 0 ? " description\n" : "\n");
+            final long location = fasta.length();
+            for (int j = 0; j < length; ++j) {
+                fasta.append("ACGTN".charAt(random.nextInt(5)));
+                if ((j + 1) % basesPerLine == 0 || j == length - 1) fasta.append(terminator);
+            }
+            if (i % 7 == 0) fasta.append(terminator);
+            // The first line sets the line length
+            final int firstLineBases = Math.min(length, basesPerLine);
+            expected.add(new FastaSequenceIndexEntry("contig" + i, location, length, firstLineBases,
+                    length == 0 ? 0 : firstLineBases + terminator.length(), i));
+        }
+        final File fastaFile = writeFasta(fasta.toString());
+        Assert.assertEquals(FastaSequenceIndex.createIndex(fastaFile), expected);
+        for (final int numThreads : new int[]{2, 3, 8}) {
+            final FastaSequenceIndex index = FastaSequenceIndexCreator.createIndex(fastaFile, numThreads, 1000);
+            Assert.assertEquals(index, expected);
+            int sequenceIndex = 0;
+            for (final FastaSequenceIndexEntry entry : index) {
+                Assert.assertEquals(entry.getSequenceIndex(), sequenceIndex++);
+            }
+        }
+    }
+
+    @DataProvider(name="badFastas")
+    public Object[][] provideBadFastas() {
+        return new Object[][] {
+                {">one\nACGT\nACGTA\nAC\n"},
+                {">one\nACGT\nAC\nAC\n"},
+                {">one\nACGT\n\nACGT\n"},
+                {">one\nACGT\r\nACGT\nAC\n"},
+                {"ACGT\n>one\nACGT\n"},
+                {">one\nACGT\n>one\nACGT\n"}};
+    }
+
+    @Test(dataProvider="badFastas", expectedExceptions=SAMException.class)
+    public void testCreateIndexOfBadFasta(final String fasta) throws IOException {
+        FastaSequenceIndex.createIndex(writeFasta(fasta));
+    }
+
+    private File writeFasta(final String fasta) throws IOException {
+        final File fastaFile = File.createTempFile("FastaSequenceIndexTest.", ".fasta");
+        fastaFile.deleteOnExit();
+        final FileWriter writer = new FileWriter(fastaFile);
+        writer.write(fasta);
+        writer.close();
+        return fastaFile;
+    }
 }
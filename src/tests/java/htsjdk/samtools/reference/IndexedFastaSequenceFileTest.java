@@ -25,6 +25,7 @@
 package htsjdk.samtools.reference;
 
 import htsjdk.samtools.SAMException;
+import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.StringUtil;
 import org.testng.Assert;
@@ -33,6 +34,13 @@ import org.testng.annotations.Test;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Test the indexed fasta sequence file reader.
@@ -53,7 +61,8 @@ public class IndexedFastaSequenceFileTest{
     public Object[][] provideSequenceFile() throws FileNotFoundException {
         return new Object[][] { new Object[]
                 { new IndexedFastaSequenceFile(SEQUENCE_FILE) },
-                { new IndexedFastaSequenceFile(SEQUENCE_FILE_NODICT) }};
+                { new IndexedFastaSequenceFile(SEQUENCE_FILE_NODICT) },
+                { new IndexedFastaSequenceFile(SEQUENCE_FILE, true) }};
     }
 
     @DataProvider(name="comparative")
@@ -299,4 +308,61 @@ public class IndexedFastaSequenceFileTest{
         new IndexedFastaSequenceFile(new File(TEST_DATA_DIR, "non-existent.fasta"));
         Assert.fail("FileNotFoundException should have been thrown");
     }
+
+    @Test
+    public void testMemoryMappedWindowsMappedOnFirstUse() throws Exception {
+        final IndexedFastaSequenceFile mappedFile = new IndexedFastaSequenceFile(SEQUENCE_FILE,
+                new FastaSequenceIndex(new File(SEQUENCE_FILE.getPath() + ".fai")), 1000);
+        Assert.assertEquals(mappedFile.getMappedWindowCount(), 0);
+        mappedFile.getSubsequenceAt("chrM", 1, 10);
+        Assert.assertEquals(mappedFile.getMappedWindowCount(), 1);
+        mappedFile.getSubsequenceAt("chrM", 5, 20);
+        Assert.assertEquals(mappedFile.getMappedWindowCount(), 1);
+        CloserUtil.close(mappedFile);
+    }
+
+    @Test
+    public void testMemoryMappedConcurrentLookups() throws Exception {
+        final IndexedFastaSequenceFile channelFile = new IndexedFastaSequenceFile(SEQUENCE_FILE);
+        // Small windows, so that lookups cross from one window to the next
+        final IndexedFastaSequenceFile mappedFile = new IndexedFastaSequenceFile(SEQUENCE_FILE,
+                new FastaSequenceIndex(new File(SEQUENCE_FILE.getPath() + ".fai")), 1000);
+        final Random random = new Random(7);
+        final List<String> contigs = new ArrayList<String>();
+        final List<Integer> starts = new ArrayList<Integer>();
+        final List<String> expected = new ArrayList<String>();
+        for (final SAMSequenceRecord sequence : channelFile.getSequenceDictionary().getSequences()) {
+            for (int i = 0; i < 200; ++i) {
+                final int start = 1 + random.nextInt(sequence.getSequenceLength() - 3000);
+                contigs.add(sequence.getSequenceName());
+                starts.add(start);
+                expected.add(StringUtil.bytesToString(channelFile.getSubsequenceAt(sequence.getSequenceName(),
+                        start, start + i * 10).getBases()));
+            }
+        }
+        Assert.assertEquals(StringUtil.bytesToString(new IndexedFastaSequenceFile(SEQUENCE_FILE, true)
+                .getSubsequenceAt("chr20", CHR20_LENGTH - lastBasesOfChr20.length() + 1, CHR20_LENGTH).getBases()),
+                lastBasesOfChr20);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        final List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+        for (int t = 0; t < 4; ++t) {
+            futures.add(executor.submit(new Callable<Boolean>() {
+                public Boolean call() {
+                    for (int i = 0; i < expected.size(); ++i) {
+                        final ReferenceSequence sequence = mappedFile.getSubsequenceAt(contigs.get(i), starts.get(i),
+                                starts.get(i) + (i % 200) * 10);
+                        if (!StringUtil.bytesToString(sequence.getBases()).equals(expected.get(i))) return false;
+                    }
+                    return true;
+                }
+            }));
+        }
+        for (final Future<Boolean> future : futures) {
+            Assert.assertTrue(future.get());
+        }
+        executor.shutdown();
+        CloserUtil.close(channelFile);
+        CloserUtil.close(mappedFile);
+    }
 }
@@ -0,0 +1,143 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools.reference;
+
+import htsjdk.samtools.SAMException;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.StringUtil;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.Random;
+
+public class PackedReferenceSequenceFileTest {
+    private static final File SEQUENCE_FILE = new File("testdata/htsjdk/samtools/reference/Homo_sapiens_assembly18.trimmed.fasta");
+
+    @Test
+    public void testPackedMatchesSource() throws Exception {
+        final IndexedFastaSequenceFile source = new IndexedFastaSequenceFile(SEQUENCE_FILE);
+        final PackedReferenceSequenceFile packed = PackedReferenceSequenceFile.pack(source);
+        assertSameReference(source, packed);
+
+        final File packedFile = File.createTempFile("packedReference.", ".bin");
+        packedFile.deleteOnExit();
+        packed.write(packedFile);
+        Assert.assertTrue(packedFile.length() < SEQUENCE_FILE.length() / 3);
+        assertSameReference(source, PackedReferenceSequenceFile.open(packedFile));
+    }
+
+    @Test
+    public void testExceptionsAndSoftMasking() throws Exception {
+        final String bases = "NNNNNNNNNNACGTacgtnnnnRYKMacgNNtACGT-*ACGTAC";
+        final File fasta = File.createTempFile("packedReference.", ".fasta");
+        fasta.deleteOnExit();
+        final FileWriter writer = new FileWriter(fasta);
+        writer.write(">one\n" + bases + "\n>two\nnnnnn\n>three\nACGTA\n");
+        writer.close();
+
+        final PackedReferenceSequenceFile packed = PackedReferenceSequenceFile.pack(new FastaSequenceFile(fasta, true));
+        final File packedFile = File.createTempFile("packedReference.", ".bin");
+        packedFile.deleteOnExit();
+        packed.write(packedFile);
+        for (final PackedReferenceSequenceFile reference : new PackedReferenceSequenceFile[]{packed,
+                PackedReferenceSequenceFile.open(packedFile)}) {
+            Assert.assertEquals(reference.getSequenceDictionary().size(), 3);
+            Assert.assertEquals(reference.getSequenceDictionary().getSequence("one").getSequenceLength(), bases.length());
+            for (int start = 1; start <= bases.length(); ++start) {
+                for (int stop = start - 1; stop <= bases.length(); ++stop) {
+                    Assert.assertEquals(StringUtil.bytesToString(reference.getSubsequenceAt("one", start, stop).getBases()),
+                            bases.substring(start - 1, stop));
+                }
+                Assert.assertEquals(reference.getBase(0, start), (byte) bases.charAt(start - 1));
+            }
+            Assert.assertEquals(StringUtil.bytesToString(reference.nextSequence().getBases()), bases);
+            Assert.assertEquals(StringUtil.bytesToString(reference.nextSequence().getBases()), "nnnnn");
+            final ReferenceSequence three = reference.nextSequence();
+            Assert.assertEquals(three.getName(), "three");
+            Assert.assertEquals(three.getContigIndex(), 2);
+            Assert.assertEquals(StringUtil.bytesToString(three.getBases()), "ACGTA");
+            Assert.assertNull(reference.nextSequence());
+        }
+    }
+
+    @Test
+    public void testOpenReadsSequenceDictionary() throws Exception {
+        final IndexedFastaSequenceFile source = new IndexedFastaSequenceFile(SEQUENCE_FILE);
+        final File packedFile = File.createTempFile("packedReference.", ".bin");
+        packedFile.deleteOnExit();
+        PackedReferenceSequenceFile.pack(source).write(packedFile);
+        Assert.assertNull(PackedReferenceSequenceFile.open(packedFile).getSequenceDictionary().getSequence(0).getAttribute("M5"));
+
+        final File dictionaryFile = new File(packedFile.getPath().replaceFirst("\\.bin$", ".dict"));
+        dictionaryFile.deleteOnExit();
+        IOUtil.copyFile(new File("testdata/htsjdk/samtools/reference/Homo_sapiens_assembly18.trimmed.dict"), dictionaryFile);
+        final SAMSequenceDictionary dictionary = PackedReferenceSequenceFile.open(packedFile).getSequenceDictionary();
+        Assert.assertEquals(dictionary, source.getSequenceDictionary());
+        Assert.assertNotNull(dictionary.getSequence(0).getAttribute("M5"));
+    }
+
+    @Test(expectedExceptions = SAMException.class)
+    public void testOpenRejectsMismatchedSequenceDictionary() throws Exception {
+        final File packedFile = File.createTempFile("packedReference.", ".bin");
+        packedFile.deleteOnExit();
+        PackedReferenceSequenceFile.pack(new IndexedFastaSequenceFile(SEQUENCE_FILE)).write(packedFile);
+        final File dictionaryFile = new File(packedFile.getPath() + ".dict");
+        dictionaryFile.deleteOnExit();
+        final FileWriter writer = new FileWriter(dictionaryFile);
+        writer.write("@SQ\tSN:chrM\tLN:16571\n@SQ\tSN:chr1\tLN:1\n");
+        writer.close();
+        PackedReferenceSequenceFile.open(packedFile);
+    }
+
+    @Test(expectedExceptions = SAMException.class)
+    public void testReadPastEndOfContig() throws Exception {
+        PackedReferenceSequenceFile.pack(new IndexedFastaSequenceFile(SEQUENCE_FILE)).getSubsequenceAt("chrM", 16000, 17000);
+    }
+
+    @Test(expectedExceptions = SAMException.class)
+    public void testReadBeforeStartOfContig() throws Exception {
+        PackedReferenceSequenceFile.pack(new IndexedFastaSequenceFile(SEQUENCE_FILE)).getSubsequenceAt("chrM", 0, 100);
+    }
+
+    private void assertSameReference(final ReferenceSequenceFile expected, final PackedReferenceSequenceFile packed) {
+        final Random random = new Random(3);
+        for (final SAMSequenceRecord sequence : expected.getSequenceDictionary().getSequences()) {
+            final String name = sequence.getSequenceName();
+            Assert.assertEquals(StringUtil.bytesToString(packed.getSequence(name).getBases()),
+                    StringUtil.bytesToString(expected.getSequence(name).getBases()));
+            for (int i = 0; i < 1000; ++i) {
+                final int start = 1 + random.nextInt(sequence.getSequenceLength() - 200);
+                final int stop = start + random.nextInt(200);
+                final ReferenceSequence actual = packed.getSubsequenceAt(name, start, stop);
+                Assert.assertEquals(actual.getContigIndex(), sequence.getSequenceIndex());
+                Assert.assertEquals(StringUtil.bytesToString(actual.getBases()),
+                        StringUtil.bytesToString(expected.getSubsequenceAt(name, start, stop).getBases()));
+            }
+        }
+    }
+}
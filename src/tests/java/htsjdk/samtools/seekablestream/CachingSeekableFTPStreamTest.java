@@ -0,0 +1,161 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools.seekablestream;
+
+import htsjdk.samtools.util.ftp.FTPConnectionPool;
+import htsjdk.samtools.util.ftp.FakeFTPServer;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Random;
+
+public class CachingSeekableFTPStreamTest {
+    private FakeFTPServer server;
+    private FTPConnectionPool pool;
+    private byte[] contents;
+    private URL url;
+
+    @BeforeMethod
+    public void startServer() throws IOException {
+        server = new FakeFTPServer();
+        contents = new byte[300000];
+        new Random(11).nextBytes(contents);
+        server.addFile("/file.bin", contents);
+        url = server.getURL("/file.bin");
+        pool = new FTPConnectionPool(4);
+    }
+
+    @AfterMethod
+    public void stopServer() throws IOException {
+        pool.close();
+        server.close();
+    }
+
+    private static byte[] readFully(final SeekableStream stream, final long position, final int length) throws IOException {
+        final byte[] bytes = new byte[length];
+        stream.seek(position);
+        int n = 0;
+        while (n < length) {
+            final int count = stream.read(bytes, n, length - n);
+            if (count < 0) break;
+            n += count;
+        }
+        return n == length ? bytes : Arrays.copyOf(bytes, n);
+    }
+
+    private byte[] expected(final long position, final int length) {
+        return Arrays.copyOfRange(contents, (int) position, (int) Math.min(contents.length, position + length));
+    }
+
+    @Test
+    public void testRandomReads() throws IOException {
+        final CachingSeekableFTPStream stream = new CachingSeekableFTPStream(url, null, pool, 4096, 16, 4, 4);
+        Assert.assertEquals(stream.length(), contents.length);
+        final Random random = new Random(3);
+        for (int i = 0; i < 100; ++i) {
+            final long position = random.nextInt(contents.length);
+            final int length = random.nextInt(30000);
+            Assert.assertTrue(Arrays.equals(readFully(stream, position, length), expected(position, length)));
+        }
+        Assert.assertEquals(stream.getSource(), url.toString());
+        stream.close();
+    }
+
+    @Test
+    public void testReadToEnd() throws IOException {
+        final CachingSeekableFTPStream stream = new CachingSeekableFTPStream(url, null, pool, 4096, 16, 4, 4);
+        stream.seek(contents.length - 5);
+        Assert.assertFalse(stream.eof());
+        final byte[] buffer = new byte[100];
+        Assert.assertEquals(stream.read(buffer, 0, 100), 5);
+        Assert.assertTrue(stream.eof());
+        Assert.assertEquals(stream.read(buffer, 0, 100), -1);
+        Assert.assertEquals(stream.read(), -1);
+        stream.seek(7);
+        Assert.assertEquals(stream.read(), contents[7] & 0xFF);
+        stream.close();
+    }
+
+    @Test
+    public void testConnectionsSharedAcrossStreams() throws IOException {
+        for (int i = 0; i < 3; ++i) {
+            final CachingSeekableFTPStream stream = new CachingSeekableFTPStream(url, null, pool, 1024, 8, 0, 1);
+            for (final long position : new long[]{200000, 100, 150000, 299990}) {
+                Assert.assertTrue(Arrays.equals(readFully(stream, position, 3000), expected(position, 3000)));
+            }
+            stream.close();
+        }
+        Assert.assertEquals(pool.getConnectionsOpened(), 1);
+        Assert.assertEquals(server.getLogins(), 1);
+    }
+
+    @Test
+    public void testSegmentsFetchedConcurrently() throws IOException {
+        server.setTransferDelayMillis(200);
+        final int pageSize = 1024;
+        final CachingSeekableFTPStream stream = new CachingSeekableFTPStream(url, null, pool, pageSize, 128, 0, 4);
+        // 64 pages are 4 segments of MAX_PAGES_PER_FETCH pages
+        final int length = 4 * CachingSeekableFTPStream.MAX_PAGES_PER_FETCH * pageSize;
+        Assert.assertTrue(Arrays.equals(readFully(stream, 0, length), expected(0, length)));
+        Assert.assertEquals(stream.getFetchCount(), 4);
+        Assert.assertEquals(stream.getBytesFetched(), length);
+        Assert.assertTrue(server.getMaxActiveTransfers() > 1, "most concurrent transfers: " + server.getMaxActiveTransfers());
+        stream.close();
+    }
+
+    @Test
+    public void testSequentialReadAhead() throws IOException {
+        final int pageSize = 1024;
+        final CachingSeekableFTPStream stream = new CachingSeekableFTPStream(url, null, pool, pageSize, 64, 32, 4);
+        final byte[] copy = new byte[contents.length];
+        int n = 0;
+        int count;
+        while ((count = stream.read(copy, n, Math.min(500, contents.length - n))) > 0) {
+            n += count;
+        }
+        Assert.assertEquals(n, contents.length);
+        Assert.assertTrue(Arrays.equals(copy, contents));
+        // Pages are fetched ahead of the reads, so there are far fewer transfers than pages
+        final int pages = (contents.length + pageSize - 1) / pageSize;
+        Assert.assertTrue(stream.getFetchCount() < pages / 8, "transfers: " + stream.getFetchCount());
+        Assert.assertEquals(stream.getBytesFetched(), contents.length);
+        Assert.assertTrue(stream.getCacheHits() > 0);
+        stream.close();
+    }
+
+    @Test
+    public void testServerClosingIdleConnection() throws IOException {
+        final CachingSeekableFTPStream stream = new CachingSeekableFTPStream(url, null, pool, 4096, 16, 0, 2);
+        Assert.assertTrue(Arrays.equals(readFully(stream, 0, 100), expected(0, 100)));
+        server.closeControlConnections();
+        Assert.assertTrue(Arrays.equals(readFully(stream, 200000, 100), expected(200000, 100)));
+        Assert.assertEquals(pool.getConnectionsOpened(), 2);
+        stream.close();
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools.seekablestream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads from a local HTTP server that serves byte ranges of a random resource.
+ */
+public class CachingSeekableHTTPStreamTest {
+    private static final int RESOURCE_SIZE = 1000003;
+    private final byte[] resource = new byte[RESOURCE_SIZE];
+    private HttpServer server;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+
+    @BeforeClass
+    public void startServer() throws IOException {
+        new Random(42).nextBytes(resource);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/ranges", new RangeHandler(true));
+        server.createContext("/noranges", new RangeHandler(false));
+        server.start();
+    }
+
+    @AfterClass
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private URL url(final String context) throws IOException {
+        return new URL("http://127.0.0.1:" + server.getAddress().getPort() + context);
+    }
+
+    @Test
+    public void testRandomReads() throws IOException {
+        final CachingSeekableHTTPStream stream = new CachingSeekableHTTPStream(url("/ranges"), null, 4096, 16, 0);
+        Assert.assertEquals(stream.length(), RESOURCE_SIZE);
+        final Random random = new Random(1);
+        for (int i = 0; i < 500; ++i) {
+            final int start = random.nextInt(RESOURCE_SIZE);
+            final int length = 1 + random.nextInt(20000);
+            stream.seek(start);
+            final byte[] buffer = new byte[length];
+            final int n = stream.read(buffer, 0, length);
+            final int expected = Math.min(length, RESOURCE_SIZE - start);
+            Assert.assertEquals(n, expected);
+            Assert.assertTrue(Arrays.equals(Arrays.copyOf(buffer, n), Arrays.copyOfRange(resource, start, start + n)));
+            Assert.assertEquals(stream.position(), start + n);
+            if (i % 10 == 0) {
+                Assert.assertEquals(stream.read(), stream.eof() ? -1 : resource[start + n] & 0xFF);
+            }
+        }
+        stream.seek(RESOURCE_SIZE);
+        Assert.assertTrue(stream.eof());
+        Assert.assertEquals(stream.read(new byte[10], 0, 10), -1);
+        Assert.assertEquals(stream.read(), -1);
+        stream.close();
+    }
+
+    @Test
+    public void testCoalescingAndCaching() throws IOException {
+        final int before = requests.get();
+        final CachingSeekableHTTPStream stream = new CachingSeekableHTTPStream(url("/ranges"), null, 4096, 16, 0);
+        // One request for the length, one for the ten pages this read needs
+        final byte[] buffer = new byte[40000];
+        stream.seek(100);
+        stream.readFully(buffer);
+        Assert.assertTrue(Arrays.equals(buffer, Arrays.copyOfRange(resource, 100, 40100)));
+        Assert.assertEquals(stream.getRequestCount(), 2);
+        Assert.assertEquals(stream.getBytesFetched(), 10 * 4096);
+
+        // Small reads within those pages are served from the cache
+        final long hits = stream.getCacheHits();
+        for (int i = 0; i < 100; ++i) {
+            stream.seek(i * 400);
+            Assert.assertEquals(stream.read(), resource[i * 400] & 0xFF);
+        }
+        Assert.assertEquals(stream.getRequestCount(), 2);
+        Assert.assertEquals(stream.getCacheHits() - hits, 100);
+
+        // Only the uncached pages are fetched
+        stream.seek(30000);
+        stream.readFully(buffer);
+        Assert.assertTrue(Arrays.equals(buffer, Arrays.copyOfRange(resource, 30000, 70000)));
+        Assert.assertEquals(stream.getRequestCount(), 3);
+        Assert.assertEquals(stream.getBytesFetched(), 18 * 4096);
+        stream.close();
+        Assert.assertEquals(requests.get() - before, 3);
+    }
+
+    @Test
+    public void testSequentialReadAhead() throws IOException {
+        final CachingSeekableHTTPStream stream = new CachingSeekableHTTPStream(url("/ranges"), null, 4096, 32, 16);
+        final byte[] copy = new byte[RESOURCE_SIZE];
+        int n = 0;
+        int count;
+        while ((count = stream.read(copy, n, Math.min(1000, RESOURCE_SIZE - n))) > 0) {
+            n += count;
+        }
+        Assert.assertEquals(n, RESOURCE_SIZE);
+        Assert.assertTrue(Arrays.equals(copy, resource));
+        // Pages are fetched ahead of the reads, up to sixteen at a time
+        final int pages = (RESOURCE_SIZE + 4095) / 4096;
+        Assert.assertTrue(stream.getRequestCount() < pages / 4, "requests: " + stream.getRequestCount());
+        Assert.assertEquals(stream.getBytesFetched(), RESOURCE_SIZE);
+        stream.close();
+    }
+
+    @Test
+    public void testKeepAlive() throws IOException {
+        clientPorts.clear();
+        final CachingSeekableHTTPStream stream = new CachingSeekableHTTPStream(url("/ranges"), null, 1024, 2, 0);
+        final byte[] buffer = new byte[10];
+        for (int i = 0; i < 20; ++i) {
+            stream.seek(i * 20000);
+            stream.readFully(buffer);
+        }
+        Assert.assertEquals(stream.getRequestCount(), 21);
+        Assert.assertTrue(clientPorts.size() < 5, "connections: " + clientPorts.size());
+        stream.close();
+    }
+
+    @Test
+    public void testServerWithoutRanges() throws IOException {
+        final CachingSeekableHTTPStream stream = new CachingSeekableHTTPStream(url("/noranges"), null, 4096, 16, 0);
+        final byte[] buffer = new byte[5000];
+        stream.seek(RESOURCE_SIZE - 20000);
+        stream.readFully(buffer);
+        Assert.assertTrue(Arrays.equals(buffer, Arrays.copyOfRange(resource, RESOURCE_SIZE - 20000, RESOURCE_SIZE - 15000)));
+        stream.close();
+    }
+
+    /**
+     * Serves the resource, with HEAD requests and single byte ranges if supportsRanges.
+     */
+    private class RangeHandler implements HttpHandler {
+        private final boolean supportsRanges;
+
+        RangeHandler(final boolean supportsRanges) {
+            this.supportsRanges = supportsRanges;
+        }
+
+        @Override
+        public void handle(final HttpExchange exchange) throws IOException {
+            requests.incrementAndGet();
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+            final InputStream requestBody = exchange.getRequestBody();
+            while (requestBody.read() >= 0) {
+            }
+            requestBody.close();
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.getResponseHeaders().set("Content-Length", Integer.toString(RESOURCE_SIZE));
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+                return;
+            }
+            int start = 0;
+            int end = RESOURCE_SIZE - 1;
+            final String range = exchange.getRequestHeaders().getFirst("Range");
+            if (supportsRanges && range != null) {
+                final String[] bounds = range.substring("bytes=".length()).split("-");
+                start = Integer.parseInt(bounds[0]);
+                end = Math.min(end, Integer.parseInt(bounds[1]));
+                if (start >= RESOURCE_SIZE) {
+                    exchange.sendResponseHeaders(416, -1);
+                    exchange.close();
+                    return;
+                }
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + RESOURCE_SIZE);
+                exchange.sendResponseHeaders(206, end - start + 1);
+            } else {
+                exchange.sendResponseHeaders(200, RESOURCE_SIZE);
+            }
+            final OutputStream out = exchange.getResponseBody();
+            out.write(resource, start, end - start + 1);
+            out.close();
+        }
+    }
+}
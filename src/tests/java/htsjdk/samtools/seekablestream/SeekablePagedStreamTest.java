@@ -0,0 +1,174 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools.seekablestream;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+public class SeekablePagedStreamTest {
+
+    private static final File BAM_FILE = new File("testdata/htsjdk/samtools/BAMFileIndexTest/index_test.bam");
+
+    private static byte[] readDirect(final long position, final int length) throws IOException {
+        final SeekableStream stream = new SeekableFileStream(BAM_FILE);
+        try {
+            return readFully(stream, position, length);
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static byte[] readFully(final SeekableStream stream, final long position, final int length) throws IOException {
+        final byte[] bytes = new byte[length];
+        stream.seek(position);
+        int n = 0;
+        while (n < length) {
+            final int count = stream.read(bytes, n, length - n);
+            if (count < 0) break;
+            n += count;
+        }
+        return n == length ? bytes : Arrays.copyOf(bytes, n);
+    }
+
+    @Test
+    public void testRandomReads() throws IOException {
+        final SeekablePagedStream stream = new SeekablePagedStream(new SeekableFileStream(BAM_FILE), 4096, 8, 4);
+        final long length = BAM_FILE.length();
+        Assert.assertEquals(stream.length(), length);
+        final Random random = new Random(17);
+        for (int i = 0; i < 200; ++i) {
+            final long position = (long) (random.nextDouble() * length);
+            final int count = random.nextInt(20000);
+            Assert.assertTrue(Arrays.equals(readFully(stream, position, count), readDirect(position, count)));
+            Assert.assertEquals(stream.position(), Math.min(length, position + count));
+        }
+        stream.close();
+    }
+
+    @Test
+    public void testReadToEnd() throws IOException {
+        final SeekablePagedStream stream = new SeekablePagedStream(new SeekableFileStream(BAM_FILE), 1000, 4, 2);
+        final long length = BAM_FILE.length();
+        stream.seek(length - 10);
+        Assert.assertFalse(stream.eof());
+        final byte[] bytes = new byte[100];
+        Assert.assertEquals(stream.read(bytes, 0, 100), 10);
+        Assert.assertTrue(stream.eof());
+        Assert.assertEquals(stream.read(bytes, 0, 100), -1);
+        Assert.assertEquals(stream.read(), -1);
+
+        stream.seek(0);
+        Assert.assertEquals(stream.read(), readDirect(0, 1)[0] & 0xFF);
+        Assert.assertEquals(stream.skip(length), length - 1);
+        Assert.assertTrue(stream.eof());
+        stream.close();
+    }
+
+    @Test
+    public void testAlternatingRegionsStayCached() throws IOException {
+        final SeekablePagedStream stream = new SeekablePagedStream(new SeekableFileStream(BAM_FILE), 4096, 8, 2);
+        final long[] regions = {0, 300000, 600000};
+        for (final long position : regions) {
+            Assert.assertTrue(Arrays.equals(readFully(stream, position, 100), readDirect(position, 100)));
+        }
+        final long pagesRead = stream.getPagesRead();
+        for (int i = 0; i < 30; ++i) {
+            final long position = regions[i % regions.length] + (i % 7);
+            Assert.assertTrue(Arrays.equals(readFully(stream, position, 50), readDirect(position, 50)));
+        }
+        Assert.assertEquals(stream.getPagesRead(), pagesRead);
+        stream.close();
+    }
+
+    @Test
+    public void testLeastRecentlyUsedPageEvicted() throws IOException {
+        final SeekablePagedStream stream = new SeekablePagedStream(new SeekableFileStream(BAM_FILE), 1000, 2, 0);
+        readFully(stream, 0, 10);
+        readFully(stream, 5000, 10);
+        readFully(stream, 0, 10);
+        Assert.assertEquals(stream.getPagesRead(), 2);
+        readFully(stream, 10000, 10);
+        Assert.assertEquals(stream.getPagesRead(), 3);
+        // page 0 was used more recently than page 5, so it is still cached
+        readFully(stream, 0, 10);
+        Assert.assertEquals(stream.getPagesRead(), 3);
+        readFully(stream, 5000, 10);
+        Assert.assertEquals(stream.getPagesRead(), 4);
+        stream.close();
+    }
+
+    @Test
+    public void testSequentialReadAhead() throws IOException {
+        final int pageSize = 1024;
+        final SeekablePagedStream stream = new SeekablePagedStream(new SeekableFileStream(BAM_FILE), pageSize, 16, 8);
+        final byte[] buffer = new byte[100];
+        final byte[] expected = readDirect(0, 64 * pageSize);
+        int n = 0;
+        while (n + buffer.length <= expected.length) {
+            Assert.assertEquals(stream.read(buffer, 0, buffer.length), buffer.length);
+            Assert.assertTrue(Arrays.equals(buffer, Arrays.copyOfRange(expected, n, n + buffer.length)));
+            n += buffer.length;
+        }
+        // read ahead grows 1, 2, 4, 8, 8, ... so 65 pages take far fewer than 65 reads of the wrapped stream
+        Assert.assertTrue(stream.getWrappedReads() < 12, "wrapped reads: " + stream.getWrappedReads());
+
+        // a seek elsewhere stops the read ahead
+        final long pagesRead = stream.getPagesRead();
+        readFully(stream, 200 * pageSize, 10);
+        Assert.assertEquals(stream.getPagesRead(), pagesRead + 1);
+        stream.close();
+    }
+
+    @Test
+    public void testWrappedReadReturningZeroEndsStream() throws IOException {
+        // A stream of unknown length that returns 0 instead of -1 after its 5000 bytes
+        final SeekableStream zeroAtEnd = new SeekableFileStream(BAM_FILE) {
+            @Override
+            public long length() {
+                return 0;
+            }
+
+            @Override
+            public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+                final int count = (int) Math.min(length, 5000 - position());
+                return count <= 0 ? 0 : super.read(buffer, offset, count);
+            }
+        };
+        final SeekablePagedStream stream = new SeekablePagedStream(zeroAtEnd, 1000, 8, 4);
+        Assert.assertTrue(Arrays.equals(readFully(stream, 0, 10000), readDirect(0, 5000)));
+        Assert.assertTrue(stream.eof());
+        Assert.assertEquals(stream.length(), 5000);
+        stream.close();
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testReadAheadMustFitInCache() throws IOException {
+        new SeekablePagedStream(new SeekableFileStream(BAM_FILE), 1024, 4, 4);
+    }
+}
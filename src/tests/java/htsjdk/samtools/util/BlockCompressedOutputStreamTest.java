@@ -91,6 +91,31 @@ public class BlockCompressedOutputStreamTest {
         Assert.assertEquals(i, INPUT_SIZE);
     }
 
+    @Test
+    public void testSkip() throws Exception {
+        final File f = File.createTempFile("BCOST.", ".gz");
+        f.deleteOnExit();
+        final BlockCompressedOutputStream bcos = new BlockCompressedOutputStream(f);
+        final byte[] input = new byte[3 * BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE];
+        new Random(7).nextBytes(input);
+        bcos.write(input);
+        bcos.close();
+
+        final BlockCompressedInputStream bcis = new BlockCompressedInputStream(f);
+        Assert.assertEquals(bcis.skip(-5), 0);
+        Assert.assertEquals(bcis.skip(0), 0);
+        Assert.assertEquals(bcis.read(), input[0] & 0xFF);
+        // Across block boundaries
+        final int skip = BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE + 1000;
+        Assert.assertEquals(bcis.skip(skip), skip);
+        Assert.assertEquals(bcis.read(), input[1 + skip] & 0xFF);
+        // Past the end of the data
+        Assert.assertEquals(bcis.skip(input.length), input.length - skip - 2);
+        Assert.assertEquals(bcis.read(), -1);
+        Assert.assertEquals(bcis.skip(10), 0);
+        bcis.close();
+    }
+
     // PIC-393 exception closing BGZF stream opened to /dev/null
     // I don't think this will work on Windows, because /dev/null doesn't work
     @Test(groups = "broken")
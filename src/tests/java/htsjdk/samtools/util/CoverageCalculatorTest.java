@@ -0,0 +1,153 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools.util;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileReader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordSetBuilder;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class CoverageCalculatorTest {
+
+    /**
+     * The depths must be the pileup sizes of a SamLocusIterator with the same settings.
+     */
+    @Test
+    public void testDepthsMatchSamLocusIterator() throws IOException {
+        final File bamFile = makeIndexedBam();
+        final SAMFileReader locusReader = new SAMFileReader(bamFile);
+        final SamReader reader = SamReaderFactory.makeDefault().open(bamFile);
+        final IntervalList intervalList = new IntervalList(reader.getFileHeader());
+        intervalList.add(new Interval("chr1", 1, 50));
+        intervalList.add(new Interval("chr1", 90, 400));
+        intervalList.add(new Interval("chr1", 1900, 2100));
+        intervalList.add(new Interval("chr3", 10, 20));
+        intervalList.add(new Interval("chr4", 300, 1999));
+
+        for (final IntervalList intervals : new IntervalList[]{intervalList, null}) {
+            for (final int qualityCutoff : new int[]{Integer.MIN_VALUE, 20}) {
+                final SamLocusIterator sli = new SamLocusIterator(locusReader, intervals, true);
+                sli.setQualityScoreCutoff(qualityCutoff);
+                sli.setMappingQualityScoreCutoff(10);
+                final List<String> expected = new ArrayList<String>();
+                for (final SamLocusIterator.LocusInfo li : sli) {
+                    expected.add(li.getSequenceName() + ":" + li.getPosition() + "=" + li.size());
+                }
+                sli.close();
+
+                final CoverageCalculator calculator = new CoverageCalculator(reader, intervals);
+                calculator.setQualityScoreCutoff(qualityCutoff);
+                calculator.setMappingQualityScoreCutoff(10);
+                final List<String> actual = new ArrayList<String>();
+                final CoverageCalculator.DepthHistogramListener histogramListener =
+                        new CoverageCalculator.DepthHistogramListener();
+                calculator.calculate(histogramListener, new CoverageCalculator.CoverageListener() {
+                    public void coverage(final Interval interval, final int start, final int end, final int depth) {
+                        for (int pos = start; pos <= end; ++pos) {
+                            actual.add(interval.getSequence() + ":" + pos + "=" + depth);
+                        }
+                    }
+                });
+                Assert.assertEquals(actual, expected);
+                Assert.assertEquals(histogramListener.getHistogram().getSumOfValues(), (double) expected.size());
+            }
+        }
+        locusReader.close();
+        reader.close();
+    }
+
+    @Test
+    public void testIntervalSummaries() throws IOException {
+        final SAMRecordSetBuilder samBuilder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.coordinate, true, 1000);
+        samBuilder.addFrag("a", 0, 101, false, false, "36M", null, 30);
+        samBuilder.addFrag("b", 0, 111, false, false, "10M10N26M", null, 30);
+        final File bamFile = writeBam(samBuilder);
+        final SamReader reader = SamReaderFactory.makeDefault().open(bamFile);
+        final IntervalList intervalList = new IntervalList(reader.getFileHeader());
+        intervalList.add(new Interval("chr1", 91, 160));
+        intervalList.add(new Interval("chr2", 1, 10));
+        final List<CoverageCalculator.IntervalSummary> summaries =
+                new CoverageCalculator(reader, intervalList).calculateIntervalSummaries();
+
+        Assert.assertEquals(summaries.size(), 2);
+        final CoverageCalculator.IntervalSummary summary = summaries.get(0);
+        Assert.assertEquals(summary.getTotalDepth(), 72);
+        // 101-136 by "a", 111-120 and 131-156 by "b"
+        Assert.assertEquals(summary.getBasesCovered(), 56);
+        Assert.assertEquals(summary.getMinDepth(), 0);
+        Assert.assertEquals(summary.getMaxDepth(), 2);
+        Assert.assertEquals(summaries.get(1).getTotalDepth(), 0);
+        Assert.assertEquals(summaries.get(1).getMaxDepth(), 0);
+
+        final Histogram<Integer> histogram = new CoverageCalculator(reader, intervalList).calculateDepthHistogram();
+        reader.close();
+        Assert.assertEquals(histogram.get(0).getValue(), 80 - 56.0);
+        Assert.assertEquals(histogram.get(1).getValue(), 40.0);
+        Assert.assertEquals(histogram.get(2).getValue(), 16.0);
+    }
+
+    private File makeIndexedBam() throws IOException {
+        final SAMRecordSetBuilder samBuilder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.coordinate, true, 3000);
+        final Random random = new Random(42);
+        final String[] cigars = {"36M", "10M5D26M", "5S31M", "20M100N16M", "10M2I24M"};
+        for (int i = 0; i < 1000; ++i) {
+            final SAMRecord record = samBuilder.addFrag("read" + i, random.nextInt(4), 1 + random.nextInt(2500),
+                    random.nextBoolean(), false, cigars[random.nextInt(cigars.length)], null, 30);
+            record.setMappingQuality(random.nextInt(40));
+            final byte[] qualities = record.getBaseQualities();
+            for (int j = 0; j < qualities.length; ++j) {
+                qualities[j] = (byte) random.nextInt(40);
+            }
+            record.setBaseQualities(qualities);
+            record.setDuplicateReadFlag(random.nextInt(10) == 0);
+        }
+        return writeBam(samBuilder);
+    }
+
+    private File writeBam(final SAMRecordSetBuilder samBuilder) throws IOException {
+        final File bamFile = File.createTempFile("coverage.", ".bam");
+        final File indexFile = new File(bamFile.getPath().replaceFirst("\\.bam$", ".bai"));
+        bamFile.deleteOnExit();
+        indexFile.deleteOnExit();
+        final SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true)
+                .makeBAMWriter(samBuilder.getHeader(), true, bamFile);
+        for (final SAMRecord record : samBuilder) {
+            writer.addAlignment(record);
+        }
+        writer.close();
+        return bamFile;
+    }
+}
@@ -5,6 +5,7 @@ import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
 import java.util.Collections;
+import java.util.Set;
 
 /**
  * Created by bradt on 4/28/14.
@@ -22,6 +23,7 @@ public class DiskBackedQueueTest extends SortingCollectionTest {
                 {"threshold multiple", 600, 100},
                 {"threshold multiple plus one", 101, 100},
                 {"exactly threshold", 100, 100},
+                {"several async batches", 2 * DiskBackedQueue.ASYNC_BATCH_SIZE + 600, 100},
         };
     }
 
@@ -33,9 +35,21 @@ public class DiskBackedQueueTest extends SortingCollectionTest {
      */
     @Test(dataProvider = "diskBackedQueueProvider")
     public void testPositive(final String testName, final int numStringsToGenerate, final int maxRecordsInRam) {
+        testPositive(numStringsToGenerate, maxRecordsInRam, false);
+    }
+
+    /**
+     * Same as testPositive, but with records written to and read from disk in background threads.
+     */
+    @Test(dataProvider = "diskBackedQueueProvider")
+    public void testPositiveAsync(final String testName, final int numStringsToGenerate, final int maxRecordsInRam) {
+        testPositive(numStringsToGenerate, maxRecordsInRam, true);
+    }
+
+    private void testPositive(final int numStringsToGenerate, final int maxRecordsInRam, final boolean useAsyncIo) {
         final String[] strings = new String[numStringsToGenerate];
         int numStringsGenerated = 0;
-        final DiskBackedQueue<String> diskBackedQueue = makeDiskBackedQueue(maxRecordsInRam);
+        final DiskBackedQueue<String> diskBackedQueue = makeDiskBackedQueue(maxRecordsInRam, useAsyncIo);
         for (final String s : new RandomStringGenerator(numStringsToGenerate)) {
             diskBackedQueue.add(s);
             strings[numStringsGenerated++] = s;
@@ -50,9 +64,27 @@ public class DiskBackedQueueTest extends SortingCollectionTest {
         Assert.assertTrue(diskBackedQueue.canAdd());
     }
 
+    @Test
+    public void testCloseStopsBackgroundThreads() {
+        final Set<Thread> threadsBefore = Thread.getAllStackTraces().keySet();
+        final DiskBackedQueue<String> diskBackedQueue = makeDiskBackedQueue(100, true);
+        for (final String s : new RandomStringGenerator(DiskBackedQueue.ASYNC_BATCH_SIZE + 500)) {
+            diskBackedQueue.add(s);
+        }
+        Assert.assertFalse(tmpDirIsEmpty());
+        diskBackedQueue.close();
+        Assert.assertTrue(tmpDirIsEmpty());
+        Assert.assertTrue(diskBackedQueue.isEmpty());
+        for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+            Assert.assertTrue(threadsBefore.contains(thread) || !thread.getName().startsWith("DiskBackedQueue"),
+                    thread.getName() + " is still running");
+        }
+    }
+
     private void assertQueueEqualsList(final String[] strings, final DiskBackedQueue<String> diskBackedQueue) {
         int i = 0;
         while (!diskBackedQueue.isEmpty()) {
+            Assert.assertEquals(diskBackedQueue.size(), strings.length - i);
             final String s = diskBackedQueue.poll();
             Assert.assertEquals(s, strings[i]);
             i++;
@@ -60,8 +92,8 @@ public class DiskBackedQueueTest extends SortingCollectionTest {
         Assert.assertEquals(i, strings.length);
     }
 
-    private DiskBackedQueue<String> makeDiskBackedQueue(final int maxRecordsInRam) {
-        return DiskBackedQueue.newInstance(new StringCodec(), maxRecordsInRam, Collections.singletonList(tmpDir));
+    private DiskBackedQueue<String> makeDiskBackedQueue(final int maxRecordsInRam, final boolean useAsyncIo) {
+        return DiskBackedQueue.newInstance(new StringCodec(), maxRecordsInRam, Collections.singletonList(tmpDir), useAsyncIo);
     }
 
 }
@@ -0,0 +1,169 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools.util;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileReader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordSetBuilder;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class ParallelSamLocusIteratorTest {
+
+    @Test
+    public void testIntervalsMatchSamLocusIterator() throws IOException {
+        final File bamFile = makeIndexedBam();
+        final SAMFileReader reader = new SAMFileReader(bamFile);
+        final IntervalList intervalList = new IntervalList(reader.getFileHeader());
+        intervalList.add(new Interval("chr1", 1, 50));
+        intervalList.add(new Interval("chr1", 90, 400));
+        intervalList.add(new Interval("chr1", 420, 430));
+        intervalList.add(new Interval("chr1", 1500, 1700));
+        intervalList.add(new Interval("chr2", 10, 20));
+        intervalList.add(new Interval("chr4", 300, 1999));
+        reader.close();
+
+        final SAMFileReader serialReader = new SAMFileReader(bamFile);
+        final List<String> expected = describe(new SamLocusIterator(serialReader, intervalList, true));
+        serialReader.close();
+        Assert.assertEquals(expected.size(), 50 + 311 + 11 + 201 + 11 + 1700);
+
+        for (final int numThreads : new int[]{1, 4}) {
+            final ParallelSamLocusIterator iterator = new ParallelSamLocusIterator(bamFile, null, intervalList, numThreads);
+            iterator.setMaxShardLength(100);
+            iterator.setMaxMergeGap(30);
+            Assert.assertEquals(describe(iterator), expected);
+        }
+    }
+
+    @Test
+    public void testWholeGenomeMatchesSamLocusIterator() throws IOException {
+        final File bamFile = makeIndexedBam();
+        final SAMFileReader serialReader = new SAMFileReader(bamFile);
+        final SamLocusIterator serial = new SamLocusIterator(serialReader);
+        serial.setEmitUncoveredLoci(false);
+        serial.setQualityScoreCutoff(10);
+        final List<String> expected = describe(serial);
+        serialReader.close();
+
+        final ParallelSamLocusIterator iterator = new ParallelSamLocusIterator(bamFile, null, null, 3);
+        iterator.setEmitUncoveredLoci(false);
+        iterator.setQualityScoreCutoff(10);
+        iterator.setMaxShardLength(250);
+        Assert.assertEquals(describe(iterator), expected);
+    }
+
+    @Test
+    public void testShardsLargerThanOneBatch() throws IOException {
+        final File bamFile = makeIndexedBam();
+        final SAMFileReader serialReader = new SAMFileReader(bamFile);
+        final List<String> expected = describe(new SamLocusIterator(serialReader));
+        serialReader.close();
+
+        // Each reference sequence is a single shard of 2000 loci, handed over in several batches
+        final ParallelSamLocusIterator iterator = new ParallelSamLocusIterator(bamFile, null, null, 4);
+        Assert.assertEquals(describe(iterator), expected);
+    }
+
+    @Test
+    public void testCloseBeforeEnd() throws IOException {
+        final File bamFile = makeIndexedBam();
+        for (final int numThreads : new int[]{1, 4}) {
+            final ParallelSamLocusIterator iterator = new ParallelSamLocusIterator(bamFile, null, null, numThreads);
+            iterator.setMaxShardLength(500);
+            for (int i = 0; i < 1500; ++i) {
+                Assert.assertTrue(iterator.hasNext());
+                iterator.next();
+            }
+            iterator.close();
+            Assert.assertFalse(iterator.hasNext());
+        }
+    }
+
+    @Test
+    public void testCloseWaitsForShardTasks() throws IOException {
+        final File bamFile = makeIndexedBam();
+        for (int round = 0; round < 10; ++round) {
+            final ParallelSamLocusIterator iterator = new ParallelSamLocusIterator(bamFile, null, null, 4);
+            iterator.setMaxShardLength(50);
+            for (int i = 0; i < 10 * round; ++i) {
+                iterator.next();
+            }
+            iterator.close();
+            // No shard task may still be reading once close() has returned
+            for (final Map.Entry<Thread, StackTraceElement[]> entry : Thread.getAllStackTraces().entrySet()) {
+                for (final StackTraceElement frame : entry.getValue()) {
+                    Assert.assertFalse(frame.getClassName().startsWith(ParallelSamLocusIterator.class.getName() + "$ShardTask"),
+                            entry.getKey().getName() + " is still running a shard task");
+                }
+            }
+        }
+    }
+
+    private List<String> describe(final CloseableIterator<SamLocusIterator.LocusInfo> iterator) {
+        final List<String> loci = new ArrayList<String>();
+        while (iterator.hasNext()) {
+            final SamLocusIterator.LocusInfo li = iterator.next();
+            final StringBuilder sb = new StringBuilder(li.toString());
+            for (int i = 0; i < li.size(); ++i) {
+                sb.append(' ').append(li.getRecord(i).getReadName()).append('/').append(li.getOffset(i));
+            }
+            loci.add(sb.toString());
+        }
+        iterator.close();
+        return loci;
+    }
+
+    private File makeIndexedBam() throws IOException {
+        final SAMRecordSetBuilder samBuilder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.coordinate, true, 2000);
+        final Random random = new Random(12345);
+        final String[] cigars = {"36M", "10M5D26M", "5S31M", "20M100N16M"};
+        for (int i = 0; i < 2000; ++i) {
+            final SAMRecord record = samBuilder.addFrag("read" + i, random.nextInt(4), 1 + random.nextInt(1850),
+                    random.nextBoolean(), false, cigars[random.nextInt(cigars.length)], null, 5 + random.nextInt(30));
+            record.setDuplicateReadFlag(random.nextInt(10) == 0);
+        }
+        final File bamFile = File.createTempFile("parallelLocus.", ".bam");
+        final File indexFile = new File(bamFile.getPath().replaceFirst("\\.bam$", ".bai"));
+        bamFile.deleteOnExit();
+        indexFile.deleteOnExit();
+        final SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true)
+                .makeBAMWriter(samBuilder.getHeader(), true, bamFile);
+        for (final SAMRecord record : samBuilder) {
+            writer.addAlignment(record);
+        }
+        writer.close();
+        return bamFile;
+    }
+}
@@ -24,10 +24,13 @@
 package htsjdk.samtools.util;
 
 import htsjdk.samtools.SAMFileReader;
+import htsjdk.samtools.SAMRecord;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
 import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * @author alecw@broadinstitute.org
@@ -228,4 +231,92 @@ public class SamLocusIteratorTest {
             ++i;
         }
     }
+
+    /**
+     * Test that the per-read accessors agree with the records, and that reusing LocusInfos gives the same pileups.
+     */
+    @Test
+    public void testPileupAccessorsAndReuse() {
+        final String sqHeader = "@HD\tSO:coordinate\tVN:1.0\n@SQ\tSN:chrM\tAS:HG18\tLN:100000\n";
+        final String seq1  = "ACCTACGTTCAATATTACAGGCGAACATACTTACTA";
+        final String qual1 = "++++++++++++++++++++++++++++++++++++"; // phred 10
+        final String qual2 = "5555555555555555555555555555555555++"; // phred 20
+        final String s1 = "3851612\t16\tchrM\t165\t255\t18M10D18M\t*\t0\t0\t" + seq1 + "\t" + qual1 + "\n";
+        final String s2 = "3851613\t0\tchrM\t170\t255\t3S30M3S\t*\t0\t0\t" + seq1 + "\t" + qual2 + "\n";
+        final String s3 = "3851614\t0\tchrM\t206\t255\t36M\t*\t0\t0\t" + seq1 + "\t" + qual2 + "\n";
+        final String exampleSam = sqHeader + s1 + s2 + s3;
+
+        final List<String> expected = new ArrayList<String>();
+        final SamLocusIterator sli = createSamLocusIterator(createSamFileReader(exampleSam));
+        for (final SamLocusIterator.LocusInfo li : sli) {
+            Assert.assertEquals(li.size(), li.getRecordAndPositions().size());
+            for (int i = 0; i < li.size(); ++i) {
+                final SamLocusIterator.RecordAndOffset rao = li.getRecordAndPositions().get(i);
+                Assert.assertSame(li.getRecord(i), rao.getRecord());
+                Assert.assertEquals(li.getOffset(i), rao.getOffset());
+                Assert.assertEquals(li.getBase(i), rao.getReadBase());
+                Assert.assertEquals(li.getBaseQuality(i), rao.getBaseQuality());
+                Assert.assertEquals(li.isNegativeStrand(i), rao.getRecord().getReadNegativeStrandFlag());
+            }
+            expected.add(describe(li));
+        }
+        Assert.assertEquals(expected.size(), 36 + 36 + 10 - 5);
+
+        final SamLocusIterator reusing = createSamLocusIterator(createSamFileReader(exampleSam));
+        reusing.setReuseLocusInfos(true);
+        reusing.setQualityScoreCutoff(15);
+        final SamLocusIterator filtered = createSamLocusIterator(createSamFileReader(exampleSam));
+        filtered.setQualityScoreCutoff(15);
+        final List<String> expectedFiltered = new ArrayList<String>();
+        for (final SamLocusIterator.LocusInfo li : filtered) {
+            expectedFiltered.add(describe(li));
+        }
+        final List<String> actual = new ArrayList<String>();
+        for (final SamLocusIterator.LocusInfo li : reusing) {
+            actual.add(describe(li));
+        }
+        Assert.assertEquals(actual, expectedFiltered);
+        Assert.assertTrue(expectedFiltered.size() < expected.size());
+    }
+
+    @Test
+    public void testAddToReturnedLocus() {
+        final String sqHeader = "@HD\tSO:coordinate\tVN:1.0\n@SQ\tSN:chrM\tAS:HG18\tLN:100000\n";
+        final String seq1  = "ACCTACGTTCAATATTACAGGCGAACATACTTACTA";
+        final String qual1 = "++++++++++++++++++++++++++++++++++++"; // phred 10
+        final StringBuilder exampleSam = new StringBuilder(sqHeader);
+        for (int i = 0; i < 20; ++i) {
+            exampleSam.append("read").append(i).append("\t0\tchrM\t165\t255\t36M\t*\t0\t0\t").append(seq1)
+                    .append('\t').append(qual1).append('\n');
+        }
+        final SAMFileReader samReader = createSamFileReader(exampleSam.toString());
+        final SAMRecord extra = samReader.iterator().next();
+        final SamLocusIterator sli = new SamLocusIterator(createSamFileReader(exampleSam.toString()));
+        int covered = 0;
+        for (final SamLocusIterator.LocusInfo li : sli) {
+            final int depth = li.size();
+            // More reads than the pileup held when it was handed out
+            for (int i = 0; i < 25; ++i) {
+                li.add(extra, i);
+            }
+            Assert.assertEquals(li.size(), depth + 25);
+            Assert.assertSame(li.getRecord(depth + 24), extra);
+            Assert.assertEquals(li.getOffset(depth + 24), 24);
+            if (depth > 0) {
+                Assert.assertEquals(li.getRecord(0).getReadName(), "read0");
+                ++covered;
+            }
+        }
+        Assert.assertEquals(covered, 36);
+    }
+
+    private String describe(final SamLocusIterator.LocusInfo li) {
+        final StringBuilder sb = new StringBuilder(li.toString());
+        for (int i = 0; i < li.size(); ++i) {
+            sb.append(' ').append(li.getRecord(i).getReadName()).append('/').append(li.getOffset(i)).append('/')
+                    .append((char) li.getBase(i)).append('/').append(li.getBaseQuality(i))
+                    .append(li.isNegativeStrand(i) ? '-' : '+');
+        }
+        return sb.toString();
+    }
 }
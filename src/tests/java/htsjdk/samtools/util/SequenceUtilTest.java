@@ -24,6 +24,7 @@
 package htsjdk.samtools.util;
 
 import htsjdk.samtools.Cigar;
+import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMSequenceDictionary;
 import htsjdk.samtools.SAMTag;
@@ -33,6 +34,8 @@ import org.testng.Assert;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import java.util.Random;
+
 /**
  * @author alecw@broadinstitute.org
  */
@@ -132,4 +135,95 @@ public class SequenceUtilTest {
                 {"2H2S32M12I2M3D1M2I3M2D1M", 14, 5}
         };
     }
+
+    @Test
+    public void testWordAtATimeKernelsMatchPerBaseComparison() {
+        final Random random = new Random(42);
+        final byte[] alphabet = StringUtil.stringToBytes("ACGTNacgtn.[`{~");
+        final SAMFileHeader header = new SAMFileHeader();
+        for (int iteration = 0; iteration < 2000; ++iteration) {
+            final int length = 1 + random.nextInt(40);
+            final byte[] readBases = new byte[length];
+            final byte[] readQualities = new byte[length];
+            final byte[] referenceBases = new byte[length + 10];
+            for (int i = 0; i < referenceBases.length; ++i) {
+                referenceBases[i] = alphabet[random.nextInt(alphabet.length)];
+            }
+            final int referenceOffset = random.nextInt(5);
+            for (int i = 0; i < length; ++i) {
+                // Mostly matching bases, in either case, with some mismatches and the occasional non-ASCII byte
+                final byte referenceBase = referenceBases[referenceOffset + i];
+                final int choice = random.nextInt(10);
+                if (choice < 6) readBases[i] = referenceBase;
+                else if (choice < 8) readBases[i] = (byte) (referenceBase ^ 0x20);
+                else if (choice < 9) readBases[i] = alphabet[random.nextInt(alphabet.length)];
+                else readBases[i] = (byte) (128 + random.nextInt(128));
+                readQualities[i] = (byte) random.nextInt(40);
+            }
+            final boolean negativeStrand = random.nextBoolean();
+            final boolean bisulfite = random.nextBoolean();
+
+            int expectedMismatches = 0;
+            int expectedQualities = 0;
+            boolean expectedEqual = true;
+            for (int i = 0; i < length; ++i) {
+                expectedEqual &= SequenceUtil.basesEqual(readBases[i], referenceBases[referenceOffset + i]);
+                if (!(bisulfite ? SequenceUtil.bisulfiteBasesEqual(negativeStrand, readBases[i], referenceBases[referenceOffset + i])
+                        : SequenceUtil.basesEqual(readBases[i], referenceBases[referenceOffset + i]))) {
+                    ++expectedMismatches;
+                    expectedQualities += readQualities[i];
+                }
+            }
+            Assert.assertEquals(SequenceUtil.basesEqual(readBases, 0, referenceBases, referenceOffset, length), expectedEqual);
+
+            final SAMRecord rec = makeRecord(header, readBases, readQualities, length, negativeStrand);
+            rec.setAlignmentStart(referenceOffset + 1);
+            Assert.assertEquals(SequenceUtil.countMismatches(rec, referenceBases, 0, bisulfite), expectedMismatches);
+            Assert.assertEquals(SequenceUtil.sumQualitiesOfMismatches(rec, referenceBases, 0, bisulfite), expectedQualities);
+            Assert.assertEquals(SequenceUtil.calculateSamNmTag(rec, referenceBases, 0, bisulfite), expectedMismatches);
+            SequenceUtil.calculateMdAndNmTags(rec, referenceBases, 0, bisulfite);
+            Assert.assertEquals(rec.getIntegerAttribute(SAMTag.NM.name()).intValue(), expectedMismatches);
+        }
+    }
+
+    private static SAMRecord makeRecord(final SAMFileHeader header, final byte[] readBases, final byte[] readQualities,
+                                        final int length, final boolean negativeStrand) {
+        final SAMRecord rec = new SAMRecord(header);
+        rec.setReadName("read");
+        rec.setReadBases(readBases);
+        rec.setBaseQualities(readQualities);
+        rec.setCigarString(length + "M");
+        rec.setAlignmentStart(1);
+        rec.setReadNegativeStrandFlag(negativeStrand);
+        return rec;
+    }
+
+    @Test(dataProvider = "calculateMdAndNmTags")
+    public void testCalculateMdAndNmTags(final String readString, final String cigar, final String reference,
+                                         final String expectedMd, final int expectedNm) {
+        final SAMRecord rec = new SAMRecord(new SAMFileHeader());
+        rec.setReadName("read");
+        rec.setReadString(readString);
+        rec.setCigarString(cigar);
+        rec.setAlignmentStart(3);
+        final byte[] referenceBases = StringUtil.stringToBytes("NN" + reference);
+        SequenceUtil.calculateMdAndNmTags(rec, referenceBases);
+        Assert.assertEquals(rec.getStringAttribute(SAMTag.MD.name()), expectedMd);
+        Assert.assertEquals(rec.getIntegerAttribute(SAMTag.NM.name()).intValue(), expectedNm);
+        Assert.assertEquals(SequenceUtil.calculateSamNmTag(rec, referenceBases), expectedNm);
+    }
+
+    @DataProvider(name = "calculateMdAndNmTags")
+    public Object[][] calculateMdAndNmTagsTestCases() {
+        return new Object[][] {
+                {"ACGTACGTACGTACGTACGT", "20M", "acgtacgtACGTACGTACGT", "20", 0},
+                {"ACGTACGTACGTACGTACGT", "20M", "ACGTACGTACCTACGTACGA", "10C8A0", 2},
+                {"TCGTACGTACGTACGTACGT", "20M", "ACGTACGTACGTACGTACGT", "0A19", 1},
+                {"ACGTACGTACGTACGTACGT", "2S8M2D10M", "GTACGTACgtGTACGTACGT", "8^GT10", 2},
+                {"ACGTACGTACGTACGTACGT", "10M3I7M", "ACGTACGTACCGTACGT", "17", 3},
+                {"ACGTACGTACGTACGTACGT", "10M5N10M", "ACGTACGTACNNNNNGTACGTACGA", "19A0", 1},
+                {"ACGTACGTACGTACGTACGT", "10M1D10M", "ACGTACGTACTGTACGTACGT", "10^T10", 1},
+                {"ACGTACGTACGTACGTACGT", "9M1D11M", "ACGTACGTAGGGTACGTACGT", "9^G0G10", 2},
+        };
+    }
 }
@@ -107,6 +107,54 @@ public class SortingLongCollectionTest {
         Assert.assertTrue(tmpDirIsEmpty());
     }
 
+    /**
+     * Same as testPositive, but sorting the values in RAM with radix sort.
+     */
+    @Test(dataProvider = "test1")
+    public void testRadixSort(final String testName, final int numValuesToGenerate, final int maxValuesInRam) {
+        final long[] values = new long[numValuesToGenerate];
+        final SortingLongCollection sortingCollection = new SortingLongCollection(maxValuesInRam, 2, tmpDir);
+        final Random valueGenerator = new Random(456);
+        for (int i = 0; i < numValuesToGenerate; ++i) {
+            // Mix in some small values so that some radix passes are skipped and others are not.
+            final long value = (i % 3 == 0) ? valueGenerator.nextInt(1000) - 500 : valueGenerator.nextLong();
+            sortingCollection.add(value);
+            values[i] = value;
+        }
+        Arrays.sort(values);
+
+        Assert.assertEquals(tmpDirIsEmpty(), numValuesToGenerate <= maxValuesInRam);
+        assertIteratorEqualsList(values, sortingCollection);
+
+        sortingCollection.cleanup();
+        Assert.assertTrue(tmpDirIsEmpty());
+    }
+
+    @DataProvider(name = "radixSortData")
+    public Object[][] createRadixSortData() {
+        return new Object[][] {
+                {1, 1},
+                {1000, 1},
+                {1000, 3},
+                {200000, 4},
+        };
+    }
+
+    @Test(dataProvider = "radixSortData")
+    public void testRadixSortDirectly(final int numValues, final int numThreads) {
+        final Random valueGenerator = new Random(789);
+        final long[] values = new long[numValues + 2];
+        for (int i = 0; i < numValues; ++i) {
+            values[i] = valueGenerator.nextLong();
+        }
+        values[numValues] = Long.MIN_VALUE;
+        values[numValues + 1] = Long.MAX_VALUE;
+        final long[] expected = values.clone();
+        Arrays.sort(expected);
+        SortingLongCollection.radixSort(values, new long[values.length], values.length, numThreads);
+        Assert.assertTrue(Arrays.equals(values, expected));
+    }
+
     private void assertIteratorEqualsList(final long[] values, final SortingLongCollection sortingCollection) {
         int i = 0;
         sortingCollection.doneAddingStartIteration();
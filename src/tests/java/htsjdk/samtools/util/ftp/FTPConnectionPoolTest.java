@@ -0,0 +1,134 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools.util.ftp;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Random;
+
+public class FTPConnectionPoolTest {
+    private FakeFTPServer server;
+    private byte[] contents;
+    private URL url;
+
+    @BeforeMethod
+    public void startServer() throws IOException {
+        server = new FakeFTPServer();
+        contents = new byte[100000];
+        new Random(5).nextBytes(contents);
+        server.addFile("/data/file.bin", contents);
+        url = server.getURL("/data/file.bin");
+    }
+
+    @AfterMethod
+    public void stopServer() throws IOException {
+        server.close();
+    }
+
+    @Test
+    public void testRetrieveRangesOnOneConnection() throws IOException {
+        final FTPConnectionPool pool = new FTPConnectionPool(2);
+        Assert.assertEquals(pool.size(url, null), contents.length);
+        final long[] starts = {0, 99000, 5000, 50000, 12345};
+        for (final long start : starts) {
+            final byte[] data = pool.retrieveRange(url, null, start, 2000);
+            Assert.assertTrue(Arrays.equals(data, Arrays.copyOfRange(contents, (int) start, (int) Math.min(contents.length, start + 2000))));
+        }
+        Assert.assertEquals(pool.retrieveRange(url, null, contents.length, 10).length, 0);
+        Assert.assertEquals(pool.getConnectionsOpened(), 1);
+        Assert.assertEquals(server.getLogins(), 1);
+        Assert.assertEquals(pool.getIdleConnectionCount(url), 1);
+        pool.close();
+        Assert.assertEquals(pool.getIdleConnectionCount(url), 0);
+    }
+
+    @Test
+    public void testCompletionReplyAfterAbortedTransfer() throws IOException {
+        server.setCompleteAfterAbort(true);
+        final FTPConnectionPool pool = new FTPConnectionPool(2);
+        for (final long start : new long[]{0, 5000, 50000}) {
+            final byte[] data = pool.retrieveRange(url, null, start, 2000);
+            Assert.assertTrue(Arrays.equals(data, Arrays.copyOfRange(contents, (int) start, (int) start + 2000)));
+            // Would read the 226 of the aborted transfer if it had been left on the connection
+            Assert.assertEquals(pool.size(url, null), contents.length);
+        }
+        Assert.assertEquals(pool.getConnectionsOpened(), 1);
+        pool.close();
+    }
+
+    @Test
+    public void testClosedConnectionReplaced() throws IOException {
+        final FTPConnectionPool pool = new FTPConnectionPool(2);
+        Assert.assertTrue(Arrays.equals(pool.retrieveRange(url, null, 10, 10), Arrays.copyOfRange(contents, 10, 20)));
+        server.closeControlConnections();
+        final byte[] data = pool.retrieveRange(url, null, 1000, 10);
+        Assert.assertTrue(Arrays.equals(data, Arrays.copyOfRange(contents, 1000, 1010)));
+        Assert.assertEquals(pool.getConnectionsOpened(), 2);
+        server.closeControlConnections();
+        Assert.assertEquals(pool.size(url, null), contents.length);
+        Assert.assertEquals(pool.getConnectionsOpened(), 3);
+        pool.close();
+    }
+
+    @Test
+    public void testConnectionDisconnectedOnRuntimeException() throws Exception {
+        final FTPConnectionPool pool = new FTPConnectionPool(2);
+        Assert.assertEquals(pool.retrieveRange(url, null, 0, 10).length, 10);
+        Assert.assertEquals(server.getOpenControlConnections(), 1);
+        try {
+            // Fails once the transfer has started
+            pool.retrieveRange(url, null, 0, -1);
+            Assert.fail("Expected NegativeArraySizeException");
+        } catch (NegativeArraySizeException e) {
+            // expected
+        }
+        Assert.assertEquals(pool.getIdleConnectionCount(url), 0);
+        for (int i = 0; i < 100 && server.getOpenControlConnections() > 0; ++i) {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(server.getOpenControlConnections(), 0);
+        Assert.assertTrue(Arrays.equals(pool.retrieveRange(url, null, 20, 10), Arrays.copyOfRange(contents, 20, 30)));
+        Assert.assertEquals(pool.getConnectionsOpened(), 2);
+        pool.close();
+    }
+
+    @Test
+    public void testIdleConnectionsLimited() throws IOException {
+        final FTPConnectionPool pool = new FTPConnectionPool(1);
+        final FTPClient first = pool.acquire(url, null);
+        final FTPClient second = pool.acquire(url, null);
+        Assert.assertEquals(pool.getConnectionsOpened(), 2);
+        pool.release(url, first);
+        pool.release(url, second);
+        Assert.assertEquals(pool.getIdleConnectionCount(url), 1);
+        Assert.assertSame(pool.acquire(url, null), first);
+        first.disconnect();
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.samtools.util.ftp;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A minimal FTP server for tests, serving files from memory on the loopback interface.  It supports anonymous
+ * login, SIZE, passive mode retrieval with REST, NOOP and QUIT, and counts logins and transfers.
+ */
+public class FakeFTPServer implements Closeable {
+    private static final InetAddress LOOPBACK;
+    static {
+        try {
+            LOOPBACK = InetAddress.getByName("127.0.0.1");
+        } catch (IOException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final ServerSocket serverSocket;
+    private final Map<String, byte[]> files = new ConcurrentHashMap<String, byte[]>();
+    private final Set<Socket> controlSockets = Collections.synchronizedSet(new HashSet<Socket>());
+    private volatile int transferDelayMillis = 0;
+    private volatile boolean completeAfterAbort = false;
+
+    private final AtomicInteger logins = new AtomicInteger();
+    private final AtomicInteger transfers = new AtomicInteger();
+    private final AtomicInteger activeTransfers = new AtomicInteger();
+    private final AtomicInteger maxActiveTransfers = new AtomicInteger();
+
+    public FakeFTPServer() throws IOException {
+        serverSocket = new ServerSocket(0, 50, LOOPBACK);
+        final Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = serverSocket.accept();
+                        controlSockets.add(socket);
+                        final Thread session = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        }, "FakeFTPServer session");
+                        session.setDaemon(true);
+                        session.start();
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        }, "FakeFTPServer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public void addFile(final String path, final byte[] contents) {
+        files.put(path, contents);
+    }
+
+    public URL getURL(final String path) throws MalformedURLException {
+        return new URL("ftp://127.0.0.1:" + serverSocket.getLocalPort() + path);
+    }
+
+    /**
+     * Delays the start of every transfer, so that concurrent transfers overlap.
+     */
+    public void setTransferDelayMillis(final int transferDelayMillis) {
+        this.transferDelayMillis = transferDelayMillis;
+    }
+
+    /**
+     * Sends a 226 after the 426 of a transfer the client aborted, as some servers do.
+     */
+    public void setCompleteAfterAbort(final boolean completeAfterAbort) {
+        this.completeAfterAbort = completeAfterAbort;
+    }
+
+    /**
+     * Closes all control connections, as a server does with connections that have been idle too long.
+     */
+    public void closeControlConnections() throws IOException {
+        synchronized (controlSockets) {
+            for (final Socket socket : controlSockets) {
+                socket.close();
+            }
+            controlSockets.clear();
+        }
+    }
+
+    /**
+     * @return the number of control connections that neither side has closed yet.
+     */
+    public int getOpenControlConnections() {
+        return controlSockets.size();
+    }
+
+    public int getLogins() {
+        return logins.get();
+    }
+
+    public int getTransfers() {
+        return transfers.get();
+    }
+
+    public int getMaxActiveTransfers() {
+        return maxActiveTransfers.get();
+    }
+
+    public void close() throws IOException {
+        serverSocket.close();
+        closeControlConnections();
+    }
+
+    private void serve(final Socket socket) {
+        ServerSocket passive = null;
+        long rest = 0;
+        try {
+            final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+            final OutputStream out = socket.getOutputStream();
+            reply(out, "220 FakeFTPServer ready");
+            String line;
+            while ((line = in.readLine()) != null) {
+                final int space = line.indexOf(' ');
+                final String command = (space < 0 ? line : line.substring(0, space)).toUpperCase();
+                final String argument = space < 0 ? "" : line.substring(space + 1).trim();
+                if (command.equals("USER")) {
+                    reply(out, "331 Password required");
+                } else if (command.equals("PASS")) {
+                    logins.incrementAndGet();
+                    reply(out, "230 Logged in");
+                } else if (command.equals("TYPE") || command.equals("NOOP")) {
+                    reply(out, "200 OK");
+                } else if (command.equals("SIZE")) {
+                    final byte[] file = files.get(argument);
+                    reply(out, file == null ? "550 No such file" : "213 " + file.length);
+                } else if (command.equals("PASV")) {
+                    if (passive != null) passive.close();
+                    passive = new ServerSocket(0, 1, LOOPBACK);
+                    final int port = passive.getLocalPort();
+                    reply(out, "227 Entering Passive Mode (127,0,0,1," + (port / 256) + "," + (port % 256) + ")");
+                } else if (command.equals("REST")) {
+                    rest = Long.parseLong(argument);
+                    reply(out, "350 Restarting at " + rest);
+                } else if (command.equals("RETR")) {
+                    final byte[] file = files.get(argument);
+                    if (file == null) {
+                        reply(out, "550 No such file");
+                    } else if (passive == null) {
+                        reply(out, "425 Use PASV first");
+                    } else {
+                        reply(out, "150 Opening BINARY mode data connection");
+                        final boolean complete = transfer(passive, file, rest);
+                        passive = null;
+                        rest = 0;
+                        reply(out, complete ? "226 Transfer complete" : "426 Connection closed; transfer aborted");
+                        if (!complete && completeAfterAbort) {
+                            reply(out, "226 Closing data connection");
+                        }
+                    }
+                } else if (command.equals("QUIT")) {
+                    reply(out, "221 Goodbye");
+                    break;
+                } else {
+                    reply(out, "502 Command not implemented");
+                }
+            }
+        } catch (IOException e) {
+            // connection closed
+        } finally {
+            controlSockets.remove(socket);
+            try {
+                socket.close();
+                if (passive != null) passive.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * @return false if the client closed the data connection before the whole file was sent
+     */
+    private boolean transfer(final ServerSocket passive, final byte[] file, final long start) throws IOException {
+        final Socket data = passive.accept();
+        passive.close();
+        transfers.incrementAndGet();
+        final int active = activeTransfers.incrementAndGet();
+        synchronized (maxActiveTransfers) {
+            if (active > maxActiveTransfers.get()) maxActiveTransfers.set(active);
+        }
+        try {
+            if (transferDelayMillis > 0) {
+                Thread.sleep(transferDelayMillis);
+            }
+            final OutputStream out = data.getOutputStream();
+            for (int offset = (int) Math.min(start, file.length); offset < file.length; offset += 8192) {
+                out.write(file, offset, Math.min(8192, file.length - offset));
+            }
+            out.flush();
+            return true;
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            return false;
+        } finally {
+            activeTransfers.decrementAndGet();
+            data.close();
+        }
+    }
+
+    private static void reply(final OutputStream out, final String reply) throws IOException {
+        out.write((reply + "\r\n").getBytes("ISO-8859-1"));
+        out.flush();
+    }
+}
@@ -1,14 +1,19 @@
 package htsjdk.tribble;
 
 import htsjdk.samtools.seekablestream.SeekableFileStream;
+import htsjdk.samtools.util.CloseableIterator;
 import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.LocationAware;
 import htsjdk.tribble.bed.BEDCodec;
+import htsjdk.tribble.bed.BEDFeature;
 import htsjdk.tribble.example.ExampleBinaryCodec;
 import htsjdk.tribble.index.Block;
 import htsjdk.tribble.index.Index;
 import htsjdk.tribble.index.IndexFactory;
+import htsjdk.tribble.readers.LineIterator;
 import htsjdk.tribble.util.ParsingUtils;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFCodec;
 import org.testng.Assert;
 import org.testng.annotations.AfterClass;
 import org.testng.annotations.BeforeClass;
@@ -17,14 +22,19 @@ import org.testng.annotations.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
 
 
 public class FeatureReaderTest {
     private final static File asciiBedFile = new File(TestUtils.DATA_DIR + "test.bed");
     private final static File binaryBedFile = new File(TestUtils.OUTPUT_DIR + "test.binary.bed");
+    private final static File sitesBedFile = new File(TestUtils.DATA_DIR + "sites.bed");
     private final static File tabixBedFile = new File(TestUtils.DATA_DIR + "test.tabix.bed.gz");
 
     @BeforeClass
@@ -95,6 +105,82 @@ public class FeatureReaderTest {
         reader.close();
     }
 
+    @DataProvider(name = "batchQueryProvider")
+    public Object[][] createBatchQueryData() {
+        return new Object[][]{
+                {asciiBedFile, IndexFactory.IndexType.LINEAR, new BEDCodec()},
+                {asciiBedFile, IndexFactory.IndexType.INTERVAL_TREE, new BEDCodec()},
+                {binaryBedFile, IndexFactory.IndexType.LINEAR, new ExampleBinaryCodec()},
+                {binaryBedFile, IndexFactory.IndexType.INTERVAL_TREE, new ExampleBinaryCodec()},
+                {sitesBedFile, IndexFactory.IndexType.LINEAR, new BEDCodec()},
+                {sitesBedFile, IndexFactory.IndexType.INTERVAL_TREE, new BEDCodec()},
+        };
+    }
+
+    @Test(dataProvider = "batchQueryProvider")
+    public void testBatchQuery(final File featureFile, final IndexFactory.IndexType indexType, final FeatureCodec<Feature, LocationAware> codec) throws IOException {
+        final AbstractFeatureReader<Feature, LocationAware> reader = getReader(featureFile, indexType, codec);
+        final TribbleIndexedFeatureReader<Feature, LocationAware> tribbleReader = (TribbleIndexedFeatureReader<Feature, LocationAware>) reader;
+
+        // Many small, overlapping and nested intervals, plus a sequence that isn't in the file
+        final Random random = new Random(7);
+        final List<Feature> intervals = new ArrayList<Feature>();
+        for (final String chr : Arrays.asList("chr1", "chr3", "chr2")) {
+            int start = 1;
+            for (int i = 0; i < 300; ++i) {
+                start += random.nextInt(i % 50 == 0 ? 5000 : 500);
+                intervals.add(new BasicFeature(chr, start, start + random.nextInt(i % 10 == 0 ? 3000 : 50)));
+            }
+        }
+        intervals.add(new BasicFeature("chrX", 1, 1000));
+        // The intervals of testBedQuery
+        intervals.addAll(Arrays.asList(new BasicFeature("chr1", 1, 500), new BasicFeature("chr1", 1, 200),
+                new BasicFeature("chr1", 1, 201), new BasicFeature("chr1", 500, 600), new BasicFeature("chr1", 100000, 100010),
+                new BasicFeature("chr1", 100000, 100000), new BasicFeature("chr1", 100001, 100001),
+                new BasicFeature("chr1", 100005, 100006), new BasicFeature("chr1", 100009, 100011),
+                new BasicFeature("chr1", 100010, 100010), new BasicFeature("chr1", 100011, 100011),
+                new BasicFeature("chr2", 1, 100), new BasicFeature("chr2", 1, 10), new BasicFeature("chr2", 15, 16)));
+        Collections.sort(intervals, new Comparator<Feature>() {
+            public int compare(final Feature f1, final Feature f2) {
+                final int cmp = f1.getChr().compareTo(f2.getChr());
+                return cmp != 0 ? cmp : f1.getStart() - f2.getStart();
+            }
+        });
+
+        final CloseableIterator<TribbleIndexedFeatureReader.QueryResult<Feature>> results = tribbleReader.query(intervals);
+        int totalFeatures = 0;
+        for (final Feature interval : intervals) {
+            Assert.assertTrue(results.hasNext());
+            final TribbleIndexedFeatureReader.QueryResult<Feature> result = results.next();
+            Assert.assertSame(result.getInterval(), interval);
+            final List<String> batch = new ArrayList<String>();
+            for (final Feature f : result.getFeatures()) batch.add(f.getChr() + ":" + f.getStart() + "-" + f.getEnd());
+            totalFeatures += batch.size();
+
+            final List<String> single = new ArrayList<String>();
+            final CloseableTribbleIterator<Feature> iter = reader.query(interval.getChr(), interval.getStart(), interval.getEnd());
+            for (final Feature f : iter) single.add(f.getChr() + ":" + f.getStart() + "-" + f.getEnd());
+            iter.close();
+            Assert.assertEquals(batch, single, "At " + interval.getChr() + ":" + interval.getStart() + "-" + interval.getEnd());
+        }
+        Assert.assertFalse(results.hasNext());
+        Assert.assertTrue(totalFeatures > 0);
+        results.close();
+        reader.close();
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testBatchQueryUnsortedIntervals() throws IOException {
+        final TribbleIndexedFeatureReader<BEDFeature, LineIterator> reader =
+                new TribbleIndexedFeatureReader<BEDFeature, LineIterator>(asciiBedFile.getAbsolutePath(), new BEDCodec(), false);
+        try {
+            reader.query(Arrays.asList(new BasicFeature("chr1", 100, 200), new BasicFeature("chr2", 1, 10),
+                    new BasicFeature("chr1", 300, 400)));
+        } finally {
+            reader.close();
+        }
+    }
+
     private void testQuery(final AbstractFeatureReader<Feature, ?> reader, final String chr, final int start, final int stop, final int expectedNumRecords) throws IOException {
         final Iterator<Feature> iter = reader.query(chr, start, stop);
         int count = 0;
@@ -120,6 +206,75 @@ public class FeatureReaderTest {
         }
     }
 
+    @DataProvider(name = "parallelDecodingProvider")
+    public Object[][] createParallelDecodingData() {
+        return new Object[][]{
+                {sitesBedFile, BEDCodec.class},
+                {new File(TestUtils.DATA_DIR + "bed/Unigene.sample.bed"), BEDCodec.class},
+                {tabixBedFile, BEDCodec.class},
+                {new File("testdata/htsjdk/variant/HiSeq.10000.vcf"), VCFCodec.class},
+                {new File("testdata/htsjdk/variant/ILLUMINA.wex.broad_phase2_baseline.20111114.both.exome.genotypes.1000.vcf"), VCFCodec.class},
+        };
+    }
+
+    @Test(dataProvider = "parallelDecodingProvider")
+    public void testParallelDecoding(final File featureFile, final Class<? extends FeatureCodec<Feature, ?>> codecClass) throws Exception {
+        final List<String> serial = readAllFeatures(featureFile, codecClass.newInstance(), 1);
+        Assert.assertTrue(serial.size() > 0);
+        for (final int threads : new int[]{2, 4}) {
+            Assert.assertEquals(readAllFeatures(featureFile, codecClass.newInstance(), threads), serial);
+        }
+    }
+
+    @Test
+    public void testParallelDecodingClosedEarly() throws IOException {
+        final AbstractFeatureReader<VariantContext, ?> reader =
+                AbstractFeatureReader.getFeatureReader(new File("testdata/htsjdk/variant/HiSeq.10000.vcf").getAbsolutePath(), new VCFCodec(), false);
+        reader.setDecodingThreads(4);
+        final CloseableTribbleIterator<VariantContext> iterator = reader.iterator();
+        Assert.assertTrue(iterator instanceof ParallelFeatureIterator);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(iterator.hasNext());
+            iterator.next();
+        }
+        iterator.close();
+        Assert.assertFalse(iterator.hasNext());
+        reader.close();
+    }
+
+    @Test
+    public void testCodecThatCannotBeCopiedDecodesSerially() throws IOException {
+        // Subclasses of BEDCodec are not copied, as they may decode differently
+        final AbstractFeatureReader<BEDFeature, ?> reader =
+                AbstractFeatureReader.getFeatureReader(sitesBedFile.getAbsolutePath(), new BEDCodec() {}, false);
+        reader.setDecodingThreads(4);
+        Assert.assertFalse(reader.decodesInParallel());
+        final CloseableTribbleIterator<BEDFeature> iterator = reader.iterator();
+        Assert.assertFalse(iterator instanceof ParallelFeatureIterator);
+        Assert.assertTrue(iterator.hasNext());
+        iterator.close();
+        reader.close();
+    }
+
+    private static List<String> readAllFeatures(final File featureFile, final FeatureCodec<Feature, ?> codec, final int threads) throws IOException {
+        final AbstractFeatureReader<Feature, ?> reader = AbstractFeatureReader.getFeatureReader(featureFile.getAbsolutePath(), codec, false);
+        reader.setDecodingThreads(threads);
+        final List<String> features = new ArrayList<String>();
+        final CloseableTribbleIterator<Feature> iterator = reader.iterator();
+        Assert.assertEquals(iterator instanceof ParallelFeatureIterator, threads > 1);
+        for (final Feature f : iterator) {
+            if (f instanceof VariantContext) {
+                features.add(((VariantContext) f).toStringDecodeGenotypes());
+            } else {
+                final BEDFeature bed = (BEDFeature) f;
+                features.add(bed.getChr() + ":" + bed.getStart() + "-" + bed.getEnd() + " " + bed.getName() + " " + bed.getExons().size());
+            }
+        }
+        iterator.close();
+        reader.close();
+        return features;
+    }
+
     private static <FEATURE extends Feature, SOURCE extends LocationAware> AbstractFeatureReader<FEATURE, SOURCE> getReader(final File featureFile,
                                                                                                                             final IndexFactory.IndexType indexType,
                                                                                                                             final FeatureCodec<FEATURE, SOURCE> codec)
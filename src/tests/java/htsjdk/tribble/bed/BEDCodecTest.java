@@ -31,15 +31,22 @@ import htsjdk.tribble.annotation.Strand;
 import htsjdk.tribble.bed.FullBEDFeature.Exon;
 import htsjdk.tribble.index.IndexFactory;
 import htsjdk.tribble.index.linear.LinearIndex;
+import htsjdk.tribble.readers.AsciiLine;
+import htsjdk.tribble.readers.AsciiLineSliceIterator;
 import htsjdk.tribble.util.LittleEndianOutputStream;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
 import java.awt.*;
 import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class BEDCodecTest {
@@ -203,6 +210,72 @@ public class BEDCodecTest {
         reader.close();
     }
 
+    @Test
+    public void testDecodeLineSlicesMatchesDecodeString() throws Exception {
+        final List<String> lines = new ArrayList<String>(Arrays.asList(
+                "chr1\t100\t200\t\"quoted\"\t5.5\t-",
+                "chr1  100 200  name",
+                "chr1\t100\t200\tname\tnotAScore\t+",
+                "chr1\t100",
+                "chr1",
+                "   ",
+                "#comment",
+                "track name=x",
+                "chr2\t1000\t5000\tgene\t0\t+\t1200\t4800\t255,0,0\t3\t100,200,300,\t0,1000,3700,",
+                "chr2\t1000\t5000\tgene\t0\t \t1200\t4800\t0,0,255\t2\t100,300,\t0,3700,"));
+        for (final String file : new String[]{"test.bed", "sites.bed", "bed/Unigene.sample.bed",
+                "bed/NA12878.deletions.10kbp.het.gq99.hand_curated.hg19_fixed.bed"}) {
+            final BufferedReader reader = new BufferedReader(new FileReader(TestUtils.DATA_DIR + file));
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                lines.add(line);
+            }
+            reader.close();
+        }
+
+        final BEDCodec codec = new BEDCodec();
+        for (final String line : lines) {
+            final byte[] bytes = line.getBytes("ISO-8859-1");
+            final BEDFeature expected;
+            try {
+                expected = codec.decode(line);
+            } catch (final NumberFormatException e) {
+                try {
+                    codec.decode(new AsciiLine(bytes, 0, bytes.length));
+                    Assert.fail("Expected NumberFormatException for " + line);
+                } catch (final NumberFormatException e2) {
+                }
+                continue;
+            }
+            final BEDFeature actual = codec.decode(new AsciiLine(bytes, 0, bytes.length));
+            if (expected == null) {
+                Assert.assertNull(actual, line);
+                continue;
+            }
+            Assert.assertEquals(actual.getChr(), expected.getChr(), line);
+            Assert.assertEquals(actual.getStart(), expected.getStart(), line);
+            Assert.assertEquals(actual.getEnd(), expected.getEnd(), line);
+            Assert.assertEquals(actual.getName(), expected.getName(), line);
+            Assert.assertEquals(actual.getScore(), expected.getScore(), line);
+            Assert.assertEquals(actual.getStrand(), expected.getStrand(), line);
+            Assert.assertEquals(actual.getColor(), expected.getColor(), line);
+            Assert.assertEquals(actual.getExons().size(), expected.getExons().size(), line);
+            for (int i = 0; i < expected.getExons().size(); ++i) {
+                Assert.assertEquals(actual.getExons().get(i).start, expected.getExons().get(i).start, line);
+                Assert.assertEquals(actual.getExons().get(i).end, expected.getExons().get(i).end, line);
+                Assert.assertEquals(actual.getExons().get(i).getCdStart(), expected.getExons().get(i).getCdStart(), line);
+            }
+        }
+    }
+
+    @Test
+    public void testSourcesReadLineSlices() throws Exception {
+        final BEDCodec codec = new BEDCodec();
+        Assert.assertTrue(codec.makeSourceFromStream(new FileInputStream(TestUtils.DATA_DIR + "test.bed")) instanceof AsciiLineSliceIterator);
+        // Subclasses might override decode(String), so get Strings
+        final BEDCodec subclass = new BEDCodec() {};
+        Assert.assertFalse(subclass.makeSourceFromStream(new FileInputStream(TestUtils.DATA_DIR + "test.bed")) instanceof AsciiLineSliceIterator);
+    }
+
     private void createIndex(File testFile, File idxFile) throws IOException {
         // Create an index if missing
         if (idxFile.exists()) {
@@ -23,14 +23,22 @@
  */
 package htsjdk.tribble.index;
 
+import htsjdk.samtools.seekablestream.SeekableFileStream;
 import htsjdk.tribble.TestUtils;
 import htsjdk.tribble.TribbleException;
 import htsjdk.tribble.bed.BEDCodec;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.tribble.util.LittleEndianOutputStream;
+import htsjdk.variant.vcf.VCFCodec;
 import org.testng.Assert;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -69,6 +77,109 @@ public class IndexFactoryTest {
         Index index = IndexFactory.createIndex(discontinuousFile, bedCodec, type);
     }
 
+    @Test(dataProvider = "indexFactoryProvider")
+    public void testLoadIndexLazily(IndexFactory.IndexType type) throws Exception {
+        final File bedFile = new File(TestUtils.DATA_DIR + "bed/NA12878.deletions.10kbp.het.gq99.hand_curated.hg19_fixed.bed");
+        final File indexFile = File.createTempFile("IndexFactoryTest.", ".idx");
+        indexFile.deleteOnExit();
+        IndexFactory.writeIndex(IndexFactory.createIndex(bedFile, bedCodec, type), indexFile);
+        final Index eager = IndexFactory.loadIndex(indexFile.getAbsolutePath());
+
+        final SeekableFileStream stream = new SeekableFileStream(indexFile);
+        try {
+            for (final Index lazy : new Index[]{IndexFactory.loadIndexLazily(indexFile), IndexFactory.loadIndexLazily(stream)}) {
+                Assert.assertEquals(lazy.getClass(), eager.getClass());
+                Assert.assertEquals(lazy.getSequenceNames(), eager.getSequenceNames());
+                Assert.assertTrue(lazy.getSequenceNames().size() > 1);
+
+                // Only the sequences that are used are read
+                final String first = eager.getSequenceNames().get(0);
+                final String last = eager.getSequenceNames().get(eager.getSequenceNames().size() - 1);
+                Assert.assertTrue(lazy.containsChromosome(first));
+                Assert.assertFalse(lazy.containsChromosome("chrNotThere"));
+                Assert.assertEquals(lazy.getBlocks(last, 1, 250000000), eager.getBlocks(last, 1, 250000000));
+                Assert.assertNotNull(((AbstractIndex) lazy).chrIndices.get(last));
+                Assert.assertNull(((AbstractIndex) lazy).chrIndices.get(first));
+
+                for (final String chr : eager.getSequenceNames()) {
+                    for (int start = 1; start < 250000000; start += 10000000) {
+                        Assert.assertEquals(lazy.getBlocks(chr, start, start + 20000000), eager.getBlocks(chr, start, start + 20000000));
+                    }
+                }
+                if (type == IndexFactory.IndexType.LINEAR) {
+                    // IntervalTreeIndex.ChrIndex does not implement equals()
+                    Assert.assertTrue(((AbstractIndex) lazy).equalsIgnoreProperties(eager));
+                }
+                Assert.assertEquals(lazy.getProperties(), eager.getProperties());
+            }
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Test(dataProvider = "indexFactoryProvider")
+    public void testCreateIndexInParallel(final IndexFactory.IndexType type) throws Exception {
+        final File bedFile = makeLargeBedFile();
+        final File vcfFile = new File("testdata/htsjdk/variant/HiSeq.10000.vcf");
+        Assert.assertTrue(bedFile.length() > 4 * IndexFactory.MIN_BYTES_PER_RANGE);
+        for (final int threads : new int[]{2, 3, 8}) {
+            Assert.assertTrue(Arrays.equals(indexBytes(IndexFactory.createIndex(bedFile, new BEDCodec(), type, threads)),
+                    indexBytes(IndexFactory.createIndex(bedFile, new BEDCodec(), type))));
+            Assert.assertTrue(Arrays.equals(indexBytes(IndexFactory.createIndex(vcfFile, new VCFCodec(), type, threads)),
+                    indexBytes(IndexFactory.createIndex(vcfFile, new VCFCodec(), type))));
+        }
+    }
+
+    @Test
+    public void testCreateTabixIndexInParallel() throws Exception {
+        final File bedFile = makeLargeBedFile();
+        Assert.assertEquals(IndexFactory.createTabixIndex(bedFile, new BEDCodec(), TabixFormat.BED, null, 4),
+                IndexFactory.createTabixIndex(bedFile, new BEDCodec(), TabixFormat.BED, null));
+    }
+
+    @Test(expectedExceptions = TribbleException.MalformedFeatureFile.class)
+    public void testCreateIndexInParallelUnsorted() throws Exception {
+        final File bedFile = File.createTempFile("IndexFactoryTest.", ".bed");
+        bedFile.deleteOnExit();
+        final PrintWriter writer = new PrintWriter(bedFile);
+        for (int i = 0; i < 40000; ++i) {
+            // Starts go back once, in the second half of the file
+            final int start = i < 30000 ? i * 10 : (i - 10000) * 10;
+            writer.println("chr1\t" + start + "\t" + (start + 5) + "\tfeature" + i);
+        }
+        writer.close();
+        IndexFactory.createIndex(bedFile, new BEDCodec(), IndexFactory.IndexType.LINEAR, 4);
+    }
+
+    /**
+     * @return a BED file of several sequences, with a track line and comment lines, larger than a few ranges.
+     */
+    private static File makeLargeBedFile() throws IOException {
+        final File bedFile = File.createTempFile("IndexFactoryTest.", ".bed");
+        bedFile.deleteOnExit();
+        final PrintWriter writer = new PrintWriter(bedFile);
+        writer.println("track name=test");
+        for (int chr = 1; chr <= 5; ++chr) {
+            for (int i = 0; i < 10000; ++i) {
+                if (i % 997 == 0) {
+                    writer.println("# comment " + i);
+                }
+                final int start = i * 100 + (i % 7);
+                writer.println("chr" + chr + "\t" + start + "\t" + (start + 50 + (i % 300) * 20) + "\tfeature" + i + "\t" + (i % 1000) + "\t+");
+            }
+        }
+        writer.close();
+        return bedFile;
+    }
+
+    private static byte[] indexBytes(final Index index) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final LittleEndianOutputStream stream = new LittleEndianOutputStream(bytes);
+        index.write(stream);
+        stream.close();
+        return bytes.toByteArray();
+    }
+
     @DataProvider(name = "indexFactoryProvider")
     public Object[][] getIndexFactoryTypes(){
         return new Object[][] {
@@ -0,0 +1,188 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.tribble.index.tabix;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.tribble.AbstractFeatureReader;
+import htsjdk.tribble.AsciiFeatureCodec;
+import htsjdk.tribble.CloseableTribbleIterator;
+import htsjdk.tribble.Feature;
+import htsjdk.tribble.TestUtils;
+import htsjdk.tribble.bed.BEDCodec;
+import htsjdk.tribble.readers.LineIterator;
+import htsjdk.tribble.readers.LineIteratorImpl;
+import htsjdk.tribble.readers.LineReaderUtil;
+import htsjdk.tribble.util.TabixUtils;
+import htsjdk.variant.vcf.VCFCodec;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class TabixIndexedFeatureWriterTest {
+
+    @DataProvider(name = "indexOnWriteDataProvider")
+    public Object[][] indexOnWriteDataProvider() {
+        return new Object[][] {
+                {new File(TestUtils.DATA_DIR + "sites.bed"), new BEDCodec(), new BEDCodec(), TabixFormat.BED},
+                {new File("testdata/htsjdk/variant/HiSeq.10000.vcf"), new VCFCodec(), new VCFCodec(), TabixFormat.VCF}
+        };
+    }
+
+    /**
+     * Copy a feature file with the writer, then check that the index written answers queries like a scan of the
+     * features does.
+     */
+    @Test(dataProvider = "indexOnWriteDataProvider")
+    public void testIndexOnWrite(final File inputFile, final AsciiFeatureCodec<Feature> codec,
+                                 final AsciiFeatureCodec<Feature> readerCodec, final TabixFormat formatSpec) throws Exception {
+        final File output = File.createTempFile("TabixIndexedFeatureWriterTest.", ".gz");
+        output.deleteOnExit();
+        final File indexFile = new File(output.getAbsolutePath() + TabixUtils.STANDARD_INDEX_EXTENSION);
+        indexFile.deleteOnExit();
+
+        final LineIterator headerLines = new LineIteratorImpl(LineReaderUtil.fromBufferedStream(new FileInputStream(inputFile)));
+        codec.readActualHeader(headerLines);
+        CloserUtil.close(headerLines);
+
+        final List<Feature> features = new ArrayList<Feature>();
+        final TabixIndexedFeatureWriter writer = new TabixIndexedFeatureWriter(output, formatSpec);
+        final LineIterator lines = new LineIteratorImpl(LineReaderUtil.fromBufferedStream(new FileInputStream(inputFile)));
+        while (lines.hasNext()) {
+            final String line = lines.next();
+            if (line.startsWith("#")) {
+                writer.writeHeaderLine(line);
+            } else {
+                final Feature feature = codec.decode(line);
+                features.add(feature);
+                writer.add(feature, line);
+            }
+        }
+        CloserUtil.close(lines);
+        writer.close();
+        Assert.assertEquals(new TabixIndex(indexFile).getSequenceNames(), writer.getIndex().getSequenceNames());
+
+        final AbstractFeatureReader<Feature, LineIterator> featureReader =
+                AbstractFeatureReader.getFeatureReader(output.getAbsolutePath(), readerCodec);
+        Assert.assertTrue(featureReader.hasIndex());
+        int total = 0;
+        for (final Feature f : featureReader.iterator()) {
+            ++total;
+        }
+        Assert.assertEquals(total, features.size());
+        for (int i = 0; i < features.size(); i += 37) {
+            final Feature query = features.get(i);
+            final int queryEnd = query.getEnd() + 5000;
+            int expected = 0;
+            for (final Feature f : features) {
+                if (f.getChr().equals(query.getChr()) && f.getEnd() >= query.getStart() && f.getStart() <= queryEnd) {
+                    ++expected;
+                }
+            }
+            int count = 0;
+            final CloseableTribbleIterator<Feature> it = featureReader.query(query.getChr(), query.getStart(), queryEnd);
+            while (it.hasNext()) {
+                it.next();
+                ++count;
+            }
+            it.close();
+            Assert.assertEquals(count, expected, query.getChr() + ":" + query.getStart());
+        }
+        featureReader.close();
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testHeaderAfterFeature() throws Exception {
+        final File output = File.createTempFile("TabixIndexedFeatureWriterTest.", ".bed.gz");
+        output.deleteOnExit();
+        final TabixIndexedFeatureWriter writer = new TabixIndexedFeatureWriter(output, TabixFormat.BED);
+        try {
+            final String line = "chr1\t100\t200\tfeature";
+            writer.add(new BEDCodec().decode(line), line);
+            writer.writeHeaderLine("#chrom\tstart\tend\tname");
+        } finally {
+            writer.close();
+            new File(output.getAbsolutePath() + TabixUtils.STANDARD_INDEX_EXTENSION).delete();
+        }
+    }
+
+    @Test
+    public void testLinesEncodedAsLatin1() throws Exception {
+        final File output = File.createTempFile("TabixIndexedFeatureWriterTest.", ".bed.gz");
+        output.deleteOnExit();
+        new File(output.getAbsolutePath() + TabixUtils.STANDARD_INDEX_EXTENSION).deleteOnExit();
+        final TabixIndexedFeatureWriter writer = new TabixIndexedFeatureWriter(output, TabixFormat.BED);
+        final String line = "chr1\t100\t200\tcaf\u00e9\u4e2d";
+        writer.add(new BEDCodec().decode(line), line);
+        writer.close();
+
+        final BlockCompressedInputStream in = new BlockCompressedInputStream(output);
+        final byte[] bytes = new byte[100];
+        final int length = in.read(bytes);
+        in.close();
+        final byte[] expected = {'c', 'a', 'f', (byte) 0xe9, '?', '\n'};
+        Assert.assertEquals(length, "chr1\t100\t200\t".length() + expected.length);
+        Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(bytes, length - expected.length, length), expected));
+    }
+
+    @Test
+    public void testOutputClosedWhenIndexCannotBeFinalized() throws Exception {
+        final File output = File.createTempFile("TabixIndexedFeatureWriterTest.", ".bed.gz");
+        output.deleteOnExit();
+        final File indexFile = new File(output.getAbsolutePath() + TabixUtils.STANDARD_INDEX_EXTENSION);
+        final boolean[] closed = {false};
+        // Every feature appears to be empty, which the index creator rejects when the last one is finalized
+        final BlockCompressedOutputStream out = new BlockCompressedOutputStream(output) {
+            @Override
+            public long getFilePointer() {
+                return 0;
+            }
+
+            @Override
+            public void close() throws IOException {
+                closed[0] = true;
+                super.close();
+            }
+        };
+        final TabixIndexedFeatureWriter writer = new TabixIndexedFeatureWriter(out, indexFile, null, TabixFormat.BED);
+        final String line = "chr1\t100\t200\tfeature";
+        writer.add(new BEDCodec().decode(line), line);
+        try {
+            writer.close();
+            Assert.fail("Expected the index to fail to finalize");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        Assert.assertTrue(closed[0]);
+        Assert.assertFalse(indexFile.exists());
+    }
+}
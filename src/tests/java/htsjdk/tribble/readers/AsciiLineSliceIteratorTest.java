@@ -0,0 +1,101 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.tribble.readers;
+
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+public class AsciiLineSliceIteratorTest {
+
+    @DataProvider(name = "lineTestCases")
+    public Object[][] lineTestCases() {
+        final StringBuilder longLine = new StringBuilder();
+        for (int i = 0; i < 1000; ++i) longLine.append("field").append(i).append('\t');
+        final String[] inputs = {
+                "",
+                "a",
+                "a\n",
+                "a\nb\nc",
+                "a\r\nb\r\nc\r\n",
+                "a\rb\rc\r",
+                "\n\n\na\n\r\n\r\r\n",
+                "chr1\t100\t200\r\nchr1\t300\t400\rchr2\t1\t2\n",
+                longLine + "\n" + longLine + "\r\n" + longLine,
+        };
+        final int[] bufferSizes = {2, 3, 7, 64 * 1024};
+        final List<Object[]> cases = new ArrayList<Object[]>();
+        for (final String input : inputs) {
+            for (final int bufferSize : bufferSizes) {
+                cases.add(new Object[]{input, bufferSize});
+            }
+        }
+        return cases.toArray(new Object[cases.size()][]);
+    }
+
+    @Test(dataProvider = "lineTestCases")
+    public void testLinesAndPositionsMatchAsciiLineReaderIterator(final String input, final int bufferSize) throws Exception {
+        final byte[] bytes = input.getBytes("ISO-8859-1");
+        final AsciiLineReaderIterator expected =
+                new AsciiLineReaderIterator(new AsciiLineReader(new PositionalBufferedStream(new ByteArrayInputStream(bytes))));
+        final AsciiLineSliceIterator actual = new AsciiLineSliceIterator(new ByteArrayInputStream(bytes), bufferSize);
+
+        Assert.assertEquals(actual.getPosition(), expected.getPosition());
+        boolean useSlices = false;
+        while (expected.hasNext()) {
+            Assert.assertTrue(actual.hasNext());
+            Assert.assertEquals(actual.peek(), expected.peek());
+            final String expectedLine = expected.next();
+            final String actualLine = useSlices ? actual.nextLine().toString() : actual.next();
+            Assert.assertEquals(actualLine, expectedLine);
+            Assert.assertEquals(actual.getPosition(), expected.getPosition());
+            useSlices = !useSlices;
+        }
+        Assert.assertFalse(actual.hasNext());
+        Assert.assertNull(actual.peek());
+        Assert.assertEquals(actual.getPosition(), bytes.length);
+        actual.close();
+    }
+
+    @Test
+    public void testPositionIsRelativeToPositionalStream() throws Exception {
+        final PositionalBufferedStream stream = new PositionalBufferedStream(new ByteArrayInputStream("header\nline1\nline2\n".getBytes()));
+        stream.skip(7);
+        final AsciiLineSliceIterator iterator = new AsciiLineSliceIterator(stream);
+        Assert.assertEquals(iterator.getPosition(), 7);
+        final AsciiLine line = iterator.nextLine();
+        Assert.assertEquals(line.toString(), "line1");
+        Assert.assertTrue(line.startsWith("line"));
+        Assert.assertFalse(line.startsWith("line12"));
+        Assert.assertEquals(line.charAt(4), '1');
+        Assert.assertEquals(iterator.getPosition(), 13);
+        Assert.assertEquals(iterator.next(), "line2");
+        Assert.assertEquals(iterator.getPosition(), 19);
+        Assert.assertFalse(iterator.hasNext());
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package htsjdk.tribble.readers;
+
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+public class AsciiLineTokenizerTest {
+
+    @DataProvider(name = "splitTestCases")
+    public Object[][] splitTestCases() {
+        return new Object[][]{
+                {"", false}, {"a", false}, {"a\tb\tc", false}, {"\ta\t\tb\t", false}, {"\t\t", false},
+                {"a b\tc", false},
+                {"", true}, {"a  b\tc", true}, {" a b ", true}, {"a \tb", true}, {"a\t\t  b   ", true}, {"   ", true},
+        };
+    }
+
+    @Test(dataProvider = "splitTestCases")
+    public void testSplitMatchesRegex(final String input, final boolean spaceRunsAreDelimiters) {
+        final Pattern pattern = Pattern.compile(spaceRunsAreDelimiters ? "\\t|( +)" : "\\t");
+        final AsciiLineTokenizer tokenizer = new AsciiLineTokenizer('\t', spaceRunsAreDelimiters);
+        // Embed the line in a larger array to check that offsets are respected
+        final byte[] bytes = ("xx" + input + "yy").getBytes();
+        final int count = tokenizer.tokenize(new AsciiLine(bytes, 2, bytes.length - 2));
+        final String[] expected = pattern.split(input, -1);
+        Assert.assertEquals(count, expected.length);
+        Assert.assertTrue(Arrays.equals(tokenizer.getStrings(), expected), Arrays.toString(tokenizer.getStrings()));
+        for (int i = 0; i < count; ++i) {
+            Assert.assertTrue(tokenizer.fieldEquals(i, expected[i]));
+            Assert.assertFalse(tokenizer.fieldEquals(i, expected[i] + "z"));
+            Assert.assertEquals(tokenizer.getFieldLength(i), expected[i].length());
+        }
+    }
+
+    @Test
+    public void testManyFields() {
+        final StringBuilder builder = new StringBuilder("0");
+        for (int i = 1; i < 100; ++i) builder.append(',').append(i);
+        final AsciiLineTokenizer tokenizer = new AsciiLineTokenizer(',');
+        final byte[] bytes = builder.toString().getBytes();
+        Assert.assertEquals(tokenizer.tokenize(new AsciiLine(bytes, 0, bytes.length)), 100);
+        for (int i = 0; i < 100; ++i) {
+            Assert.assertEquals(tokenizer.getInt(i), i);
+        }
+    }
+
+    @DataProvider(name = "numberTestCases")
+    public Object[][] numberTestCases() {
+        return new Object[][]{
+                {"0"}, {"123"}, {"-123"}, {"+123"}, {"007"},
+                {"2147483647"}, {"-2147483648"}, {"2147483648"}, {"-2147483649"},
+                {"9223372036854775807"}, {"-9223372036854775808"}, {"9223372036854775808"}, {"-9223372036854775809"},
+                {""}, {"-"}, {"+"}, {"1a"}, {"1.5"}, {" 1"}, {"--1"},
+        };
+    }
+
+    @Test(dataProvider = "numberTestCases")
+    public void testNumbersMatchJdkParsing(final String input) {
+        final AsciiLineTokenizer tokenizer = new AsciiLineTokenizer('\t');
+        final byte[] bytes = ("x\t" + input).getBytes();
+        tokenizer.tokenize(new AsciiLine(bytes, 0, bytes.length));
+
+        Integer expectedInt = null;
+        try {
+            expectedInt = Integer.parseInt(input);
+        } catch (final NumberFormatException e) {
+        }
+        try {
+            Assert.assertEquals(Integer.valueOf(tokenizer.getInt(1)), expectedInt);
+        } catch (final NumberFormatException e) {
+            Assert.assertNull(expectedInt);
+        }
+
+        Long expectedLong = null;
+        try {
+            expectedLong = Long.parseLong(input);
+        } catch (final NumberFormatException e) {
+        }
+        try {
+            Assert.assertEquals(Long.valueOf(tokenizer.getLong(1)), expectedLong);
+        } catch (final NumberFormatException e) {
+            Assert.assertNull(expectedLong);
+        }
+    }
+}
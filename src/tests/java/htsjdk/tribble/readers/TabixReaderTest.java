@@ -10,6 +10,7 @@ import org.testng.annotations.Test;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
 
 import static org.testng.AssertJUnit.assertTrue;
@@ -135,6 +136,61 @@ public class TabixReaderTest {
 
     }
 
+    // The query tests below use fakeVCF.vcf.gz, which has one record at each position from 1 to 100000
+    // of sequence 1, over several BGZF blocks.
+
+    private static List<Integer> queryPositions(final TabixReader reader, final int beg, final int end) throws IOException {
+        final List<Integer> positions = new ArrayList<Integer>();
+        final TabixReader.Iterator iter = reader.query("1", beg, end);
+        String line;
+        while ((line = iter.next()) != null) {
+            positions.add(Integer.parseInt(line.split("\t")[1]));
+        }
+        return positions;
+    }
+
+    private static List<Integer> expectedPositions(final int beg, final int end) {
+        final List<Integer> positions = new ArrayList<Integer>();
+        for (int pos = Math.max(1, beg + 1); pos <= Math.min(100000, end); ++pos) {
+            positions.add(pos);
+        }
+        return positions;
+    }
+
+    @Test
+    public void testRandomQueries() throws IOException {
+        final TabixReader reader = new TabixReader(TestUtils.DATA_DIR + "fakeVCF.vcf.gz");
+        final TabixReader uncached = new TabixReader(TestUtils.DATA_DIR + "fakeVCF.vcf.gz");
+        uncached.setBlockCacheSize(0);
+        final Random random = new Random(23);
+        for (int i = 0; i < 300; ++i) {
+            final int beg = random.nextInt(101000);
+            final int end = beg + random.nextInt(i % 10 == 0 ? 50000 : 500);
+            final List<Integer> positions = queryPositions(reader, beg, end);
+            Assert.assertEquals(positions, expectedPositions(beg, end), "query " + beg + "-" + end);
+            Assert.assertEquals(queryPositions(uncached, beg, end), positions);
+        }
+        Assert.assertEquals(uncached.getBlockCacheHits(), 0);
+        reader.close();
+        uncached.close();
+    }
+
+    @Test
+    public void testNeighbouringQueriesReuseBlocks() throws IOException {
+        final TabixReader reader = new TabixReader(TestUtils.DATA_DIR + "fakeVCF.vcf.gz");
+        for (int beg = 50000; beg < 51000; beg += 100) {
+            Assert.assertEquals(queryPositions(reader, beg, beg + 50), expectedPositions(beg, beg + 50));
+        }
+        final long hits = reader.getBlockCacheHits();
+        Assert.assertTrue(hits > 0);
+        // the same queries again only use cached blocks
+        for (int beg = 50000; beg < 51000; beg += 100) {
+            Assert.assertEquals(queryPositions(reader, beg, beg + 50), expectedPositions(beg, beg + 50));
+        }
+        Assert.assertTrue(reader.getBlockCacheHits() >= hits + 10);
+        reader.close();
+    }
+
     /**
      * Test reading a tabix file over http
      *